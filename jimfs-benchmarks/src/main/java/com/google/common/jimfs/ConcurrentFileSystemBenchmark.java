@@ -0,0 +1,115 @@
+/*
+ * Copyright 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.common.jimfs;
+
+import java.io.IOException;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for creating, deleting and looking up files through a {@link FileSystemView} from
+ * multiple threads at once, with and without {@linkplain Configuration.Builder#setLockStripeCount
+ * striped directory locks}.
+ *
+ * @author Colin Decker
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Threads(4)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ConcurrentFileSystemBenchmark {
+
+  @Param({"1", "64"})
+  int lockStripeCount;
+
+  private FileSystem fs;
+  private Path sharedDir;
+  private Path existingFile;
+
+  private final AtomicInteger threadIds = new AtomicInteger();
+
+  @Setup
+  public void setUp() throws IOException {
+    fs =
+        Jimfs.newFileSystem(
+            Configuration.unix().toBuilder().setLockStripeCount(lockStripeCount).build());
+    sharedDir = Files.createDirectory(fs.getPath("/shared"));
+    existingFile = Files.createFile(fs.getPath("/existing"));
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    fs.close();
+  }
+
+  /** Per-thread state: a directory of the thread's own and a file name unique to the thread. */
+  @State(Scope.Thread)
+  public static class ThreadState {
+
+    Path ownFile;
+    Path sharedDirFile;
+
+    @Setup
+    public void setUp(ConcurrentFileSystemBenchmark benchmark) throws IOException {
+      int id = benchmark.threadIds.getAndIncrement();
+      Path dir = Files.createDirectory(benchmark.fs.getPath("/thread" + id));
+      ownFile = dir.resolve("file");
+      sharedDirFile = benchmark.sharedDir.resolve("file" + id);
+    }
+  }
+
+  @Benchmark
+  public void createAndDelete(ThreadState state) throws IOException {
+    Files.createFile(state.ownFile);
+    Files.delete(state.ownFile);
+  }
+
+  @Benchmark
+  public void createAndDeleteInSharedDirectory(ThreadState state) throws IOException {
+    Files.createFile(state.sharedDirFile);
+    Files.delete(state.sharedDirFile);
+  }
+
+  @Benchmark
+  public boolean exists() {
+    return Files.exists(existingFile);
+  }
+
+  @Benchmark
+  public BasicFileAttributes readAttributes() throws IOException {
+    return Files.readAttributes(existingFile, BasicFileAttributes.class);
+  }
+}
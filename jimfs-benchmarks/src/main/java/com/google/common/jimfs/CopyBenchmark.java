@@ -0,0 +1,90 @@
+/*
+ * Copyright 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.common.jimfs;
+
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+import java.io.IOException;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for {@link Files#copy(Path, Path, java.nio.file.CopyOption...)} of files of different
+ * sizes, both within a single file system and between two file systems.
+ *
+ * @author Colin Decker
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class CopyBenchmark {
+
+  @Param({"1024", "1048576", "16777216"})
+  int size;
+
+  private FileSystem fs;
+  private FileSystem otherFs;
+
+  private Path source;
+  private Path target;
+  private Path otherTarget;
+
+  @Setup
+  public void setUp() throws IOException {
+    fs = Jimfs.newFileSystem(Configuration.unix());
+    otherFs = Jimfs.newFileSystem(Configuration.unix());
+
+    byte[] content = new byte[size];
+    new Random(0).nextBytes(content);
+    source = Files.write(fs.getPath("/source"), content);
+    target = fs.getPath("/target");
+    otherTarget = otherFs.getPath("/target");
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    fs.close();
+    otherFs.close();
+  }
+
+  @Benchmark
+  public Path copyWithinFileSystem() throws IOException {
+    return Files.copy(source, target, REPLACE_EXISTING);
+  }
+
+  @Benchmark
+  public Path copyAcrossFileSystems() throws IOException {
+    return Files.copy(source, otherTarget, REPLACE_EXISTING);
+  }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.common.jimfs;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for getting, adding and removing entries in a {@link Directory} with different numbers
+ * of entries.
+ *
+ * @author Colin Decker
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class DirectoryBenchmark {
+
+  private static final int LOOKUPS = 1 << 16;
+
+  @Param({"10", "1000", "100000", "1000000"})
+  int size;
+
+  private Directory directory;
+  private File file;
+
+  /** Names of existing entries, in random order. */
+  private Name[] names;
+
+  private Name missingName;
+  private Name newName;
+  private int index;
+
+  @Setup
+  public void setUp() {
+    directory = Directory.create(0);
+    // every entry links to the same file, so the benchmark doesn't need a million files
+    file = RegularFile.create(1, new HeapDisk(8192, Integer.MAX_VALUE, 0));
+
+    Name[] allNames = new Name[size];
+    for (int i = 0; i < size; i++) {
+      allNames[i] = Name.simple("file" + i);
+      directory.link(allNames[i], file);
+    }
+
+    Random random = new Random(0);
+    names = new Name[LOOKUPS];
+    for (int i = 0; i < LOOKUPS; i++) {
+      names[i] = allNames[random.nextInt(size)];
+    }
+
+    missingName = Name.simple("missing");
+    newName = Name.simple("new");
+  }
+
+  @Benchmark
+  public DirectoryEntry get() {
+    return directory.get(names[index++ & (LOOKUPS - 1)]);
+  }
+
+  @Benchmark
+  public DirectoryEntry getMissing() {
+    return directory.get(missingName);
+  }
+
+  /** Adds and removes an entry, leaving the directory at the same size. */
+  @Benchmark
+  public void linkAndUnlink() {
+    directory.link(newName, file);
+    directory.unlink(newName);
+  }
+}
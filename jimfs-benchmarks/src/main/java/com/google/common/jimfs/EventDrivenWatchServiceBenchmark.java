@@ -0,0 +1,109 @@
+/*
+ * Copyright 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.common.jimfs;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+
+import java.io.IOException;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for {@link EventDrivenWatchService}: the time from changing a watched directory to
+ * having retrieved the resulting events, and the cost watching a directory adds to changing it.
+ * Compare with {@link PollingWatchServiceBenchmark}, where the cost of a poll is paid on every
+ * interval whether or not anything changed.
+ *
+ * @author Colin Decker
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class EventDrivenWatchServiceBenchmark {
+
+  @Param({"10", "1000", "10000"})
+  int entries;
+
+  @Param({"true", "false"})
+  boolean watched;
+
+  private FileSystem fs;
+  private WatchService watchService;
+  private Path file;
+
+  @Setup
+  public void setUp() throws IOException {
+    fs =
+        Jimfs.newFileSystem(
+            Configuration.unix()
+                .toBuilder()
+                .setWatchServiceConfiguration(WatchServiceConfiguration.eventDriven())
+                .build());
+
+    Path dir = Files.createDirectory(fs.getPath("/dir"));
+    for (int i = 0; i < entries; i++) {
+      Files.createFile(dir.resolve("file" + i));
+    }
+    file = dir.resolve("file");
+
+    watchService = fs.newWatchService();
+    if (watched) {
+      dir.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+    }
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    watchService.close();
+    fs.close();
+  }
+
+  @Benchmark
+  public Object createAndDelete() throws IOException {
+    Files.createFile(file);
+    Files.delete(file);
+
+    WatchKey key = watchService.poll();
+    if (key == null) {
+      return null;
+    }
+    List<?> events = key.pollEvents();
+    key.reset();
+    return events;
+  }
+}
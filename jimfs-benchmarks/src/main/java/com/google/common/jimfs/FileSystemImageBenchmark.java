@@ -0,0 +1,95 @@
+/*
+ * Copyright 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.common.jimfs;
+
+import java.io.IOException;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for saving snapshots of file systems as images and loading them back, for file
+ * systems with 64 MB of content spread across different numbers of files.
+ *
+ * @author Colin Decker
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class FileSystemImageBenchmark {
+
+  private static final int TOTAL_SIZE = 64 * 1024 * 1024;
+
+  @Param({"16", "4096"})
+  int files;
+
+  private final Configuration config = Configuration.unix();
+
+  private FileSystemSnapshot snapshot;
+  private Path image;
+
+  @Setup
+  public void setUp() throws IOException {
+    byte[] content = new byte[TOTAL_SIZE / files];
+    new Random(0).nextBytes(content);
+    try (FileSystem fs = Jimfs.newFileSystem(config)) {
+      for (int i = 0; i < files; i++) {
+        Path dir = fs.getPath("/dir" + (i % 16));
+        Files.createDirectories(dir);
+        Files.write(dir.resolve("file" + i), content);
+      }
+      snapshot = Jimfs.snapshot(fs);
+    }
+
+    image = Files.createTempFile("jimfs", ".img");
+    snapshot.save(image);
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    snapshot.close();
+    Files.delete(image);
+  }
+
+  @Benchmark
+  public void save() throws IOException {
+    snapshot.save(image);
+  }
+
+  @Benchmark
+  public FileSystemSnapshot load() throws IOException {
+    FileSystemSnapshot loaded = Jimfs.loadSnapshot(image, config);
+    loaded.close();
+    return loaded;
+  }
+}
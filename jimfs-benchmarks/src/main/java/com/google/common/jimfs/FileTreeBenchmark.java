@@ -0,0 +1,102 @@
+/*
+ * Copyright 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.common.jimfs;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for looking up paths of different depths in a {@link FileTree}, both the default way
+ * (optimistically, without locking) and while holding the file system's read lock.
+ *
+ * @author Colin Decker
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class FileTreeBenchmark {
+
+  @Param({"1", "4", "16", "64"})
+  int depth;
+
+  private JimfsFileSystem fs;
+  private FileSystemView view;
+  private JimfsFileStore store;
+  private File root;
+
+  private JimfsPath path;
+  private JimfsPath pathWithSymbolicLink;
+
+  @Setup
+  public void setUp() throws IOException {
+    fs = (JimfsFileSystem) Jimfs.newFileSystem(Configuration.unix());
+    view = fs.getDefaultView();
+    store = fs.getFileStore();
+
+    JimfsPath dir = fs.getPath("/");
+    for (int i = 0; i < depth; i++) {
+      dir = dir.resolve("dir" + i);
+    }
+    Files.createDirectories(dir);
+    path = (JimfsPath) Files.createFile(dir.resolve("file"));
+    root = store.getRoot(path.root());
+
+    // a link at the top of the tree to the directory containing the file
+    Files.createSymbolicLink(fs.getPath("/link"), dir);
+    pathWithSymbolicLink = fs.getPath("/link/file");
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    fs.close();
+  }
+
+  @Benchmark
+  public DirectoryEntry lookUp() throws IOException {
+    return view.lookUpWithLock(path, Options.NOFOLLOW_LINKS);
+  }
+
+  @Benchmark
+  public DirectoryEntry lookUpWithReadLock() throws IOException {
+    store.readLock().lock();
+    try {
+      return store.lookUp(root, path, Options.NOFOLLOW_LINKS);
+    } finally {
+      store.readLock().unlock();
+    }
+  }
+
+  @Benchmark
+  public DirectoryEntry lookUpThroughSymbolicLink() throws IOException {
+    return view.lookUpWithLock(pathWithSymbolicLink, Options.FOLLOW_LINKS);
+  }
+}
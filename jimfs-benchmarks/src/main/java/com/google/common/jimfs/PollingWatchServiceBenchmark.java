@@ -0,0 +1,92 @@
+/*
+ * Copyright 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.common.jimfs;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.util.concurrent.TimeUnit.HOURS;
+
+import java.io.IOException;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for the cost of a single poll of a watched directory by {@link PollingWatchService}
+ * with different numbers of entries in the directory.
+ *
+ * <p>The watch service's polling interval is set high enough that it never polls on its own; the
+ * benchmark polls directly instead. Nothing changes between polls, so no events are queued.
+ *
+ * @author Colin Decker
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class PollingWatchServiceBenchmark {
+
+  @Param({"10", "1000", "10000"})
+  int entries;
+
+  private FileSystem fs;
+  private PollingWatchService watchService;
+
+  @Setup
+  public void setUp() throws IOException {
+    fs =
+        Jimfs.newFileSystem(
+            Configuration.unix()
+                .toBuilder()
+                .setWatchServiceConfiguration(WatchServiceConfiguration.polling(1, HOURS))
+                .build());
+
+    Path dir = Files.createDirectory(fs.getPath("/dir"));
+    for (int i = 0; i < entries; i++) {
+      Files.createFile(dir.resolve("file" + i));
+    }
+
+    watchService = (PollingWatchService) fs.newWatchService();
+    dir.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    watchService.close();
+    fs.close();
+  }
+
+  @Benchmark
+  public void poll() {
+    watchService.pollWatchedDirectories();
+  }
+}
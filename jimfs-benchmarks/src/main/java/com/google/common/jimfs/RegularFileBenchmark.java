@@ -0,0 +1,134 @@
+/*
+ * Copyright 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.common.jimfs;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for sequential and random reads and writes of a {@link RegularFile} with different
+ * block sizes, buffer sizes and kinds of disk.
+ *
+ * @author Colin Decker
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class RegularFileBenchmark {
+
+  private static final int FILE_SIZE = 16 * 1024 * 1024;
+  private static final int RANDOM_POSITIONS = 1024;
+
+  /** The kinds of disk to benchmark. */
+  public enum DiskType {
+    HEAP,
+    DIRECT
+  }
+
+  @Param({"512", "8192", "65536"})
+  int blockSize;
+
+  @Param({"128", "4096", "65536"})
+  int bufferSize;
+
+  @Param({"HEAP", "DIRECT"})
+  DiskType diskType;
+
+  /** The maximum number of blocks in an extent; 1 for files made of fixed size blocks. */
+  @Param({"1", "128"})
+  int maxExtentBlockCount;
+
+  private RegularFile file;
+  private byte[] buffer;
+  private long[] randomPositions;
+
+  private long position;
+  private int randomIndex;
+
+  @Setup
+  public void setUp() throws IOException {
+    Disk disk =
+        diskType == DiskType.HEAP
+            ? new HeapDisk(blockSize, Integer.MAX_VALUE, 0, maxExtentBlockCount)
+            : new DirectDisk(
+                blockSize,
+                Integer.MAX_VALUE,
+                0,
+                maxExtentBlockCount,
+                DirectDisk.DEFAULT_SLAB_SIZE);
+    file = RegularFile.create(0, disk);
+
+    Random random = new Random(0);
+    byte[] content = new byte[FILE_SIZE];
+    random.nextBytes(content);
+    file.write(0, content, 0, content.length);
+
+    buffer = new byte[bufferSize];
+    randomPositions = new long[RANDOM_POSITIONS];
+    for (int i = 0; i < randomPositions.length; i++) {
+      randomPositions[i] = random.nextInt(FILE_SIZE - bufferSize + 1);
+    }
+  }
+
+  @Benchmark
+  public int sequentialRead() throws IOException {
+    return file.read(nextSequentialPosition(), buffer, 0, bufferSize);
+  }
+
+  @Benchmark
+  public int sequentialWrite() throws IOException {
+    return file.write(nextSequentialPosition(), buffer, 0, bufferSize);
+  }
+
+  @Benchmark
+  public int randomRead() throws IOException {
+    return file.read(nextRandomPosition(), buffer, 0, bufferSize);
+  }
+
+  @Benchmark
+  public int randomWrite() throws IOException {
+    return file.write(nextRandomPosition(), buffer, 0, bufferSize);
+  }
+
+  /** Returns the next position to read or write sequentially, wrapping to keep the size fixed. */
+  private long nextSequentialPosition() {
+    long result = position;
+    position += bufferSize;
+    if (position + bufferSize > FILE_SIZE) {
+      position = 0;
+    }
+    return result;
+  }
+
+  private long nextRandomPosition() {
+    return randomPositions[randomIndex++ & (RANDOM_POSITIONS - 1)];
+  }
+}
@@ -212,6 +212,9 @@ abstract class AbstractWatchService implements WatchService {
 
     private final BlockingQueue<WatchEvent<?>> events = new ArrayBlockingQueue<>(MAX_QUEUE_SIZE);
 
+    /** The last event posted by {@link #postCoalesced}, if it's still in the queue. */
+    @Nullable private WatchEvent<?> lastCoalescableEvent;
+
     public Key(
         AbstractWatchService watcher,
         @Nullable Watchable watchable,
@@ -242,6 +245,26 @@ abstract class AbstractWatchService implements WatchService {
       }
     }
 
+    /**
+     * Posts the given event to this key unless it's equal to the last event posted with this
+     * method and that event hasn't been retrieved yet, in which case the two are coalesced. Returns
+     * whether or not the event was posted. After posting one or more events, {@link #signal()}
+     * must be called to cause the key to be enqueued with the watch service.
+     */
+    public synchronized boolean postCoalesced(WatchEvent<?> event) {
+      if (event.equals(lastCoalescableEvent)) {
+        return false;
+      }
+
+      if (events.offer(event)) {
+        lastCoalescableEvent = event;
+      } else {
+        overflow.incrementAndGet();
+        lastCoalescableEvent = null;
+      }
+      return true;
+    }
+
     /**
      * Sets the state to SIGNALLED and enqueues this key with the watcher if it was previously in
      * the READY state.
@@ -263,7 +286,10 @@ abstract class AbstractWatchService implements WatchService {
       // reset() is ONLY for "returning" the key to the watch service to potentially be retrieved by
       // another thread when you're finished with it
       List<WatchEvent<?>> result = new ArrayList<>(events.size());
-      events.drainTo(result);
+      synchronized (this) {
+        events.drainTo(result);
+        lastCoalescableEvent = null;
+      }
       int overflowCount = overflow.getAndSet(0);
       if (overflowCount != 0) {
         result.add(overflowEvent(overflowCount));
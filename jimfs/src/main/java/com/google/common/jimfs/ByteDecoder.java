@@ -0,0 +1,188 @@
+/*
+ * Copyright 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.jimfs;
+
+import static com.google.common.jimfs.ByteEncoder.ACL_VALUE;
+import static com.google.common.jimfs.ByteEncoder.BOOLEAN_VALUE;
+import static com.google.common.jimfs.ByteEncoder.BYTES_VALUE;
+import static com.google.common.jimfs.ByteEncoder.GROUP_VALUE;
+import static com.google.common.jimfs.ByteEncoder.POSIX_PERMISSIONS_VALUE;
+import static com.google.common.jimfs.ByteEncoder.SERIALIZED_VALUE;
+import static com.google.common.jimfs.ByteEncoder.USER_VALUE;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamClass;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.file.attribute.AclEntry;
+import java.nio.file.attribute.AclEntryFlag;
+import java.nio.file.attribute.AclEntryPermission;
+import java.nio.file.attribute.AclEntryType;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * Static methods for decoding values encoded by {@link ByteEncoder} from a buffer, advancing the
+ * buffer's position past each value. The methods throw {@link BufferUnderflowException} if the
+ * buffer doesn't contain a complete value.
+ *
+ * @author Colin Decker
+ */
+final class ByteDecoder {
+
+  private ByteDecoder() {}
+
+  static byte[] getBytes(ByteBuffer buf) {
+    int length = buf.getInt();
+    if (length < 0 || length > buf.remaining()) {
+      throw new BufferUnderflowException();
+    }
+    byte[] bytes = new byte[length];
+    buf.get(bytes);
+    return bytes;
+  }
+
+  static String getString(ByteBuffer buf) {
+    return new String(getBytes(buf), UTF_8);
+  }
+
+  static Name getName(ByteBuffer buf) {
+    String display = getString(buf);
+    String canonical = getString(buf);
+    return Name.create(display, canonical);
+  }
+
+  /**
+   * Gets an attribute value. Serialized values are only deserialized if they're of one of the
+   * {@linkplain ByteEncoder#SERIALIZABLE_VALUE_TYPES types} that are encoded that way.
+   *
+   * @throws IOException if the value is of an unknown type or can't be deserialized, including if
+   *     it's a serialized value of any other type
+   */
+  static Object getAttributeValue(ByteBuffer buf) throws IOException {
+    byte type = buf.get(buf.position());
+    switch (type) {
+      case BOOLEAN_VALUE:
+        buf.get();
+        return buf.get() != 0;
+      case BYTES_VALUE:
+        buf.get();
+        return getBytes(buf);
+      case POSIX_PERMISSIONS_VALUE:
+        buf.get();
+        return Sets.immutableEnumSet(PosixFilePermissions.fromString(getString(buf)));
+      case USER_VALUE:
+      case GROUP_VALUE:
+        return getPrincipal(buf);
+      case ACL_VALUE:
+        buf.get();
+        return getAcl(buf);
+      case SERIALIZED_VALUE:
+        buf.get();
+        ByteArrayInputStream bytes = new ByteArrayInputStream(getBytes(buf));
+        try (ObjectInputStream in = new AttributeValueInputStream(bytes)) {
+          return in.readObject();
+        } catch (ClassNotFoundException e) {
+          throw new IOException("can't decode attribute value", e);
+        }
+      default:
+        throw new IOException("unknown attribute value type: " + type);
+    }
+  }
+
+  private static ImmutableList<AclEntry> getAcl(ByteBuffer buf) {
+    int size = buf.getInt();
+    ImmutableList.Builder<AclEntry> acl = ImmutableList.builder();
+    for (int i = 0; i < size; i++) {
+      AclEntryType type = AclEntryType.valueOf(getString(buf));
+      UserPrincipal principal = getPrincipal(buf);
+      Set<AclEntryPermission> permissions = EnumSet.noneOf(AclEntryPermission.class);
+      for (int j = buf.getInt(); j > 0; j--) {
+        permissions.add(AclEntryPermission.valueOf(getString(buf)));
+      }
+      Set<AclEntryFlag> flags = EnumSet.noneOf(AclEntryFlag.class);
+      for (int j = buf.getInt(); j > 0; j--) {
+        flags.add(AclEntryFlag.valueOf(getString(buf)));
+      }
+      acl.add(
+          AclEntry.newBuilder()
+              .setType(type)
+              .setPrincipal(principal)
+              .setPermissions(permissions)
+              .setFlags(flags)
+              .build());
+    }
+    return acl.build();
+  }
+
+  private static UserPrincipal getPrincipal(ByteBuffer buf) {
+    byte type = buf.get();
+    String name = getString(buf);
+    return type == GROUP_VALUE
+        ? UserLookupService.createGroupPrincipal(name)
+        : UserLookupService.createUserPrincipal(name);
+  }
+
+  /**
+   * Stream for deserializing attribute values, which refuses to resolve any class other than those
+   * of the {@linkplain ByteEncoder#SERIALIZABLE_VALUE_TYPES serializable value types}, so that a
+   * crafted image or log can't make it deserialize instances of arbitrary classes.
+   */
+  private static final class AttributeValueInputStream extends ObjectInputStream {
+
+    /** The names of the classes that may be resolved, including the superclasses of the types. */
+    private static final ImmutableSet<String> ALLOWED_CLASS_NAMES = allowedClassNames();
+
+    private static ImmutableSet<String> allowedClassNames() {
+      ImmutableSet.Builder<String> names = ImmutableSet.builder();
+      for (Class<?> type : ByteEncoder.SERIALIZABLE_VALUE_TYPES) {
+        for (Class<?> c = type; c != Object.class; c = c.getSuperclass()) {
+          names.add(c.getName());
+        }
+      }
+      return names.build();
+    }
+
+    AttributeValueInputStream(InputStream in) throws IOException {
+      super(in);
+    }
+
+    @Override
+    protected Class<?> resolveClass(ObjectStreamClass desc)
+        throws IOException, ClassNotFoundException {
+      if (!ALLOWED_CLASS_NAMES.contains(desc.getName())) {
+        throw new InvalidClassException(desc.getName(), "not an attribute value type");
+      }
+      return super.resolveClass(desc);
+    }
+
+    @Override
+    protected Class<?> resolveProxyClass(String[] interfaces) throws IOException {
+      throw new InvalidClassException("proxy classes aren't attribute value types");
+    }
+  }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.jimfs;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.collect.ImmutableSet;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.attribute.AclEntry;
+import java.nio.file.attribute.AclEntryFlag;
+import java.nio.file.attribute.AclEntryPermission;
+import java.nio.file.attribute.GroupPrincipal;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Growable buffer for encoding the binary representations of files used by {@link WriteAheadLog}
+ * and file system images. Values are encoded big-endian; strings and byte arrays are prefixed with
+ * their length. Encoded values are decoded with {@link ByteDecoder}.
+ *
+ * @author Colin Decker
+ */
+final class ByteEncoder {
+
+  // attribute value types
+
+  static final byte BOOLEAN_VALUE = 0;
+  static final byte BYTES_VALUE = 1;
+  static final byte POSIX_PERMISSIONS_VALUE = 2;
+  static final byte USER_VALUE = 3;
+  static final byte GROUP_VALUE = 4;
+  static final byte ACL_VALUE = 5;
+  static final byte SERIALIZED_VALUE = 6;
+
+  /**
+   * The types of attribute values, other than those used by the built-in attribute views, that are
+   * encoded as {@linkplain #SERIALIZED_VALUE serialized values}. {@link ByteDecoder} refuses to
+   * deserialize anything else, so that reading an image or a log from an untrusted source can't
+   * run the deserialization code of arbitrary classes.
+   */
+  static final ImmutableSet<Class<?>> SERIALIZABLE_VALUE_TYPES =
+      ImmutableSet.<Class<?>>of(
+          String.class,
+          Boolean.class,
+          Character.class,
+          Byte.class,
+          Short.class,
+          Integer.class,
+          Long.class,
+          Float.class,
+          Double.class);
+
+  private byte[] bytes = new byte[256];
+  private int length;
+
+  /** Returns the number of bytes in this buffer. */
+  int length() {
+    return length;
+  }
+
+  /**
+   * Sets the number of bytes in this buffer, discarding bytes beyond the given length or adding
+   * bytes (with unspecified values) up to it.
+   */
+  void setLength(int length) {
+    ensureCapacity(length - this.length);
+    this.length = length;
+  }
+
+  /** Returns the array backing this buffer, which contains its bytes starting at index 0. */
+  byte[] array() {
+    return bytes;
+  }
+
+  /** Returns a buffer wrapping the bytes in this buffer. */
+  ByteBuffer toByteBuffer() {
+    return ByteBuffer.wrap(bytes, 0, length);
+  }
+
+  void putByte(byte b) {
+    ensureCapacity(1);
+    bytes[length++] = b;
+  }
+
+  void putInt(int i) {
+    ensureCapacity(4);
+    ByteBuffer.wrap(bytes, length, 4).putInt(i);
+    length += 4;
+  }
+
+  void putLong(long l) {
+    ensureCapacity(8);
+    ByteBuffer.wrap(bytes, length, 8).putLong(l);
+    length += 8;
+  }
+
+  void putBytes(byte[] b) {
+    putInt(b.length);
+    ensureCapacity(b.length);
+    System.arraycopy(b, 0, bytes, length, b.length);
+    length += b.length;
+  }
+
+  void putString(String s) {
+    putBytes(s.getBytes(UTF_8));
+  }
+
+  /** Puts both the display and canonical forms of the given name. */
+  void putName(Name name) {
+    putString(name.toString());
+    putString(name.canonical());
+  }
+
+  /** Returns a buffer for the next {@code len} bytes of this buffer, for the caller to fill. */
+  ByteBuffer reserve(int len) {
+    ensureCapacity(len);
+    ByteBuffer buf = ByteBuffer.wrap(bytes, length, len);
+    length += len;
+    return buf;
+  }
+
+  /**
+   * Puts the given value of the given attribute. Values of the types used by the built-in attribute
+   * views are encoded directly; other values must be strings or boxed primitives, which are
+   * serialized.
+   *
+   * @throws IllegalArgumentException if the value isn't of a type that can be encoded
+   * @throws IOException if serializing the value fails
+   */
+  void putAttributeValue(String view, String attribute, Object value) throws IOException {
+    if (value instanceof Boolean) {
+      putByte(BOOLEAN_VALUE);
+      putByte((byte) ((Boolean) value ? 1 : 0));
+    } else if (value instanceof byte[]) {
+      putByte(BYTES_VALUE);
+      putBytes((byte[]) value);
+    } else if (value instanceof UserPrincipal) {
+      putPrincipal((UserPrincipal) value);
+    } else if (isPosixPermissions(value)) {
+      @SuppressWarnings("unchecked") // checked by isPosixPermissions
+      Set<PosixFilePermission> permissions = (Set<PosixFilePermission>) value;
+      putByte(POSIX_PERMISSIONS_VALUE);
+      putString(PosixFilePermissions.toString(permissions));
+    } else if (isAcl(value)) {
+      List<?> acl = (List<?>) value;
+      putByte(ACL_VALUE);
+      putInt(acl.size());
+      for (Object element : acl) {
+        AclEntry entry = (AclEntry) element;
+        putString(entry.type().name());
+        putPrincipal(entry.principal());
+        putInt(entry.permissions().size());
+        for (AclEntryPermission permission : entry.permissions()) {
+          putString(permission.name());
+        }
+        putInt(entry.flags().size());
+        for (AclEntryFlag flag : entry.flags()) {
+          putString(flag.name());
+        }
+      }
+    } else if (SERIALIZABLE_VALUE_TYPES.contains(value.getClass())) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      try (ObjectOutputStream objectOut = new ObjectOutputStream(out)) {
+        objectOut.writeObject(value);
+      }
+      putByte(SERIALIZED_VALUE);
+      putBytes(out.toByteArray());
+    } else {
+      throw new IllegalArgumentException(
+          "value of attribute '" + view + ":" + attribute + "' can't be encoded: " + value);
+    }
+  }
+
+  private void putPrincipal(UserPrincipal principal) {
+    putByte(principal instanceof GroupPrincipal ? GROUP_VALUE : USER_VALUE);
+    putString(principal.getName());
+  }
+
+  private static boolean isPosixPermissions(Object value) {
+    if (!(value instanceof Set)) {
+      return false;
+    }
+    for (Object element : (Set<?>) value) {
+      if (!(element instanceof PosixFilePermission)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean isAcl(Object value) {
+    if (!(value instanceof List)) {
+      return false;
+    }
+    for (Object element : (List<?>) value) {
+      if (!(element instanceof AclEntry)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void ensureCapacity(int additional) {
+    if (length + additional > bytes.length) {
+      bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + additional));
+    }
+  }
+}
@@ -0,0 +1,303 @@
+/*
+ * Copyright 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.jimfs;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.Lock;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import javax.annotation.Nullable;
+
+/**
+ * Compresses the content of regular files that haven't been used for a while ("cold" files), and
+ * caches the decompressed blocks of compressed files that are read.
+ *
+ * <p>A daemon thread sweeps the file tree once per idle period. A file that has been used since the
+ * previous sweep is only marked unused; one that hasn't has each of its blocks compressed with
+ * {@link Deflater} and its blocks freed, so a file is compressed after it has been idle for between
+ * one and two idle periods. Files whose content wouldn't shrink, files that are being used during
+ * the sweep and files that have been {@linkplain RegularFile#map mapped} aren't compressed. A
+ * compressed file counts toward its disk's allocated space as the number of blocks its compressed
+ * content would fill.
+ *
+ * <p>Reading a compressed file decompresses only the blocks it reads, which are kept in a cache
+ * with a maximum total size, evicting the least recently used blocks first. Writing to a compressed
+ * file decompresses all of its content back into blocks first.
+ *
+ * @author Colin Decker
+ */
+final class ColdFileCompressor implements Closeable {
+
+  /** 8 MB. */
+  static final long DEFAULT_CACHE_SIZE = 8L * 1024 * 1024;
+
+  /**
+   * Thread factory for sweeping threads, which should be daemon threads so as not to keep the VM
+   * running if the user doesn't close the file system.
+   */
+  private static final ThreadFactory THREAD_FACTORY =
+      new ThreadFactoryBuilder()
+          .setNameFormat("com.google.common.jimfs.ColdFileCompressor-thread-%d")
+          .setDaemon(true)
+          .build();
+
+  private final FileTree tree;
+
+  private final ScheduledExecutorService sweepService =
+      Executors.newSingleThreadScheduledExecutor(THREAD_FACTORY);
+
+  /** Only used while sweeping, which is synchronized. Ended when the compressor is closed. */
+  private final Deflater deflater = new Deflater();
+
+  /** Whether or not the compressor has been closed. Guarded by this. */
+  private boolean closed;
+
+  private final long cacheSize;
+
+  /**
+   * Decompressed blocks, keyed by the compressed blocks they were decompressed from, in access
+   * order. A compressed block is never changed once created, so a cached block is valid for as long
+   * as anything can look it up.
+   */
+  private final LinkedHashMap<byte[], ByteBuffer> cache = new LinkedHashMap<>(16, 0.75f, true);
+
+  /** The total size of the blocks in the cache. Guarded by the cache. */
+  private long cachedBytes;
+
+  /**
+   * Creates a new compressor for the files in the given tree, sweeping it every {@code idleMillis}
+   * milliseconds and caching up to {@code cacheSize} bytes of decompressed blocks.
+   */
+  ColdFileCompressor(FileTree tree, long idleMillis, long cacheSize) {
+    checkArgument(idleMillis > 0, "idleMillis (%s) must be positive", idleMillis);
+    checkArgument(cacheSize >= 0, "cacheSize (%s) may not be negative", cacheSize);
+    this.tree = tree;
+    this.cacheSize = cacheSize;
+    sweepService.scheduleWithFixedDelay(
+        new Runnable() {
+          @Override
+          public void run() {
+            sweep();
+          }
+        },
+        idleMillis,
+        idleMillis,
+        MILLISECONDS);
+  }
+
+  /**
+   * Compresses each regular file in the tree that hasn't been used since the previous sweep, and
+   * marks the others unused. Returns the number of files compressed, which is always 0 once the
+   * compressor is closed.
+   */
+  @VisibleForTesting
+  synchronized int sweep() {
+    if (closed) {
+      // a sweep may already have been waiting to run when the compressor was closed
+      return 0;
+    }
+    int compressed = 0;
+    for (RegularFile file : regularFiles()) {
+      if (file.compressIfUnused(this)) {
+        compressed++;
+      }
+    }
+    return compressed;
+  }
+
+  /** Returns the regular files in the tree, reading each directory's entries under its lock. */
+  private Set<RegularFile> regularFiles() {
+    Set<RegularFile> files = Sets.newIdentityHashSet();
+    ArrayDeque<Directory> directories = new ArrayDeque<>();
+    FileTreeLock lock = tree.lock();
+    lock.readLock().lock();
+    try {
+      for (Name name : tree.getRootDirectoryNames()) {
+        directories.add((Directory) tree.getRoot(name).file());
+      }
+
+      while (!directories.isEmpty()) {
+        Directory directory = directories.remove();
+        File[] entries;
+        int count;
+        Lock directoryLock = lock.directoryReadLock(directory);
+        directoryLock.lock();
+        try {
+          entries = new File[directory.entryCount()];
+          count = directory.copyEntries(new Name[entries.length], entries);
+        } finally {
+          directoryLock.unlock();
+        }
+
+        for (int i = 0; i < count; i++) {
+          if (entries[i].isDirectory()) {
+            directories.add((Directory) entries[i]);
+          } else if (entries[i].isRegularFile()) {
+            files.add((RegularFile) entries[i]);
+          }
+        }
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+    return files;
+  }
+
+  /**
+   * Compresses the full content of the given block. Called only while sweeping, by the thread
+   * holding the lock on this compressor.
+   */
+  byte[] compress(ByteBuffer block) {
+    byte[] input;
+    int offset;
+    if (block.hasArray()) {
+      input = block.array();
+      offset = block.arrayOffset();
+    } else {
+      input = new byte[block.capacity()];
+      offset = 0;
+      block.duplicate().get(input);
+    }
+
+    deflater.reset();
+    deflater.setInput(input, offset, block.capacity());
+    deflater.finish();
+    byte[] output = new byte[block.capacity() / 4 + 64];
+    int length = 0;
+    while (!deflater.finished()) {
+      if (length == output.length) {
+        output = Arrays.copyOf(output, output.length * 2);
+      }
+      length += deflater.deflate(output, length, output.length - length);
+    }
+    return Arrays.copyOf(output, length);
+  }
+
+  /**
+   * Decompresses the given compressed block into the given target block, which must be the same
+   * size as the block it was compressed from.
+   */
+  static void decompress(byte[] compressed, ByteBuffer target) {
+    byte[] output;
+    int offset;
+    if (target.hasArray()) {
+      output = target.array();
+      offset = target.arrayOffset();
+    } else {
+      output = new byte[target.capacity()];
+      offset = 0;
+    }
+
+    Inflater inflater = new Inflater();
+    try {
+      inflater.setInput(compressed);
+      int length = 0;
+      while (length < target.capacity() && !inflater.finished()) {
+        length += inflater.inflate(output, offset + length, target.capacity() - length);
+      }
+      if (length != target.capacity()) {
+        throw new IllegalStateException(
+            "compressed block decompressed to " + length + " bytes, not " + target.capacity());
+      }
+    } catch (DataFormatException e) {
+      throw new IllegalStateException("compressed block is corrupt", e);
+    } finally {
+      inflater.end();
+    }
+
+    if (!target.hasArray()) {
+      target.duplicate().put(output);
+    }
+  }
+
+  /**
+   * Returns the decompressed content of the given compressed block, which was compressed from a
+   * block of {@code size} bytes, or null if the block is null (a hole). The returned block must not
+   * be modified.
+   */
+  @Nullable
+  ByteBuffer block(@Nullable byte[] compressed, int size) {
+    if (compressed == null) {
+      return null;
+    }
+
+    synchronized (cache) {
+      ByteBuffer block = cache.get(compressed);
+      if (block != null) {
+        return block;
+      }
+    }
+
+    ByteBuffer block = ByteBuffer.allocate(size);
+    decompress(compressed, block);
+
+    synchronized (cache) {
+      if (cache.put(compressed, block) == null) {
+        cachedBytes += size;
+      }
+      Iterator<Map.Entry<byte[], ByteBuffer>> eldest = cache.entrySet().iterator();
+      while (cachedBytes > cacheSize) {
+        cachedBytes -= eldest.next().getValue().capacity();
+        eldest.remove();
+      }
+    }
+    return block;
+  }
+
+  /** Returns the total size of the decompressed blocks currently cached. */
+  @VisibleForTesting
+  long cachedBytes() {
+    synchronized (cache) {
+      return cachedBytes;
+    }
+  }
+
+  /** Returns whether or not the thread sweeping the tree has been stopped. */
+  boolean isClosed() {
+    return sweepService.isShutdown();
+  }
+
+  /**
+   * Stops sweeping the tree and frees the native memory used for compression. Waits for a sweep
+   * that's in progress to finish first.
+   */
+  @Override
+  public synchronized void close() {
+    if (!closed) {
+      closed = true;
+      sweepService.shutdown();
+      deflater.end();
+    }
+  }
+}
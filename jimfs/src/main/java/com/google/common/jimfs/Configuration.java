@@ -34,6 +34,7 @@ import com.google.common.collect.Sets;
 import java.nio.channels.FileChannel;
 import java.nio.file.FileSystem;
 import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
 import java.nio.file.SecureDirectoryStream;
 import java.nio.file.WatchService;
 import java.nio.file.attribute.BasicFileAttributeView;
@@ -43,6 +44,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
 import javax.annotation.Nullable;
 
@@ -228,6 +230,9 @@ public final class Configuration {
   final int blockSize;
   final long maxSize;
   final long maxCacheSize;
+  final int maxExtentSize;
+  final int maxInlineSize;
+  final DiskConfiguration diskConfig;
 
   // Attribute configuration
   final ImmutableSet<String> attributeViews;
@@ -237,6 +242,24 @@ public final class Configuration {
   // Watch service
   final WatchServiceConfiguration watchServiceConfig;
 
+  // Locking
+  final int lockStripeCount;
+
+  // Lookup
+  final int pathLookupCacheSize;
+
+  // File times
+  final FileTimeSource fileTimeSource;
+  final boolean updateAccessTimes;
+
+  // Durability
+  @Nullable final Path writeAheadLogDirectory;
+  final long checkpointThreshold;
+
+  // Compression
+  final long coldFileIdleMillis;
+  final long decompressedCacheSize;
+
   // Other
   final ImmutableSet<String> roots;
   final String workingDirectory;
@@ -252,6 +275,9 @@ public final class Configuration {
     this.blockSize = builder.blockSize;
     this.maxSize = builder.maxSize;
     this.maxCacheSize = builder.maxCacheSize;
+    this.maxExtentSize = builder.maxExtentSize;
+    this.maxInlineSize = builder.maxInlineSize;
+    this.diskConfig = builder.diskConfig;
     this.attributeViews = builder.attributeViews;
     this.attributeProviders =
         builder.attributeProviders == null
@@ -262,6 +288,14 @@ public final class Configuration {
             ? ImmutableMap.<String, Object>of()
             : ImmutableMap.copyOf(builder.defaultAttributeValues);
     this.watchServiceConfig = builder.watchServiceConfig;
+    this.lockStripeCount = builder.lockStripeCount;
+    this.pathLookupCacheSize = builder.pathLookupCacheSize;
+    this.fileTimeSource = builder.fileTimeSource;
+    this.updateAccessTimes = builder.updateAccessTimes;
+    this.writeAheadLogDirectory = builder.writeAheadLogDirectory;
+    this.checkpointThreshold = builder.checkpointThreshold;
+    this.coldFileIdleMillis = builder.coldFileIdleMillis;
+    this.decompressedCacheSize = builder.decompressedCacheSize;
     this.roots = builder.roots;
     this.workingDirectory = builder.workingDirectory;
     this.supportedFeatures = builder.supportedFeatures;
@@ -292,6 +326,15 @@ public final class Configuration {
     if (maxCacheSize != Builder.DEFAULT_MAX_CACHE_SIZE) {
       helper.add("maxCacheSize", maxCacheSize);
     }
+    if (maxExtentSize != 0) {
+      helper.add("maxExtentSize", maxExtentSize);
+    }
+    if (maxInlineSize != 0) {
+      helper.add("maxInlineSize", maxInlineSize);
+    }
+    if (diskConfig != DiskConfiguration.DEFAULT) {
+      helper.add("diskConfig", diskConfig);
+    }
     if (!attributeViews.isEmpty()) {
       helper.add("attributeViews", attributeViews);
     }
@@ -304,6 +347,26 @@ public final class Configuration {
     if (watchServiceConfig != WatchServiceConfiguration.DEFAULT) {
       helper.add("watchServiceConfig", watchServiceConfig);
     }
+    if (lockStripeCount != 1) {
+      helper.add("lockStripeCount", lockStripeCount);
+    }
+    if (pathLookupCacheSize != 0) {
+      helper.add("pathLookupCacheSize", pathLookupCacheSize);
+    }
+    if (fileTimeSource != FileTimeSource.DEFAULT) {
+      helper.add("fileTimeSource", fileTimeSource);
+    }
+    if (!updateAccessTimes) {
+      helper.add("updateAccessTimes", updateAccessTimes);
+    }
+    if (writeAheadLogDirectory != null) {
+      helper.add("writeAheadLogDirectory", writeAheadLogDirectory);
+      helper.add("checkpointThreshold", checkpointThreshold);
+    }
+    if (coldFileIdleMillis != 0) {
+      helper.add("coldFileIdleMillis", coldFileIdleMillis);
+      helper.add("decompressedCacheSize", decompressedCacheSize);
+    }
     return helper.toString();
   }
 
@@ -336,6 +399,9 @@ public final class Configuration {
     private int blockSize = DEFAULT_BLOCK_SIZE;
     private long maxSize = DEFAULT_MAX_SIZE;
     private long maxCacheSize = DEFAULT_MAX_CACHE_SIZE;
+    private int maxExtentSize = 0;
+    private int maxInlineSize = 0;
+    private DiskConfiguration diskConfig = DiskConfiguration.DEFAULT;
 
     // Attribute configuration
     private ImmutableSet<String> attributeViews = ImmutableSet.of();
@@ -345,6 +411,24 @@ public final class Configuration {
     // Watch service
     private WatchServiceConfiguration watchServiceConfig = WatchServiceConfiguration.DEFAULT;
 
+    // Locking
+    private int lockStripeCount = 1;
+
+    // Lookup
+    private int pathLookupCacheSize = 0;
+
+    // File times
+    private FileTimeSource fileTimeSource = FileTimeSource.DEFAULT;
+    private boolean updateAccessTimes = true;
+
+    // Durability
+    private Path writeAheadLogDirectory;
+    private long checkpointThreshold = WriteAheadLog.DEFAULT_CHECKPOINT_THRESHOLD;
+
+    // Compression
+    private long coldFileIdleMillis = 0;
+    private long decompressedCacheSize = ColdFileCompressor.DEFAULT_CACHE_SIZE;
+
     // Other
     private ImmutableSet<String> roots = ImmutableSet.of();
     private String workingDirectory;
@@ -363,6 +447,9 @@ public final class Configuration {
       this.blockSize = configuration.blockSize;
       this.maxSize = configuration.maxSize;
       this.maxCacheSize = configuration.maxCacheSize;
+      this.maxExtentSize = configuration.maxExtentSize;
+      this.maxInlineSize = configuration.maxInlineSize;
+      this.diskConfig = configuration.diskConfig;
       this.attributeViews = configuration.attributeViews;
       this.attributeProviders =
           configuration.attributeProviders.isEmpty()
@@ -373,6 +460,14 @@ public final class Configuration {
               ? null
               : new HashMap<>(configuration.defaultAttributeValues);
       this.watchServiceConfig = configuration.watchServiceConfig;
+      this.lockStripeCount = configuration.lockStripeCount;
+      this.pathLookupCacheSize = configuration.pathLookupCacheSize;
+      this.fileTimeSource = configuration.fileTimeSource;
+      this.updateAccessTimes = configuration.updateAccessTimes;
+      this.writeAheadLogDirectory = configuration.writeAheadLogDirectory;
+      this.checkpointThreshold = configuration.checkpointThreshold;
+      this.coldFileIdleMillis = configuration.coldFileIdleMillis;
+      this.decompressedCacheSize = configuration.decompressedCacheSize;
       this.roots = configuration.roots;
       this.workingDirectory = configuration.workingDirectory;
       this.supportedFeatures = configuration.supportedFeatures;
@@ -503,6 +598,62 @@ public final class Configuration {
       return this;
     }
 
+    /**
+     * Sets the maximum size (in bytes) of the extents that regular files grow in. Rather than being
+     * made of blocks of the {@linkplain #setBlockSize(int) block size}, files are then made of
+     * extents: the first two extents of a file are a single block each, and each extent after that
+     * is twice the size of the one before it until reaching the maximum size. A large file is then
+     * made of far fewer, larger buffers, which cuts the memory and garbage collection overhead of
+     * storing it and lets reads and writes of many bytes copy them in fewer, larger steps. In
+     * exchange, up to half of the space allocated to a file that hasn't reached the maximum extent
+     * size may be unused, and only single blocks are cached for reuse when files are truncated or
+     * deleted.
+     *
+     * <p>The maximum extent size must be the block size times a power of 2. By default, it's equal
+     * to the block size, so files are made of fixed size blocks.
+     */
+    public Builder setMaxExtentSize(int maxExtentSize) {
+      checkArgument(maxExtentSize > 0, "maxExtentSize (%s) must be positive", maxExtentSize);
+      this.maxExtentSize = maxExtentSize;
+      return this;
+    }
+
+    /**
+     * Sets the maximum size (in bytes) of regular files that keep their content inline. Rather than
+     * taking a full block, the content of a file no larger than this is kept in a single array of
+     * exactly the file's size, which saves most of the memory a block would take for the many tiny
+     * files (configuration files, markers and the like) that some file trees are full of. A file
+     * moves its content to blocks once it grows past the maximum, or when it's mapped into memory.
+     *
+     * <p>Inline content is always stored on the Java heap, whatever the {@linkplain
+     * #setDiskConfiguration disk configuration}, and doesn't count toward the {@linkplain
+     * #setMaxSize(long) maximum size} of the file storage.
+     *
+     * <p>The maximum inline size may not be larger than the block size. The default is 0, so files
+     * never keep their content inline.
+     *
+     * @throws IllegalArgumentException if {@code maxInlineSize} is negative
+     */
+    public Builder setMaxInlineSize(int maxInlineSize) {
+      checkArgument(maxInlineSize >= 0, "maxInlineSize (%s) may not be negative", maxInlineSize);
+      this.maxInlineSize = maxInlineSize;
+      return this;
+    }
+
+    /**
+     * Sets the configuration for the storage that holds the contents of regular files. By default,
+     * file contents are stored in {@linkplain DiskConfiguration#heap() byte arrays on the heap};
+     * {@link DiskConfiguration#offHeap()} may be used to store them in direct memory instead.
+     *
+     * <p>The {@linkplain #setBlockSize(int) block size}, {@linkplain #setMaxSize(long) maximum
+     * size} and {@linkplain #setMaxCacheSize(long) maximum cache size} apply regardless of the disk
+     * configuration.
+     */
+    public Builder setDiskConfiguration(DiskConfiguration config) {
+      this.diskConfig = checkNotNull(config);
+      return this;
+    }
+
     /**
      * Sets the attribute views the file system should support. By default, the following views may
      * be specified:
@@ -687,13 +838,176 @@ public final class Configuration {
       return this;
     }
 
+    /**
+     * Sets the number of locks used to guard the directories of the file system.
+     *
+     * <p>By default, a single lock guards the whole file tree, so only one thread at a time may
+     * create or delete files anywhere in the file system. If {@code count} is greater than 1
+     * (rounded up to a power of 2), directories are instead guarded by that many striped locks and
+     * creating or deleting a (non-directory) file only excludes other changes to directories
+     * sharing its parent directory's lock, allowing threads working in different directories to
+     * proceed in parallel. Moves, hard links and deleting directories still lock the whole tree.
+     *
+     * @throws IllegalArgumentException if {@code count} is not positive
+     */
+    public Builder setLockStripeCount(int count) {
+      checkArgument(count > 0, "count (%s) must be positive", count);
+      this.lockStripeCount = count;
+      return this;
+    }
+
+    /**
+     * Sets the number of slots in the cache of path lookup results, rounded up to a power of 2, or
+     * disables the cache if {@code size} is 0. The cache is disabled by default.
+     *
+     * <p>The cache maps absolute paths to the files they locate, so that looking up a deep path
+     * again, or one that goes through symbolic links, doesn't have to walk through every directory
+     * on the path and follow every link again. A cached result is used only as long as none of the
+     * directories the lookup went through have changed. Each path maps to a single slot, so paths
+     * that map to the same slot replace each other's results. The hit rate of the cache can be read
+     * from the file system's {@code FileStore} with {@code getAttribute("lookupCache:hitRate")}, as
+     * can the "hitCount", "missCount" and "size" attributes.
+     *
+     * @throws IllegalArgumentException if {@code size} is negative
+     */
+    public Builder setPathLookupCacheSize(int size) {
+      checkArgument(size >= 0, "size (%s) must not be negative", size);
+      this.pathLookupCacheSize = size;
+      return this;
+    }
+
+    /**
+     * Sets the source of the current time used for the creation, last access and last modified
+     * times of files. The default source reads the system clock every time a file is created,
+     * accessed or modified; {@link FileTimeSource#coarse} avoids that cost at the expense of
+     * precision.
+     */
+    public Builder setFileTimeSource(FileTimeSource source) {
+      this.fileTimeSource = checkNotNull(source);
+      return this;
+    }
+
+    /**
+     * Sets whether reading files and listing directories updates their last access times, which it
+     * does by default. Passing {@code false} is the equivalent of mounting a file system with
+     * {@code noatime}: access times then only change when they're set explicitly.
+     */
+    public Builder setUpdateAccessTimes(boolean updateAccessTimes) {
+      this.updateAccessTimes = updateAccessTimes;
+      return this;
+    }
+
+    /**
+     * Makes the file system durable by keeping a write-ahead log of its changes in the given
+     * directory on the host file system, compacting the log whenever it grows by 64 MB.
+     *
+     * @see #setWriteAheadLog(Path, long)
+     */
+    public Builder setWriteAheadLog(Path directory) {
+      return setWriteAheadLog(directory, WriteAheadLog.DEFAULT_CHECKPOINT_THRESHOLD);
+    }
+
+    /**
+     * Makes the file system durable by keeping a write-ahead log of its changes in the given
+     * directory on the host file system.
+     *
+     * <p>If the directory already contains a log, creating the file system recovers the files it
+     * records: the same files the file system that last used the directory had when it was closed
+     * or its process ended. Otherwise the file system starts out empty and the directory is created
+     * if needed. Only one open file system may use the directory at a time, and the file system must
+     * be configured to have the same roots every time.
+     *
+     * <p>Every change to files is appended to the log as it's made; once the log has grown by
+     * {@code checkpointThreshold} bytes it is compacted in the background into a checkpoint of the
+     * file system's current state. Compaction briefly locks the file system's tree to take a
+     * copy-on-write copy of its files, so it only takes extra space for the blocks written while
+     * the checkpoint is being written, and those count toward the file system's {@linkplain
+     * #setMaxSize maximum size}. Changes reach the host file system immediately but are only forced
+     * to its storage device when the log is compacted and when the file system is closed. Last
+     * access times updated by reading files and writes made through mapped buffers aren't logged,
+     * and file systems {@linkplain FileSystemSnapshot#fork() forked} from a snapshot of a durable
+     * file system aren't durable themselves.
+     *
+     * <p>Setting a file attribute to a value that can't be logged (a value from a custom {@link
+     * AttributeProvider} that is neither a string nor a boxed primitive) fails. If the log
+     * can't be opened or recovered, {@link Jimfs#newFileSystem(Configuration)} and the other {@code
+     * Jimfs} factory methods throw an {@link java.io.IOError}.
+     *
+     * @throws IllegalArgumentException if {@code checkpointThreshold} is not positive
+     */
+    public Builder setWriteAheadLog(Path directory, long checkpointThreshold) {
+      checkArgument(
+          checkpointThreshold > 0,
+          "checkpointThreshold (%s) must be positive",
+          checkpointThreshold);
+      this.writeAheadLogDirectory = checkNotNull(directory);
+      this.checkpointThreshold = checkpointThreshold;
+      return this;
+    }
+
+    /**
+     * Compresses the content of regular files that haven't been used for the given time, caching up
+     * to 8 MB of decompressed blocks of the compressed files for reading.
+     *
+     * @see #setColdFileCompression(long, TimeUnit, long)
+     */
+    public Builder setColdFileCompression(long idleTime, TimeUnit unit) {
+      return setColdFileCompression(idleTime, unit, ColdFileCompressor.DEFAULT_CACHE_SIZE);
+    }
+
+    /**
+     * Compresses the content of regular files that haven't been used for the given time, caching up
+     * to {@code cacheSize} bytes of decompressed blocks of the compressed files for reading.
+     * Compression is disabled by default.
+     *
+     * <p>A background thread checks the files in the file system once per idle time, so a file is
+     * compressed once it has been idle for between one and two times the idle time. Each block of
+     * the file is compressed separately with the Deflate algorithm and the blocks are freed; the
+     * compressed content counts toward the {@linkplain #setMaxSize(long) maximum size} of the file
+     * storage as the number of blocks it would fill, so text and other compressible content that's
+     * written once and rarely read takes a fraction of the space it otherwise would. Files that have
+     * been mapped into memory, and files whose content doesn't compress, are left alone.
+     *
+     * <p>Reading a compressed file only decompresses the blocks it reads, into the cache; writing to
+     * one decompresses all of its content back into blocks first, which needs room for the blocks
+     * on the file storage.
+     *
+     * @throws IllegalArgumentException if {@code idleTime} is not positive or {@code cacheSize} is
+     *     negative
+     */
+    public Builder setColdFileCompression(long idleTime, TimeUnit unit, long cacheSize) {
+      checkArgument(idleTime > 0, "idleTime (%s) must be positive", idleTime);
+      checkArgument(cacheSize >= 0, "cacheSize (%s) may not be negative", cacheSize);
+      this.coldFileIdleMillis = Math.max(unit.toMillis(idleTime), 1);
+      this.decompressedCacheSize = cacheSize;
+      return this;
+    }
+
     private Builder setDisplayName(String displayName) {
       this.displayName = checkNotNull(displayName);
       return this;
     }
 
-    /** Creates a new immutable configuration object from this builder. */
+    /**
+     * Creates a new immutable configuration object from this builder.
+     *
+     * @throws IllegalArgumentException if the {@linkplain #setMaxExtentSize(int) maximum extent
+     *     size} is not the block size times a power of 2 or if the {@linkplain
+     *     #setMaxInlineSize(int) maximum inline size} is larger than the block size
+     */
     public Configuration build() {
+      checkArgument(
+          maxExtentSize == 0
+              || (maxExtentSize % blockSize == 0
+                  && Integer.bitCount(maxExtentSize / blockSize) == 1),
+          "maxExtentSize (%s) must be the block size (%s) times a power of 2",
+          maxExtentSize,
+          blockSize);
+      checkArgument(
+          maxInlineSize <= blockSize,
+          "maxInlineSize (%s) may not be larger than the block size (%s)",
+          maxInlineSize,
+          blockSize);
       return new Configuration(this);
     }
   }
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.jimfs;
+
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * The read-write lock guarding the content of a {@link RegularFile}, which also keeps a version
+ * number for the content, in the style of a seqlock: the version is incremented each time the
+ * write lock is released, so as long as the version is the same and the write lock isn't held, the
+ * content hasn't changed.
+ *
+ * <p>This lets a reader that has read part of the file's content while holding the read lock keep
+ * reading it later without locking: it records the {@linkplain #version() version} while holding
+ * the lock, and each time it reads the content without the lock afterwards, {@linkplain
+ * #isUnchangedSince checks} that the content is unchanged <i>after</i> reading. If it is, no writer
+ * has held the lock in the meantime and what was read is exactly what would have been read while
+ * holding the read lock. The check starts with a {@linkplain LoadFence load fence}, like {@code
+ * StampedLock.validate}, since a volatile read alone wouldn't keep the content from being read
+ * after it. Where no load fence is available, the content is never considered unchanged, so
+ * readers always lock.
+ *
+ * @author Colin Decker
+ */
+final class ContentLock extends ReentrantReadWriteLock {
+
+  private static final long serialVersionUID = 1L;
+
+  private final VersionedWriteLock writeLock = new VersionedWriteLock(this);
+
+  /** Only changed by the thread holding the write lock. */
+  private volatile int version;
+
+  @Override
+  public WriteLock writeLock() {
+    return writeLock;
+  }
+
+  /** Returns the current version of the content. Should be called while holding the read lock. */
+  int version() {
+    return version;
+  }
+
+  /**
+   * Returns whether or not the content is unchanged since the given version was returned by {@link
+   * #version()}.
+   */
+  boolean isUnchangedSince(int version) {
+    if (!LoadFence.isAvailable()) {
+      return false;
+    }
+    LoadFence.fence();
+    return this.version == version && !isWriteLocked();
+  }
+
+  /** Write lock that increments the version when it's finally released. */
+  private static final class VersionedWriteLock extends WriteLock {
+
+    private static final long serialVersionUID = 1L;
+
+    private final ContentLock lock;
+
+    VersionedWriteLock(ContentLock lock) {
+      super(lock);
+      this.lock = lock;
+    }
+
+    @Override
+    public void unlock() {
+      if (lock.getWriteHoldCount() == 1) {
+        lock.version++;
+      }
+      super.unlock();
+    }
+  }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.jimfs;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.nio.file.StandardOpenOption.READ;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+
+/**
+ * The location of the content of a regular file on the host file system, from which the content is
+ * loaded the first time it's needed rather than when the file is created. The content is the
+ * {@linkplain RegularFile#size() size of the file} in bytes starting at an offset in a host file:
+ * either a whole file in a {@linkplain Jimfs#snapshot(Path, Configuration) host directory} or a
+ * file's content in the data section of a {@linkplain FileSystemImage file system image}.
+ *
+ * <p>The host file is opened only when the content is loaded, so no host resources are held by the
+ * files waiting to be loaded. The host file must not be changed until then.
+ *
+ * @author Colin Decker
+ */
+final class ContentSource {
+
+  private final Path file;
+  private final long offset;
+
+  ContentSource(Path file, long offset) {
+    checkArgument(offset >= 0, "offset (%s) may not be negative", offset);
+    this.file = checkNotNull(file);
+    this.offset = offset;
+  }
+
+  /** Opens a channel for reading the host file, positioned at the start of the content. */
+  FileChannel open() throws IOException {
+    FileChannel channel = FileChannel.open(file, READ);
+    try {
+      channel.position(offset);
+      return channel;
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  @Override
+  public String toString() {
+    return offset == 0 ? file.toString() : file + "@" + offset;
+  }
+}
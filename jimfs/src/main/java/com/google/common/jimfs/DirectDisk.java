@@ -0,0 +1,127 @@
+/*
+ * Copyright 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.jimfs;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.nio.ByteBuffer;
+import javax.annotation.Nullable;
+
+/**
+ * A {@link Disk} whose blocks live outside the Java heap, in direct byte buffers.
+ *
+ * <p>Rather than allocating a direct buffer per block (direct allocations are expensive and each
+ * carries its own cleaner), the disk allocates large slabs of direct memory and carves blocks out
+ * of them as slices. Like heap blocks, freed blocks go to the disk's block cache for reuse. The
+ * memory used by a slab is released once the slab and every block sliced from it become
+ * unreachable. Extents smaller than a slab are carved from slabs too, starting a new slab when the
+ * rest of the current one is too small to hold the extent; larger extents get direct buffers of
+ * their own.
+ *
+ * <p>Direct memory is limited by the JVM separately from the heap (see {@code
+ * -XX:MaxDirectMemorySize}).
+ *
+ * @author Colin Decker
+ */
+final class DirectDisk extends Disk {
+
+  /** The default size of a slab of direct memory: 1 MB. */
+  static final int DEFAULT_SLAB_SIZE = 1024 * 1024;
+
+  /** The number of blocks carved from each slab. */
+  private final int blocksPerSlab;
+
+  /** The slab new blocks are currently being carved from. Guarded by this. */
+  @Nullable private ByteBuffer slab;
+
+  /** The index of the next block to carve from the current slab. Guarded by this. */
+  private int nextBlockInSlab;
+
+  /** Creates a new disk using settings from the given configuration. */
+  DirectDisk(Configuration config, int slabSize) {
+    super(config);
+    this.blocksPerSlab = blocksPerSlab(slabSize);
+  }
+
+  /**
+   * Creates a new disk with the given {@code blockSize}, {@code maxBlockCount}, {@code
+   * maxCachedBlockCount} and {@code slabSize}.
+   */
+  DirectDisk(int blockSize, int maxBlockCount, int maxCachedBlockCount, int slabSize) {
+    super(blockSize, maxBlockCount, maxCachedBlockCount);
+    this.blocksPerSlab = blocksPerSlab(slabSize);
+  }
+
+  /**
+   * Creates a new disk with the given {@code blockSize}, {@code maxBlockCount}, {@code
+   * maxCachedBlockCount} and {@code slabSize} that allocates extents of up to {@code
+   * maxExtentBlockCount} blocks to files.
+   */
+  DirectDisk(
+      int blockSize,
+      int maxBlockCount,
+      int maxCachedBlockCount,
+      int maxExtentBlockCount,
+      int slabSize) {
+    super(blockSize, maxBlockCount, maxCachedBlockCount, maxExtentBlockCount);
+    this.blocksPerSlab = blocksPerSlab(slabSize);
+  }
+
+  /**
+   * Returns the number of blocks to carve from each slab: as many as fit in {@code slabSize}, but
+   * at least one and no more than the disk can ever allocate.
+   */
+  private int blocksPerSlab(int slabSize) {
+    checkArgument(slabSize > 0, "slabSize (%s) must be positive", slabSize);
+    long maxBlockCount = getTotalSpace() / blockSize();
+    return (int) Math.max(Math.min(slabSize / blockSize(), maxBlockCount), 1);
+  }
+
+  /** Returns the number of blocks carved from each slab of direct memory. */
+  int blocksPerSlab() {
+    return blocksPerSlab;
+  }
+
+  @Override
+  ByteBuffer createBlock() {
+    return carve(1);
+  }
+
+  @Override
+  ByteBuffer createExtent(int blockCount) {
+    if (blockCount >= blocksPerSlab) {
+      return ByteBuffer.allocateDirect(blockCount * blockSize());
+    }
+    return carve(blockCount);
+  }
+
+  /** Carves {@code blockCount} blocks, no more than a slab holds, from the current slab. */
+  // synchronized since blocks may be created by several threads at once
+  private synchronized ByteBuffer carve(int blockCount) {
+    if (slab == null || nextBlockInSlab + blockCount > blocksPerSlab) {
+      slab = ByteBuffer.allocateDirect(blocksPerSlab * blockSize());
+      nextBlockInSlab = 0;
+    }
+
+    int start = nextBlockInSlab * blockSize();
+    nextBlockInSlab += blockCount;
+    ByteBuffer block = slab.duplicate();
+    block.limit(start + blockCount * blockSize());
+    block.position(start);
+    return block.slice();
+  }
+}
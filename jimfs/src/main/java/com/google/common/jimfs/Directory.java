@@ -16,41 +16,99 @@
 
 package com.google.common.jimfs;
 
+import static com.google.common.jimfs.Util.nextPowerOf2;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Predicate;
 import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Ordering;
+import com.google.common.jimfs.EventDrivenWatchService.Watch;
+import java.io.Serializable;
 import java.util.Iterator;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 import javax.annotation.Nullable;
 
 /**
  * A table of {@linkplain DirectoryEntry directory entries}.
  *
+ * <p>Entries are stored in a compact hash table of names and the files they link to, and {@code
+ * DirectoryEntry} objects are created only when entries are retrieved. A directory with many
+ * entries that is listed also keeps a sorted index of its entries, in display order, so that later
+ * listings don't need to sort all the names again: the index is built the first time the directory
+ * is listed with at least {@link #SORTED_INDEX_THRESHOLD} entries, and is then kept up to date as
+ * entries are added and removed. The index can be iterated while the directory changes, so
+ * listings of indexed directories stream the names rather than copying them, and can skip directly
+ * to the names with a given prefix.
+ *
  * @author Colin Decker
  */
 final class Directory extends File implements Iterable<DirectoryEntry> {
 
-  private static final long serialVersionUID = 8982143180586565176L;
+  private static final long serialVersionUID = -4627135925421066413L;
 
   /** The entry linking to this directory in its parent directory. */
   private DirectoryEntry entryInParent;
 
-  /** Creates a new normal directory with the given ID. */
+  /**
+   * The watches of {@link EventDrivenWatchService} keys registered for this directory, or null if
+   * it isn't watched. Changed only while holding the locks needed to change this directory's
+   * entries.
+   */
+  @Nullable private transient volatile ImmutableList<Watch> watches;
+
+  /**
+   * The number of entries (other than "." and "..") a directory must have when it's listed for it
+   * to start keeping a sorted index of its entries.
+   */
+  @VisibleForTesting static final int SORTED_INDEX_THRESHOLD = 64;
+
+  /** Orders the names in the sorted index by display form, then canonical form for equal ones. */
+  private static final Ordering<Name> INDEX_ORDERING =
+      Name.displayOrdering().compound(Name.canonicalOrdering());
+
+  /**
+   * Sorted index of the names in this directory, excluding "." and "..", or null if the directory
+   * hasn't been listed while it had enough entries. Changed only while holding the locks needed to
+   * change this directory's entries; built while holding at least the locks needed to read them.
+   */
+  @Nullable private transient volatile ConcurrentSkipListSet<Name> sortedIndex;
+
+  /** Creates a new normal directory with the given ID, created at the current system time. */
   public static Directory create(int id) {
-    return new Directory(id);
+    return create(id, System.currentTimeMillis());
   }
 
-  /** Creates a new root directory with the given ID and name. */
+  /** Creates a new normal directory with the given ID and creation time. */
+  public static Directory create(int id, long creationTime) {
+    return new Directory(id, creationTime);
+  }
+
+  /**
+   * Creates a new root directory with the given ID and name, created at the current system time.
+   */
   public static Directory createRoot(int id, Name name) {
-    return new Directory(id, name);
+    return createRoot(id, name, System.currentTimeMillis());
+  }
+
+  /** Creates a new root directory with the given ID, name and creation time. */
+  public static Directory createRoot(int id, Name name, long creationTime) {
+    return new Directory(id, name, creationTime);
   }
 
-  private Directory(int id) {
-    super(id);
-    put(new DirectoryEntry(this, Name.SELF, this));
+  private Directory(int id, long creationTime) {
+    super(id, creationTime);
+    put(Name.SELF, this, false);
   }
 
-  private Directory(int id, Name rootName) {
-    this(id);
+  private Directory(int id, Name rootName, long creationTime) {
+    this(id, creationTime);
     linked(new DirectoryEntry(this, rootName, this));
   }
 
@@ -59,8 +117,8 @@ final class Directory extends File implements Iterable<DirectoryEntry> {
    * this directory.
    */
   @Override
-  Directory copyWithoutContent(int id) {
-    return Directory.create(id);
+  Directory copyWithoutContent(int id, long creationTime) {
+    return Directory.create(id, creationTime);
   }
 
   /**
@@ -83,7 +141,7 @@ final class Directory extends File implements Iterable<DirectoryEntry> {
   void linked(DirectoryEntry entry) {
     File parent = entry.directory(); // handles null check
     this.entryInParent = entry;
-    forcePut(new DirectoryEntry(this, Name.PARENT, parent));
+    forcePut(Name.PARENT, parent);
   }
 
   @Override
@@ -91,10 +149,82 @@ final class Directory extends File implements Iterable<DirectoryEntry> {
     // we don't actually remove the parent link when this directory is unlinked, but the parent's
     // link count should go down all the same
     parent().decrementLinkCount();
+
+    // the watched path no longer locates this directory
+    ImmutableList<Watch> currentWatches = watches;
+    if (currentWatches != null) {
+      for (Watch watch : currentWatches) {
+        watch.cancel();
+      }
+    }
   }
 
-  /** Returns the number of entries in this directory. */
-  @VisibleForTesting
+  /**
+   * Adds the given watch to this directory. The locks needed to change this directory's entries
+   * must be held.
+   */
+  void addWatch(Watch watch) {
+    ImmutableList<Watch> currentWatches = watches;
+    if (currentWatches == null) {
+      for (DirectoryEntry entry : this) {
+        if (!isReserved(entry.name())) {
+          entry.file().addWatchedEntry(entry);
+        }
+      }
+      watches = ImmutableList.of(watch);
+    } else {
+      watches = ImmutableList.<Watch>builder().addAll(currentWatches).add(watch).build();
+    }
+  }
+
+  /**
+   * Removes the given watch from this directory if it's present. The locks needed to change this
+   * directory's entries must be held.
+   */
+  void removeWatch(Watch watch) {
+    ImmutableList<Watch> currentWatches = watches;
+    if (currentWatches == null || !currentWatches.contains(watch)) {
+      return;
+    }
+
+    if (currentWatches.size() > 1) {
+      ImmutableList.Builder<Watch> remaining = ImmutableList.builder();
+      for (Watch w : currentWatches) {
+        if (w != watch) {
+          remaining.add(w);
+        }
+      }
+      watches = remaining.build();
+    } else {
+      watches = null;
+      for (DirectoryEntry entry : this) {
+        if (!isReserved(entry.name())) {
+          entry.file().removeWatchedEntry(entry);
+        }
+      }
+    }
+  }
+
+  /** Called when the file linked by the given entry in this directory has been modified. */
+  void entryModified(DirectoryEntry entry) {
+    ImmutableList<Watch> currentWatches = watches;
+    if (currentWatches != null) {
+      for (Watch watch : currentWatches) {
+        watch.post(ENTRY_MODIFY, entry.name());
+      }
+    }
+  }
+
+  /**
+   * Returns the modification count of this directory's entries, which is odd while they're being
+   * changed. A lookup that reads this before reading the directory's entries can trust what it read
+   * only if this was even and hasn't changed since.
+   */
+  int modCount() {
+    return modCount;
+  }
+
+  /** Returns the number of entries in this directory, including "." and "..". */
   int entryCount() {
     return entryCount;
   }
@@ -107,17 +237,28 @@ final class Directory extends File implements Iterable<DirectoryEntry> {
   /** Returns the entry for the given name in this table or null if no such entry exists. */
   @Nullable
   public DirectoryEntry get(Name name) {
-    int index = bucketIndex(name, table.length);
-
-    DirectoryEntry entry = table[index];
-    while (entry != null) {
-      if (name.equals(entry.name())) {
-        return entry;
+    // each table is read once, so that a lookup racing with a change only sees consistent arrays
+    int hash = name.hashCode();
+    Table old = oldTable;
+    if (old != null) {
+      int index = old.indexOf(name, hash);
+      if (index >= 0) {
+        File file = old.files[index];
+        if (file != null) {
+          return new DirectoryEntry(this, old.names[index], file);
+        }
       }
+    }
 
-      entry = entry.next;
+    Table current = table;
+    int index = current.indexOf(name, hash);
+    if (index < 0) {
+      return null;
     }
-    return null;
+    // a racing lookup may find the slot emptied or its entry shifted; treat that as no entry
+    Name slotName = current.names[index];
+    File file = current.files[index];
+    return slotName == null || file == null ? null : new DirectoryEntry(this, slotName, file);
   }
 
   /**
@@ -128,8 +269,27 @@ final class Directory extends File implements Iterable<DirectoryEntry> {
    */
   public void link(Name name, File file) {
     DirectoryEntry entry = new DirectoryEntry(this, checkNotReserved(name, "link"), file);
-    put(entry);
-    file.linked(entry);
+    // a linked directory gets its ".." entry in linked(), which lookups that find it must not miss
+    beginChange();
+    try {
+      putEntry(name, file, false);
+      file.linked(entry);
+    } finally {
+      endChange();
+    }
+
+    WriteAheadLog log = log();
+    if (log != null) {
+      log.linked(this, name, file);
+    }
+
+    ImmutableList<Watch> currentWatches = watches;
+    if (currentWatches != null) {
+      file.addWatchedEntry(entry);
+      for (Watch watch : currentWatches) {
+        watch.post(ENTRY_CREATE, name);
+      }
+    }
   }
 
   /**
@@ -140,6 +300,20 @@ final class Directory extends File implements Iterable<DirectoryEntry> {
    */
   public void unlink(Name name) {
     DirectoryEntry entry = remove(checkNotReserved(name, "unlink"));
+
+    WriteAheadLog log = log();
+    if (log != null) {
+      log.unlinked(this, name);
+    }
+
+    ImmutableList<Watch> currentWatches = watches;
+    if (currentWatches != null) {
+      entry.file().removeWatchedEntry(entry);
+      for (Watch watch : currentWatches) {
+        watch.post(ENTRY_DELETE, name);
+      }
+    }
+
     entry.file().unlinked();
   }
 
@@ -148,6 +322,11 @@ final class Directory extends File implements Iterable<DirectoryEntry> {
    * "..".
    */
   public ImmutableSortedSet<Name> snapshot() {
+    ConcurrentSkipListSet<Name> index = sortedIndexIfListable();
+    if (index != null) {
+      return ImmutableSortedSet.copyOfSorted(index);
+    }
+
     ImmutableSortedSet.Builder<Name> builder =
         new ImmutableSortedSet.Builder<>(Name.displayOrdering());
 
@@ -160,6 +339,110 @@ final class Directory extends File implements Iterable<DirectoryEntry> {
     return builder.build();
   }
 
+  /**
+   * Copies the names and files of this directory's entries, excluding "." and "..", to the given
+   * arrays, which must have room for at least {@link #entryCount()} entries, and returns the number
+   * of entries copied. Unlike iterating over this directory, this doesn't create an entry object
+   * per entry.
+   */
+  int copyEntries(Name[] names, File[] files) {
+    int count = 0;
+    Table old = oldTable;
+    if (old != null) {
+      count = copyEntries(old.names, old.files, names, files, count);
+    }
+    Table current = table;
+    return copyEntries(current.names, current.files, names, files, count);
+  }
+
+  private static int copyEntries(
+      Name[] tableNames, File[] tableFiles, Name[] names, File[] files, int count) {
+    for (int i = 0; i < tableNames.length; i++) {
+      File file = tableFiles[i];
+      if (file != null && !isReserved(tableNames[i])) {
+        names[count] = tableNames[i];
+        files[count] = file;
+        count++;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Returns the names this directory contains whose display form starts with the given prefix,
+   * excluding "." and "..", in display order. If this directory keeps a sorted index, the returned
+   * iterator streams the names from the index, seeking directly to the first name with the prefix,
+   * and reflects some or all of the changes made to the directory while it's iterated; otherwise
+   * it iterates over a snapshot. Must be called while holding the locks needed to read this
+   * directory's entries, but the returned iterator may be used without them.
+   */
+  public Iterator<Name> sortedNames(final String prefix) {
+    ConcurrentSkipListSet<Name> index = sortedIndexIfListable();
+    if (index == null) {
+      Iterator<Name> names = snapshot().iterator();
+      if (prefix.isEmpty()) {
+        return names;
+      }
+      return Iterators.filter(
+          names,
+          new Predicate<Name>() {
+            @Override
+            public boolean apply(Name name) {
+              return name.toString().startsWith(prefix);
+            }
+          });
+    }
+
+    // "" sorts before any canonical form, so this is no greater than any name with the prefix
+    final Iterator<Name> names =
+        index.tailSet(Name.create(prefix, ""), true).iterator();
+    return new AbstractIterator<Name>() {
+      @Override
+      protected Name computeNext() {
+        if (names.hasNext()) {
+          Name name = names.next();
+          if (name.toString().startsWith(prefix)) {
+            return name;
+          }
+        }
+        return endOfData();
+      }
+    };
+  }
+
+  /**
+   * Returns the sorted index of this directory's entries, building it if this directory has enough
+   * entries to need one, or null if it doesn't.
+   */
+  @Nullable
+  private ConcurrentSkipListSet<Name> sortedIndexIfListable() {
+    ConcurrentSkipListSet<Name> index = sortedIndex;
+    if (index != null || entryCount - 2 < SORTED_INDEX_THRESHOLD) {
+      return index;
+    }
+
+    // several threads reading this directory may list it at once
+    synchronized (this) {
+      index = sortedIndex;
+      if (index == null) {
+        index = new ConcurrentSkipListSet<>(INDEX_ORDERING);
+        for (DirectoryEntry entry : this) {
+          if (!isReserved(entry.name())) {
+            index.add(entry.name());
+          }
+        }
+        sortedIndex = index;
+      }
+      return index;
+    }
+  }
+
+  /** Returns whether or not this directory keeps a sorted index of its entries. */
+  @VisibleForTesting
+  boolean hasSortedIndex() {
+    return sortedIndex != null;
+  }
+
   /** Checks that the given name is not "." or "..". Those names cannot be set/removed by users. */
   private static Name checkNotReserved(Name name, String action) {
     if (isReserved(name)) {
@@ -174,20 +457,91 @@ final class Directory extends File implements Iterable<DirectoryEntry> {
     return name == Name.SELF || name == Name.PARENT;
   }
 
-  // Simple hash table code to avoid allocation of Map.Entry objects when DirectoryEntry can
-  // serve the same purpose.
+  // Open addressing hash table over parallel arrays, so that a directory doesn't need an object per
+  // entry: the names, their hash codes and the files they link to are stored in separate arrays,
+  // using linear probing, and DirectoryEntry objects are only created when they're asked for. The
+  // three arrays of a table are held together by a Table object, which is replaced as a whole.
+  //
+  // The table is resized incrementally so that no single operation has to rehash every entry of a
+  // large directory: resizing allocates new arrays and makes the current ones the old table, and
+  // each following put or remove moves a bounded number of entries from the old table to the new
+  // one. While a resize is in progress, an entry is in exactly one of the two tables, so lookups
+  // check both. Only puts and removes move entries, since lookups may happen concurrently while
+  // holding just the locks needed to read the directory.
+  //
+  // Entries removed from the new table are deleted by shifting the entries after them back, so the
+  // new table never has tombstones. Entries moved or removed from the old table instead keep their
+  // name with a null file, so that probes for other names in the old table still find them: the
+  // old table is never added to, and is dropped once all of its entries have been moved.
+  //
+  // A lookup racing with a change without holding any lock reads each table field once, so it
+  // always probes three arrays of the same length. Probes never look at more slots than a table
+  // has, so such a lookup can't loop forever or throw, though it may return a wrong result.
 
   private static final int INITIAL_CAPACITY = 16;
   private static final int INITIAL_RESIZE_THRESHOLD = (int) (INITIAL_CAPACITY * 0.75);
 
-  private DirectoryEntry[] table = new DirectoryEntry[INITIAL_CAPACITY];
+  /**
+   * The table shrinks when it has fewer than 1/SHRINK_FACTOR entries per slot, to a size that has
+   * room for twice the entries it has.
+   */
+  private static final int SHRINK_FACTOR = 8;
+
+  /**
+   * The number of entries moved from the old table to the new one by each put or remove while the
+   * table is being resized. A table grows when it's 3/4 full and the new table is twice the size,
+   * so moving more than 4/3 of a slot per put ensures a resize finishes before the next one is
+   * needed.
+   */
+  private static final int ENTRIES_MOVED_PER_STEP = 4;
+
+  /** The maximum number of empty slots of the old table skipped by each put or remove. */
+  private static final int EMPTY_SLOTS_SKIPPED_PER_STEP = 10 * ENTRIES_MOVED_PER_STEP;
+
+  private volatile Table table = new Table(INITIAL_CAPACITY);
   private int resizeThreshold = INITIAL_RESIZE_THRESHOLD;
 
+  /**
+   * The table being resized into {@link #table}, or null if no resize is in progress. Slots before
+   * {@link #rehashIndex} have already been moved and have no file.
+   */
+  @Nullable private volatile Table oldTable;
+
+  private int rehashIndex;
+
   private int entryCount;
 
-  /** Returns the index of the bucket in the array where an entry for the given name should go. */
-  private static int bucketIndex(Name name, int tableLength) {
-    return name.hashCode() & (tableLength - 1);
+  /**
+   * Incremented before and after each change to the table, so that it's odd while a change is in
+   * progress. Changed only while holding the locks needed to change this directory's entries.
+   */
+  private volatile int modCount;
+
+  private static final AtomicIntegerFieldUpdater<Directory> MOD_COUNT_UPDATER =
+      AtomicIntegerFieldUpdater.newUpdater(Directory.class, "modCount");
+
+  /** Marks the start of a change to the table, making the modification count odd. */
+  private void beginChange() {
+    // unlike a volatile write, an atomic increment keeps the table writes after it from becoming
+    // visible before it, so a lookup that sees any of them also sees the count changed
+    MOD_COUNT_UPDATER.incrementAndGet(this);
+  }
+
+  /** Marks the end of a change to the table, making the modification count even again. */
+  private void endChange() {
+    modCount++;
+  }
+
+  /** Returns the number of slots in the hash table, or in the new table during a resize. */
+  @VisibleForTesting
+  int tableLength() {
+    return table.names.length;
+  }
+
+  /** Returns whether or not the hash table is being resized. */
+  @VisibleForTesting
+  boolean isResizing() {
+    return oldTable != null;
   }
 
   /**
@@ -198,105 +552,122 @@ final class Directory extends File implements Iterable<DirectoryEntry> {
    */
   @VisibleForTesting
   void put(DirectoryEntry entry) {
-    put(entry, false);
+    put(entry.name(), entry.file(), false);
   }
 
   /**
-   * Adds the given entry to the directory, overwriting an existing entry with the same name if such
-   * an entry exists.
+   * Adds an entry linking the given name to the given file to the directory, overwriting an
+   * existing entry with the same name if such an entry exists.
    */
-  private void forcePut(DirectoryEntry entry) {
-    put(entry, true);
+  private void forcePut(Name name, File file) {
+    put(name, file, true);
   }
 
   /**
-   * Adds the given entry to the directory. {@code overwriteExisting} determines whether an existing
-   * entry with the same name should be overwritten or an exception should be thrown.
+   * Adds an entry linking the given name to the given file to the directory. {@code
+   * overwriteExisting} determines whether an existing entry with the same name should be
+   * overwritten or an exception should be thrown.
    */
-  private void put(DirectoryEntry entry, boolean overwriteExisting) {
-    int index = bucketIndex(entry.name(), table.length);
-
-    // find the place the new entry should go, ensuring an entry with the same name doesn't already
-    // exist along the way
-    DirectoryEntry prev = null;
-    DirectoryEntry curr = table[index];
-    while (curr != null) {
-      if (curr.name().equals(entry.name())) {
-        if (overwriteExisting) {
-          // just replace the existing entry; no need to expand, and entryCount doesn't change
-          if (prev != null) {
-            prev.next = entry;
-          } else {
-            table[index] = entry;
-          }
-          entry.next = curr.next;
-          curr.next = null;
-          entry.file().incrementLinkCount();
-          return;
-        } else {
-          throw new IllegalArgumentException("entry '" + entry.name() + "' already exists");
-        }
+  private void put(Name name, File file, boolean overwriteExisting) {
+    beginChange();
+    try {
+      putEntry(name, file, overwriteExisting);
+    } finally {
+      endChange();
+    }
+  }
+
+  private void putEntry(Name name, File file, boolean overwriteExisting) {
+    rehashStep();
+
+    int hash = name.hashCode();
+    Table old = oldTable;
+    if (old != null) {
+      int index = old.indexOf(name, hash);
+      if (index >= 0 && old.files[index] != null) {
+        checkOverwrite(name, overwriteExisting);
+        old.names[index] = name;
+        old.files[index] = file;
+        // no need to expand, and entryCount doesn't change
+        file.incrementLinkCount();
+        return;
       }
+    }
 
-      prev = curr;
-      curr = curr.next;
+    Table current = table;
+    int index = current.indexOf(name, hash);
+    if (index >= 0) {
+      checkOverwrite(name, overwriteExisting);
+      current.names[index] = name;
+      current.files[index] = file;
+      file.incrementLinkCount();
+      return;
     }
 
+    current.insert(name, hash, file);
     entryCount++;
-    if (expandIfNeeded()) {
-      // if the table was expanded, the index/entry we found is no longer applicable, so just add
-      // the entry normally
-      index = bucketIndex(entry.name(), table.length);
-      addToBucket(index, table, entry);
-    } else {
-      // otherwise, we just can use the index/entry we found
-      if (prev != null) {
-        prev.next = entry;
-      } else {
-        table[index] = entry;
-      }
+    if (entryCount > resizeThreshold) {
+      startResize(current.names.length << 1);
+    }
+
+    ConcurrentSkipListSet<Name> currentIndex = sortedIndex;
+    if (currentIndex != null && !isReserved(name)) {
+      currentIndex.add(name);
     }
 
-    entry.file().incrementLinkCount();
+    file.incrementLinkCount();
   }
 
-  private boolean expandIfNeeded() {
-    if (entryCount <= resizeThreshold) {
-      return false;
+  private static void checkOverwrite(Name name, boolean overwriteExisting) {
+    if (!overwriteExisting) {
+      throw new IllegalArgumentException("entry '" + name + "' already exists");
     }
+  }
 
-    DirectoryEntry[] newTable = new DirectoryEntry[table.length << 1];
-
-    // redistribute all current entries in the new table
-    for (DirectoryEntry entry : table) {
-      while (entry != null) {
-        int index = bucketIndex(entry.name(), newTable.length);
-        addToBucket(index, newTable, entry);
-        DirectoryEntry next = entry.next;
-        // set entry.next to null; it's always the last entry in its bucket after being added
-        entry.next = null;
-        entry = next;
-      }
+  /**
+   * Starts resizing the hash table to the given length, first finishing any resize that's still in
+   * progress.
+   */
+  private void startResize(int newLength) {
+    while (oldTable != null) {
+      rehashStep();
     }
 
-    this.table = newTable;
-    resizeThreshold <<= 1;
-    return true;
+    oldTable = table;
+    rehashIndex = 0;
+    table = new Table(newLength);
+    resizeThreshold = (int) (newLength * 0.75);
   }
 
-  private static void addToBucket(
-      int bucketIndex, DirectoryEntry[] table, DirectoryEntry entryToAdd) {
-    DirectoryEntry prev = null;
-    DirectoryEntry existing = table[bucketIndex];
-    while (existing != null) {
-      prev = existing;
-      existing = existing.next;
+  /**
+   * Moves the next few entries of the old table to the new table if a resize is in progress,
+   * finishing the resize once all entries have been moved.
+   */
+  private void rehashStep() {
+    Table old = oldTable;
+    if (old == null) {
+      return;
     }
 
-    if (prev != null) {
-      prev.next = entryToAdd;
-    } else {
-      table[bucketIndex] = entryToAdd;
+    Table current = table;
+    int moved = 0;
+    int skipped = 0;
+    while (rehashIndex < old.names.length
+        && moved < ENTRIES_MOVED_PER_STEP
+        && skipped < EMPTY_SLOTS_SKIPPED_PER_STEP) {
+      File file = old.files[rehashIndex];
+      if (file == null) {
+        skipped++;
+      } else {
+        current.insert(old.names[rehashIndex], old.hashes[rehashIndex], file);
+        old.files[rehashIndex] = null;
+        moved++;
+      }
+      rehashIndex++;
+    }
+
+    if (rehashIndex == old.names.length) {
+      oldTable = null;
     }
   }
 
@@ -307,49 +678,166 @@ final class Directory extends File implements Iterable<DirectoryEntry> {
    */
   @VisibleForTesting
   DirectoryEntry remove(Name name) {
-    int index = bucketIndex(name, table.length);
-
-    DirectoryEntry prev = null;
-    DirectoryEntry entry = table[index];
-    while (entry != null) {
-      if (name.equals(entry.name())) {
-        if (prev != null) {
-          prev.next = entry.next;
-        } else {
-          table[index] = entry.next;
-        }
+    beginChange();
+    try {
+      return removeEntry(name);
+    } finally {
+      endChange();
+    }
+  }
+
+  private DirectoryEntry removeEntry(Name name) {
+    rehashStep();
+
+    int hash = name.hashCode();
+    DirectoryEntry entry = null;
+    Table old = oldTable;
+    if (old != null) {
+      int index = old.indexOf(name, hash);
+      if (index >= 0 && old.files[index] != null) {
+        entry = new DirectoryEntry(this, old.names[index], old.files[index]);
+        // keep the name so that probes for names after it still find them
+        old.files[index] = null;
+      }
+    }
 
-        entry.next = null;
-        entryCount--;
-        entry.file().decrementLinkCount();
-        return entry;
+    Table current = table;
+    if (entry == null) {
+      int index = current.indexOf(name, hash);
+      if (index < 0) {
+        throw new IllegalArgumentException("no entry matching '" + name + "' in this directory");
       }
+      entry = new DirectoryEntry(this, current.names[index], current.files[index]);
+      current.delete(index);
+    }
 
-      prev = entry;
-      entry = entry.next;
+    entryCount--;
+    if (old == null
+        && current.names.length > INITIAL_CAPACITY
+        && entryCount < current.names.length / SHRINK_FACTOR) {
+      startResize(Math.max(INITIAL_CAPACITY, nextPowerOf2(entryCount * 2)));
     }
 
-    throw new IllegalArgumentException("no entry matching '" + name + "' in this directory");
+    // remove the entry's own name, which may differ from the given one in display form
+    ConcurrentSkipListSet<Name> currentIndex = sortedIndex;
+    if (currentIndex != null) {
+      currentIndex.remove(entry.name());
+    }
+
+    entry.file().decrementLinkCount();
+    return entry;
   }
 
   @Override
   public Iterator<DirectoryEntry> iterator() {
-    return new AbstractIterator<DirectoryEntry>() {
-      int index;
-      @Nullable DirectoryEntry entry;
+    Table old = oldTable;
+    Iterator<DirectoryEntry> entries = new TableIterator(table);
+    return old == null ? entries : Iterators.concat(new TableIterator(old), entries);
+  }
 
-      @Override
-      protected DirectoryEntry computeNext() {
-        if (entry != null) {
-          entry = entry.next;
+  /**
+   * A hash table: the names of its entries, their hash codes and the files they link to, in
+   * parallel arrays of the same power-of-2 length. The arrays are never replaced; the table is.
+   */
+  private static final class Table implements Serializable {
+
+    private static final long serialVersionUID = 0L;
+
+    final Name[] names;
+    final int[] hashes;
+    final File[] files;
+
+    Table(int length) {
+      this.names = new Name[length];
+      this.hashes = new int[length];
+      this.files = new File[length];
+    }
+
+    /**
+     * Returns the index of the slot holding the given name, or -1 if there's no such slot. In an
+     * old table, the slot may have no file.
+     */
+    int indexOf(Name name, int hash) {
+      int mask = names.length - 1;
+      int index = hash & mask;
+      for (int probes = 0; probes < names.length; probes++) {
+        Name slotName = names[index];
+        if (slotName == null) {
+          return -1;
+        }
+        if (hashes[index] == hash && name.equals(slotName)) {
+          return index;
         }
+        index = (index + 1) & mask;
+      }
+      return -1;
+    }
+
+    /**
+     * Inserts the given name, which must not already be in this table, into the first free slot of
+     * its probe sequence. The table must have at least one free slot.
+     */
+    void insert(Name name, int hash, File file) {
+      int mask = names.length - 1;
+      int index = hash & mask;
+      while (names[index] != null) {
+        index = (index + 1) & mask;
+      }
+
+      // set the name last, since it's what marks the slot as used to a racing lookup
+      hashes[index] = hash;
+      files[index] = file;
+      names[index] = name;
+    }
 
-        while (entry == null && index < table.length) {
-          entry = table[index++];
+    /**
+     * Deletes the entry in the given slot, shifting back the entries after it in the same run of
+     * used slots that can't be found once the slot is empty. Only used for the new table.
+     */
+    void delete(int index) {
+      int mask = names.length - 1;
+      int hole = index;
+      int next = (hole + 1) & mask;
+      while (names[next] != null) {
+        int home = hashes[next] & mask;
+        // the entry can fill the hole if the hole is between its home slot and its current slot
+        if (((next - home) & mask) >= ((next - hole) & mask)) {
+          names[hole] = names[next];
+          hashes[hole] = hashes[next];
+          files[hole] = files[next];
+          hole = next;
         }
+        next = (next + 1) & mask;
+      }
+
+      names[hole] = null;
+      hashes[hole] = 0;
+      files[hole] = null;
+    }
+  }
+
+  /** Iterator over the entries in a hash table, creating an entry for each used slot. */
+  private final class TableIterator extends AbstractIterator<DirectoryEntry> {
+
+    private final Name[] names;
+    private final File[] files;
+    private int index;
 
-        return entry != null ? entry : endOfData();
+    TableIterator(Table table) {
+      this.names = table.names;
+      this.files = table.files;
+    }
+
+    @Override
+    protected DirectoryEntry computeNext() {
+      while (index < names.length) {
+        int current = index++;
+        File file = files[current];
+        if (file != null) {
+          return new DirectoryEntry(Directory.this, names[current], file);
+        }
       }
-    };
+      return endOfData();
+    }
   }
 }
@@ -36,6 +36,9 @@ import javax.annotation.Nullable;
  *
  * <p>May also represent a non-existent entry if the name does not link to any file in the
  * directory.
+ *
+ * <p>A directory creates its entries when they're retrieved from it, so two entries for the same
+ * link are equal but not necessarily the same object.
  */
 final class DirectoryEntry implements Serializable {
 
@@ -46,8 +49,6 @@ final class DirectoryEntry implements Serializable {
 
   @Nullable private final File file;
 
-  @Nullable DirectoryEntry next; // for use in Directory
-
   DirectoryEntry(Directory directory, Name name, @Nullable File file) {
     this.directory = checkNotNull(directory);
     this.name = checkNotNull(name);
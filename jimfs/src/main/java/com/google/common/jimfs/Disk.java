@@ -0,0 +1,788 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.jimfs;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+import com.google.common.math.LongMath;
+import java.io.IOException;
+import java.math.RoundingMode;
+import java.nio.ByteBuffer;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import javax.annotation.Nullable;
+
+/**
+ * A resizable pseudo-disk acting as a shared space for storing file data. A disk allocates fixed
+ * size blocks of bytes to files as needed and may cache blocks that have been freed for reuse. A
+ * disk has a fixed maximum number of blocks it will allocate at a time (which sets the total "size"
+ * of the disk) and a maximum number of unused blocks it will cache for reuse at a time (which sets
+ * the minimum amount of space the disk will use once blocks have been allocated).
+ *
+ * <p>Subclasses decide what memory the blocks are created in; see {@link HeapDisk} and {@link
+ * DirectDisk}. Every block created by a disk is a {@link ByteBuffer} with position 0 and a limit
+ * and capacity equal to the disk's block size.
+ *
+ * <p>A disk doesn't lock while allocating or freeing blocks, so threads writing to different files
+ * don't contend on it. The counts of allocated and cached blocks are updated atomically, and cached
+ * blocks are kept in <i>magazines</i>: small stacks of blocks, one per slot in an array of slots
+ * that threads are spread across, plus a lock-free pool of magazines that fill up or can't be put
+ * back in their slot. A thread takes the magazine out of its slot while using it, so a magazine
+ * only ever has one user.
+ *
+ * <p>A block may be shared by several files after a file is {@linkplain #share copied}. The disk
+ * counts the files referencing each shared block; a shared block only counts once toward the
+ * disk's allocated space, isn't freed until every file referencing it has freed it and is copied
+ * when one of the files {@linkplain #unshare writes} to it.
+ *
+ * <p>A disk also decides the layout of the files it allocates to. By default, every block of a
+ * file is a single block of the disk. A disk with a maximum extent size larger than its block size
+ * instead allocates <i>extents</i>: the first two blocks of a file are single blocks, and each
+ * block after that is a single buffer twice the size of the one before it, up to the maximum
+ * extent size. An extent counts as the number of blocks it's made of toward the disk's allocated
+ * space, and only single blocks are cached for reuse.
+ *
+ * <p>The blocks of a sparse file may be holes, which take no space on the disk until the disk
+ * {@linkplain #fillHole fills} them with a block when they're first written to.
+ *
+ * <p>Files no larger than the disk's maximum inline size don't use the disk at all: they keep their
+ * content inline, in a heap array of exactly their size, until they grow past the maximum.
+ *
+ * @author Colin Decker
+ */
+abstract class Disk {
+
+  /** The maximum number of blocks a magazine holds. */
+  private static final int MAGAZINE_CAPACITY = 64;
+
+  /**
+   * The spacing between the slots used in the array of magazine slots, keeping the slots on
+   * different cache lines so that threads using neighboring slots don't contend.
+   */
+  private static final int SLOT_SPACING = 16;
+
+  /** Fixed size of each block for this disk. */
+  private final int blockSize;
+
+  /** The base 2 logarithm of the block size if it's a power of 2, or -1 if it isn't. */
+  private final int blockShift;
+
+  /**
+   * The base 2 logarithm of the maximum number of blocks in an extent, or 0 if files are made of
+   * single blocks.
+   */
+  private final int maxExtentShift;
+
+  /**
+   * The number of blocks in the extents of a file that grow geometrically; every extent after them
+   * has the maximum size.
+   */
+  private final long growingExtentsBlockCount;
+
+  /** The maximum size of a file that keeps its content inline rather than in blocks. */
+  private final int maxInlineSize;
+
+  /** Maximum total number of blocks that the disk may contain at any time. */
+  private final int maxBlockCount;
+
+  /** Maximum total number of unused blocks that may be cached for reuse at any time. */
+  private final int maxCachedBlockCount;
+
+  /**
+   * The number of blocks currently allocated to files (in the high 32 bits) and the number of
+   * unused blocks cached for reuse (in the low 32 bits), packed together so that both can be
+   * updated with a single atomic operation. The cached count includes blocks in magazines that
+   * threads have taken out of their slots, and is incremented before blocks are added to magazines
+   * so that the limit on the number of cached blocks is never exceeded.
+   */
+  private final AtomicLong blockCounts = new AtomicLong();
+
+  /** Slots holding one magazine each, or null while a thread is using a slot's magazine. */
+  private final AtomicReferenceArray<Magazine> slots;
+
+  /** Mask for the index of a thread's slot, before spacing. */
+  private final int slotMask;
+
+  /** Lock-free stack of magazines that aren't in a slot. */
+  private final AtomicReference<PoolNode> pool = new AtomicReference<>();
+
+  /**
+   * The number of files referencing each block shared by more than one file. Blocks referenced by a
+   * single file aren't included. Guarded by itself.
+   */
+  private final Map<ByteBuffer, Integer> sharedBlockReferences = new IdentityHashMap<>();
+
+  /** Creates a new disk using settings from the given configuration. */
+  Disk(Configuration config) {
+    this(
+        config.blockSize,
+        toBlockCount(config.maxSize, config.blockSize),
+        config.maxCacheSize == -1
+            ? toBlockCount(config.maxSize, config.blockSize)
+            : toBlockCount(config.maxCacheSize, config.blockSize),
+        config.maxExtentSize == 0 ? 1 : config.maxExtentSize / config.blockSize,
+        config.maxInlineSize);
+  }
+
+  /** Returns the nearest multiple of {@code blockSize} that is <= {@code size}. */
+  private static int toBlockCount(long size, int blockSize) {
+    return (int) LongMath.divide(size, blockSize, RoundingMode.FLOOR);
+  }
+
+  /**
+   * Creates a new disk with the given {@code blockSize}, {@code maxBlockCount} and {@code
+   * maxCachedBlockCount}.
+   */
+  Disk(int blockSize, int maxBlockCount, int maxCachedBlockCount) {
+    this(blockSize, maxBlockCount, maxCachedBlockCount, 1);
+  }
+
+  /**
+   * Creates a new disk with the given {@code blockSize}, {@code maxBlockCount} and {@code
+   * maxCachedBlockCount} that allocates extents of up to {@code maxExtentBlockCount} blocks to
+   * files.
+   */
+  Disk(int blockSize, int maxBlockCount, int maxCachedBlockCount, int maxExtentBlockCount) {
+    this(blockSize, maxBlockCount, maxCachedBlockCount, maxExtentBlockCount, 0);
+  }
+
+  /**
+   * Creates a new disk with the given {@code blockSize}, {@code maxBlockCount} and {@code
+   * maxCachedBlockCount} that allocates extents of up to {@code maxExtentBlockCount} blocks to
+   * files and lets files of up to {@code maxInlineSize} bytes keep their content inline.
+   */
+  Disk(
+      int blockSize,
+      int maxBlockCount,
+      int maxCachedBlockCount,
+      int maxExtentBlockCount,
+      int maxInlineSize) {
+    checkArgument(blockSize > 0, "blockSize (%s) must be positive", blockSize);
+    checkArgument(maxBlockCount > 0, "maxBlockCount (%s) must be positive", maxBlockCount);
+    checkArgument(
+        maxCachedBlockCount >= 0, "maxCachedBlockCount must be non-negative", maxCachedBlockCount);
+    checkArgument(
+        maxExtentBlockCount > 0 && Integer.bitCount(maxExtentBlockCount) == 1,
+        "maxExtentBlockCount (%s) must be a power of 2",
+        maxExtentBlockCount);
+    checkArgument(
+        maxInlineSize >= 0 && maxInlineSize <= blockSize,
+        "maxInlineSize (%s) must be between 0 and the block size (%s)",
+        maxInlineSize,
+        blockSize);
+    this.blockSize = blockSize;
+    this.blockShift =
+        Integer.bitCount(blockSize) == 1 ? Integer.numberOfTrailingZeros(blockSize) : -1;
+    this.maxExtentShift = Integer.numberOfTrailingZeros(maxExtentBlockCount);
+    this.growingExtentsBlockCount = 2L << maxExtentShift;
+    this.maxInlineSize = maxInlineSize;
+    this.maxBlockCount = maxBlockCount;
+    this.maxCachedBlockCount = maxCachedBlockCount;
+
+    // one slot per processor, rounded up to a power of 2
+    int processors = Math.min(Runtime.getRuntime().availableProcessors(), 64);
+    int slotCount = Integer.highestOneBit(Math.max(processors, 1) * 2 - 1);
+    this.slots = new AtomicReferenceArray<>(slotCount * SLOT_SPACING);
+    this.slotMask = slotCount - 1;
+  }
+
+  /**
+   * Creates a new, zeroed block of {@link #blockSize()} bytes. Called only when there are no cached
+   * blocks available for reuse, possibly by several threads at once.
+   */
+  abstract ByteBuffer createBlock();
+
+  /**
+   * Creates a new, zeroed extent of {@code blockCount} blocks, with a capacity of {@code blockCount
+   * * blockSize()} bytes. Called only for extents of more than one block, possibly by several
+   * threads at once.
+   */
+  abstract ByteBuffer createExtent(int blockCount);
+
+  /** Returns the size of blocks created by this disk. */
+  public int blockSize() {
+    return blockSize;
+  }
+
+  /**
+   * Returns the maximum size of a file that keeps its content inline rather than in blocks, or 0 if
+   * files never keep their content inline.
+   */
+  int maxInlineSize() {
+    return maxInlineSize;
+  }
+
+  // file layout
+
+  /** Returns the index of the block of a file that contains the given position in the file. */
+  int blockIndex(long pos) {
+    if (pos < blockSize) {
+      return 0; // including -1, the last position of an empty range at the start of a file
+    }
+
+    long block = blockShift >= 0 ? pos >>> blockShift : pos / blockSize;
+    if (maxExtentShift == 0) {
+      return (int) block;
+    } else if (block < growingExtentsBlockCount) {
+      return 64 - Long.numberOfLeadingZeros(block);
+    } else {
+      return (int) (maxExtentShift + 2 + ((block - growingExtentsBlockCount) >>> maxExtentShift));
+    }
+  }
+
+  /** Returns the offset of the given position in a file within the block of the file holding it. */
+  int offsetInBlock(long pos) {
+    if (maxExtentShift == 0) {
+      return (int) (blockShift >= 0 ? pos & (blockSize - 1) : pos % blockSize);
+    }
+    return (int) (pos - blockStart(blockIndex(pos)));
+  }
+
+  /** Returns the position in a file of the first byte of the file's block at the given index. */
+  long blockStart(int index) {
+    long block;
+    if (maxExtentShift == 0 || index == 0) {
+      block = index;
+    } else if (index <= maxExtentShift + 1) {
+      block = 1L << (index - 1);
+    } else {
+      block = growingExtentsBlockCount + ((long) (index - maxExtentShift - 2) << maxExtentShift);
+    }
+    return block * blockSize;
+  }
+
+  /** Returns the size of the block of a file at the given index. */
+  int blockSize(int index) {
+    return extentBlockCount(index) * blockSize;
+  }
+
+  /** Returns the number of disk blocks the block of a file at the given index is made of. */
+  private int extentBlockCount(int index) {
+    return index <= 1 ? 1 : 1 << Math.min(index - 1, maxExtentShift);
+  }
+
+  /**
+   * Returns the total size of this disk. This is the maximum size of the disk and does not reflect
+   * the amount of data currently allocated or cached.
+   */
+  public long getTotalSpace() {
+    return maxBlockCount * (long) blockSize;
+  }
+
+  /**
+   * Returns the current number of unallocated bytes on this disk. This is the maximum number of
+   * additional bytes that could be allocated and does not reflect the number of bytes currently
+   * actually cached in the disk.
+   */
+  public long getUnallocatedSpace() {
+    return (maxBlockCount - allocated(blockCounts.get())) * (long) blockSize;
+  }
+
+  /** Returns the number of unused blocks currently cached for reuse. */
+  @VisibleForTesting
+  int cachedBlockCount() {
+    return cached(blockCounts.get());
+  }
+
+  /**
+   * Returns the blocks currently cached for reuse, in no particular order. Must not be called while
+   * other threads are using the disk.
+   */
+  @VisibleForTesting
+  ImmutableList<ByteBuffer> cachedBlocks() {
+    ImmutableList.Builder<ByteBuffer> builder = ImmutableList.builder();
+    for (int i = 0; i < slots.length(); i++) {
+      Magazine magazine = slots.get(i);
+      if (magazine != null) {
+        magazine.addTo(builder);
+      }
+    }
+    for (PoolNode node = pool.get(); node != null; node = node.next) {
+      node.magazine.addTo(builder);
+    }
+    return builder.build();
+  }
+
+  /**
+   * Allocates the given number of blocks and adds them to the given file. When the disk allocates
+   * extents, the blocks added are the file's next {@code count} extents.
+   */
+  public void allocate(RegularFile file, int count) throws IOException {
+    if (maxExtentShift == 0) {
+      allocateBlocks(file, count);
+      return;
+    }
+
+    // the first two blocks of a file are single blocks
+    int blocks = Math.max(Math.min(count, 2 - file.blockCount()), 0);
+    allocateBlocks(file, blocks);
+    if (blocks < count) {
+      try {
+        allocateExtents(file, count - blocks);
+      } catch (IOException e) {
+        free(file, blocks);
+        throw e;
+      }
+    }
+  }
+
+  /** Allocates the given number of single blocks and adds them to the given file. */
+  private void allocateBlocks(RegularFile file, int count) throws IOException {
+    int taken = 0;
+    if (count > 0 && cached(blockCounts.get()) > 0) {
+      taken = allocateCachedBlocks(file, count);
+    } else {
+      reserve(count, 0);
+    }
+
+    for (int i = taken; i < count; i++) {
+      file.addBlock(createBlock());
+    }
+  }
+
+  /** Allocates the given file's next {@code count} extents, none of which is a single block. */
+  private void allocateExtents(RegularFile file, int count) throws IOException {
+    int start = file.blockCount();
+    long blocks = (blockStart(start + count) - blockStart(start)) / blockSize;
+    if (blocks > maxBlockCount) {
+      throw new IOException("out of disk space");
+    }
+
+    reserve((int) blocks, 0);
+    for (int i = start; i < start + count; i++) {
+      file.addBlock(createExtent(extentBlockCount(i)));
+    }
+  }
+
+  /**
+   * Allocates up to {@code count} cached blocks to the given file and reserves space for {@code
+   * count} blocks, returning the number of cached blocks allocated.
+   *
+   * @throws IOException if the disk doesn't have that many unallocated blocks
+   */
+  private int allocateCachedBlocks(RegularFile file, int count) throws IOException {
+    int slot = slot();
+    Magazine magazine = slots.getAndSet(slot, null);
+    int taken = 0;
+    try {
+      while (taken < count) {
+        if (magazine == null || magazine.isEmpty()) {
+          Magazine next = pop();
+          if (next == null) {
+            break;
+          }
+          magazine = next;
+        }
+        taken += magazine.transferTo(file, count - taken);
+      }
+
+      try {
+        reserve(count, taken);
+      } catch (IOException e) {
+        // return the blocks taken to the cache, which still counts them
+        int end = file.blockCount();
+        magazine = addBlocks(magazine, file, end - taken, end);
+        file.truncateBlocks(end - taken);
+        throw e;
+      }
+      return taken;
+    } finally {
+      if (magazine != null) {
+        putBack(slot, magazine);
+      }
+    }
+  }
+
+  /**
+   * Reserves space for the given number of blocks on the disk, the given number of which were
+   * taken from the cache.
+   *
+   * @throws IOException if the disk doesn't have that many unallocated blocks
+   */
+  private void reserve(int count, int cachedTaken) throws IOException {
+    while (true) {
+      long counts = blockCounts.get();
+      int allocated = allocated(counts) + count;
+      if (allocated > maxBlockCount || allocated < 0) {
+        throw new IOException("out of disk space");
+      }
+      if (blockCounts.compareAndSet(counts, counts(allocated, cached(counts) - cachedTaken))) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Records that the given number of blocks were freed, reserving space in the cache for as many
+   * of them as fit if {@code cache} is true. Returns the number of blocks that may be cached.
+   */
+  private int freed(int count, boolean cache) {
+    while (true) {
+      long counts = blockCounts.get();
+      int cached = cached(counts);
+      int cacheable = cache ? Math.max(Math.min(count, maxCachedBlockCount - cached), 0) : 0;
+      if (blockCounts.compareAndSet(
+          counts, counts(allocated(counts) - count, cached + cacheable))) {
+        return cacheable;
+      }
+    }
+  }
+
+  private static int allocated(long counts) {
+    return (int) (counts >>> 32);
+  }
+
+  private static int cached(long counts) {
+    return (int) counts;
+  }
+
+  private static long counts(int allocated, int cached) {
+    return ((long) allocated << 32) | cached;
+  }
+
+  /**
+   * Reserves space for {@code count} blocks on this disk without allocating any, for content that
+   * counts toward the disk's allocated space but isn't stored in its blocks, such as compressed
+   * content.
+   *
+   * @throws IOException if the disk doesn't have that many unallocated blocks
+   */
+  public void reserveSpace(int count) throws IOException {
+    reserve(count, 0);
+  }
+
+  /** Releases space for {@code count} blocks that was reserved by {@link #reserveSpace}. */
+  public void releaseSpace(int count) {
+    freed(count, false);
+  }
+
+  /** Frees all blocks in the given file. */
+  public void free(RegularFile file) {
+    free(file, file.blockCount());
+  }
+
+  /**
+   * Frees the last {@code count} blocks from the given file. Blocks still shared with other files
+   * are only released by the given file.
+   */
+  public void free(RegularFile file, int count) {
+    free(file, count, true);
+  }
+
+  /**
+   * Frees the last {@code count} blocks from the given file without caching them for reuse. This is
+   * used for blocks that may still be referenced from outside the file, such as by a buffer mapped
+   * from the file, and so must never be handed out to another file.
+   */
+  public void discard(RegularFile file, int count) {
+    free(file, count, false);
+  }
+
+  private void free(RegularFile file, int count, boolean cache) {
+    int end = file.blockCount();
+    int start = end - count;
+    if (maxExtentShift == 0 && !file.mayShareBlocks() && !file.mayHaveHoles()) {
+      // cache the last of the freed blocks, which are the most recently allocated
+      int cacheable = freed(count, cache);
+      cacheBlocks(file, end - cacheable, end);
+    } else {
+      for (int i = start; i < end; i++) {
+        ByteBuffer block = file.getBlock(i);
+        if (block == null) {
+          continue; // a hole
+        }
+        if (file.isBlockShared(i) && release(block)) {
+          continue; // still referenced by another file
+        }
+
+        int blocks = extentBlockCount(i);
+        if (freed(blocks, cache && blocks == 1) == 1) {
+          cacheBlock(block);
+        }
+      }
+    }
+    file.truncateBlocks(start);
+  }
+
+  /**
+   * Adds all blocks of the {@code source} file to the end of the {@code target} file, sharing them
+   * between the two files rather than copying them.
+   */
+  public void share(RegularFile source, RegularFile target) {
+    synchronized (sharedBlockReferences) {
+      for (int i = 0; i < source.blockCount(); i++) {
+        ByteBuffer block = source.getBlock(i);
+        if (block == null) {
+          continue; // holes stay holes in both files
+        }
+        Integer references = sharedBlockReferences.get(block);
+        sharedBlockReferences.put(block, references == null ? 2 : references + 1);
+      }
+    }
+    source.shareBlocksWith(target);
+  }
+
+  /**
+   * Ensures that the block at the given index in the given file, which may be shared, is referenced
+   * only by that file, replacing it with a copy of the block if it is still shared.
+   *
+   * @throws IOException if the block needs to be copied but the disk is full
+   */
+  public void unshare(RegularFile file, int index) throws IOException {
+    ByteBuffer block = file.getBlock(index);
+    ByteBuffer copy = block;
+    if (isShared(block)) {
+      int blocks = extentBlockCount(index);
+      reserve(blocks, 0);
+
+      copy = blocks == 1 ? takeCachedBlock() : null;
+      if (copy == null) {
+        copy = blocks == 1 ? createBlock() : createExtent(blocks);
+      }
+      RegularFile.copy(block, copy);
+
+      if (!release(block) && freed(blocks, blocks == 1) == 1) {
+        // the other files referencing the block freed it after it was found to be shared, so the
+        // copy wasn't needed after all; free the original block instead
+        cacheBlock(block);
+      }
+    }
+    file.replaceSharedBlock(index, copy);
+  }
+
+  /**
+   * Allocates a zeroed block to fill the hole at the given index in the given file.
+   *
+   * @throws IOException if the disk is full
+   */
+  public void fillHole(RegularFile file, int index) throws IOException {
+    int blocks = extentBlockCount(index);
+    reserve(blocks, 0);
+
+    ByteBuffer block = blocks == 1 ? takeCachedBlock() : null;
+    if (block != null) {
+      Util.zero(block, 0, blockSize);
+    } else {
+      block = blocks == 1 ? createBlock() : createExtent(blocks);
+    }
+    file.fillHole(index, block);
+  }
+
+  private boolean isShared(ByteBuffer block) {
+    synchronized (sharedBlockReferences) {
+      return sharedBlockReferences.containsKey(block);
+    }
+  }
+
+  /**
+   * Releases one file's reference to the given shared block. Returns {@code true} if the block is
+   * still referenced by another file, or {@code false} if no other file references it.
+   */
+  private boolean release(ByteBuffer block) {
+    synchronized (sharedBlockReferences) {
+      Integer references = sharedBlockReferences.get(block);
+      if (references == null) {
+        return false;
+      }
+
+      if (references == 2) {
+        sharedBlockReferences.remove(block);
+      } else {
+        sharedBlockReferences.put(block, references - 1);
+      }
+      return true;
+    }
+  }
+
+  // block cache
+
+  /** Returns the index of the current thread's slot. */
+  private int slot() {
+    long id = Thread.currentThread().getId();
+    int hash = (int) ((id * 0x9E3779B97F4A7C15L) >>> 32);
+    return (hash & slotMask) * SLOT_SPACING;
+  }
+
+  /**
+   * Caches the blocks in the given file from index {@code from} to index {@code to}, for which
+   * space in the cache has been reserved.
+   */
+  private void cacheBlocks(RegularFile file, int from, int to) {
+    if (from == to) {
+      return;
+    }
+
+    int slot = slot();
+    putBack(slot, addBlocks(slots.getAndSet(slot, null), file, from, to));
+  }
+
+  /**
+   * Adds the blocks in the given file from index {@code from} to index {@code to} to the given
+   * magazine, pushing it to the pool and continuing with a new magazine whenever it's full. Returns
+   * the magazine the last block was added to.
+   */
+  private Magazine addBlocks(@Nullable Magazine magazine, RegularFile file, int from, int to) {
+    for (int i = from; i < to; i++) {
+      if (magazine == null) {
+        magazine = new Magazine();
+      } else if (magazine.isFull()) {
+        push(magazine);
+        magazine = new Magazine();
+      }
+      magazine.push(file.getBlock(i));
+    }
+    return magazine;
+  }
+
+  /** Caches the given block, for which space in the cache has been reserved. */
+  private void cacheBlock(ByteBuffer block) {
+    int slot = slot();
+    Magazine magazine = slots.getAndSet(slot, null);
+    if (magazine == null) {
+      magazine = new Magazine();
+    } else if (magazine.isFull()) {
+      push(magazine);
+      magazine = new Magazine();
+    }
+    magazine.push(block);
+    putBack(slot, magazine);
+  }
+
+  /** Removes a block from the cache and returns it, or returns null if no block is available. */
+  @Nullable
+  private ByteBuffer takeCachedBlock() {
+    if (cached(blockCounts.get()) == 0) {
+      return null;
+    }
+
+    int slot = slot();
+    Magazine magazine = slots.getAndSet(slot, null);
+    if (magazine == null || magazine.isEmpty()) {
+      Magazine next = pop();
+      if (next == null) {
+        if (magazine != null) {
+          putBack(slot, magazine);
+        }
+        return null;
+      }
+      magazine = next;
+    }
+
+    ByteBuffer block = magazine.pop();
+    putBack(slot, magazine);
+    blockCounts.decrementAndGet(); // the cached count is positive, so this doesn't borrow
+    return block;
+  }
+
+  /**
+   * Puts the given magazine back in the given slot. If another thread has put a magazine in the
+   * slot in the meantime, the given magazine goes to the pool instead, unless it's empty.
+   */
+  private void putBack(int slot, Magazine magazine) {
+    if (!slots.compareAndSet(slot, null, magazine) && !magazine.isEmpty()) {
+      push(magazine);
+    }
+  }
+
+  /** Pushes the given magazine onto the pool. */
+  private void push(Magazine magazine) {
+    // a new node for each push, so a node popped by one thread can't reappear under another
+    PoolNode node = new PoolNode(magazine);
+    while (true) {
+      PoolNode head = pool.get();
+      node.next = head;
+      if (pool.compareAndSet(head, node)) {
+        return;
+      }
+    }
+  }
+
+  /** Pops a magazine from the pool, or returns null if the pool is empty. */
+  @Nullable
+  private Magazine pop() {
+    while (true) {
+      PoolNode head = pool.get();
+      if (head == null) {
+        return null;
+      }
+      if (pool.compareAndSet(head, head.next)) {
+        return head.magazine;
+      }
+    }
+  }
+
+  /** A stack of cached blocks, used by one thread at a time. */
+  private static final class Magazine {
+
+    private final ByteBuffer[] blocks = new ByteBuffer[MAGAZINE_CAPACITY];
+    private int count;
+
+    boolean isEmpty() {
+      return count == 0;
+    }
+
+    boolean isFull() {
+      return count == blocks.length;
+    }
+
+    void push(ByteBuffer block) {
+      blocks[count++] = block;
+    }
+
+    ByteBuffer pop() {
+      ByteBuffer block = blocks[--count];
+      blocks[count] = null;
+      return block;
+    }
+
+    /**
+     * Moves up to {@code max} blocks from the top of this magazine to the given file, keeping their
+     * order, and returns the number of blocks moved.
+     */
+    int transferTo(RegularFile file, int max) {
+      int n = Math.min(max, count);
+      for (int i = count - n; i < count; i++) {
+        file.addBlock(blocks[i]);
+        blocks[i] = null;
+      }
+      count -= n;
+      return n;
+    }
+
+    void addTo(ImmutableList.Builder<ByteBuffer> builder) {
+      for (int i = 0; i < count; i++) {
+        builder.add(blocks[i]);
+      }
+    }
+  }
+
+  /** A node in the pool's stack of magazines. */
+  private static final class PoolNode {
+
+    final Magazine magazine;
+    PoolNode next;
+
+    PoolNode(Magazine magazine) {
+      this.magazine = magazine;
+    }
+  }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.jimfs;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Configuration for the storage backing the contents of regular files in a file system.
+ *
+ * <p>File contents are stored in fixed size blocks (see {@link Configuration.Builder#setBlockSize})
+ * or extents (see {@link Configuration.Builder#setMaxExtentSize}) allocated from a shared
+ * pseudo-disk. This configuration determines where the memory for those blocks comes from.
+ *
+ * @author Colin Decker
+ */
+public abstract class DiskConfiguration {
+
+  /** The default configuration that's used if the user doesn't provide anything more specific. */
+  static final DiskConfiguration DEFAULT = heap();
+
+  /**
+   * Returns a configuration that stores file contents in byte arrays on the Java heap. This is the
+   * default.
+   */
+  public static DiskConfiguration heap() {
+    return HeapConfig.INSTANCE;
+  }
+
+  /**
+   * Returns a configuration that stores file contents off the Java heap, in direct memory. Blocks
+   * are carved from direct buffers ("slabs") of about 1 MB each.
+   *
+   * <p>Storing large amounts of data off-heap keeps it out of reach of the garbage collector, which
+   * can significantly reduce GC pause times for file systems holding many gigabytes. Note that the
+   * total amount of direct memory a JVM may allocate is limited separately from the heap (see
+   * {@code -XX:MaxDirectMemorySize}).
+   */
+  public static DiskConfiguration offHeap() {
+    return offHeap(DirectDisk.DEFAULT_SLAB_SIZE);
+  }
+
+  /**
+   * Returns a configuration that stores file contents off the Java heap, in direct memory. Blocks
+   * are carved from direct buffers ("slabs") of {@code slabSize} bytes each; a slab is always large
+   * enough to hold at least one block.
+   *
+   * @throws IllegalArgumentException if {@code slabSize} is not positive
+   */
+  public static DiskConfiguration offHeap(int slabSize) {
+    return new OffHeapConfig(slabSize);
+  }
+
+  DiskConfiguration() {}
+
+  /** Creates a new {@link Disk} for a file system with the given configuration. */
+  abstract Disk newDisk(Configuration config);
+
+  /** Implementation for {@link #heap}. */
+  private static final class HeapConfig extends DiskConfiguration {
+
+    private static final HeapConfig INSTANCE = new HeapConfig();
+
+    @Override
+    Disk newDisk(Configuration config) {
+      return new HeapDisk(config);
+    }
+
+    @Override
+    public String toString() {
+      return "DiskConfiguration.heap()";
+    }
+  }
+
+  /** Implementation for {@link #offHeap}. */
+  private static final class OffHeapConfig extends DiskConfiguration {
+
+    private final int slabSize;
+
+    private OffHeapConfig(int slabSize) {
+      checkArgument(slabSize > 0, "slabSize (%s) must be positive", slabSize);
+      this.slabSize = slabSize;
+    }
+
+    @Override
+    Disk newDisk(Configuration config) {
+      return new DirectDisk(config, slabSize);
+    }
+
+    @Override
+    public String toString() {
+      return "DiskConfiguration.offHeap(" + slabSize + ")";
+    }
+  }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.jimfs;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchService;
+import java.nio.file.Watchable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Implementation of {@link WatchService} that is notified of changes to watched directories by
+ * the directories themselves as the changes are made.
+ *
+ * <p>Registering a directory attaches a {@link Watch} to it. When an entry is linked into or
+ * unlinked from a watched directory, the directory posts an event to each of its watches. The
+ * files linked in a watched directory likewise keep track of the entries linking to them, and post
+ * an {@code ENTRY_MODIFY} event for each of those entries when their last modified time changes.
+ * Nothing is done while nothing changes, and events are available to the watch service as soon as
+ * the change that caused them has been made.
+ *
+ * <p>Unlike a {@link PollingWatchService}, which compares snapshots of a directory, this service
+ * reports each change as it happens. Repeated identical events that haven't been retrieved yet are
+ * coalesced, but, for example, creating a file and then writing to it results in both an {@code
+ * ENTRY_CREATE} and an {@code ENTRY_MODIFY} event. A key is cancelled when its directory is
+ * deleted or moved.
+ *
+ * @author Colin Decker
+ */
+final class EventDrivenWatchService extends AbstractWatchService {
+
+  /** Map of keys to the watch for each key. */
+  private final ConcurrentMap<Key, Watch> watches = new ConcurrentHashMap<>();
+
+  private final FileSystemView view;
+  private final PathService pathService;
+  private final FileSystemState fileSystemState;
+
+  EventDrivenWatchService(
+      FileSystemView view, PathService pathService, FileSystemState fileSystemState) {
+    this.view = checkNotNull(view);
+    this.pathService = checkNotNull(pathService);
+    this.fileSystemState = checkNotNull(fileSystemState);
+
+    fileSystemState.register(this);
+  }
+
+  @Override
+  public Key register(Watchable watchable, Iterable<? extends WatchEvent.Kind<?>> eventTypes)
+      throws IOException {
+    JimfsPath path = checkWatchable(watchable);
+
+    Key key = super.register(path, eventTypes);
+
+    Watch watch = new Watch(key, pathService);
+    watch.directory = view.watch(path, watch);
+    watches.put(key, watch);
+
+    // the key may have been cancelled, by its directory being deleted or this service being closed,
+    // before it was put in the map
+    if (!key.isValid()) {
+      cancelled(key);
+    }
+
+    return key;
+  }
+
+  private JimfsPath checkWatchable(Watchable watchable) {
+    if (!(watchable instanceof JimfsPath) || !isSameFileSystem((Path) watchable)) {
+      throw new IllegalArgumentException(
+          "watchable ("
+              + watchable
+              + ") must be a Path "
+              + "associated with the same file system as this watch service");
+    }
+
+    return (JimfsPath) watchable;
+  }
+
+  private boolean isSameFileSystem(Path path) {
+    return ((JimfsFileSystem) path.getFileSystem()).getDefaultView() == view;
+  }
+
+  @Override
+  public void cancelled(Key key) {
+    // not synchronized: directories cancel keys while the file tree is locked, so this service must
+    // never hold a lock of its own while locking the tree
+    Watch watch = watches.remove(key);
+    if (watch != null) {
+      view.unwatch(watch.directory, watch);
+    }
+  }
+
+  @Override
+  public void close() {
+    super.close();
+
+    for (Key key : watches.keySet()) {
+      key.cancel();
+    }
+
+    fileSystemState.unregister(this);
+  }
+
+  /**
+   * A watch on a directory for a single key. Changes to the directory are posted as events to the
+   * key.
+   */
+  static final class Watch {
+
+    private final Key key;
+    private final PathService pathService;
+
+    /** The watched directory; set once when the watch is added to it. */
+    private Directory directory;
+
+    Watch(Key key, PathService pathService) {
+      this.key = checkNotNull(key);
+      this.pathService = checkNotNull(pathService);
+    }
+
+    /**
+     * Posts an event of the given kind for the entry with the given name to the key and signals it,
+     * if the key subscribes to that kind of event.
+     */
+    void post(WatchEvent.Kind<Path> kind, Name name) {
+      if (key.subscribesTo(kind)
+          && key.postCoalesced(new Event<>(kind, 1, pathService.createFileName(name)))) {
+        key.signal();
+      }
+    }
+
+    /** Cancels the key. */
+    void cancel() {
+      key.cancel();
+    }
+  }
+}
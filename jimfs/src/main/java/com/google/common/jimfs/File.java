@@ -27,7 +27,9 @@ import javax.annotation.Nullable;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.MoreObjects;
 import com.google.common.collect.HashBasedTable;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableTable;
 import com.google.common.collect.Table;
 
 /**
@@ -43,20 +45,28 @@ public abstract class File implements Serializable {
 
   private int links;
 
-  private long creationTime;
-  private long lastAccessTime;
-  private long lastModifiedTime;
+  // volatile so that the times can be read, and the access time updated, without locking
+  private volatile long creationTime;
+  private volatile long lastAccessTime;
+  private volatile long lastModifiedTime;
 
   @Nullable // null when only the basic view is used (default)
   private Table<String, String, Object> attributes;
 
-  File(int id) {
-    this.id = id;
+  /**
+   * The entries linking to this file in directories watched by an {@link EventDrivenWatchService}.
+   * Null when no such directory links to this file, which is almost always the case.
+   */
+  @Nullable private transient volatile ImmutableList<DirectoryEntry> watchedEntries;
+
+  /** The log recording changes to this file, or null if its file system isn't durable. */
+  @Nullable private transient WriteAheadLog log;
 
-    long now = System.currentTimeMillis(); // TODO(cgdecker): Use a Clock
-    this.creationTime = now;
-    this.lastAccessTime = now;
-    this.lastModifiedTime = now;
+  File(int id, long creationTime) {
+    this.id = id;
+    this.creationTime = creationTime;
+    this.lastAccessTime = creationTime;
+    this.lastModifiedTime = creationTime;
   }
 
   /** Returns the ID of this file. */
@@ -72,6 +82,23 @@ public abstract class File implements Serializable {
     return 0;
   }
 
+  /**
+   * Returns the write-ahead log that changes to this file are recorded in, or null if the file's
+   * file system isn't durable.
+   */
+  @Nullable
+  final WriteAheadLog log() {
+    return log;
+  }
+
+  /**
+   * Sets the write-ahead log that changes to this file are recorded in. Must be called before the
+   * file is made available to other threads.
+   */
+  final void setLog(WriteAheadLog log) {
+    this.log = checkNotNull(log);
+  }
+
   /** Returns whether or not this file is a directory. */
   public final boolean isDirectory() {
     return this instanceof Directory;
@@ -88,11 +115,11 @@ public abstract class File implements Serializable {
   }
 
   /**
-   * Creates a new file of the same type as this file with the given ID. Does not copy the content
-   * of this file unless the cost of copying the content is minimal. This is because this method is
-   * called with a hold on the file system's lock.
+   * Creates a new file of the same type as this file with the given ID and creation time. Does not
+   * copy the content of this file unless the cost of copying the content is minimal. This is
+   * because this method is called with a hold on the file system's lock.
    */
-  abstract File copyWithoutContent(int id);
+  abstract File copyWithoutContent(int id, long creationTime);
 
   /**
    * Copies the content of this file to the given file. The given file must be the same type of file
@@ -149,6 +176,35 @@ public abstract class File implements Serializable {
   /** Called when this file has been unlinked from a directory, either for a move or delete. */
   void unlinked() {}
 
+  /**
+   * Adds the given entry, which links to this file, to the entries that are notified when this
+   * file is modified.
+   */
+  final synchronized void addWatchedEntry(DirectoryEntry entry) {
+    ImmutableList<DirectoryEntry> entries = watchedEntries;
+    watchedEntries =
+        entries == null
+            ? ImmutableList.of(entry)
+            : ImmutableList.<DirectoryEntry>builder().addAll(entries).add(entry).build();
+  }
+
+  /** Removes the given entry from the entries that are notified when this file is modified. */
+  final synchronized void removeWatchedEntry(DirectoryEntry entry) {
+    ImmutableList<DirectoryEntry> entries = watchedEntries;
+    if (entries == null) {
+      return;
+    }
+
+    ImmutableList.Builder<DirectoryEntry> remaining = ImmutableList.builder();
+    for (DirectoryEntry e : entries) {
+      if (!e.equals(entry)) {
+        remaining.add(e);
+      }
+    }
+    ImmutableList<DirectoryEntry> newEntries = remaining.build();
+    watchedEntries = newEntries.isEmpty() ? null : newEntries;
+  }
+
   /** Increments the link count for this file. */
   final synchronized void incrementLinkCount() {
     links++;
@@ -161,45 +217,75 @@ public abstract class File implements Serializable {
 
   /** Gets the creation time of the file. */
   @SuppressWarnings("GoodTime") // should return a java.time.Instant
-  public final synchronized long getCreationTime() {
+  public final long getCreationTime() {
     return creationTime;
   }
 
   /** Gets the last access time of the file. */
   @SuppressWarnings("GoodTime") // should return a java.time.Instant
-  public final synchronized long getLastAccessTime() {
+  public final long getLastAccessTime() {
     return lastAccessTime;
   }
 
   /** Gets the last modified time of the file. */
   @SuppressWarnings("GoodTime") // should return a java.time.Instant
-  public final synchronized long getLastModifiedTime() {
+  public final long getLastModifiedTime() {
     return lastModifiedTime;
   }
 
   /** Sets the creation time of the file. */
   final synchronized void setCreationTime(long creationTime) {
     this.creationTime = creationTime;
+    logTimes();
   }
 
   /** Sets the last access time of the file. */
   final synchronized void setLastAccessTime(long lastAccessTime) {
     this.lastAccessTime = lastAccessTime;
+    logTimes();
   }
 
   /** Sets the last modified time of the file. */
-  final synchronized void setLastModifiedTime(long lastModifiedTime) {
-    this.lastModifiedTime = lastModifiedTime;
+  final void setLastModifiedTime(long lastModifiedTime) {
+    synchronized (this) {
+      this.lastModifiedTime = lastModifiedTime;
+      logTimes();
+    }
+    notifyWatchedEntries();
+  }
+
+  /**
+   * Sets the last access time of the file to the given current time. Unlike changes to the other
+   * times, this isn't recorded in the file system's write-ahead log, if it has one, so that reads
+   * don't need to write to the log. Doesn't lock the file.
+   */
+  final void updateAccessTime(long now) {
+    if (lastAccessTime != now) {
+      lastAccessTime = now;
+    }
   }
 
-  /** Sets the last access time of the file to the current time. */
-  final void updateAccessTime() {
-    setLastAccessTime(System.currentTimeMillis());
+  /**
+   * Sets the last modified time of the file to the given current time. When the time is unchanged,
+   * as is common with a {@linkplain FileTimeSource#coarse coarse} time source, the file isn't
+   * locked and nothing is written to the write-ahead log, but watchers are still notified.
+   */
+  final void updateModifiedTime(long now) {
+    if (lastModifiedTime != now) {
+      setLastModifiedTime(now);
+    } else {
+      notifyWatchedEntries();
+    }
   }
 
-  /** Sets the last modified time of the file to the current time. */
-  final void updateModifiedTime() {
-    setLastModifiedTime(System.currentTimeMillis());
+  /** Notifies the entries in watched directories that link to this file that it was modified. */
+  private void notifyWatchedEntries() {
+    ImmutableList<DirectoryEntry> entries = watchedEntries;
+    if (entries != null) {
+      for (DirectoryEntry entry : entries) {
+        entry.directory().entryModified(entry);
+      }
+    }
   }
 
   /**
@@ -236,8 +322,24 @@ public abstract class File implements Serializable {
     return attributes.get(view, attribute);
   }
 
-  /** Sets the given attribute in the given view to the given value. */
+  /** Returns an immutable copy of the table of attributes for the file. */
+  final synchronized ImmutableTable<String, String, Object> attributes() {
+    return attributes == null
+        ? ImmutableTable.<String, String, Object>of()
+        : ImmutableTable.copyOf(attributes);
+  }
+
+  /**
+   * Sets the given attribute in the given view to the given value.
+   *
+   * @throws IllegalArgumentException if the file system is durable and the value is of a type
+   *     that can't be recorded in its write-ahead log
+   */
   public final synchronized void setAttribute(String view, String attribute, Object value) {
+    if (log != null) {
+      // logged first since it fails for values that can't be logged
+      log.attributeSet(this, view, attribute, value);
+    }
     if (attributes == null) {
       attributes = HashBasedTable.create();
     }
@@ -246,8 +348,8 @@ public abstract class File implements Serializable {
 
   /** Deletes the given attribute from the given view. */
   public final synchronized void deleteAttribute(String view, String attribute) {
-    if (attributes != null) {
-      attributes.remove(view, attribute);
+    if (attributes != null && attributes.remove(view, attribute) != null && log != null) {
+      log.attributeDeleted(this, view, attribute);
     }
   }
 
@@ -261,6 +363,14 @@ public abstract class File implements Serializable {
     this.creationTime = creationTime;
     this.lastModifiedTime = lastModifiedTime;
     this.lastAccessTime = lastAccessTime;
+    logTimes();
+  }
+
+  /** Records the file's times in the write-ahead log, if the file system is durable. */
+  private synchronized void logTimes() {
+    if (log != null) {
+      log.timesSet(this, creationTime, lastModifiedTime, lastAccessTime);
+    }
   }
 
   /** Copies the attributes from this file to the given file. */
@@ -274,6 +384,13 @@ public abstract class File implements Serializable {
       if (this.attributes == null) {
         this.attributes = HashBasedTable.create();
       }
+
+      if (log != null) {
+        for (Table.Cell<String, String, Object> cell : attributes.cellSet()) {
+          log.attributeSet(this, cell.getRowKey(), cell.getColumnKey(), cell.getValue());
+        }
+      }
+
       this.attributes.putAll(attributes);
     }
   }
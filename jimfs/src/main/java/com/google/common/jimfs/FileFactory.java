@@ -22,6 +22,7 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Supplier;
 import java.io.IOException;
 import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.Nullable;
 
 /**
  * Factory for creating new files and copying files. One piece of the file store implementation.
@@ -30,44 +31,92 @@ import java.util.concurrent.atomic.AtomicInteger;
  */
 final class FileFactory {
 
-  private final AtomicInteger idGenerator = new AtomicInteger();
+  private final AtomicInteger idGenerator;
 
-  private final HeapDisk disk;
+  private final Disk disk;
+
+  @Nullable private final WriteAheadLog log;
+
+  private final FileTimeSource timeSource;
 
   /** Creates a new file factory using the given disk for regular files. */
-  public FileFactory(HeapDisk disk) {
+  public FileFactory(Disk disk) {
+    this(disk, 0);
+  }
+
+  /**
+   * Creates a new file factory using the given disk for regular files and giving new files IDs
+   * starting at the given ID.
+   */
+  public FileFactory(Disk disk, int firstFileId) {
+    this(disk, firstFileId, null);
+  }
+
+  /**
+   * Creates a new file factory using the given disk for regular files, giving new files IDs
+   * starting at the given ID and recording the creation of files in the given write-ahead log, if
+   * any.
+   */
+  public FileFactory(Disk disk, int firstFileId, @Nullable WriteAheadLog log) {
+    this(disk, firstFileId, log, FileTimeSource.system());
+  }
+
+  /**
+   * Creates a new file factory using the given disk for regular files, giving new files IDs
+   * starting at the given ID, recording the creation of files in the given write-ahead log, if any,
+   * and getting the creation times of new files from the given time source.
+   */
+  public FileFactory(
+      Disk disk, int firstFileId, @Nullable WriteAheadLog log, FileTimeSource timeSource) {
     this.disk = checkNotNull(disk);
+    this.idGenerator = new AtomicInteger(firstFileId);
+    this.log = log;
+    this.timeSource = checkNotNull(timeSource);
   }
 
   private int nextFileId() {
     return idGenerator.getAndIncrement();
   }
 
+  /** Records the creation of the given new file in the write-ahead log, if any. */
+  private <F extends File> F created(F file) {
+    if (log != null) {
+      file.setLog(log);
+      log.created(file);
+    }
+    return file;
+  }
+
   /** Creates a new directory. */
   public Directory createDirectory() {
-    return Directory.create(nextFileId());
+    return created(Directory.create(nextFileId(), timeSource.now()));
   }
 
   /** Creates a new root directory with the given name. */
   public Directory createRootDirectory(Name name) {
-    return Directory.createRoot(nextFileId(), name);
+    Directory root = Directory.createRoot(nextFileId(), name, timeSource.now());
+    if (log != null) {
+      root.setLog(log);
+      log.rootCreated(root, name);
+    }
+    return root;
   }
 
   /** Creates a new regular file. */
   @VisibleForTesting
   RegularFile createRegularFile() {
-    return RegularFile.create(nextFileId(), disk);
+    return created(RegularFile.create(nextFileId(), disk, timeSource.now()));
   }
 
   /** Creates a new symbolic link referencing the given target path. */
   @VisibleForTesting
   SymbolicLink createSymbolicLink(JimfsPath target) {
-    return SymbolicLink.create(nextFileId(), target);
+    return created(SymbolicLink.create(nextFileId(), target, timeSource.now()));
   }
 
   /** Creates and returns a copy of the given file. */
   public File copyWithoutContent(File file) throws IOException {
-    return file.copyWithoutContent(nextFileId());
+    return created(file.copyWithoutContent(nextFileId(), timeSource.now()));
   }
 
   // suppliers to act as file creation callbacks
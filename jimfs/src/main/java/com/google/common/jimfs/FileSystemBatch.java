@@ -0,0 +1,243 @@
+/*
+ * Copyright 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.jimfs;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import java.io.IOException;
+import java.nio.file.CopyOption;
+import java.nio.file.FileSystem;
+import java.nio.file.Path;
+import java.nio.file.ProviderMismatchException;
+import java.util.ArrayList;
+import java.util.List;
+import javax.annotation.Nullable;
+
+/**
+ * A batch of file operations to apply to a Jimfs file system together. Batches are created with
+ * {@link Jimfs#newBatch(FileSystem)}; operations are added to a batch with methods such as {@link
+ * #createFile(Path)} and {@link #write(Path, byte[])}, then all applied in order with {@link
+ * #apply()}:
+ *
+ * <pre>
+ *   List&lt;FileSystemBatch.Result&gt; results =
+ *       Jimfs.newBatch(fileSystem)
+ *           .createDirectory(fileSystem.getPath("/dir"))
+ *           .write(fileSystem.getPath("/dir/a"), bytesOfA)
+ *           .write(fileSystem.getPath("/dir/b"), bytesOfB)
+ *           .apply();
+ * </pre>
+ *
+ * <p>Applying a batch acquires the file system's lock once for all the operations rather than once
+ * per operation, and looks up the directory containing each path only once for all the operations
+ * on files in that directory, which makes populating a file system with many files faster than
+ * with the equivalent calls to {@link java.nio.file.Files}. No other thread can observe the file
+ * system while a batch is being applied, but a batch is not a transaction: an operation that fails
+ * doesn't stop the operations after it or undo the ones before it. Each operation's outcome is
+ * reported by the {@link Result} at the same index in the list returned by {@code apply()}.
+ *
+ * <p>Relative paths are resolved against the file system's working directory. As with {@link
+ * java.nio.file.Files#delete(Path)} and {@link java.nio.file.Files#move(Path, Path,
+ * CopyOption...)}, deleting or moving a symbolic link deletes or moves the link itself, while
+ * writing to a symbolic link writes to the file it links to.
+ *
+ * <p>A batch is not thread safe. It may be applied more than once.
+ *
+ * @author Colin Decker
+ */
+public final class FileSystemBatch {
+
+  private final JimfsFileSystem fileSystem;
+  private final List<Operation> operations = new ArrayList<>();
+
+  FileSystemBatch(JimfsFileSystem fileSystem) {
+    this.fileSystem = checkNotNull(fileSystem);
+  }
+
+  /**
+   * Adds an operation that creates a new, empty regular file at the given path, failing with
+   * {@link java.nio.file.FileAlreadyExistsException} if a file already exists there.
+   *
+   * @throws ProviderMismatchException if the path isn't a path on this batch's file system
+   */
+  public FileSystemBatch createFile(Path path) {
+    return add(new Operation(Operation.Kind.CREATE_FILE, checkPath(path), null, null, null));
+  }
+
+  /**
+   * Adds an operation that creates a new directory at the given path, failing with {@link
+   * java.nio.file.FileAlreadyExistsException} if a file already exists there.
+   *
+   * @throws ProviderMismatchException if the path isn't a path on this batch's file system
+   */
+  public FileSystemBatch createDirectory(Path path) {
+    return add(new Operation(Operation.Kind.CREATE_DIRECTORY, checkPath(path), null, null, null));
+  }
+
+  /**
+   * Adds an operation that writes the given bytes to the regular file at the given path, like
+   * {@link java.nio.file.Files#write(Path, byte[], java.nio.file.OpenOption...)}: the file is
+   * created if it doesn't exist and truncated if it does. The array is not copied, so it must not
+   * be changed until the batch has been applied.
+   *
+   * @throws ProviderMismatchException if the path isn't a path on this batch's file system
+   */
+  public FileSystemBatch write(Path path, byte[] bytes) {
+    checkNotNull(bytes);
+    return add(new Operation(Operation.Kind.WRITE, checkPath(path), bytes, null, null));
+  }
+
+  /**
+   * Adds an operation that deletes the file at the given path, failing with {@link
+   * java.nio.file.NoSuchFileException} if there's no such file or with {@link
+   * java.nio.file.DirectoryNotEmptyException} if it's a directory that isn't empty.
+   *
+   * @throws ProviderMismatchException if the path isn't a path on this batch's file system
+   */
+  public FileSystemBatch delete(Path path) {
+    return add(new Operation(Operation.Kind.DELETE, checkPath(path), null, null, null));
+  }
+
+  /**
+   * Adds an operation that moves the file at the given source path to the given target path, like
+   * {@link java.nio.file.Files#move(Path, Path, CopyOption...)} with the given options.
+   *
+   * @throws ProviderMismatchException if either path isn't a path on this batch's file system
+   */
+  public FileSystemBatch move(Path source, Path target, CopyOption... options) {
+    return add(
+        new Operation(
+            Operation.Kind.MOVE,
+            checkPath(source),
+            null,
+            checkPath(target),
+            Options.getMoveOptions(options)));
+  }
+
+  /** Returns the number of operations in this batch. */
+  public int size() {
+    return operations.size();
+  }
+
+  /**
+   * Applies the operations in this batch, in the order they were added, and returns their results
+   * in the same order. An operation that fails with an {@link IOException} doesn't prevent the
+   * following operations from being applied.
+   *
+   * @throws java.nio.file.ClosedFileSystemException if the file system is closed
+   */
+  public ImmutableList<Result> apply() {
+    List<IOException> exceptions = fileSystem.getDefaultView().applyBatch(operations);
+    ImmutableList.Builder<Result> results = ImmutableList.builder();
+    for (int i = 0; i < operations.size(); i++) {
+      results.add(new Result(operations.get(i).path, exceptions.get(i)));
+    }
+    return results.build();
+  }
+
+  private FileSystemBatch add(Operation operation) {
+    operations.add(operation);
+    return this;
+  }
+
+  private JimfsPath checkPath(Path path) {
+    checkNotNull(path);
+    if (path instanceof JimfsPath && path.getFileSystem() == fileSystem) {
+      return (JimfsPath) path;
+    }
+    throw new ProviderMismatchException(
+        "path " + path + " is not associated with this batch's file system");
+  }
+
+  /** The result of applying one operation in a batch. */
+  public static final class Result {
+
+    private final Path path;
+    @Nullable private final IOException exception;
+
+    Result(Path path, @Nullable IOException exception) {
+      this.path = checkNotNull(path);
+      this.exception = exception;
+    }
+
+    /** Returns the path the operation was applied to; for a move, the source path. */
+    public Path path() {
+      return path;
+    }
+
+    /** Returns whether or not the operation succeeded. */
+    public boolean isSuccess() {
+      return exception == null;
+    }
+
+    /** Returns the exception the operation failed with, or null if it succeeded. */
+    @Nullable
+    public IOException exception() {
+      return exception;
+    }
+
+    @Override
+    public String toString() {
+      return MoreObjects.toStringHelper(this)
+          .add("path", path)
+          .add("exception", exception)
+          .omitNullValues()
+          .toString();
+    }
+  }
+
+  /** A single operation in a batch. */
+  static final class Operation {
+
+    /** The kinds of operation. */
+    enum Kind {
+      CREATE_FILE,
+      CREATE_DIRECTORY,
+      WRITE,
+      DELETE,
+      MOVE
+    }
+
+    final Kind kind;
+    final JimfsPath path;
+
+    /** The bytes to write, for a write. */
+    @Nullable final byte[] bytes;
+
+    /** The target path, for a move. */
+    @Nullable final JimfsPath target;
+
+    /** The options, for a move. */
+    @Nullable final ImmutableSet<CopyOption> options;
+
+    Operation(
+        Kind kind,
+        JimfsPath path,
+        @Nullable byte[] bytes,
+        @Nullable JimfsPath target,
+        @Nullable ImmutableSet<CopyOption> options) {
+      this.kind = kind;
+      this.path = path;
+      this.bytes = bytes;
+      this.target = target;
+      this.options = options;
+    }
+  }
+}
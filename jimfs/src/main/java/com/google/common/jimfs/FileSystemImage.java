@@ -0,0 +1,541 @@
+/*
+ * Copyright 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.jimfs;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Table;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.annotation.Nullable;
+
+/**
+ * A compact binary image of the files in a file system, written to and read from a file on the
+ * host file system. Images are written from and read into {@linkplain FileSystemSnapshot
+ * snapshots}.
+ *
+ * <p>An image consists of a fixed-size header, a metadata section and a data section:
+ *
+ * <ul>
+ *   <li>The metadata section starts with the <i>root table</i>, which gives the names of the root
+ *       directories. It's followed by the <i>file table</i>, which has an entry for each file
+ *       giving its type, ID, times and attributes, plus the number of entries in a directory, the
+ *       size and data ranges of a regular file or the target of a symbolic link. A regular file's
+ *       data ranges are the parts of it that aren't holes; a file without holes has a single range
+ *       covering all of its content. The root directories come first, in root table order, and
+ *       other files are referred to by their index in the file table. Last come the <i>entry
+ *       tables</i> of the directories, in file table order, each giving the name and file of each
+ *       entry other than "." and "..".
+ *   <li>The data section starts at a page-aligned offset and contains the data ranges of the
+ *       regular files, in file table order, stored contiguously. The holes of sparse files aren't
+ *       stored.
+ * </ul>
+ *
+ * <p>Reading an image maps it into memory; the content of each regular file is copied from the
+ * mapped data section directly into the file's blocks, leaving holes where the file had them.
+ * Alternatively, an image can be read lazily, in which case only the metadata is read and each
+ * regular file without holes loads its content from the data section when it's first needed (see
+ * {@link ContentSource}). Sparse files are always read up front.
+ *
+ * <p>Version 1 images, which stored the full content of every regular file, can still be read.
+ *
+ * @author Colin Decker
+ */
+final class FileSystemImage {
+
+  private static final int MAGIC = 0x4a494d47; // "JIMG"
+  private static final int VERSION = 2;
+
+  /** The version of images written before the data ranges of regular files were recorded. */
+  private static final int DENSE_VERSION = 1;
+
+  /** magic, version, file count, next file ID, metadata length, data offset, data length */
+  private static final int HEADER_LENGTH = 4 + 4 + 4 + 4 + 8 + 8 + 8;
+
+  /** The alignment of the data section. */
+  private static final int DATA_ALIGNMENT = 4096;
+
+  /** The metadata encoded so far is written out whenever it reaches this size. */
+  private static final int FLUSH_THRESHOLD = 1024 * 1024;
+
+  /** The maximum size of the mapped windows of the data section that content is copied from. */
+  private static final int MAX_WINDOW_SIZE = 1 << 30;
+
+  // file types
+
+  private static final byte DIRECTORY = 0;
+  private static final byte REGULAR_FILE = 1;
+  private static final byte SYMBOLIC_LINK = 2;
+
+  private final ImmutableMap<Name, Directory> roots;
+  private final ImmutableList<RegularFile> regularFiles;
+  private final int nextFileId;
+
+  private FileSystemImage(
+      ImmutableMap<Name, Directory> roots,
+      ImmutableList<RegularFile> regularFiles,
+      int nextFileId) {
+    this.roots = roots;
+    this.regularFiles = regularFiles;
+    this.nextFileId = nextFileId;
+  }
+
+  /** Returns the root directories read from the image. */
+  ImmutableMap<Name, Directory> roots() {
+    return roots;
+  }
+
+  /** Returns the regular files read from the image. */
+  ImmutableList<RegularFile> regularFiles() {
+    return regularFiles;
+  }
+
+  /** Returns the ID to give the next file created after the files in the image. */
+  int nextFileId() {
+    return nextFileId;
+  }
+
+  /**
+   * Writes an image of the files in the trees with the given roots to the given file, replacing
+   * it if it exists. The files must not change while the image is written.
+   *
+   * @throws IllegalArgumentException if a file has an attribute value that can't be encoded
+   */
+  static void write(Map<Name, Directory> roots, int nextFileId, Path image) throws IOException {
+    // index the files breadth-first, roots first; hard links to a file share its index
+    List<File> files = new ArrayList<>();
+    Map<File, Integer> indexes = new IdentityHashMap<>();
+    Map<File, long[]> dataRanges = new IdentityHashMap<>();
+    for (Directory root : roots.values()) {
+      indexes.put(root, files.size());
+      files.add(root);
+    }
+    for (int i = 0; i < files.size(); i++) {
+      File file = files.get(i);
+      if (file.isDirectory()) {
+        for (DirectoryEntry entry : (Directory) file) {
+          if (!isReserved(entry.name()) && !indexes.containsKey(entry.file())) {
+            indexes.put(entry.file(), files.size());
+            files.add(entry.file());
+          }
+        }
+      }
+    }
+
+    try (FileChannel channel = FileChannel.open(image, CREATE, TRUNCATE_EXISTING, WRITE)) {
+      channel.position(HEADER_LENGTH);
+      ByteEncoder encoder = new ByteEncoder();
+
+      encoder.putInt(roots.size());
+      for (Name name : roots.keySet()) {
+        encoder.putName(name);
+      }
+
+      long metadataLength = 0;
+      long dataLength = 0;
+      for (File file : files) {
+        long[] ranges = null;
+        if (file.isRegularFile()) {
+          ranges = ((RegularFile) file).dataRanges();
+          dataRanges.put(file, ranges);
+          for (int i = 0; i < ranges.length; i += 2) {
+            dataLength += ranges[i + 1] - ranges[i];
+          }
+        }
+        putFile(encoder, file, ranges);
+        metadataLength += flushIfFull(encoder, channel);
+      }
+
+      for (File file : files) {
+        if (file.isDirectory()) {
+          for (DirectoryEntry entry : (Directory) file) {
+            if (!isReserved(entry.name())) {
+              encoder.putName(entry.name());
+              encoder.putInt(indexes.get(entry.file()));
+              metadataLength += flushIfFull(encoder, channel);
+            }
+          }
+        }
+      }
+      metadataLength += flush(encoder, channel);
+
+      long dataOffset = align(HEADER_LENGTH + metadataLength);
+      channel.position(dataOffset);
+      for (File file : files) {
+        if (file.isRegularFile()) {
+          RegularFile regularFile = (RegularFile) file;
+          long[] ranges = dataRanges.get(file);
+          for (int i = 0; i < ranges.length; i += 2) {
+            long pos = ranges[i];
+            while (pos < ranges[i + 1]) {
+              pos += regularFile.transferTo(pos, ranges[i + 1] - pos, channel);
+            }
+          }
+        }
+      }
+
+      ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+      header
+          .putInt(MAGIC)
+          .putInt(VERSION)
+          .putInt(files.size())
+          .putInt(nextFileId)
+          .putLong(metadataLength)
+          .putLong(dataOffset)
+          .putLong(dataLength)
+          .flip();
+      while (header.hasRemaining()) {
+        channel.write(header, header.position());
+      }
+    }
+  }
+
+  private static void putFile(ByteEncoder encoder, File file, @Nullable long[] dataRanges)
+      throws IOException {
+    if (file.isDirectory()) {
+      encoder.putByte(DIRECTORY);
+      encoder.putInt(file.id());
+      int entryCount = 0;
+      for (DirectoryEntry entry : (Directory) file) {
+        if (!isReserved(entry.name())) {
+          entryCount++;
+        }
+      }
+      encoder.putInt(entryCount);
+    } else if (file.isRegularFile()) {
+      encoder.putByte(REGULAR_FILE);
+      encoder.putInt(file.id());
+      encoder.putLong(((RegularFile) file).size());
+      encoder.putInt(dataRanges.length / 2);
+      for (int i = 0; i < dataRanges.length; i += 2) {
+        encoder.putLong(dataRanges[i]);
+        encoder.putLong(dataRanges[i + 1] - dataRanges[i]);
+      }
+    } else {
+      encoder.putByte(SYMBOLIC_LINK);
+      encoder.putInt(file.id());
+      encoder.putString(((SymbolicLink) file).target().toString());
+    }
+
+    encoder.putLong(file.getCreationTime());
+    encoder.putLong(file.getLastModifiedTime());
+    encoder.putLong(file.getLastAccessTime());
+
+    Table<String, String, Object> attributes = file.attributes();
+    encoder.putInt(attributes.size());
+    for (Table.Cell<String, String, Object> cell : attributes.cellSet()) {
+      encoder.putString(cell.getRowKey());
+      encoder.putString(cell.getColumnKey());
+      encoder.putAttributeValue(cell.getRowKey(), cell.getColumnKey(), cell.getValue());
+    }
+  }
+
+  private static boolean isReserved(Name name) {
+    // "." and ".." are canonicalized, so identity can be used
+    return name == Name.SELF || name == Name.PARENT;
+  }
+
+  private static int flushIfFull(ByteEncoder encoder, FileChannel channel) throws IOException {
+    return encoder.length() >= FLUSH_THRESHOLD ? flush(encoder, channel) : 0;
+  }
+
+  /** Writes the bytes in the given encoder to the given channel and clears the encoder. */
+  private static int flush(ByteEncoder encoder, FileChannel channel) throws IOException {
+    ByteBuffer buf = encoder.toByteBuffer();
+    int length = buf.remaining();
+    while (buf.hasRemaining()) {
+      channel.write(buf);
+    }
+    encoder.setLength(0);
+    return length;
+  }
+
+  private static long align(long offset) {
+    return (offset + DATA_ALIGNMENT - 1) / DATA_ALIGNMENT * DATA_ALIGNMENT;
+  }
+
+  /**
+   * Reads the image in the given file, creating its regular files on the given disk and the targets
+   * of its symbolic links with the given path service. If {@code lazy} is true, the content of the
+   * regular files isn't read until each file first needs it, so the image must not be changed
+   * while the files may still need their content.
+   *
+   * @throws IOException if the file isn't a valid image or if the disk doesn't have enough space
+   *     for the content of the regular files in the image
+   */
+  static FileSystemImage read(Path image, PathService pathService, Disk disk, boolean lazy)
+      throws IOException {
+    try (FileChannel channel = FileChannel.open(image, READ)) {
+      ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+      while (header.hasRemaining() && channel.read(header) != -1) {}
+      header.flip();
+      if (header.remaining() < HEADER_LENGTH || header.getInt() != MAGIC) {
+        throw new IOException(image + " is not a Jimfs file system image");
+      }
+      int version = header.getInt();
+      if (version != VERSION && version != DENSE_VERSION) {
+        throw new IOException(image + " has unsupported image version " + version);
+      }
+      int fileCount = header.getInt();
+      int nextFileId = header.getInt();
+      long metadataLength = header.getLong();
+      long dataOffset = header.getLong();
+      long dataLength = header.getLong();
+      if (fileCount < 0
+          || fileCount > metadataLength
+          || metadataLength > Integer.MAX_VALUE
+          || HEADER_LENGTH + metadataLength > channel.size()
+          || dataOffset < HEADER_LENGTH + metadataLength
+          || dataLength < 0
+          || (dataLength > 0 && dataOffset + dataLength > channel.size())) {
+        throw new IOException(image + " is truncated or corrupt");
+      }
+
+      MappedByteBuffer metadata = channel.map(MapMode.READ_ONLY, HEADER_LENGTH, metadataLength);
+      ImmutableMap.Builder<Name, Directory> roots = ImmutableMap.builder();
+      List<RegularFile> regularFiles = new ArrayList<>();
+      try {
+        int rootCount = metadata.getInt();
+        if (rootCount < 0 || rootCount > fileCount) {
+          throw new IOException(image + " is truncated or corrupt");
+        }
+        Name[] rootNames = new Name[rootCount];
+        for (int i = 0; i < rootNames.length; i++) {
+          rootNames[i] = ByteDecoder.getName(metadata);
+        }
+
+        File[] files = new File[fileCount];
+        int[] entryCounts = new int[fileCount];
+        long[] sizes = new long[fileCount];
+        long[][] dataRanges = new long[fileCount][];
+        for (int i = 0; i < fileCount; i++) {
+          Name rootName = i < rootNames.length ? rootNames[i] : null;
+          files[i] =
+              readFile(
+                  metadata,
+                  version,
+                  rootName,
+                  pathService,
+                  disk,
+                  entryCounts,
+                  sizes,
+                  dataRanges,
+                  i);
+          if (files[i].isRegularFile()) {
+            regularFiles.add((RegularFile) files[i]);
+          }
+        }
+
+        for (int i = 0; i < rootNames.length; i++) {
+          roots.put(rootNames[i], (Directory) files[i]);
+        }
+
+        for (int i = 0; i < fileCount; i++) {
+          for (int j = entryCounts[i]; j > 0; j--) {
+            Name name = ByteDecoder.getName(metadata);
+            ((Directory) files[i]).link(name, files[metadata.getInt()]);
+          }
+        }
+
+        long totalLength = 0;
+        for (long[] ranges : dataRanges) {
+          if (ranges != null) {
+            for (int i = 0; i < ranges.length; i += 2) {
+              totalLength += ranges[i + 1] - ranges[i];
+            }
+          }
+        }
+        if (totalLength != dataLength) {
+          throw new IOException(image + " is truncated or corrupt");
+        }
+        readContent(channel, lazy ? image : null, dataOffset, files, sizes, dataRanges);
+      } catch (BufferUnderflowException
+          | IndexOutOfBoundsException
+          | NegativeArraySizeException
+          | ClassCastException
+          | IllegalArgumentException e) {
+        deleteContents(regularFiles);
+        throw new IOException(image + " is truncated or corrupt", e);
+      } catch (IOException | RuntimeException | Error e) {
+        deleteContents(regularFiles);
+        throw e;
+      }
+
+      return new FileSystemImage(
+          roots.build(), ImmutableList.copyOf(regularFiles), nextFileId);
+    }
+  }
+
+  /**
+   * Reads the entry for the file at the given index in the file table of an image of the given
+   * version, storing the number of entries in a directory or the size and data ranges of a regular
+   * file at that index in the given arrays. If the given root name isn't null, the file must be a
+   * root directory with that name.
+   */
+  private static File readFile(
+      ByteBuffer metadata,
+      int version,
+      @Nullable Name rootName,
+      PathService pathService,
+      Disk disk,
+      int[] entryCounts,
+      long[] sizes,
+      long[][] dataRanges,
+      int index)
+      throws IOException {
+    byte type = metadata.get();
+    int id = metadata.getInt();
+    if (rootName != null && type != DIRECTORY) {
+      throw new IOException("root " + rootName + " in image is not a directory");
+    }
+
+    File file;
+    switch (type) {
+      case DIRECTORY:
+        file = rootName != null ? Directory.createRoot(id, rootName) : Directory.create(id);
+        entryCounts[index] = metadata.getInt();
+        break;
+      case REGULAR_FILE:
+        file = RegularFile.create(id, disk);
+        sizes[index] = metadata.getLong();
+        dataRanges[index] =
+            version == DENSE_VERSION
+                ? denseRanges(sizes[index])
+                : readDataRanges(metadata, sizes[index]);
+        break;
+      case SYMBOLIC_LINK:
+        file = SymbolicLink.create(id, pathService.parsePath(ByteDecoder.getString(metadata)));
+        break;
+      default:
+        throw new IOException("unknown file type in image: " + type);
+    }
+
+    file.setCreationTime(metadata.getLong());
+    file.setLastModifiedTime(metadata.getLong());
+    file.setLastAccessTime(metadata.getLong());
+    for (int i = metadata.getInt(); i > 0; i--) {
+      String view = ByteDecoder.getString(metadata);
+      String attribute = ByteDecoder.getString(metadata);
+      file.setAttribute(view, attribute, ByteDecoder.getAttributeValue(metadata));
+    }
+    return file;
+  }
+
+  /** Returns the data ranges of a file of the given size that has no holes. */
+  private static long[] denseRanges(long size) {
+    return size == 0 ? new long[0] : new long[] {0, size};
+  }
+
+  /**
+   * Reads the data ranges of a regular file of the given size, checking that they're in order and
+   * within the file.
+   */
+  private static long[] readDataRanges(ByteBuffer metadata, long size) throws IOException {
+    int count = metadata.getInt();
+    if (count < 0 || count > metadata.remaining() / 16) {
+      throw new IOException("invalid data range count in image: " + count);
+    }
+    long[] ranges = new long[count * 2];
+    long end = 0;
+    for (int i = 0; i < ranges.length; i += 2) {
+      long start = metadata.getLong();
+      long length = metadata.getLong();
+      if (start < end || length <= 0 || length > size - start) {
+        throw new IOException("invalid data range in image");
+      }
+      ranges[i] = start;
+      ranges[i + 1] = end = start + length;
+    }
+    return ranges;
+  }
+
+  /**
+   * Reads the content of the regular files from the data section starting at the given offset,
+   * mapping windows of the data section and copying each data range directly into the file's blocks
+   * at its position in the file. The rest of each file is left as holes. If {@code lazyImage} isn't
+   * null, the content of each file without holes is instead set to be loaded from its place in that
+   * image when first needed.
+   */
+  private static void readContent(
+      FileChannel channel,
+      @Nullable Path lazyImage,
+      long dataOffset,
+      File[] files,
+      long[] sizes,
+      long[][] dataRanges)
+      throws IOException {
+    long windowStart = dataOffset;
+    MappedByteBuffer window = null;
+    long pos = dataOffset;
+    for (int i = 0; i < files.length; i++) {
+      long size = sizes[i];
+      if (size == 0) {
+        continue;
+      }
+
+      RegularFile file = (RegularFile) files[i];
+      long[] ranges = dataRanges[i];
+      if (lazyImage != null && ranges.length == 2 && ranges[0] == 0 && ranges[1] == size) {
+        file.setLazyContent(new ContentSource(lazyImage, pos), size);
+        pos += size;
+        continue;
+      }
+
+      for (int j = 0; j < ranges.length; j += 2) {
+        long written = ranges[j];
+        while (written < ranges[j + 1]) {
+          if (window == null || pos >= windowStart + window.capacity()) {
+            windowStart = pos;
+            window =
+                channel.map(
+                    MapMode.READ_ONLY,
+                    windowStart,
+                    Math.min(MAX_WINDOW_SIZE, channel.size() - windowStart));
+          }
+
+          int offset = (int) (pos - windowStart);
+          int len = (int) Math.min(ranges[j + 1] - written, window.capacity() - offset);
+          ByteBuffer slice = window.duplicate();
+          slice.position(offset).limit(offset + len);
+          written += file.write(written, slice);
+          pos += len;
+        }
+      }
+      file.extend(size);
+    }
+  }
+
+  private static void deleteContents(List<RegularFile> files) {
+    for (RegularFile file : files) {
+      file.deleteContents();
+    }
+  }
+}
@@ -0,0 +1,493 @@
+/*
+ * Copyright 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.common.jimfs;
+
+import static com.google.common.base.Preconditions.checkState;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.FileSystem;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import javax.annotation.Nullable;
+
+/**
+ * A point-in-time copy of all the files in a Jimfs file system, from which any number of new,
+ * independent file systems can be {@linkplain #fork() forked}. Snapshots are taken with {@link
+ * Jimfs#snapshot(FileSystem)}.
+ *
+ * <p>A snapshot can also be {@linkplain #save(Path) saved} as a compact binary image in a file on
+ * another file system, and loaded back with {@link Jimfs#loadSnapshot(Path, Configuration)}. This
+ * allows large sets of files, such as test fixtures, to be built once and quickly loaded as needed.
+ * A snapshot can also be taken of a directory on the host file system with {@link
+ * Jimfs#snapshot(Path, Configuration)}.
+ *
+ * <p>Snapshots {@linkplain Jimfs#loadSnapshotLazily loaded lazily} from an image and snapshots of
+ * host directories don't read the content of regular files up front: each file's content is read
+ * from the host file system when the file is first read or written, in the snapshot or in a fork.
+ * Until then the file takes no space on the disk, and its size and attributes are already those of
+ * the file it was created from. The host files must not be changed while the content of the files
+ * may still be needed.
+ *
+ * <p>Neither taking a snapshot nor forking one copies the content of regular files: the original
+ * file system, the snapshot and each fork share the blocks of a file until one of them writes to a
+ * block, at which point only that block is copied. Directories, symbolic links and file attributes
+ * are copied, so both operations take time proportional to the number of files, not the amount of
+ * data stored in them.
+ *
+ * <p>A fork has the same configuration as the original file system and the same files, with the
+ * same {@linkplain java.nio.file.attribute.BasicFileAttributes#fileKey() file keys}, as the
+ * snapshot. Shared blocks stay on the original file system's disk, so the blocks copied when a
+ * fork writes to a file it started with count toward the original file system's {@linkplain
+ * Configuration.Builder#setMaxSize maximum size}. Files created in a fork are stored on the fork's
+ * own disk.
+ *
+ * <p>A snapshot keeps the blocks it shares from being freed, so it should be {@linkplain #close()
+ * closed} when no more forks are needed. Closing a snapshot doesn't affect the file systems that
+ * were forked from it.
+ *
+ * @author Colin Decker
+ */
+public final class FileSystemSnapshot implements Closeable {
+
+  private final Configuration config;
+  private final ImmutableMap<Name, Directory> roots;
+  private final ImmutableList<RegularFile> regularFiles;
+  private final int nextFileId;
+
+  private boolean closed;
+
+  private FileSystemSnapshot(
+      Configuration config,
+      ImmutableMap<Name, Directory> roots,
+      ImmutableList<RegularFile> regularFiles,
+      int nextFileId) {
+    this.config = config;
+    this.roots = roots;
+    this.regularFiles = regularFiles;
+    this.nextFileId = nextFileId;
+  }
+
+  /**
+   * Takes a snapshot of the given file system. The file system's tree is locked for writing while
+   * it's copied, so the snapshot reflects a single point in time for the tree; the content of each
+   * regular file is that of the file when it was copied.
+   *
+   * @throws IOException if a file's content can't be shared and there isn't enough space to copy it
+   */
+  static FileSystemSnapshot create(JimfsFileSystem fileSystem) throws IOException {
+    JimfsFileStore store = fileSystem.getFileStore();
+    store.state().checkOpen();
+
+    TreeCopier copier = new TreeCopier(null);
+    ImmutableMap.Builder<Name, Directory> roots = ImmutableMap.builder();
+    store.writeLock().lock();
+    try {
+      for (Name name : store.getRootDirectoryNames()) {
+        roots.put(name, copier.copyTree(store.getRoot(name)));
+      }
+    } catch (IOException e) {
+      copier.deleteContents();
+      throw e;
+    } finally {
+      store.writeLock().unlock();
+    }
+
+    return new FileSystemSnapshot(
+        fileSystem.configuration(),
+        roots.build(),
+        copier.regularFiles.build(),
+        copier.nextFileId());
+  }
+
+  /**
+   * Loads a snapshot from the image in the given file, storing the content of its regular files on
+   * a new disk created from the given configuration. If {@code lazy} is true, the content of each
+   * regular file is only read from the image when it's first needed.
+   */
+  static FileSystemSnapshot load(Path image, Configuration config, boolean lazy)
+      throws IOException {
+    FileSystemImage loaded =
+        FileSystemImage.read(
+            lazy ? image.toAbsolutePath() : image,
+            new PathService(config),
+            config.diskConfig.newDisk(config),
+            lazy);
+    return new FileSystemSnapshot(
+        config, loaded.roots(), loaded.regularFiles(), loaded.nextFileId());
+  }
+
+  /**
+   * Creates a snapshot of the files in the given directory on the host file system, which become
+   * the files in the working directory of the given configuration. The content of the regular files
+   * is read from the host files when it's first needed.
+   */
+  static FileSystemSnapshot copyOf(Path directory, Configuration config) throws IOException {
+    HostDirectoryCopier copier = new HostDirectoryCopier(config);
+    ImmutableMap<Name, Directory> roots = copier.copy(directory.toAbsolutePath());
+    return new FileSystemSnapshot(
+        config, roots, copier.regularFiles.build(), copier.nextFileId);
+  }
+
+  /** Returns the configuration of the file system this snapshot was taken from. */
+  Configuration configuration() {
+    return config;
+  }
+
+  /** Returns the ID to give the first new file created in a fork of this snapshot. */
+  int nextFileId() {
+    return nextFileId;
+  }
+
+  /**
+   * Returns new copies of the root directories of this snapshot, with copies of all the files in
+   * them. Symbolic links in the copies have paths from the given path service.
+   */
+  synchronized Map<Name, Directory> copyRoots(PathService pathService) throws IOException {
+    checkState(!closed, "snapshot is closed");
+
+    TreeCopier copier = new TreeCopier(pathService);
+    Map<Name, Directory> copies = new HashMap<>();
+    try {
+      for (Map.Entry<Name, Directory> entry : roots.entrySet()) {
+        copies.put(entry.getKey(), copier.copyTree(entry.getValue()));
+      }
+    } catch (IOException e) {
+      copier.deleteContents();
+      throw e;
+    }
+    return copies;
+  }
+
+  /**
+   * Creates a new in-memory file system that starts with copies of the files in this snapshot.
+   * Changes to the new file system don't affect this snapshot or any other file system.
+   *
+   * @throws IllegalStateException if this snapshot has been closed
+   */
+  public FileSystem fork() {
+    return Jimfs.newFileSystem(this);
+  }
+
+  /**
+   * Creates a new in-memory file system with the given name that starts with copies of the files in
+   * this snapshot. Changes to the new file system don't affect this snapshot or any other file
+   * system.
+   *
+   * <p>The returned file system uses the given name as the host part of its URI and the URIs of
+   * paths in the file system, as with {@link Jimfs#newFileSystem(String)}.
+   *
+   * @throws IllegalStateException if this snapshot has been closed
+   */
+  public FileSystem fork(String name) {
+    return Jimfs.newFileSystem(name, this);
+  }
+
+  /**
+   * Saves an image of the files in this snapshot to the given file, replacing the file if it
+   * exists. The image contains the files' content, attributes and file keys, but not the
+   * configuration of the file system; see {@link Jimfs#loadSnapshot(Path, Configuration)}.
+   *
+   * @throws IllegalStateException if this snapshot has been closed
+   * @throws IllegalArgumentException if a file has an attribute value, set through a custom
+   *     {@link AttributeProvider}, that is neither of a type used by the built-in attribute views
+   *     nor a string or boxed primitive
+   * @throws IOException if writing the file fails
+   */
+  public synchronized void save(Path image) throws IOException {
+    checkState(!closed, "snapshot is closed");
+    FileSystemImage.write(roots, nextFileId, image);
+  }
+
+  /**
+   * Closes this snapshot, releasing the blocks it shares with other file systems. Does nothing if
+   * the snapshot is already closed.
+   */
+  @Override
+  public synchronized void close() {
+    if (!closed) {
+      closed = true;
+      for (RegularFile file : regularFiles) {
+        file.deleteContents();
+      }
+    }
+  }
+
+  /**
+   * Copies a directory tree on the host file system into a new tree whose root has a path to the
+   * configured working directory. Regular files get their content lazily from the host files;
+   * symbolic links keep their targets as they are, and other kinds of files are skipped.
+   *
+   * <p>Files get the initial attributes of the configuration, plus the times and (when both the
+   * host and the configuration support them) the POSIX permissions of the host files. Hard links
+   * on the host are copied as separate files.
+   */
+  private static final class HostDirectoryCopier extends SimpleFileVisitor<Path> {
+
+    private final Configuration config;
+    private final PathService pathService;
+    private final AttributeService attributeService;
+    private final Disk disk;
+    private final boolean copyPermissions;
+
+    /** The directory each directory being visited is copied to, innermost first. */
+    private final Deque<Directory> directories = new ArrayDeque<>();
+
+    private final ImmutableList.Builder<RegularFile> regularFiles = ImmutableList.builder();
+    private int nextFileId;
+
+    @Nullable private Path start;
+
+    HostDirectoryCopier(Configuration config) {
+      this.config = config;
+      this.pathService = new PathService(config);
+      this.attributeService = new AttributeService(config);
+      this.disk = config.diskConfig.newDisk(config);
+      this.copyPermissions = attributeService.supportedFileAttributeViews().contains("posix");
+    }
+
+    /**
+     * Copies the given host directory, returning the root of the copy. The working directory
+     * itself gets the attributes of the host directory.
+     */
+    ImmutableMap<Name, Directory> copy(Path directory) throws IOException {
+      JimfsPath workingDirectory = pathService.parsePath(config.workingDirectory);
+      Directory root = Directory.createRoot(nextFileId++, workingDirectory.root());
+      attributeService.setInitialAttributes(root);
+
+      Directory dir = root;
+      for (Name name : workingDirectory.names()) {
+        Directory child = Directory.create(nextFileId++);
+        attributeService.setInitialAttributes(child);
+        dir.link(name, child);
+        dir = child;
+      }
+
+      start = directory;
+      directories.push(dir);
+      try {
+        Files.walkFileTree(directory, this);
+      } catch (IOException | RuntimeException e) {
+        for (RegularFile file : regularFiles.build()) {
+          file.deleteContents();
+        }
+        throw e;
+      }
+      return ImmutableMap.of(workingDirectory.root(), root);
+    }
+
+    @Override
+    public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs)
+        throws IOException {
+      if (dir.equals(start)) {
+        setAttributes(directories.peek(), attrs);
+      } else {
+        Directory copy = Directory.create(nextFileId++);
+        link(dir, copy, attrs);
+        directories.push(copy);
+      }
+      return FileVisitResult.CONTINUE;
+    }
+
+    @Override
+    public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+      File copy;
+      if (attrs.isRegularFile()) {
+        RegularFile regularFile = RegularFile.create(nextFileId++, disk);
+        regularFile.setLazyContent(new ContentSource(file, 0), attrs.size());
+        regularFiles.add(regularFile);
+        copy = regularFile;
+      } else if (attrs.isSymbolicLink()) {
+        JimfsPath target = parse(file, Files.readSymbolicLink(file).toString());
+        copy = SymbolicLink.create(nextFileId++, target);
+      } else {
+        return FileVisitResult.CONTINUE;
+      }
+      link(file, copy, attrs);
+      return FileVisitResult.CONTINUE;
+    }
+
+    @Override
+    public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+      if (exc != null) {
+        throw exc;
+      }
+      directories.pop();
+      return FileVisitResult.CONTINUE;
+    }
+
+    /** Links the copy of the given host file into the copy of its parent directory. */
+    private void link(Path file, File copy, BasicFileAttributes attrs) throws IOException {
+      JimfsPath path = parse(file, file.getFileName().toString());
+      if (path.isAbsolute() || path.getNameCount() != 1) {
+        throw new IOException("name of host file " + file + " is not a single name in Jimfs");
+      }
+
+      Name name = path.names().get(0);
+      Directory parent = directories.peek();
+      if (parent.get(name) != null) {
+        throw new IOException(
+            "name of host file " + file + " is equal to the name of another file in Jimfs");
+      }
+
+      setAttributes(copy, attrs);
+      parent.link(name, copy);
+    }
+
+    private JimfsPath parse(Path file, String path) throws IOException {
+      try {
+        return pathService.parsePath(path);
+      } catch (InvalidPathException e) {
+        throw new IOException("host file " + file + " can't be copied to Jimfs", e);
+      }
+    }
+
+    private void setAttributes(File copy, BasicFileAttributes attrs) {
+      if (copyPermissions && !attrs.isSymbolicLink() && attrs instanceof PosixFileAttributes) {
+        Set<PosixFilePermission> permissions = ((PosixFileAttributes) attrs).permissions();
+        attributeService.setInitialAttributes(
+            copy, PosixFilePermissions.asFileAttribute(permissions));
+      } else {
+        attributeService.setInitialAttributes(copy);
+      }
+
+      copy.setCreationTime(attrs.creationTime().toMillis());
+      copy.setLastModifiedTime(attrs.lastModifiedTime().toMillis());
+      copy.setLastAccessTime(attrs.lastAccessTime().toMillis());
+    }
+  }
+
+  /**
+   * Copies file trees, sharing the content of regular files with the copies. Also used by {@link
+   * WriteAheadLog} to take the copy of the tree it writes a checkpoint from.
+   */
+  static final class TreeCopier {
+
+    /** The path service to create symbolic link targets with, or null to keep the same targets. */
+    @Nullable private final PathService pathService;
+
+    /** Copies of the regular files copied so far, for copying hard links to the same file. */
+    private final Map<File, RegularFile> copies = new IdentityHashMap<>();
+
+    private final ImmutableList.Builder<RegularFile> regularFiles = ImmutableList.builder();
+    private int maxFileId = -1;
+
+    TreeCopier(@Nullable PathService pathService) {
+      this.pathService = pathService;
+    }
+
+    /** Copies the given root directory and everything in it. */
+    Directory copyTree(Directory root) throws IOException {
+      Directory rootCopy = Directory.createRoot(root.id(), root.entryInParent().name());
+      copyAttributes(root, rootCopy);
+
+      Deque<Directory> sources = new ArrayDeque<>();
+      Deque<Directory> targets = new ArrayDeque<>();
+      sources.push(root);
+      targets.push(rootCopy);
+      while (!sources.isEmpty()) {
+        Directory source = sources.pop();
+        Directory target = targets.pop();
+        for (DirectoryEntry entry : source) {
+          Name name = entry.name();
+          // "." and ".." are canonicalized, so identity can be used
+          if (name == Name.SELF || name == Name.PARENT) {
+            continue;
+          }
+
+          File file = entry.file();
+          File copy = copy(file);
+          target.link(name, copy);
+          if (file.isDirectory()) {
+            sources.push((Directory) file);
+            targets.push((Directory) copy);
+          }
+        }
+      }
+      return rootCopy;
+    }
+
+    private File copy(File file) throws IOException {
+      File copy;
+      if (file.isDirectory()) {
+        copy = Directory.create(file.id());
+      } else if (file.isSymbolicLink()) {
+        JimfsPath target = ((SymbolicLink) file).target();
+        if (pathService != null) {
+          target = pathService.createPath(target.root(), target.names());
+        }
+        copy = SymbolicLink.create(file.id(), target);
+      } else {
+        RegularFile existing = copies.get(file);
+        if (existing != null) {
+          return existing;
+        }
+        copy = copyRegularFile((RegularFile) file);
+      }
+
+      copyAttributes(file, copy);
+      return copy;
+    }
+
+    private RegularFile copyRegularFile(RegularFile file) throws IOException {
+      file.readLock().lock();
+      try {
+        RegularFile copy = file.copyWithoutContent(file.id(), file.getCreationTime());
+        file.copyContentTo(copy);
+        copies.put(file, copy);
+        regularFiles.add(copy);
+        return copy;
+      } finally {
+        file.readLock().unlock();
+      }
+    }
+
+    private void copyAttributes(File file, File copy) {
+      file.copyAttributes(copy);
+      maxFileId = Math.max(maxFileId, file.id());
+    }
+
+    /** Returns the ID to give the first file created after the files copied so far. */
+    int nextFileId() {
+      return maxFileId + 1;
+    }
+
+    /**
+     * Deletes the contents of the regular files copied so far, after a failed copy or once the
+     * copies are no longer needed.
+     */
+    void deleteContents() {
+      for (RegularFile copy : regularFiles.build()) {
+        copy.deleteContents();
+      }
+    }
+  }
+}
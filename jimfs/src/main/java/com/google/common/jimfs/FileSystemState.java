@@ -39,12 +39,25 @@ final class FileSystemState implements Closeable {
   private final Set<Closeable> resources = Sets.newConcurrentHashSet();
   private final Runnable onClose;
 
+  private final FileTimeSource timeSource;
+  private final boolean updateAccessTimes;
+
   private final AtomicBoolean open = new AtomicBoolean(true);
 
   /** Count of resources currently in the process of being registered. */
   private final AtomicInteger registering = new AtomicInteger();
 
   FileSystemState(Runnable onClose) {
+    this(FileTimeSource.system(), true, onClose);
+  }
+
+  /**
+   * Creates a state object for a file system that gets file times from the given source and, if
+   * {@code updateAccessTimes} is false, never updates the last access times of files.
+   */
+  FileSystemState(FileTimeSource timeSource, boolean updateAccessTimes, Runnable onClose) {
+    this.timeSource = checkNotNull(timeSource);
+    this.updateAccessTimes = updateAccessTimes;
     this.onClose = checkNotNull(onClose);
   }
 
@@ -53,6 +66,26 @@ final class FileSystemState implements Closeable {
     return open.get();
   }
 
+  /** Returns the source of the current time for the file system's file times. */
+  public FileTimeSource timeSource() {
+    return timeSource;
+  }
+
+  /**
+   * Sets the last access time of the given file to the current time, unless the file system is
+   * configured not to update access times.
+   */
+  public void updateAccessTime(File file) {
+    if (updateAccessTimes) {
+      file.updateAccessTime(timeSource.now());
+    }
+  }
+
+  /** Sets the last modified time of the given file to the current time. */
+  public void updateModifiedTime(File file) {
+    file.updateModifiedTime(timeSource.now());
+  }
+
   /**
    * Checks that the file system is open, throwing {@link ClosedFileSystemException} if it is not.
    */
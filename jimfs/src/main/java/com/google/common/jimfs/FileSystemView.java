@@ -26,7 +26,6 @@ import static java.nio.file.StandardOpenOption.WRITE;
 
 import com.google.common.base.Supplier;
 import com.google.common.collect.ImmutableMap;
-import com.google.common.collect.ImmutableSortedSet;
 import com.google.common.collect.Lists;
 import java.io.IOException;
 import java.nio.file.CopyOption;
@@ -34,6 +33,7 @@ import java.nio.file.DirectoryNotEmptyException;
 import java.nio.file.DirectoryStream;
 import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.FileSystemException;
+import java.nio.file.FileVisitor;
 import java.nio.file.LinkOption;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.OpenOption;
@@ -43,9 +43,13 @@ import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileAttribute;
 import java.nio.file.attribute.FileAttributeView;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
 import javax.annotation.Nullable;
@@ -97,6 +101,22 @@ final class FileSystemView {
   /** Attempt to look up the file at the given path. */
   DirectoryEntry lookUpWithLock(JimfsPath path, Set<? super LinkOption> options)
       throws IOException {
+    // try a lookup without locking first, only falling back to the lock if it races with a change
+    long stamp = store.tryOptimisticRead();
+    if (stamp != 0) {
+      LookupTrace trace = new LookupTrace();
+      try {
+        DirectoryEntry entry = store.lookUpOptimistically(workingDirectory, path, options, trace);
+        if (store.validate(stamp, trace)) {
+          return entry;
+        }
+      } catch (IOException e) {
+        if (store.validate(stamp, trace)) {
+          throw e;
+        }
+      }
+    }
+
     store.readLock().lock();
     try {
       return lookUp(path, options);
@@ -130,14 +150,44 @@ final class FileSystemView {
         : new DowngradedDirectoryStream(stream);
   }
 
-  /** Snapshots the entries of the working directory of this view. */
-  public ImmutableSortedSet<Name> snapshotWorkingDirectoryEntries() {
+  /**
+   * Walks the file tree starting at the given path with the given visitor, holding the read lock
+   * for the whole walk. Subdirectories are walked in parallel if a pool is given. See {@link
+   * FileTreeWalk}. Changes that need the write lock, made by the visitor on any of the threads
+   * walking the tree, throw {@link IllegalStateException}, since they'd wait for the walk forever.
+   */
+  public void walkFileTree(
+      JimfsPath start, FileVisitor<? super Path> visitor, @Nullable ForkJoinPool pool)
+      throws IOException {
+    store.readLock().lock();
+    try {
+      File file;
+      try {
+        file = lookUp(start, Options.NOFOLLOW_LINKS).requireExists(start).file();
+      } catch (IOException e) {
+        visitor.visitFileFailed(start, e);
+        return;
+      }
+      new FileTreeWalk(store, visitor, pool).walk(start, file);
+    } finally {
+      store.readLock().unlock();
+    }
+  }
+
+  /**
+   * Returns the names of the entries in the working directory of this view that start with the
+   * given prefix, in display order. See {@link Directory#sortedNames(String)}.
+   */
+  public Iterator<Name> workingDirectoryNames(String prefix) {
     store.readLock().lock();
+    Lock directoryLock = store.directoryReadLock(workingDirectory);
+    directoryLock.lock();
     try {
-      ImmutableSortedSet<Name> names = workingDirectory.snapshot();
-      workingDirectory.updateAccessTime();
+      Iterator<Name> names = workingDirectory.sortedNames(prefix);
+      state().updateAccessTime(workingDirectory);
       return names;
     } finally {
+      directoryLock.unlock();
       store.readLock().unlock();
     }
   }
@@ -156,10 +206,16 @@ final class FileSystemView {
       // directory when SecureDirectoryStream is supported rather than looking up the directory
       // each time the WatchService polls
 
-      for (DirectoryEntry entry : dir) {
-        if (!entry.name().equals(Name.SELF) && !entry.name().equals(Name.PARENT)) {
-          modifiedTimes.put(entry.name(), entry.file().getLastModifiedTime());
+      Lock directoryLock = store.directoryReadLock(dir);
+      directoryLock.lock();
+      try {
+        for (DirectoryEntry entry : dir) {
+          if (!entry.name().equals(Name.SELF) && !entry.name().equals(Name.PARENT)) {
+            modifiedTimes.put(entry.name(), entry.file().getLastModifiedTime());
+          }
         }
+      } finally {
+        directoryLock.unlock();
       }
 
       return modifiedTimes.build();
@@ -168,6 +224,45 @@ final class FileSystemView {
     }
   }
 
+  /**
+   * Adds the given watch to the directory at the given path so that it's notified of changes to the
+   * directory's entries, returning the directory.
+   */
+  Directory watch(JimfsPath path, EventDrivenWatchService.Watch watch) throws IOException {
+    store.updateLock().lock();
+    try {
+      Directory dir = (Directory) lookUp(path, Options.FOLLOW_LINKS).requireDirectory(path).file();
+
+      Lock directoryLock = store.directoryWriteLock(dir);
+      directoryLock.lock();
+      try {
+        dir.addWatch(watch);
+      } finally {
+        directoryLock.unlock();
+      }
+
+      return dir;
+    } finally {
+      store.updateLock().unlock();
+    }
+  }
+
+  /** Removes the given watch from the given directory. */
+  void unwatch(Directory dir, EventDrivenWatchService.Watch watch) {
+    store.updateLock().lock();
+    try {
+      Lock directoryLock = store.directoryWriteLock(dir);
+      directoryLock.lock();
+      try {
+        dir.removeWatch(watch);
+      } finally {
+        directoryLock.unlock();
+      }
+    } finally {
+      store.updateLock().unlock();
+    }
+  }
+
   /**
    * Returns whether or not the two given paths locate the same file. The second path is located
    * using the given view rather than this file view.
@@ -251,31 +346,52 @@ final class FileSystemView {
     checkNotNull(path);
     checkNotNull(fileCreator);
 
-    store.writeLock().lock();
+    store.updateLock().lock();
     try {
       DirectoryEntry entry = lookUp(path, Options.NOFOLLOW_LINKS);
 
       if (entry.exists()) {
-        if (failIfExists) {
-          throw new FileAlreadyExistsException(path.toString());
-        }
-
-        // currently can only happen if getOrCreateFile doesn't find the file with the read lock
-        // and then the file is created between when it releases the read lock and when it
-        // acquires the write lock; so, very unlikely
-        return entry.file();
+        return existingFile(entry, path, failIfExists);
       }
 
       Directory parent = entry.directory();
 
-      File newFile = fileCreator.get();
-      store.setInitialAttributes(newFile, attrs);
-      parent.link(path.name(), newFile);
-      parent.updateModifiedTime();
-      return newFile;
+      Lock directoryLock = store.directoryWriteLock(parent);
+      directoryLock.lock();
+      try {
+        // with lock striping, another thread may have created the file since it was looked up
+        DirectoryEntry current = parent.get(entry.name());
+        if (current != null) {
+          return existingFile(current, path, failIfExists);
+        }
+
+        File newFile = fileCreator.get();
+        store.setInitialAttributes(newFile, attrs);
+        parent.link(path.name(), newFile);
+        state().updateModifiedTime(parent);
+        return newFile;
+      } finally {
+        directoryLock.unlock();
+      }
     } finally {
-      store.writeLock().unlock();
+      store.updateLock().unlock();
+    }
+  }
+
+  /**
+   * Returns the file for the given existing entry found when trying to create a file, or throws
+   * {@link FileAlreadyExistsException} if {@code failIfExists} is {@code true}.
+   */
+  private static File existingFile(DirectoryEntry entry, JimfsPath path, boolean failIfExists)
+      throws FileAlreadyExistsException {
+    if (failIfExists) {
+      throw new FileAlreadyExistsException(path.toString());
     }
+
+    // currently can only happen if getOrCreateFile doesn't find the file with the read lock
+    // and then the file is created between when it releases the read lock and when it
+    // acquires the write lock; so, very unlikely
+    return entry.file();
   }
 
   /**
@@ -295,7 +411,7 @@ final class FileSystemView {
     }
 
     if (options.contains(CREATE) || options.contains(CREATE_NEW)) {
-      return getOrCreateRegularFileWithWriteLock(path, options, attrs);
+      return getOrCreateRegularFileWithUpdateLock(path, options, attrs);
     } else {
       throw new NoSuchFileException(path.toString());
     }
@@ -308,6 +424,13 @@ final class FileSystemView {
   @Nullable
   private RegularFile lookUpRegularFile(JimfsPath path, Set<OpenOption> options)
       throws IOException {
+    if (!options.contains(TRUNCATE_EXISTING) || !options.contains(WRITE)) {
+      RegularFile file = openRegularFileOptimistically(path, options);
+      if (file != null) {
+        return file;
+      }
+    }
+
     store.readLock().lock();
     try {
       DirectoryEntry entry = lookUp(path, options);
@@ -316,7 +439,14 @@ final class FileSystemView {
         if (!file.isRegularFile()) {
           throw new FileSystemException(path.toString(), null, "not a regular file");
         }
-        return open((RegularFile) file, options);
+        RegularFile regularFile = open((RegularFile) file, options);
+        if (regularFile.links() == 0) {
+          // with lock striping, the file may have been deleted (and its content freed) after it was
+          // looked up and before it was opened; treat it as not existing
+          regularFile.closed();
+          return null;
+        }
+        return regularFile;
       } else {
         return null;
       }
@@ -325,10 +455,43 @@ final class FileSystemView {
     }
   }
 
-  /** Gets or creates a new regular file with a write lock (assuming the file does not exist). */
-  private RegularFile getOrCreateRegularFileWithWriteLock(
+  /**
+   * Tries to look up and open the existing regular file at the given path without locking. Returns
+   * null if there's no such file or if the lookup raced with a change to the tree, in which case
+   * the file must be looked up again with the lock. Must not be used if the file should be
+   * truncated, since a racing lookup could find the wrong file.
+   */
+  @Nullable
+  private RegularFile openRegularFileOptimistically(JimfsPath path, Set<OpenOption> options) {
+    long stamp = store.tryOptimisticRead();
+    if (stamp == 0) {
+      return null;
+    }
+
+    LookupTrace trace = new LookupTrace();
+    try {
+      File file = store.lookUpOptimistically(workingDirectory, path, options, trace).fileOrNull();
+      if (file == null || !file.isRegularFile()) {
+        return null;
+      }
+
+      // the file must be opened before validating, ensuring that it wasn't deleted (and its content
+      // freed) before it was opened
+      file.opened();
+      if (store.validate(stamp, trace)) {
+        return (RegularFile) file;
+      }
+      file.closed();
+    } catch (IOException e) {
+      // fall back to looking up the file with the lock
+    }
+    return null;
+  }
+
+  /** Gets or creates a new regular file with the update lock (assuming the file does not exist). */
+  private RegularFile getOrCreateRegularFileWithUpdateLock(
       JimfsPath path, Set<OpenOption> options, FileAttribute<?>[] attrs) throws IOException {
-    store.writeLock().lock();
+    store.updateLock().lock();
     try {
       File file = createFile(path, store.regularFileCreator(), options.contains(CREATE_NEW), attrs);
       // the file already existed but was not a regular file
@@ -337,7 +500,7 @@ final class FileSystemView {
       }
       return open((RegularFile) file, options);
     } finally {
-      store.writeLock().unlock();
+      store.updateLock().unlock();
     }
   }
 
@@ -356,7 +519,7 @@ final class FileSystemView {
     }
 
     // must be opened while holding a file store lock to ensure no race between opening and
-    // deleting the file
+    // deleting the file (unless lock striping is enabled, in which case the caller must check)
     file.opened();
 
     return file;
@@ -423,7 +586,7 @@ final class FileSystemView {
           lookUp(link, Options.NOFOLLOW_LINKS).requireDoesNotExist(link).directory();
 
       linkParent.link(linkName, existingFile);
-      linkParent.updateModifiedTime();
+      state().updateModifiedTime(linkParent);
     } finally {
       store.writeLock().unlock();
     }
@@ -431,12 +594,39 @@ final class FileSystemView {
 
   /** Deletes the file at the given absolute path. */
   public void deleteFile(JimfsPath path, DeleteMode deleteMode) throws IOException {
-    store.writeLock().lock();
-    try {
-      DirectoryEntry entry = lookUp(path, Options.NOFOLLOW_LINKS).requireExists(path);
-      delete(entry, deleteMode, path);
-    } finally {
-      store.writeLock().unlock();
+    // without lock striping, the update lock is the write lock
+    boolean exclusive = !store.isLockStriped();
+    while (true) {
+      Lock lock = exclusive ? store.writeLock() : store.updateLock();
+      lock.lock();
+      try {
+        DirectoryEntry entry = lookUp(path, Options.NOFOLLOW_LINKS).requireExists(path);
+        if (exclusive) {
+          delete(entry, deleteMode, path);
+          return;
+        }
+
+        if (entry.file().isDirectory()) {
+          // deleting a directory requires that it stay empty, so lock the whole tree
+          exclusive = true;
+          continue;
+        }
+
+        Directory parent = entry.directory();
+        Lock directoryLock = store.directoryWriteLock(parent);
+        directoryLock.lock();
+        try {
+          if (entry.equals(parent.get(entry.name()))) {
+            delete(entry, deleteMode, path);
+            return;
+          }
+          // the entry was changed by another thread since it was looked up; look it up again
+        } finally {
+          directoryLock.unlock();
+        }
+      } finally {
+        lock.unlock();
+      }
     }
   }
 
@@ -448,11 +638,161 @@ final class FileSystemView {
 
     checkDeletable(file, deleteMode, pathForException);
     parent.unlink(entry.name());
-    parent.updateModifiedTime();
+    state().updateModifiedTime(parent);
 
     file.deleted();
   }
 
+  /**
+   * Applies the given batch of operations in order while holding the file store's write lock.
+   * Returns, for each operation, the exception it failed with or null if it succeeded.
+   *
+   * <p>The directory containing each operation's path is only looked up once for the whole batch:
+   * later operations on paths with the same parent reuse it. As long as only regular files are
+   * deleted, moved or replaced, no operation can change which directory a parent path locates, so
+   * the looked up directories are only discarded when some other kind of file is.
+   */
+  public List<IOException> applyBatch(List<FileSystemBatch.Operation> operations) {
+    List<IOException> exceptions = new ArrayList<>(operations.size());
+    // parent paths to the directories they locate; the null key is the working directory
+    Map<JimfsPath, Directory> parents = new HashMap<>();
+    parents.put(null, workingDirectory);
+
+    store.writeLock().lock();
+    try {
+      store.state().checkOpen();
+      for (FileSystemBatch.Operation operation : operations) {
+        IOException exception = null;
+        try {
+          apply(operation, parents);
+        } catch (IOException e) {
+          exception = e;
+        }
+        exceptions.add(exception);
+      }
+    } finally {
+      store.writeLock().unlock();
+    }
+    return exceptions;
+  }
+
+  /** Applies a single operation from a batch. */
+  private void apply(FileSystemBatch.Operation operation, Map<JimfsPath, Directory> parents)
+      throws IOException {
+    JimfsPath path = operation.path;
+    DirectoryEntry entry = lookUpInBatch(path, parents);
+    switch (operation.kind) {
+      case CREATE_FILE:
+        createInBatch(entry, path, store.regularFileCreator());
+        return;
+      case CREATE_DIRECTORY:
+        createInBatch(entry, path, store.directoryCreator());
+        return;
+      case WRITE:
+        writeInBatch(entry, path, operation.bytes);
+        return;
+      case DELETE:
+        File file = entry.requireExists(path).file();
+        delete(entry, DeleteMode.ANY, path);
+        if (!file.isRegularFile()) {
+          parents.clear();
+          parents.put(null, workingDirectory);
+        }
+        return;
+      case MOVE:
+        entry.requireExists(path);
+        JimfsPath target = operation.target;
+        DirectoryEntry targetEntry = lookUpInBatch(target, parents);
+        if (!entry.file().isRegularFile()
+            || (targetEntry.exists() && !targetEntry.file().isRegularFile())) {
+          parents.clear();
+          parents.put(null, workingDirectory);
+        }
+        copyLocked(path, entry, this, target, targetEntry, operation.options, true);
+        return;
+    }
+    throw new AssertionError(operation.kind);
+  }
+
+  /**
+   * Looks up the entry for the given path without following a symbolic link at the path itself,
+   * using and adding to the given directories already looked up in the batch.
+   */
+  private DirectoryEntry lookUpInBatch(JimfsPath path, Map<JimfsPath, Directory> parents)
+      throws IOException {
+    Name name = path.name();
+    if (path.getNameCount() == 0
+        || name.equals(Name.EMPTY)
+        || name.equals(Name.SELF)
+        || name.equals(Name.PARENT)) {
+      // the entry isn't simply the named entry in the parent directory
+      return lookUp(path, Options.NOFOLLOW_LINKS);
+    }
+
+    JimfsPath parentPath = path.getParent();
+    Directory parent = parents.get(parentPath);
+    if (parent == null) {
+      DirectoryEntry parentEntry = lookUp(parentPath, Options.FOLLOW_LINKS);
+      if (!parentEntry.exists() || !parentEntry.file().isDirectory()) {
+        throw new NoSuchFileException(path.toString());
+      }
+      parent = (Directory) parentEntry.file();
+      parents.put(parentPath, parent);
+    }
+
+    DirectoryEntry entry = parent.get(name);
+    return entry != null ? entry : new DirectoryEntry(parent, name, null);
+  }
+
+  /**
+   * Creates a new file for the given entry in a batch, throwing {@link FileAlreadyExistsException}
+   * if the entry already exists.
+   */
+  private File createInBatch(
+      DirectoryEntry entry, JimfsPath path, Supplier<? extends File> fileCreator)
+      throws IOException {
+    if (entry.exists()) {
+      throw new FileAlreadyExistsException(path.toString());
+    }
+
+    Directory parent = entry.directory();
+    File newFile = fileCreator.get();
+    store.setInitialAttributes(newFile);
+    parent.link(entry.name(), newFile);
+    state().updateModifiedTime(parent);
+    return newFile;
+  }
+
+  /**
+   * Replaces the content of the regular file for the given entry in a batch with the given bytes,
+   * creating the file if it doesn't exist.
+   */
+  private void writeInBatch(DirectoryEntry entry, JimfsPath path, byte[] bytes)
+      throws IOException {
+    if (entry.exists() && entry.file().isSymbolicLink()) {
+      entry = lookUp(path, Options.FOLLOW_LINKS);
+    }
+
+    RegularFile file;
+    if (entry.exists()) {
+      if (!entry.file().isRegularFile()) {
+        throw new FileSystemException(path.toString(), null, "not a regular file");
+      }
+      file = (RegularFile) entry.file();
+    } else {
+      file = (RegularFile) createInBatch(entry, path, store.regularFileCreator());
+    }
+
+    file.writeLock().lock();
+    try {
+      file.truncate(0);
+      file.write(0, bytes, 0, bytes.length);
+      state().updateModifiedTime(file);
+    } finally {
+      file.writeLock().unlock();
+    }
+  }
+
   /** Mode for deleting. Determines what types of files can be deleted. */
   public enum DeleteMode {
     /** Delete any file. */
@@ -507,88 +847,66 @@ final class FileSystemView {
     checkNotNull(dest);
     checkNotNull(options);
 
-    boolean sameFileSystem = isSameFileSystem(destView);
+    // Copies only change the destination directory, so with lock striping they can be done with
+    // the update locks. Moves always lock both trees.
+    boolean exclusive = move || !store.isLockStriped() || !destView.store.isLockStriped();
 
     File sourceFile;
     File copyFile = null; // non-null after block completes iff source file was copied
-    lockBoth(store.writeLock(), destView.store.writeLock());
-    try {
-      DirectoryEntry sourceEntry = lookUp(source, options).requireExists(source);
-      DirectoryEntry destEntry = destView.lookUp(dest, Options.NOFOLLOW_LINKS);
-
-      Directory sourceParent = sourceEntry.directory();
-      sourceFile = sourceEntry.file();
-
-      Directory destParent = destEntry.directory();
-
-      if (move && sourceFile.isDirectory()) {
-        if (sameFileSystem) {
-          checkMovable(sourceFile, source);
-          checkNotAncestor(sourceFile, destParent, destView);
-        } else {
-          // move to another file system is accomplished by copy-then-delete, so the source file
-          // must be deletable to be moved
-          checkDeletable(sourceFile, DeleteMode.ANY, source);
-        }
-      }
-
-      if (destEntry.exists()) {
-        if (destEntry.file().equals(sourceFile)) {
-          return;
-        } else if (options.contains(REPLACE_EXISTING)) {
-          destView.delete(destEntry, DeleteMode.ANY, dest);
-        } else {
-          throw new FileAlreadyExistsException(dest.toString());
+    while (true) {
+      Lock sourceLock = exclusive ? store.writeLock() : store.updateLock();
+      Lock destLock = exclusive ? destView.store.writeLock() : destView.store.updateLock();
+      lockBoth(sourceLock, destLock);
+      try {
+        DirectoryEntry sourceEntry = lookUp(source, options).requireExists(source);
+        DirectoryEntry destEntry = destView.lookUp(dest, Options.NOFOLLOW_LINKS);
+
+        sourceFile = sourceEntry.file();
+        Directory destParent = destEntry.directory();
+
+        if (!exclusive
+            && destEntry.exists()
+            && destEntry.file().isDirectory()
+            && options.contains(REPLACE_EXISTING)) {
+          // replacing a directory requires that it stay empty, so lock the whole tree
+          exclusive = true;
+          continue;
         }
-      }
 
-      if (move && sameFileSystem) {
-        // Real move on the same file system.
-        sourceParent.unlink(source.name());
-        sourceParent.updateModifiedTime();
-
-        destParent.link(dest.name(), sourceFile);
-        destParent.updateModifiedTime();
-      } else {
-        // Doing a copy OR a move to a different file system, which must be implemented by copy and
-        // delete.
-
-        // By default, don't copy attributes.
-        AttributeCopyOption attributeCopyOption = AttributeCopyOption.NONE;
-        if (move) {
-          // Copy only the basic attributes of the file to the other file system, as it may not
-          // support all the attribute views that this file system does. This also matches the
-          // behavior of moving a file to a foreign file system with a different
-          // FileSystemProvider.
-          attributeCopyOption = AttributeCopyOption.BASIC;
-        } else if (options.contains(COPY_ATTRIBUTES)) {
-          // As with move, if we're copying the file to a different file system, only copy its
-          // basic attributes.
-          attributeCopyOption =
-              sameFileSystem ? AttributeCopyOption.ALL : AttributeCopyOption.BASIC;
-        }
+        Lock directoryLock = destView.store.directoryWriteLock(destParent);
+        directoryLock.lock();
+        try {
+          if (!exclusive
+              && !Objects.equals(
+                  destParent.get(destEntry.name()), destEntry.exists() ? destEntry : null)) {
+            // the destination was changed by another thread since it was looked up; try again
+            continue;
+          }
 
-        // Copy the file, but don't copy its content while we're holding the file store locks.
-        copyFile = destView.store.copyWithoutContent(sourceFile, attributeCopyOption);
-        destParent.link(dest.name(), copyFile);
-        destParent.updateModifiedTime();
-
-        // In order for the copy to be atomic (not strictly necessary, but seems preferable since
-        // we can) lock both source and copy files before leaving the file store locks. This
-        // ensures that users cannot observe the copy's content until the content has been copied.
-        // This also marks the source file as opened, preventing its content from being deleted
-        // until after it's copied if the source file itself is deleted in the next step.
-        lockSourceAndCopy(sourceFile, copyFile);
-
-        if (move) {
-          // It should not be possible for delete to throw an exception here, because we already
-          // checked that the file was deletable above.
-          delete(sourceEntry, DeleteMode.ANY, source);
+          if (!exclusive) {
+            // With lock striping, another thread may delete the source at any time. Mark it as
+            // opened so its content can't be freed while copying, then make sure it wasn't already
+            // deleted.
+            sourceFile.opened();
+          }
+          try {
+            if (!exclusive && sourceFile.links() == 0) {
+              throw new NoSuchFileException(source.toString());
+            }
+            copyFile = copyLocked(source, sourceEntry, destView, dest, destEntry, options, move);
+          } finally {
+            if (!exclusive) {
+              sourceFile.closed();
+            }
+          }
+        } finally {
+          directoryLock.unlock();
         }
+        break;
+      } finally {
+        destLock.unlock();
+        sourceLock.unlock();
       }
-    } finally {
-      destView.store.writeLock().unlock();
-      store.writeLock().unlock();
     }
 
     if (copyFile != null) {
@@ -607,6 +925,103 @@ final class FileSystemView {
     }
   }
 
+  /**
+   * Copies or moves the file for the given source entry to the given dest entry while holding the
+   * file store locks. If the source file was copied, returns the copy, which must then have its
+   * content copied and be unlocked. Returns null if the source file was moved or didn't need to be
+   * copied.
+   */
+  @Nullable
+  private File copyLocked(
+      JimfsPath source,
+      DirectoryEntry sourceEntry,
+      FileSystemView destView,
+      JimfsPath dest,
+      DirectoryEntry destEntry,
+      Set<CopyOption> options,
+      boolean move)
+      throws IOException {
+    boolean sameFileSystem = isSameFileSystem(destView);
+
+    Directory sourceParent = sourceEntry.directory();
+    File sourceFile = sourceEntry.file();
+
+    Directory destParent = destEntry.directory();
+
+    if (move && sourceFile.isDirectory()) {
+      if (sameFileSystem) {
+        checkMovable(sourceFile, source);
+        checkNotAncestor(sourceFile, destParent, destView);
+      } else {
+        // move to another file system is accomplished by copy-then-delete, so the source file
+        // must be deletable to be moved
+        checkDeletable(sourceFile, DeleteMode.ANY, source);
+      }
+    }
+
+    if (destEntry.exists()) {
+      if (destEntry.file().equals(sourceFile)) {
+        return null;
+      } else if (options.contains(REPLACE_EXISTING)) {
+        destView.delete(destEntry, DeleteMode.ANY, dest);
+      } else {
+        throw new FileAlreadyExistsException(dest.toString());
+      }
+    }
+
+    if (move && sameFileSystem) {
+      // Real move on the same file system.
+      store.beginStructuralUpdate();
+      try {
+        sourceParent.unlink(source.name());
+        destParent.link(dest.name(), sourceFile);
+      } finally {
+        store.endStructuralUpdate();
+      }
+      state().updateModifiedTime(sourceParent);
+      state().updateModifiedTime(destParent);
+    } else {
+      // Doing a copy OR a move to a different file system, which must be implemented by copy and
+      // delete.
+
+      // By default, don't copy attributes.
+      AttributeCopyOption attributeCopyOption = AttributeCopyOption.NONE;
+      if (move) {
+        // Copy only the basic attributes of the file to the other file system, as it may not
+        // support all the attribute views that this file system does. This also matches the
+        // behavior of moving a file to a foreign file system with a different
+        // FileSystemProvider.
+        attributeCopyOption = AttributeCopyOption.BASIC;
+      } else if (options.contains(COPY_ATTRIBUTES)) {
+        // As with move, if we're copying the file to a different file system, only copy its
+        // basic attributes.
+        attributeCopyOption = sameFileSystem ? AttributeCopyOption.ALL : AttributeCopyOption.BASIC;
+      }
+
+      // Copy the file, but don't copy its content while we're holding the file store locks.
+      File copyFile = destView.store.copyWithoutContent(sourceFile, attributeCopyOption);
+
+      // In order for the copy to be atomic (not strictly necessary, but seems preferable since
+      // we can) lock both source and copy files before linking the copy, which can be observed by
+      // lock-free lookups as soon as it's linked. This ensures that users cannot observe the
+      // copy's content until the content has been copied. This also marks the source file as
+      // opened, preventing its content from being deleted until after it's copied if the source
+      // file itself is deleted in the next step.
+      lockSourceAndCopy(sourceFile, copyFile);
+
+      destParent.link(dest.name(), copyFile);
+      destView.state().updateModifiedTime(destParent);
+
+      if (move) {
+        // It should not be possible for delete to throw an exception here, because we already
+        // checked that the file was deletable above.
+        delete(sourceEntry, DeleteMode.ANY, source);
+      }
+      return copyFile;
+    }
+    return null;
+  }
+
   private void checkMovable(File file, JimfsPath path) throws FileSystemException {
     if (file.isRootDirectory()) {
       throw new FileSystemException(path.toString(), null, "can't move root directory");
@@ -614,24 +1029,24 @@ final class FileSystemView {
   }
 
   /**
-   * Acquires both write locks in a way that attempts to avoid the possibility of deadlock. Note
-   * that typically (when only one file system instance is involved), both locks will be the same
-   * lock and there will be no issue at all.
+   * Acquires both locks in a way that attempts to avoid the possibility of deadlock. Note that
+   * typically (when only one file system instance is involved), both locks will be the same lock
+   * and there will be no issue at all.
    */
-  private static void lockBoth(Lock sourceWriteLock, Lock destWriteLock) {
+  private static void lockBoth(Lock sourceLock, Lock destLock) {
     while (true) {
-      sourceWriteLock.lock();
-      if (destWriteLock.tryLock()) {
+      sourceLock.lock();
+      if (destLock.tryLock()) {
         return;
       } else {
-        sourceWriteLock.unlock();
+        sourceLock.unlock();
       }
 
-      destWriteLock.lock();
-      if (sourceWriteLock.tryLock()) {
+      destLock.lock();
+      if (sourceLock.tryLock()) {
         return;
       } else {
-        destWriteLock.unlock();
+        destLock.unlock();
       }
     }
   }
@@ -711,6 +1126,26 @@ final class FileSystemView {
         type);
   }
 
+  /**
+   * Returns the position of the first data, if {@code data} is true, or else of the first hole at
+   * or after the given position in the regular file located by the given path in this view. See
+   * {@link RegularFile#seekData} and {@link RegularFile#seekHole}.
+   */
+  public long seek(JimfsPath path, long position, boolean data) throws IOException {
+    File file = lookUpWithLock(path, Options.FOLLOW_LINKS).requireExists(path).file();
+    if (!file.isRegularFile()) {
+      throw new FileSystemException(path.toString(), null, "not a regular file");
+    }
+
+    RegularFile regularFile = (RegularFile) file;
+    regularFile.readLock().lock();
+    try {
+      return data ? regularFile.seekData(position) : regularFile.seekHole(position);
+    } finally {
+      regularFile.readLock().unlock();
+    }
+  }
+
   /** Reads attributes of the file located by the given path in this view as an object. */
   public <A extends BasicFileAttributes> A readAttributes(
       JimfsPath path, Class<A> type, Set<? super LinkOption> options) throws IOException {
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.jimfs;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import com.google.common.math.LongMath;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.io.Closeable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Source of the current time for the creation, access and modification times of the files in a
+ * file system.
+ *
+ * <p>Custom implementations, for example a fake clock for tests that check file times, may be
+ * created by subclassing this class.
+ *
+ * @author Colin Decker
+ */
+public abstract class FileTimeSource {
+
+  /** The source that's used if the user doesn't provide anything more specific. */
+  static final FileTimeSource DEFAULT = system();
+
+  /** Returns a source that reads the system clock each time the current time is needed. */
+  public static FileTimeSource system() {
+    return SystemSource.INSTANCE;
+  }
+
+  /**
+   * Returns a source that reports the current time rounded down to a multiple of the given {@code
+   * granularity} of the given {@code timeUnit} (e.g. 10 {@link TimeUnit#MILLISECONDS
+   * milliseconds}).
+   *
+   * <p>A file system using this source doesn't read the system clock when files are accessed or
+   * modified. Instead, a background thread belonging to the file system refreshes a cached time
+   * once per {@code granularity}, so file times may lag the system clock by up to that much. The
+   * thread is stopped when the file system is closed.
+   *
+   * @throws IllegalArgumentException if the granularity is less than a millisecond
+   */
+  @SuppressWarnings("GoodTime") // should accept a java.time.Duration
+  public static FileTimeSource coarse(long granularity, TimeUnit timeUnit) {
+    return new CoarseSource(timeUnit.toMillis(granularity));
+  }
+
+  protected FileTimeSource() {}
+
+  /** Returns the current time, in milliseconds since the epoch. */
+  @SuppressWarnings("GoodTime") // should return a java.time.Instant
+  public abstract long now();
+
+  /**
+   * Returns the source a new file system should use. A source that needs resources of its own per
+   * file system returns a new source that is also {@link Closeable}, which is closed when the file
+   * system is closed. Returns this source by default.
+   */
+  FileTimeSource newInstance() {
+    return this;
+  }
+
+  /** Implementation for {@link #system}. */
+  private static final class SystemSource extends FileTimeSource {
+
+    private static final SystemSource INSTANCE = new SystemSource();
+
+    @Override
+    public long now() {
+      return System.currentTimeMillis();
+    }
+
+    @Override
+    public String toString() {
+      return "FileTimeSource.system()";
+    }
+  }
+
+  /** Implementation for {@link #coarse}. */
+  private static final class CoarseSource extends FileTimeSource {
+
+    private final long granularityMillis;
+
+    private CoarseSource(long granularityMillis) {
+      checkArgument(
+          granularityMillis > 0, "granularity (%s ms) must be at least 1 ms", granularityMillis);
+      this.granularityMillis = granularityMillis;
+    }
+
+    @Override
+    public long now() {
+      return truncate(System.currentTimeMillis(), granularityMillis);
+    }
+
+    @Override
+    FileTimeSource newInstance() {
+      return new CachedClock(granularityMillis);
+    }
+
+    @Override
+    public String toString() {
+      return "FileTimeSource.coarse(" + granularityMillis + ", " + MILLISECONDS + ")";
+    }
+  }
+
+  private static long truncate(long millis, long granularityMillis) {
+    return millis - LongMath.mod(millis, granularityMillis);
+  }
+
+  /**
+   * The source a file system configured with {@link #coarse} uses, caching the current time in a
+   * volatile field that a daemon thread refreshes.
+   */
+  static final class CachedClock extends FileTimeSource implements Closeable {
+
+    /**
+     * Thread factory for clock threads, which should be daemon threads so as not to keep the VM
+     * running if the user doesn't close the file system.
+     */
+    private static final ThreadFactory THREAD_FACTORY =
+        new ThreadFactoryBuilder()
+            .setNameFormat("com.google.common.jimfs.FileTimeSource-thread-%d")
+            .setDaemon(true)
+            .build();
+
+    private final ScheduledExecutorService tickService =
+        Executors.newSingleThreadScheduledExecutor(THREAD_FACTORY);
+
+    private final long granularityMillis;
+
+    private volatile long now;
+
+    CachedClock(long granularityMillis) {
+      this.granularityMillis = granularityMillis;
+      tick();
+      tickService.scheduleAtFixedRate(
+          new Runnable() {
+            @Override
+            public void run() {
+              tick();
+            }
+          },
+          granularityMillis,
+          granularityMillis,
+          MILLISECONDS);
+    }
+
+    private void tick() {
+      now = truncate(System.currentTimeMillis(), granularityMillis);
+    }
+
+    @Override
+    public long now() {
+      return now;
+    }
+
+    /** Returns whether or not the thread refreshing the time has been stopped. */
+    boolean isClosed() {
+      return tickService.isShutdown();
+    }
+
+    @Override
+    public void close() {
+      tickService.shutdown();
+    }
+  }
+}
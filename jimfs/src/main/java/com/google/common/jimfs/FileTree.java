@@ -16,6 +16,7 @@
 
 package com.google.common.jimfs;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 import com.google.common.collect.ImmutableList;
@@ -27,6 +28,7 @@ import java.nio.file.NoSuchFileException;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.locks.Lock;
 import javax.annotation.Nullable;
 
 /**
@@ -49,9 +51,22 @@ final class FileTree {
   /** Map of root names to root directories. */
   private final ImmutableSortedMap<Name, Directory> roots;
 
-  /** Creates a new file tree with the given root directories. */
+  private final FileTreeLock lock;
+
+  /** Creates a new file tree with the given root directories, guarded by a single lock. */
   FileTree(Map<Name, Directory> roots) {
+    this(roots, new FileTreeLock());
+  }
+
+  /** Creates a new file tree with the given root directories, guarded by the given lock. */
+  FileTree(Map<Name, Directory> roots, FileTreeLock lock) {
     this.roots = ImmutableSortedMap.copyOf(roots, Name.canonicalOrdering());
+    this.lock = checkNotNull(lock);
+  }
+
+  /** Returns the lock guarding this tree. */
+  public FileTreeLock lock() {
+    return lock;
   }
 
   /** Returns the names of the root directories in this tree. */
@@ -69,13 +84,40 @@ final class FileTree {
     return dir == null ? null : dir.entryInParent();
   }
 
-  /** Returns the result of the file lookup for the given path. */
+  /**
+   * Returns the result of the file lookup for the given path. The caller must hold one of the tree
+   * locks.
+   */
   public DirectoryEntry lookUp(
       File workingDirectory, JimfsPath path, Set<? super LinkOption> options) throws IOException {
+    return lookUp(workingDirectory, path, options, true, null);
+  }
+
+  /**
+   * Returns the result of the file lookup for the given path without taking any locks, recording
+   * each directory the lookup reads entries from in the given trace. The lookup may race with
+   * changes to the tree, in which case its result or the exception it throws is meaningless; the
+   * caller must {@linkplain FileTreeLock#validate validate} the trace along with a stamp obtained
+   * from {@link FileTreeLock#tryOptimisticRead()} before the lookup to find out whether or not it
+   * can trust the outcome.
+   */
+  public DirectoryEntry lookUpOptimistically(
+      File workingDirectory, JimfsPath path, Set<? super LinkOption> options, LookupTrace trace)
+      throws IOException {
+    return lookUp(workingDirectory, path, options, false, checkNotNull(trace));
+  }
+
+  private DirectoryEntry lookUp(
+      File workingDirectory,
+      JimfsPath path,
+      Set<? super LinkOption> options,
+      boolean locked,
+      @Nullable LookupTrace trace)
+      throws IOException {
     checkNotNull(path);
     checkNotNull(options);
 
-    DirectoryEntry result = lookUp(workingDirectory, path, options, 0);
+    DirectoryEntry result = lookUp(workingDirectory, path, options, 0, locked, trace);
     if (result == null) {
       // an intermediate file in the path did not exist or was not a directory
       throw new NoSuchFileException(path.toString());
@@ -83,9 +125,32 @@ final class FileTree {
     return result;
   }
 
+  /**
+   * Returns the result of the file lookup for the given absolute path, or null if an intermediate
+   * file in the path did not exist or was not a directory, recording each directory the lookup
+   * reads entries from in the given trace. {@code locked} determines whether the lookup is done
+   * {@linkplain #lookUp with} or {@linkplain #lookUpOptimistically without} locking.
+   */
+  @Nullable
+  DirectoryEntry lookUp(
+      JimfsPath path,
+      Set<? super LinkOption> options,
+      boolean locked,
+      LookupTrace trace)
+      throws IOException {
+    checkArgument(path.isAbsolute(), "path (%s) must be absolute", path);
+    return lookUp(null, path, options, 0, locked, checkNotNull(trace));
+  }
+
   @Nullable
   private DirectoryEntry lookUp(
-      File dir, JimfsPath path, Set<? super LinkOption> options, int linkDepth) throws IOException {
+      File dir,
+      JimfsPath path,
+      Set<? super LinkOption> options,
+      int linkDepth,
+      boolean locked,
+      @Nullable LookupTrace trace)
+      throws IOException {
     ImmutableList<Name> names = path.names();
 
     if (path.isAbsolute()) {
@@ -107,7 +172,7 @@ final class FileTree {
       names = EMPTY_PATH_NAMES;
     }
 
-    return lookUp(dir, names, options, linkDepth);
+    return lookUp(dir, names, options, linkDepth, locked, trace);
   }
 
   /**
@@ -116,7 +181,12 @@ final class FileTree {
    */
   @Nullable
   private DirectoryEntry lookUp(
-      File dir, Iterable<Name> names, Set<? super LinkOption> options, int linkDepth)
+      File dir,
+      Iterable<Name> names,
+      Set<? super LinkOption> options,
+      int linkDepth,
+      boolean locked,
+      @Nullable LookupTrace trace)
       throws IOException {
     Iterator<Name> nameIterator = names.iterator();
     Name name = nameIterator.next();
@@ -126,14 +196,15 @@ final class FileTree {
         return null;
       }
 
-      DirectoryEntry entry = directory.get(name);
+      DirectoryEntry entry = get(directory, name, locked, trace);
       if (entry == null) {
         return null;
       }
 
       File file = entry.file();
       if (file.isSymbolicLink()) {
-        DirectoryEntry linkResult = followSymbolicLink(dir, (SymbolicLink) file, linkDepth);
+        DirectoryEntry linkResult =
+            followSymbolicLink(dir, (SymbolicLink) file, linkDepth, locked, trace);
 
         if (linkResult == null) {
           return null;
@@ -147,30 +218,64 @@ final class FileTree {
       name = nameIterator.next();
     }
 
-    return lookUpLast(dir, name, options, linkDepth);
+    return lookUpLast(dir, name, options, linkDepth, locked, trace);
   }
 
   /** Looks up the last element of a path. */
   @Nullable
   private DirectoryEntry lookUpLast(
-      @Nullable File dir, Name name, Set<? super LinkOption> options, int linkDepth)
+      @Nullable File dir,
+      Name name,
+      Set<? super LinkOption> options,
+      int linkDepth,
+      boolean locked,
+      @Nullable LookupTrace trace)
       throws IOException {
     Directory directory = toDirectory(dir);
     if (directory == null) {
       return null;
     }
 
-    DirectoryEntry entry = directory.get(name);
+    DirectoryEntry entry = get(directory, name, locked, trace);
     if (entry == null) {
       return new DirectoryEntry(directory, name, null);
     }
 
     File file = entry.file();
     if (!options.contains(LinkOption.NOFOLLOW_LINKS) && file.isSymbolicLink()) {
-      return followSymbolicLink(dir, (SymbolicLink) file, linkDepth);
+      return followSymbolicLink(dir, (SymbolicLink) file, linkDepth, locked, trace);
+    }
+
+    return getRealEntry(entry, trace);
+  }
+
+  /**
+   * Gets the entry for the given name in the given directory. If {@code locked}, the directory's
+   * lock, if any, is held while doing so and the caller must hold one of the tree locks. If a trace
+   * is given, the directory is recorded in it before its entries are read.
+   */
+  @Nullable
+  private DirectoryEntry get(
+      Directory directory, Name name, boolean locked, @Nullable LookupTrace trace) {
+    if (!locked) {
+      if (trace != null) {
+        trace.add(directory);
+      }
+      // Directory.get reads each of its tables once and never probes more slots than a table has,
+      // so even a racing read can't loop forever or throw.
+      return directory.get(name);
     }
 
-    return getRealEntry(entry);
+    Lock directoryLock = lock.directoryReadLock(directory);
+    directoryLock.lock();
+    try {
+      if (trace != null) {
+        trace.add(directory);
+      }
+      return directory.get(name);
+    } finally {
+      directoryLock.unlock();
+    }
   }
 
   /**
@@ -178,13 +283,18 @@ final class FileTree {
    * relative to the given directory.
    */
   @Nullable
-  private DirectoryEntry followSymbolicLink(File dir, SymbolicLink link, int linkDepth)
+  private DirectoryEntry followSymbolicLink(
+      File dir,
+      SymbolicLink link,
+      int linkDepth,
+      boolean locked,
+      @Nullable LookupTrace trace)
       throws IOException {
     if (linkDepth >= MAX_SYMBOLIC_LINK_DEPTH) {
       throw new IOException("too many levels of symbolic links");
     }
 
-    return lookUp(dir, link.target(), Options.FOLLOW_LINKS, linkDepth + 1);
+    return lookUp(dir, link.target(), Options.FOLLOW_LINKS, linkDepth + 1, locked, trace);
   }
 
   /**
@@ -197,12 +307,20 @@ final class FileTree {
    * -> "bar" -> bar].
    */
   @Nullable
-  private DirectoryEntry getRealEntry(DirectoryEntry entry) {
+  private DirectoryEntry getRealEntry(DirectoryEntry entry, @Nullable LookupTrace trace) {
     Name name = entry.name();
 
     if (name.equals(Name.SELF) || name.equals(Name.PARENT)) {
       Directory dir = toDirectory(entry.file());
-      assert dir != null;
+      if (dir == null) {
+        // "." and ".." can only link to directories, so this is a lookup racing with a change
+        // without locking; the stamp it's validated against will be invalid
+        return null;
+      }
+      if (trace != null) {
+        // the directory's entry in its parent changes along with its ".." entry
+        trace.add(dir);
+      }
       return dir.entryInParent();
     } else {
       return entry;
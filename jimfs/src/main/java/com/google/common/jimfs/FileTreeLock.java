@@ -0,0 +1,297 @@
+/*
+ * Copyright 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.jimfs;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import javax.annotation.Nullable;
+
+/**
+ * The locks guarding a {@link FileTree}.
+ *
+ * <p>By default, a single read-write lock guards the whole tree: lookups hold the read lock and any
+ * change to any directory holds the write lock. With lock striping enabled, the tree lock is
+ * complemented by a fixed number of striped read-write locks, each guarding the entry tables of
+ * the directories that hash to it. Operations that change the entries of a single directory
+ * (creating a file, deleting a non-directory file) then only need the tree's read lock plus the
+ * write lock for that directory's stripe, allowing them to proceed in parallel with each other and
+ * with lookups. Operations that change the structure of the tree (moves, hard links, deleting
+ * directories) still take the tree's write lock.
+ *
+ * <p>A thread never holds more than one stripe lock at a time, so stripes can't deadlock.
+ *
+ * <p>Lookups can also be done without any locking, in the style of {@code StampedLock}'s optimistic
+ * reads: a lookup {@linkplain #tryOptimisticRead() gets a stamp} first, records the directories it
+ * reads in a {@link LookupTrace} and then {@linkplain #validate validates} both after looking up
+ * the file, falling back to locking if anything it depends on was changed in the meantime. Each
+ * directory's {@linkplain Directory#modCount() modification count} serves as its own stamp, so a
+ * change to one directory only fails the lookups that read that directory. The stamp for the whole
+ * tree only covers structural changes, which change several directories at once: those must be
+ * done between calls to {@link #beginStructuralUpdate()} and {@link #endStructuralUpdate()} so that
+ * no lookup can see some of the directories changed and the rest not. Validation needs a {@link
+ * LoadFence}; where none is available, lookups always lock.
+ *
+ * <p>The tree's read lock can't be upgraded, so a thread reading the tree, including one running
+ * tasks for a {@link FileTreeWalk} on behalf of the thread holding the read lock, that tries to
+ * take the write lock would wait forever. Taking the write lock throws {@link
+ * IllegalStateException} in that case instead.
+ *
+ * @author Colin Decker
+ */
+final class FileTreeLock {
+
+  private final ReentrantReadWriteLock treeLock = new ReentrantReadWriteLock();
+  private final Lock writeLock = new WriteLock();
+
+  /**
+   * The number of {@link FileTreeWalk} tasks each thread is running, which read the tree under the
+   * read lock held by the thread that started the walk.
+   */
+  private final ThreadLocal<int[]> walkTasks =
+      new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+          return new int[1];
+        }
+      };
+
+  /** The number of structural updates in progress. */
+  private final AtomicInteger activeUpdates = new AtomicInteger();
+
+  /** Incremented at the start and end of each structural update. 0 is never a valid stamp. */
+  private final AtomicLong modCount = new AtomicLong(1);
+
+  @Nullable private final ReadWriteLock[] stripes;
+
+  /** Creates a new lock using a single lock for the whole tree. */
+  FileTreeLock() {
+    this(1);
+  }
+
+  /**
+   * Creates a new lock with the given number of directory lock stripes. If {@code stripeCount} is
+   * 1, a single lock guards the whole tree. Otherwise, it's rounded up to a power of 2.
+   */
+  FileTreeLock(int stripeCount) {
+    checkArgument(stripeCount > 0, "stripeCount (%s) must be positive", stripeCount);
+    if (stripeCount == 1) {
+      this.stripes = null;
+    } else {
+      this.stripes = new ReadWriteLock[Util.nextPowerOf2(stripeCount)];
+      for (int i = 0; i < stripes.length; i++) {
+        stripes[i] = new ReentrantReadWriteLock();
+      }
+    }
+  }
+
+  /** Returns whether or not changes to single directories are guarded by striped locks. */
+  boolean isStriped() {
+    return stripes != null;
+  }
+
+  /** Returns the number of directory lock stripes, or 1 if the lock isn't striped. */
+  int stripeCount() {
+    return stripes == null ? 1 : stripes.length;
+  }
+
+  /** Returns the tree's read lock, which must be held for any lookup. */
+  Lock readLock() {
+    return treeLock.readLock();
+  }
+
+  /**
+   * Returns the tree's write lock, which gives exclusive access to the whole tree. Locking it
+   * throws {@link IllegalStateException} if the current thread is reading the tree.
+   */
+  Lock writeLock() {
+    return writeLock;
+  }
+
+  /**
+   * Returns the tree lock to hold while changing the entries of a single directory. This is the
+   * write lock unless the lock is striped, in which case it's the read lock and the {@linkplain
+   * #directoryWriteLock directory's write lock} must also be held while changing it.
+   */
+  Lock updateLock() {
+    return stripes == null ? writeLock : treeLock.readLock();
+  }
+
+  /**
+   * Returns the lock to hold, in addition to one of the tree locks, while reading the entries of
+   * the given directory. Does nothing if the lock isn't striped.
+   */
+  Lock directoryReadLock(Directory directory) {
+    return stripes == null ? NoOpLock.INSTANCE : stripe(directory).readLock();
+  }
+
+  /**
+   * Returns the lock to hold, in addition to the {@linkplain #updateLock update lock}, while
+   * changing the entries of the given directory. Does nothing if the lock isn't striped.
+   */
+  Lock directoryWriteLock(Directory directory) {
+    return stripes == null ? NoOpLock.INSTANCE : stripe(directory).writeLock();
+  }
+
+  /**
+   * Marks the start of a task walking part of the tree for a walk started by another thread, which
+   * holds the read lock until the task is done. Must be followed by a call to {@link
+   * #endWalkTask()} once the task is done, typically in a {@code finally} block.
+   */
+  void beginWalkTask() {
+    walkTasks.get()[0]++;
+  }
+
+  /** Marks the end of a task started with {@link #beginWalkTask()}. */
+  void endWalkTask() {
+    walkTasks.get()[0]--;
+  }
+
+  /**
+   * Marks the start of a change to the entries of several directories, such as a move, which must
+   * appear atomic to lookups. Must be followed by a call to {@link #endStructuralUpdate()} once the
+   * change is complete, typically in a {@code finally} block. Changes to a single directory don't
+   * need this.
+   */
+  void beginStructuralUpdate() {
+    activeUpdates.incrementAndGet();
+    modCount.incrementAndGet();
+  }
+
+  /** Marks the end of a change started with {@link #beginStructuralUpdate()}. */
+  void endStructuralUpdate() {
+    modCount.incrementAndGet();
+    activeUpdates.decrementAndGet();
+  }
+
+  /**
+   * Returns a stamp that can later be {@linkplain #validate validated} to check that no structural
+   * changes were made to the tree in the meantime, or 0 if such a change is in progress. Always
+   * returns 0 if no {@linkplain LoadFence load fence} is available to validate the stamp with.
+   */
+  long tryOptimisticRead() {
+    if (!LoadFence.isAvailable()) {
+      return 0;
+    }
+    long stamp = modCount.get();
+    return activeUpdates.get() == 0 ? stamp : 0;
+  }
+
+  /**
+   * Returns whether or not the directories recorded in the given trace and the structure of the
+   * tree are unchanged since the given stamp was obtained from {@link #tryOptimisticRead()}. Always
+   * returns false for a stamp of 0.
+   */
+  boolean validate(long stamp, LookupTrace trace) {
+    if (stamp == 0) {
+      return false;
+    }
+    // a volatile read doesn't keep the plain reads of directory tables before it from being
+    // reordered after it, so, like StampedLock.validate, fence them off first
+    LoadFence.fence();
+    return trace.isValid() && modCount.get() == stamp;
+  }
+
+  /**
+   * Checks that the current thread can take the write lock without waiting forever for a read lock
+   * it holds, directly or on behalf of a walk, to be released.
+   */
+  private void checkCanWrite() {
+    if (!treeLock.isWriteLockedByCurrentThread()
+        && (treeLock.getReadHoldCount() > 0 || walkTasks.get()[0] > 0)) {
+      throw new IllegalStateException(
+          "can't change the file tree while reading it, such as from the visitor of a walk");
+    }
+  }
+
+  private ReadWriteLock stripe(Directory directory) {
+    return stripes[Util.smearHash(directory.id()) & (stripes.length - 1)];
+  }
+
+  /** The tree's write lock, which fails rather than waiting on a read lock the thread holds. */
+  private final class WriteLock implements Lock {
+
+    private final Lock delegate = treeLock.writeLock();
+
+    @Override
+    public void lock() {
+      checkCanWrite();
+      delegate.lock();
+    }
+
+    @Override
+    public void lockInterruptibly() throws InterruptedException {
+      checkCanWrite();
+      delegate.lockInterruptibly();
+    }
+
+    @Override
+    public boolean tryLock() {
+      return delegate.tryLock();
+    }
+
+    @Override
+    public boolean tryLock(long time, TimeUnit unit) throws InterruptedException {
+      return delegate.tryLock(time, unit);
+    }
+
+    @Override
+    public void unlock() {
+      delegate.unlock();
+    }
+
+    @Override
+    public Condition newCondition() {
+      return delegate.newCondition();
+    }
+  }
+
+  /** Lock that does nothing, used for directories when the lock isn't striped. */
+  private enum NoOpLock implements Lock {
+    INSTANCE;
+
+    @Override
+    public void lock() {}
+
+    @Override
+    public void lockInterruptibly() {}
+
+    @Override
+    public boolean tryLock() {
+      return true;
+    }
+
+    @Override
+    public boolean tryLock(long time, TimeUnit unit) {
+      return true;
+    }
+
+    @Override
+    public void unlock() {}
+
+    @Override
+    public Condition newCondition() {
+      throw new UnsupportedOperationException();
+    }
+  }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.jimfs;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.nio.file.FileVisitResult.CONTINUE;
+import static java.nio.file.FileVisitResult.SKIP_SIBLINGS;
+import static java.nio.file.FileVisitResult.TERMINATE;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.FileVisitor;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.locks.Lock;
+import javax.annotation.Nullable;
+
+/**
+ * A walk over a file tree for {@link Jimfs#walkFileTree(Path, FileVisitor)}. Rather than opening a
+ * directory stream and reading the attributes of each file by path, the walk copies the entries of
+ * each directory straight from its table and reads each file's attributes from the file itself.
+ *
+ * <p>The walk must be started while holding the file store's read lock, which keeps the structure
+ * of the tree from changing until it's done. If a {@link ForkJoinPool} is given, each subdirectory
+ * is walked in a separate task. The tasks don't acquire the read lock themselves, since the thread
+ * that started the walk holds it until all of them are done; if the tree's lock is striped, they
+ * only take the stripe of each directory while copying its entries. The tasks mark themselves as
+ * {@linkplain JimfsFileStore#beginWalkTask() walk tasks} so that a visitor that tries to change
+ * the tree from one fails rather than waiting forever for the walk to end, as it does on the
+ * thread holding the read lock.
+ *
+ * @author Colin Decker
+ */
+final class FileTreeWalk {
+
+  private final JimfsFileStore store;
+  private final FileVisitor<? super Path> visitor;
+  @Nullable private final ForkJoinPool pool;
+
+  /** Set when the visitor terminates the walk or a task fails. */
+  private volatile boolean terminated;
+
+  FileTreeWalk(
+      JimfsFileStore store, FileVisitor<? super Path> visitor, @Nullable ForkJoinPool pool) {
+    this.store = checkNotNull(store);
+    this.visitor = checkNotNull(visitor);
+    this.pool = pool;
+  }
+
+  /** Walks the tree starting at the given file, which is located by the given path. */
+  void walk(JimfsPath start, File file) throws IOException {
+    BasicFileAttributes attributes = new BasicAttributeProvider.Attributes(file);
+    if (!file.isDirectory()) {
+      visitor.visitFile(start, attributes);
+      return;
+    }
+
+    if (visitor.preVisitDirectory(start, attributes) != CONTINUE) {
+      return;
+    }
+
+    DirectoryWalk walk = new DirectoryWalk(null, start, (Directory) file);
+    if (pool == null) {
+      walk.walk();
+      return;
+    }
+
+    try {
+      pool.invoke(walk);
+    } catch (RuntimeException e) {
+      // the exception may be a copy of the one thrown by the task, with the original as its cause
+      for (Throwable t = e; t != null; t = t.getCause()) {
+        if (t instanceof VisitorException && t.getCause() instanceof IOException) {
+          throw (IOException) t.getCause();
+        }
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Handles the result of visiting a file or of pre-visiting a directory that isn't to be walked.
+   * Returns whether or not the rest of the file's siblings should be visited.
+   */
+  private boolean continueAfter(FileVisitResult result) {
+    if (result == TERMINATE) {
+      terminated = true;
+    }
+    return result != TERMINATE && result != SKIP_SIBLINGS;
+  }
+
+  /** Walks the entries of a single directory that has already been pre-visited. */
+  private final class DirectoryWalk extends RecursiveAction {
+
+    private static final long serialVersionUID = 0L;
+
+    @Nullable private final DirectoryWalk parent;
+    private final JimfsPath path;
+    private final Directory directory;
+
+    /** Set when a subdirectory's post-visit asks for the rest of its siblings to be skipped. */
+    private volatile boolean skipRemaining;
+
+    DirectoryWalk(@Nullable DirectoryWalk parent, JimfsPath path, Directory directory) {
+      this.parent = parent;
+      this.path = path;
+      this.directory = directory;
+    }
+
+    @Override
+    protected void compute() {
+      store.beginWalkTask();
+      try {
+        walk();
+      } catch (IOException e) {
+        terminated = true;
+        throw new VisitorException(e);
+      } catch (RuntimeException | Error e) {
+        terminated = true;
+        throw e;
+      } finally {
+        store.endWalkTask();
+      }
+    }
+
+    void walk() throws IOException {
+      Name[] names;
+      File[] files;
+      int count;
+      Lock lock = store.directoryReadLock(directory);
+      lock.lock();
+      try {
+        names = new Name[directory.entryCount()];
+        files = new File[names.length];
+        count = directory.copyEntries(names, files);
+      } finally {
+        lock.unlock();
+      }
+
+      List<DirectoryWalk> forked = pool == null ? null : new ArrayList<DirectoryWalk>();
+      for (int i = 0; i < count && !terminated && !skipRemaining; i++) {
+        JimfsPath childPath = path.resolve(names[i]);
+        File file = files[i];
+        BasicFileAttributes attributes = new BasicAttributeProvider.Attributes(file);
+        if (file.isDirectory()) {
+          FileVisitResult result = visitor.preVisitDirectory(childPath, attributes);
+          if (result == CONTINUE) {
+            DirectoryWalk child = new DirectoryWalk(this, childPath, (Directory) file);
+            if (forked == null) {
+              child.walk();
+            } else {
+              child.fork();
+              forked.add(child);
+            }
+          } else if (!continueAfter(result)) {
+            break;
+          }
+        } else if (!continueAfter(visitor.visitFile(childPath, attributes))) {
+          break;
+        }
+      }
+
+      if (forked != null) {
+        for (int i = forked.size() - 1; i >= 0; i--) {
+          forked.get(i).join();
+        }
+      }
+
+      if (!terminated) {
+        FileVisitResult result = visitor.postVisitDirectory(path, null);
+        if (result == TERMINATE) {
+          terminated = true;
+        } else if (result == SKIP_SIBLINGS && parent != null) {
+          parent.skipRemaining = true;
+        }
+      }
+    }
+  }
+
+  /** Carries an exception thrown by the visitor out of a fork/join task. */
+  private static final class VisitorException extends RuntimeException {
+
+    private static final long serialVersionUID = 0L;
+
+    VisitorException(IOException cause) {
+      super(cause);
+    }
+  }
+}
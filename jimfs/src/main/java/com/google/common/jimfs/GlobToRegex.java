@@ -49,6 +49,23 @@ final class GlobToRegex {
     return new GlobToRegex(glob, separators).convert();
   }
 
+  /**
+   * Returns the literal prefix of the given glob: the longest prefix that every path matching the
+   * glob starts with, not counting any separators or escaped characters. May be empty.
+   */
+  public static String literalPrefix(String glob, String separators) {
+    InternalCharMatcher separatorMatcher = InternalCharMatcher.anyOf(separators);
+    for (int i = 0; i < glob.length(); i++) {
+      char c = glob.charAt(i);
+      if (GLOB_SPECIAL.matches(c) || separatorMatcher.matches(c)) {
+        return glob.substring(0, i);
+      }
+    }
+    return glob;
+  }
+
+  private static final InternalCharMatcher GLOB_SPECIAL = InternalCharMatcher.anyOf("*?[]{},\\");
+
   private static final InternalCharMatcher REGEX_RESERVED =
       InternalCharMatcher.anyOf("^$.?+*\\[]{}()");
 
@@ -17,21 +17,29 @@
 package com.google.common.jimfs;
 
 import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.jimfs.SystemJimfsFileSystemProvider.FILE_SYSTEM_KEY;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.ImmutableMap;
+import java.io.IOError;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.file.ClosedFileSystemException;
 import java.nio.file.FileSystem;
 import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.FileVisitor;
+import java.nio.file.Path;
 import java.nio.file.ProviderNotFoundException;
 import java.nio.file.spi.FileSystemProvider;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.ServiceConfigurationError;
 import java.util.ServiceLoader;
 import java.util.UUID;
+import java.util.concurrent.ForkJoinPool;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.annotation.Nullable;
@@ -75,6 +83,18 @@ import javax.annotation.Nullable;
  *       // ...
  *       .build();  </pre>
  *
+ * <p>A file system can also be created as a copy of the current files of another Jimfs file system
+ * by {@linkplain #snapshot(FileSystem) taking a snapshot} of it and forking the snapshot:
+ *
+ * <pre>
+ *   FileSystem fileSystem = Jimfs.newFileSystem();
+ *   // create some files...
+ *
+ *   try (FileSystemSnapshot snapshot = Jimfs.snapshot(fileSystem)) {
+ *     FileSystem copy = snapshot.fork();
+ *     FileSystem anotherCopy = snapshot.fork();
+ *   }  </pre>
+ *
  * @author Colin Decker
  */
 public final class Jimfs {
@@ -190,6 +210,11 @@ public final class Jimfs {
   
   @VisibleForTesting
   static FileSystem newFileSystem(URI uri, Configuration config) {
+    return newFileSystem(uri, config, new HashMap<Name, Directory>());
+  }
+
+  @VisibleForTesting
+  static FileSystem newFileSystem(URI uri, Configuration config, Map<Name, Directory> roots) {
     checkArgument(
         URI_SCHEME.equals(uri.getScheme()), "uri (%s) must have scheme %s", uri, URI_SCHEME);
 
@@ -197,65 +222,264 @@ public final class Jimfs {
       // Create the FileSystem. It uses JimfsFileSystemProvider as its provider, as that is
       // the provider that actually implements the operations needed for Files methods to work.
       JimfsFileSystem fileSystem =
-          JimfsFileSystems.newFileSystem(JimfsFileSystemProvider.instance(), uri, config);
-
-      /*
-       * Now, call FileSystems.newFileSystem, passing it the FileSystem we just created. This
-       * allows the system-loaded SystemJimfsFileSystemProvider instance to cache the FileSystem
-       * so that methods like Paths.get(URI) work.
-       * We do it in this awkward way to avoid issues when the classes in the API (this class
-       * and Configuration, for example) are loaded by a different classloader than the one that
-       * loads SystemJimfsFileSystemProvider using ServiceLoader. See
-       * https://github.com/google/jimfs/issues/18 for gory details.
-       */
-      try {
-        ImmutableMap<String, ?> env = ImmutableMap.of(FILE_SYSTEM_KEY, fileSystem);
-        FileSystems.newFileSystem(uri, env, SystemJimfsFileSystemProvider.class.getClassLoader());
-      } catch (ProviderNotFoundException | ServiceConfigurationError ignore) {
-        // See the similar catch block below for why we ignore this.
-        // We log there rather than here so that there's only typically one such message per VM.
-      }
-
+          JimfsFileSystems.newFileSystem(JimfsFileSystemProvider.instance(), uri, config, roots);
+      registerWithSystemProvider(uri, fileSystem);
       return fileSystem;
     } catch (IOException e) {
-      throw new AssertionError(e);
+      // only thrown when opening or recovering the file system's write-ahead log fails
+      throw new IOError(e);
     }
   }
 
-  @VisibleForTesting
-  static FileSystem newFileSystem(URI uri, Configuration config, Map<Name, Directory> roots) {
+  /**
+   * Takes a snapshot of the files in the given Jimfs file system, from which new file systems
+   * starting with the same files can be {@linkplain FileSystemSnapshot#fork() forked}. The content
+   * of regular files isn't copied; see {@link FileSystemSnapshot} for details.
+   *
+   * <p>The returned snapshot should be {@linkplain FileSystemSnapshot#close() closed} when no more
+   * file systems need to be forked from it.
+   *
+   * @throws IllegalArgumentException if the given file system wasn't created by Jimfs
+   * @throws ClosedFileSystemException if the file system is closed
+   * @throws IOException if the content of a file that can't be shared (one that has been mapped)
+   *     can't be copied because the disk is full
+   */
+  public static FileSystemSnapshot snapshot(FileSystem fileSystem) throws IOException {
     checkArgument(
-        URI_SCHEME.equals(uri.getScheme()), "uri (%s) must have scheme %s", uri, URI_SCHEME);
+        fileSystem instanceof JimfsFileSystem,
+        "fileSystem (%s) must be a Jimfs file system",
+        fileSystem);
+    return FileSystemSnapshot.create((JimfsFileSystem) fileSystem);
+  }
 
-    try {
-      // Create the FileSystem. It uses JimfsFileSystemProvider as its provider, as that is
-      // the provider that actually implements the operations needed for Files methods to work.
-      JimfsFileSystem fileSystem =
-          JimfsFileSystems.newFileSystem(JimfsFileSystemProvider.instance(), uri, config, roots);
+  /**
+   * Walks the file tree rooted at the given file on a Jimfs file system, like {@link
+   * java.nio.file.Files#walkFileTree(Path, FileVisitor)}. Symbolic links aren't followed and every
+   * level of the tree is visited.
+   *
+   * <p>Rather than opening a directory stream for each directory and reading each file's
+   * attributes by path, the walk reads the directories and their files directly, and the whole walk
+   * sees a single, consistent view of the tree: no file can be created, deleted or moved in the
+   * file system while it's in progress. (If the file system uses {@linkplain
+   * Configuration.Builder#setLockStripeCount lock striping}, files may still be created in and
+   * deleted from directories that the walk hasn't reached yet.) Because of this, <b>the visitor
+   * must not use the file system</b>: an operation that needs to change the file system would wait
+   * for the walk to finish, which would never happen, so such an operation throws {@link
+   * IllegalStateException} instead. Paths to files that need to be read or changed should be
+   * collected during the walk and used once it has returned.
+   *
+   * @return the starting file
+   * @throws IllegalArgumentException if the given path isn't a path on a Jimfs file system
+   * @throws IOException if an I/O error is thrown by the visitor
+   */
+  public static Path walkFileTree(Path start, FileVisitor<? super Path> visitor)
+      throws IOException {
+    return walk(start, visitor, null);
+  }
 
-      /*
-       * Now, call FileSystems.newFileSystem, passing it the FileSystem we just created. This
-       * allows the system-loaded SystemJimfsFileSystemProvider instance to cache the FileSystem
-       * so that methods like Paths.get(URI) work.
-       * We do it in this awkward way to avoid issues when the classes in the API (this class
-       * and Configuration, for example) are loaded by a different classloader than the one that
-       * loads SystemJimfsFileSystemProvider using ServiceLoader. See
-       * https://github.com/google/jimfs/issues/18 for gory details.
-       */
-      try {
-        ImmutableMap<String, ?> env = ImmutableMap.of(FILE_SYSTEM_KEY, fileSystem);
-        FileSystems.newFileSystem(uri, env, SystemJimfsFileSystemProvider.class.getClassLoader());
-      } catch (ProviderNotFoundException | ServiceConfigurationError ignore) {
-        // See the similar catch block below for why we ignore this.
-        // We log there rather than here so that there's only typically one such message per VM.
-      }
+  /**
+   * Walks the file tree rooted at the given file on a Jimfs file system like {@link
+   * #walkFileTree(Path, FileVisitor)}, but walks subdirectories in parallel using tasks in the
+   * given pool. Large trees can be walked many times faster this way.
+   *
+   * <p>The visitor must be thread safe. It's invoked for the entries of different directories
+   * concurrently, but a directory is always pre-visited before any of its entries are visited and
+   * post-visited after all of them have been. {@link FileVisitResult#SKIP_SIBLINGS} returned when
+   * post-visiting a directory only skips those of its siblings that haven't been visited yet, and
+   * {@link FileVisitResult#TERMINATE} stops the walk as soon as the tasks walking other directories
+   * notice it.
+   *
+   * @return the starting file
+   * @throws IllegalArgumentException if the given path isn't a path on a Jimfs file system
+   * @throws IOException if an I/O error is thrown by the visitor
+   */
+  public static Path walkFileTree(Path start, FileVisitor<? super Path> visitor, ForkJoinPool pool)
+      throws IOException {
+    return walk(start, visitor, checkNotNull(pool));
+  }
+
+  private static Path walk(
+      Path start, FileVisitor<? super Path> visitor, @Nullable ForkJoinPool pool)
+      throws IOException {
+    checkArgument(
+        start instanceof JimfsPath, "start (%s) must be a path on a Jimfs file system", start);
+    checkNotNull(visitor);
+    JimfsFileSystem fileSystem = (JimfsFileSystem) start.getFileSystem();
+    fileSystem.getDefaultView().walkFileTree((JimfsPath) start, visitor, pool);
+    return start;
+  }
 
+  /**
+   * Returns the position of the first byte of data at or after the given position in the given
+   * regular file on a Jimfs file system, like {@code lseek} with {@code SEEK_DATA}: the position
+   * itself if it isn't in a hole, or else the position just past the hole. Returns -1 if there is
+   * no data at or after the position, including if the position is at or past the end of the file.
+   *
+   * <p>Files are sparse: writing past the end of a file, or extending it by truncating it to a
+   * larger size, leaves holes, which read as zeros but take no space until they're written to.
+   * Holes are tracked a whole block at a time, so a hole never starts or ends in the middle of a
+   * block.
+   *
+   * @throws IllegalArgumentException if the given path isn't a path on a Jimfs file system or the
+   *     position is negative
+   * @throws IOException if the file doesn't exist or isn't a regular file
+   */
+  public static long seekData(Path file, long position) throws IOException {
+    return seek(file, position, true);
+  }
+
+  /**
+   * Returns the position of the first byte in a hole at or after the given position in the given
+   * regular file on a Jimfs file system, like {@code lseek} with {@code SEEK_HOLE}: the position
+   * itself if it's in a hole, or else the position just past the data it's in. The end of the file
+   * counts as a hole, so this returns the size of the file if there's no hole after the position.
+   * Returns -1 if the position is at or past the end of the file. See {@link #seekData} for how
+   * holes are made.
+   *
+   * @throws IllegalArgumentException if the given path isn't a path on a Jimfs file system or the
+   *     position is negative
+   * @throws IOException if the file doesn't exist or isn't a regular file
+   */
+  public static long seekHole(Path file, long position) throws IOException {
+    return seek(file, position, false);
+  }
+
+  private static long seek(Path file, long position, boolean data) throws IOException {
+    checkArgument(
+        file instanceof JimfsPath, "file (%s) must be a path on a Jimfs file system", file);
+    checkArgument(position >= 0, "position (%s) must not be negative", position);
+    JimfsFileSystem fileSystem = (JimfsFileSystem) file.getFileSystem();
+    return fileSystem.getDefaultView().seek((JimfsPath) file, position, data);
+  }
+
+  /**
+   * Creates a new, empty batch of operations to apply to the given Jimfs file system. A batch
+   * applies all of its operations under a single acquisition of the file system's lock; see {@link
+   * FileSystemBatch} for details.
+   *
+   * @throws IllegalArgumentException if the given file system wasn't created by Jimfs
+   */
+  public static FileSystemBatch newBatch(FileSystem fileSystem) {
+    checkArgument(
+        fileSystem instanceof JimfsFileSystem,
+        "fileSystem (%s) must be a Jimfs file system",
+        fileSystem);
+    return new FileSystemBatch((JimfsFileSystem) fileSystem);
+  }
+
+  /**
+   * Loads a snapshot from the image in the given file, which must have been {@linkplain
+   * FileSystemSnapshot#save(Path) saved} from a snapshot. New file systems starting with the files
+   * in the image can then be {@linkplain FileSystemSnapshot#fork() forked} from the snapshot.
+   *
+   * <p>Images don't include the configuration of the file system they were saved from, so the
+   * configuration to use is given here; forks of the snapshot use it. It should generally match the
+   * configuration of the original file system: in particular, it must support the attribute views
+   * of the files' attributes. The content of the files is loaded onto a new disk created from the
+   * configuration, which the forks share as described in {@link FileSystemSnapshot}.
+   *
+   * <p>Attribute values in the image are only deserialized if they're strings or boxed primitives,
+   * the only types of values other than those of the built-in attribute views that images contain,
+   * so loading an image from an untrusted source can't deserialize objects of any other class.
+   *
+   * <p>The returned snapshot should be {@linkplain FileSystemSnapshot#close() closed} when no more
+   * file systems need to be forked from it.
+   *
+   * @throws IOException if the file isn't a valid image, if reading it fails or if the content of
+   *     the files in it doesn't fit in the configured {@linkplain Configuration.Builder#setMaxSize
+   *     maximum size}
+   */
+  public static FileSystemSnapshot loadSnapshot(Path image, Configuration configuration)
+      throws IOException {
+    return FileSystemSnapshot.load(checkNotNull(image), checkNotNull(configuration), false);
+  }
+
+  /**
+   * Loads a snapshot from the image in the given file like {@link #loadSnapshot(Path,
+   * Configuration)}, but without reading the content of the regular files in the image: each
+   * file's content is read from the image when the file is first read or written, in the snapshot
+   * or in a fork of it. This makes loading take time proportional to the number of files rather
+   * than the amount of data in them, which helps when only a few of the files are used.
+   *
+   * <p>The image must not be changed or deleted while the content of the files may still be
+   * needed. If the content of a file can't be read when it's needed, or doesn't fit on the disk,
+   * the read or write that needed it fails with an {@code IOException}.
+   *
+   * @throws IOException if the file isn't a valid image or if reading it fails
+   */
+  public static FileSystemSnapshot loadSnapshotLazily(Path image, Configuration configuration)
+      throws IOException {
+    return FileSystemSnapshot.load(checkNotNull(image), checkNotNull(configuration), true);
+  }
+
+  /**
+   * Takes a snapshot of the files in the given directory on the host file system (or any file
+   * system other than Jimfs). The files in the directory become the files in the {@linkplain
+   * Configuration.Builder#setWorkingDirectory working directory} of the file systems {@linkplain
+   * FileSystemSnapshot#fork() forked} from the snapshot, which use the given configuration.
+   *
+   * <p>The content of the regular files isn't read when the snapshot is taken: each file's content
+   * is read from the host file when the file is first read or written, in the snapshot or in a
+   * fork. The host files must not be changed while their content may still be needed. Directories,
+   * symbolic links (with their targets unchanged), file times and, where both file systems support
+   * them, POSIX permissions are copied; other kinds of files are skipped.
+   *
+   * <p>The returned snapshot should be {@linkplain FileSystemSnapshot#close() closed} when no more
+   * file systems need to be forked from it.
+   *
+   * @throws IOException if reading the directory fails or if the name of a file in it isn't a
+   *     valid name, or is equal to the name of another file, in the configured file system
+   */
+  public static FileSystemSnapshot snapshot(Path directory, Configuration configuration)
+      throws IOException {
+    return FileSystemSnapshot.copyOf(checkNotNull(directory), checkNotNull(configuration));
+  }
+
+  /** Creates a new file system forked from the given snapshot. */
+  static FileSystem newFileSystem(FileSystemSnapshot snapshot) {
+    return newFileSystem(newRandomFileSystemName(), snapshot);
+  }
+
+  /** Creates a new file system with the given name forked from the given snapshot. */
+  static FileSystem newFileSystem(String name, FileSystemSnapshot snapshot) {
+    URI uri;
+    try {
+      uri = new URI(URI_SCHEME, name, null, null);
+    } catch (URISyntaxException e) {
+      throw new IllegalArgumentException(e);
+    }
+
+    try {
+      JimfsFileSystem fileSystem =
+          JimfsFileSystems.newFileSystem(JimfsFileSystemProvider.instance(), uri, snapshot);
+      registerWithSystemProvider(uri, fileSystem);
       return fileSystem;
     } catch (IOException e) {
+      // copying the snapshot only shares blocks, which doesn't need disk space
       throw new AssertionError(e);
     }
   }
 
+  private static void registerWithSystemProvider(URI uri, JimfsFileSystem fileSystem)
+      throws IOException {
+    /*
+     * Call FileSystems.newFileSystem, passing it the FileSystem we just created. This allows the
+     * system-loaded SystemJimfsFileSystemProvider instance to cache the FileSystem so that methods
+     * like Paths.get(URI) work.
+     * We do it in this awkward way to avoid issues when the classes in the API (this class and
+     * Configuration, for example) are loaded by a different classloader than the one that loads
+     * SystemJimfsFileSystemProvider using ServiceLoader. See
+     * https://github.com/google/jimfs/issues/18 for gory details.
+     */
+    try {
+      ImmutableMap<String, ?> env = ImmutableMap.of(FILE_SYSTEM_KEY, fileSystem);
+      FileSystems.newFileSystem(uri, env, SystemJimfsFileSystemProvider.class.getClassLoader());
+    } catch (ProviderNotFoundException | ServiceConfigurationError ignore) {
+      // See the similar catch block below for why we ignore this.
+      // We log there rather than here so that there's only typically one such message per VM.
+    }
+  }
+
   /**
    * The system-loaded instance of {@code SystemJimfsFileSystemProvider}, or {@code null} if it
    * could not be found or loaded.
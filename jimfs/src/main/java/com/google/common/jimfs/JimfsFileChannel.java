@@ -16,6 +16,7 @@
 
 package com.google.common.jimfs;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkPositionIndexes;
 import static java.nio.file.StandardOpenOption.APPEND;
@@ -159,7 +160,7 @@ final class JimfsFileChannel extends FileChannel {
           if (read != -1) {
             position += read;
           }
-          file.updateAccessTime();
+          fileSystemState.updateAccessTime(file);
           completed = true;
         } finally {
           file.readLock().unlock();
@@ -196,7 +197,7 @@ final class JimfsFileChannel extends FileChannel {
           if (read != -1) {
             position += read;
           }
-          file.updateAccessTime();
+          fileSystemState.updateAccessTime(file);
           completed = true;
         } finally {
           file.readLock().unlock();
@@ -232,7 +233,7 @@ final class JimfsFileChannel extends FileChannel {
           }
           written = file.write(position, src);
           position += written;
-          file.updateModifiedTime();
+          fileSystemState.updateModifiedTime(file);
           completed = true;
         } finally {
           file.writeLock().unlock();
@@ -270,7 +271,7 @@ final class JimfsFileChannel extends FileChannel {
           }
           written = file.write(position, buffers);
           position += written;
-          file.updateModifiedTime();
+          fileSystemState.updateModifiedTime(file);
           completed = true;
         } finally {
           file.writeLock().unlock();
@@ -375,7 +376,7 @@ final class JimfsFileChannel extends FileChannel {
           if (position > size) {
             position = size;
           }
-          file.updateModifiedTime();
+          fileSystemState.updateModifiedTime(file);
           completed = true;
         } finally {
           file.writeLock().unlock();
@@ -424,7 +425,7 @@ final class JimfsFileChannel extends FileChannel {
       file.readLock().lockInterruptibly();
       try {
         transferred = file.transferTo(position, count, target);
-        file.updateAccessTime();
+        fileSystemState.updateAccessTime(file);
         completed = true;
       } finally {
         file.readLock().unlock();
@@ -462,7 +463,7 @@ final class JimfsFileChannel extends FileChannel {
             position = file.sizeWithoutLocking();
             transferred = file.transferFrom(src, position, count);
             this.position = position + transferred;
-            file.updateModifiedTime();
+            fileSystemState.updateModifiedTime(file);
             completed = true;
           } finally {
             file.writeLock().unlock();
@@ -483,7 +484,7 @@ final class JimfsFileChannel extends FileChannel {
         file.writeLock().lockInterruptibly();
         try {
           transferred = file.transferFrom(src, position, count);
-          file.updateModifiedTime();
+          fileSystemState.updateModifiedTime(file);
           completed = true;
         } finally {
           file.writeLock().unlock();
@@ -516,7 +517,7 @@ final class JimfsFileChannel extends FileChannel {
       file.readLock().lockInterruptibly();
       try {
         read = file.read(position, dst);
-        file.updateAccessTime();
+        fileSystemState.updateAccessTime(file);
         completed = true;
       } finally {
         file.readLock().unlock();
@@ -553,7 +554,7 @@ final class JimfsFileChannel extends FileChannel {
             position = file.sizeWithoutLocking();
             written = file.write(position, src);
             this.position = position + written;
-            file.updateModifiedTime();
+            fileSystemState.updateModifiedTime(file);
             completed = true;
           } finally {
             file.writeLock().unlock();
@@ -574,7 +575,7 @@ final class JimfsFileChannel extends FileChannel {
         file.writeLock().lockInterruptibly();
         try {
           written = file.write(position, src);
-          file.updateModifiedTime();
+          fileSystemState.updateModifiedTime(file);
           completed = true;
         } finally {
           file.writeLock().unlock();
@@ -589,11 +590,74 @@ final class JimfsFileChannel extends FileChannel {
     return written;
   }
 
+  /**
+   * Maps a region of this channel's file into memory.
+   *
+   * <p>For {@link MapMode#READ_ONLY READ_ONLY} and {@link MapMode#READ_WRITE READ_WRITE} mappings,
+   * the returned buffer shares memory with the file (see {@link RegularFile#map}): the blocks of
+   * the region are moved to contiguous direct memory the first time they're mapped, after which
+   * mapping them again and accessing the buffer involve no copying. {@link MapMode#PRIVATE
+   * PRIVATE} mappings get a copy of the region.
+   *
+   * <p>The returned buffer is a direct buffer that is not backed by a real file mapping, so on Java
+   * 8 and earlier its {@link MappedByteBuffer#load() load()}, {@link MappedByteBuffer#isLoaded()
+   * isLoaded()} and {@link MappedByteBuffer#force() force()} methods throw {@code
+   * UnsupportedOperationException}. Like any mapping, it remains valid after the channel is closed.
+   */
   @Override
   public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
-    // would like this to pretend to work, but can't create an implementation of MappedByteBuffer
-    // well, a direct buffer could be cast to MappedByteBuffer, but it couldn't work in general
-    throw new UnsupportedOperationException();
+    checkNotNull(mode);
+    Util.checkNotNegative(position, "position");
+    Util.checkNotNegative(size, "size");
+    checkArgument(size <= Integer.MAX_VALUE, "size (%s) may not be > Integer.MAX_VALUE", size);
+    checkOpen();
+    checkReadable();
+    if (mode != MapMode.READ_ONLY) {
+      checkWritable();
+    }
+
+    ByteBuffer buffer = null; // will definitely either be assigned or an exception will be thrown
+
+    boolean completed = false;
+    try {
+      if (!beginBlocking()) {
+        return null; // AsynchronousCloseException will be thrown
+      }
+      file.writeLock().lockInterruptibly();
+      try {
+        buffer = map(mode, position, (int) size);
+        completed = true;
+      } finally {
+        file.writeLock().unlock();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      endBlocking(completed);
+    }
+
+    return (MappedByteBuffer) (mode == MapMode.READ_ONLY ? buffer.asReadOnlyBuffer() : buffer);
+  }
+
+  /** Maps the given region of the file. Must be called while holding the file's write lock. */
+  private ByteBuffer map(MapMode mode, long position, int size) throws IOException {
+    long end = position + size;
+    if (end > file.sizeWithoutLocking()) {
+      if (!write) {
+        throw new IOException("channel not open for writing; cannot extend file to required size");
+      }
+      file.extend(end);
+      fileSystemState.updateModifiedTime(file);
+    }
+
+    if (mode == MapMode.PRIVATE) {
+      ByteBuffer copy = ByteBuffer.allocateDirect(size);
+      file.read(position, copy);
+      copy.clear();
+      return copy;
+    }
+
+    return file.map(position, size);
   }
 
   @Override
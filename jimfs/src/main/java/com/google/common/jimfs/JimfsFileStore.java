@@ -32,8 +32,6 @@ import java.nio.file.attribute.FileAttributeView;
 import java.nio.file.attribute.FileStoreAttributeView;
 import java.util.Set;
 import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
 import javax.annotation.Nullable;
 
 /**
@@ -50,32 +48,33 @@ import javax.annotation.Nullable;
 final class JimfsFileStore extends FileStore {
 
   private final FileTree tree;
-  private final HeapDisk disk;
+  private final Disk disk;
   private final AttributeService attributes;
   private final FileFactory factory;
   private final ImmutableSet<Feature> supportedFeatures;
   private final FileSystemState state;
 
-  private final Lock readLock;
-  private final Lock writeLock;
+  /** Cache of the results of looking up absolute paths, or null if lookups aren't cached. */
+  @Nullable private final PathLookupCache lookupCache;
+
+  private final FileTreeLock lock;
 
   public JimfsFileStore(
       FileTree tree,
       FileFactory factory,
-      HeapDisk disk,
+      Disk disk,
       AttributeService attributes,
       ImmutableSet<Feature> supportedFeatures,
-      FileSystemState state) {
+      FileSystemState state,
+      @Nullable PathLookupCache lookupCache) {
     this.tree = checkNotNull(tree);
     this.factory = checkNotNull(factory);
     this.disk = checkNotNull(disk);
     this.attributes = checkNotNull(attributes);
     this.supportedFeatures = checkNotNull(supportedFeatures);
     this.state = checkNotNull(state);
-
-    ReadWriteLock lock = new ReentrantReadWriteLock();
-    this.readLock = lock.readLock();
-    this.writeLock = lock.writeLock();
+    this.lookupCache = lookupCache;
+    this.lock = tree.lock();
   }
 
   // internal use methods
@@ -87,12 +86,74 @@ final class JimfsFileStore extends FileStore {
 
   /** Returns the read lock for this store. */
   Lock readLock() {
-    return readLock;
+    return lock.readLock();
   }
 
   /** Returns the write lock for this store. */
   Lock writeLock() {
-    return writeLock;
+    return lock.writeLock();
+  }
+
+  /**
+   * Returns the lock for changing the entries of a single directory in this store. Unless
+   * {@linkplain #isLockStriped() lock striping} is enabled, this is the write lock.
+   */
+  Lock updateLock() {
+    return lock.updateLock();
+  }
+
+  /** Returns whether or not directories in this store are guarded by striped locks. */
+  boolean isLockStriped() {
+    return lock.isStriped();
+  }
+
+  /** Returns the lock for reading the entries of the given directory. */
+  Lock directoryReadLock(Directory directory) {
+    return lock.directoryReadLock(directory);
+  }
+
+  /** Returns the lock for changing the entries of the given directory. */
+  Lock directoryWriteLock(Directory directory) {
+    return lock.directoryWriteLock(directory);
+  }
+
+  /**
+   * Marks the start of a task walking part of this store's tree for a walk started by a thread
+   * holding the read lock.
+   */
+  void beginWalkTask() {
+    lock.beginWalkTask();
+  }
+
+  /** Marks the end of a task started with {@link #beginWalkTask()}. */
+  void endWalkTask() {
+    lock.endWalkTask();
+  }
+
+  /** Marks the start of a change to several directories in this store, such as a move. */
+  void beginStructuralUpdate() {
+    lock.beginStructuralUpdate();
+  }
+
+  /** Marks the end of a change to several directories in this store. */
+  void endStructuralUpdate() {
+    lock.endStructuralUpdate();
+  }
+
+  /**
+   * Returns a stamp for {@linkplain #lookUpOptimistically optimistic lookups}, or 0 if the
+   * structure of the tree is currently being changed.
+   */
+  long tryOptimisticRead() {
+    return lock.tryOptimisticRead();
+  }
+
+  /**
+   * Returns whether or not the directories in the given trace and the structure of the tree are
+   * unchanged since the given stamp was obtained.
+   */
+  boolean validate(long stamp, LookupTrace trace) {
+    return lock.validate(stamp, trace);
   }
 
   /** Returns the names of the root directories in this store. */
@@ -125,9 +186,28 @@ final class JimfsFileStore extends FileStore {
   DirectoryEntry lookUp(File workingDirectory, JimfsPath path, Set<? super LinkOption> options)
       throws IOException {
     state.checkOpen();
+    if (lookupCache != null && path.isAbsolute()) {
+      return lookupCache.lookUp(tree, path, options, true, new LookupTrace());
+    }
     return tree.lookUp(workingDirectory, path, options);
   }
 
+  /**
+   * Looks up the file at the given path like {@link #lookUp}, but without locking, recording the
+   * directories it reads in the given empty trace. The outcome of the lookup, including any
+   * exception it throws, can only be trusted if a stamp obtained from {@link #tryOptimisticRead()}
+   * beforehand is {@linkplain #validate valid} along with the trace afterwards.
+   */
+  DirectoryEntry lookUpOptimistically(
+      File workingDirectory, JimfsPath path, Set<? super LinkOption> options, LookupTrace trace)
+      throws IOException {
+    state.checkOpen();
+    if (lookupCache != null && path.isAbsolute()) {
+      return lookupCache.lookUp(tree, path, options, false, trace);
+    }
+    return tree.lookUpOptimistically(workingDirectory, path, options, trace);
+  }
+
   /** Returns a supplier that creates a new regular file. */
   Supplier<RegularFile> regularFileCreator() {
     state.checkOpen();
@@ -260,8 +340,32 @@ final class JimfsFileStore extends FileStore {
     return null; // no supported views
   }
 
+  /**
+   * Returns the value of the given attribute of this file store. If the file system caches path
+   * lookups, the "lookupCache" view provides the attributes "size" (the number of slots in the
+   * cache), "hitCount", "missCount" and "hitRate" of the cache; no other attributes are supported.
+   */
   @Override
   public Object getAttribute(String attribute) throws IOException {
-    throw new UnsupportedOperationException();
+    state.checkOpen();
+    int separatorIndex = attribute.indexOf(':');
+    if (lookupCache == null
+        || separatorIndex == -1
+        || !attribute.substring(0, separatorIndex).equals("lookupCache")) {
+      throw new UnsupportedOperationException();
+    }
+
+    switch (attribute.substring(separatorIndex + 1)) {
+      case "size":
+        return lookupCache.size();
+      case "hitCount":
+        return lookupCache.hitCount();
+      case "missCount":
+        return lookupCache.missCount();
+      case "hitRate":
+        return lookupCache.hitRate();
+      default:
+        throw new IllegalArgumentException("unrecognized attribute: " + attribute);
+    }
   }
 }
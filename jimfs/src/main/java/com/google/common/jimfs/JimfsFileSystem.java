@@ -67,7 +67,7 @@ import javax.annotation.Nullable;
  * <ul>
  *   <li>{@link com.google.common.jimfs.FileFactory FileFactory} handles creation of new file
  *       objects.
- *   <li>{@link com.google.common.jimfs.HeapDisk HeapDisk} handles allocation of blocks to {@link
+ *   <li>{@link com.google.common.jimfs.Disk Disk} handles allocation of blocks to {@link
  *       RegularFile RegularFile} instances.
  *   <li>{@link com.google.common.jimfs.FileTree FileTree} stores the root of the file hierarchy and
  *       handles file lookup.
@@ -132,11 +132,17 @@ import javax.annotation.Nullable;
  *
  * <h3>Regular files</h3>
  *
- * {@link RegularFile RegularFile} makes use of a singleton {@link com.google.common.jimfs.HeapDisk
- * HeapDisk}. A disk is a resizable factory and cache for fixed size blocks of memory. These blocks
+ * {@link RegularFile RegularFile} makes use of a singleton {@link com.google.common.jimfs.Disk
+ * Disk}. A disk is a resizable factory and cache for fixed size blocks of memory. These blocks
  * are allocated to files as needed and returned to the disk when a file is deleted or truncated.
  * When cached free blocks are available, those blocks are allocated to files first. If more blocks
- * are needed, they are created.
+ * are needed, they are created. Blocks are {@link java.nio.ByteBuffer ByteBuffers}: the default
+ * {@link com.google.common.jimfs.HeapDisk HeapDisk} wraps byte arrays on the heap, while {@link
+ * com.google.common.jimfs.DirectDisk DirectDisk} slices blocks from large direct buffers.
+ *
+ * <p>Copying a regular file shares its blocks with the copy until one of the files writes to them.
+ * A {@link FileSystemSnapshot} uses the same sharing to copy every file in a file system without
+ * copying any content, and to fork new file systems from that copy.
  *
  * <h3>Linking</h3>
  *
@@ -158,8 +164,15 @@ import javax.annotation.Nullable;
  *
  * All file system operations should be safe in a multithreaded environment. The file hierarchy
  * itself is protected by a file system level read-write lock. This ensures safety of all
- * modifications to directory tables as well as atomicity of operations like file moves. Regular
- * files are each protected by a read-write lock which is obtained for each read or write operation.
+ * modifications to directory tables as well as atomicity of operations like file moves. If the
+ * {@linkplain Configuration.Builder#setLockStripeCount lock stripe count} is greater than 1, the
+ * file system lock is complemented by striped {@link com.google.common.jimfs.FileTreeLock
+ * directory locks}: creating and deleting files only holds the file system lock for reading plus
+ * the lock for the parent directory, while moves and other structural changes still hold the file
+ * system lock for writing. Most lookups don't lock at all: they are done optimistically and
+ * validated against a modification count for the tree, only falling back to the read lock if the
+ * tree was changed while they ran. Regular files are each protected by a read-write lock which is
+ * obtained for each read or write operation.
  * File attributes are protected by synchronization on the file object itself.
  *
  * @author Colin Decker
@@ -176,7 +189,7 @@ final class JimfsFileSystem extends FileSystem {
 
   private final FileSystemView defaultView;
 
-  private final WatchServiceConfiguration watchServiceConfig;
+  private final Configuration config;
 
   JimfsFileSystem(
       JimfsFileSystemProvider provider,
@@ -184,13 +197,13 @@ final class JimfsFileSystem extends FileSystem {
       JimfsFileStore fileStore,
       PathService pathService,
       FileSystemView defaultView,
-      WatchServiceConfiguration watchServiceConfig) {
+      Configuration config) {
     this.provider = checkNotNull(provider);
     this.uri = checkNotNull(uri);
     this.fileStore = checkNotNull(fileStore);
     this.pathService = checkNotNull(pathService);
     this.defaultView = checkNotNull(defaultView);
-    this.watchServiceConfig = checkNotNull(watchServiceConfig);
+    this.config = checkNotNull(config);
   }
 
   @Override
@@ -234,6 +247,11 @@ final class JimfsFileSystem extends FileSystem {
     return pathService;
   }
 
+  /** Returns the configuration this file system was created with. */
+  Configuration configuration() {
+    return config;
+  }
+
   /** Returns the file store for this file system. */
   public JimfsFileStore getFileStore() {
     return fileStore;
@@ -282,7 +300,7 @@ final class JimfsFileSystem extends FileSystem {
 
   @Override
   public WatchService newWatchService() throws IOException {
-    return watchServiceConfig.newWatchService(defaultView, pathService);
+    return config.watchServiceConfig.newWatchService(defaultView, pathService);
   }
 
   @Nullable private ExecutorService defaultThreadPool;
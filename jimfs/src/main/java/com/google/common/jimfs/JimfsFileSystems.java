@@ -16,12 +16,16 @@
 
 package com.google.common.jimfs;
 
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.Closeable;
 import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.net.URI;
 import java.util.HashMap;
 import java.util.Map;
+import javax.annotation.Nullable;
 
 /**
  * Initializes and configures new file system instances.
@@ -67,35 +71,83 @@ final class JimfsFileSystems {
    */
   public static JimfsFileSystem newFileSystem(
       JimfsFileSystemProvider provider, URI uri, Configuration config) throws IOException {
-    PathService pathService = new PathService(config);
-    FileSystemState state = new FileSystemState(removeFileSystemRunnable(uri));
-
-    JimfsFileStore fileStore = createFileStore(config, pathService, state, new HashMap<Name, Directory>());
-    FileSystemView defaultView = createDefaultView(config, fileStore, pathService);
-    WatchServiceConfiguration watchServiceConfig = config.watchServiceConfig;
+    return newFileSystem(provider, uri, config, new HashMap<Name, Directory>());
+  }
 
-    JimfsFileSystem fileSystem =
-        new JimfsFileSystem(provider, uri, fileStore, pathService, defaultView, watchServiceConfig);
+  /**
+   * Initialize and configure a new file system with the given provider and URI, using the given
+   * configuration and storing its root directories in the given map. Root directories already in
+   * the map are used as they are, along with the files in them.
+   *
+   * <p>If the configuration specifies a write-ahead log, the map must be empty; the files recorded
+   * in the log, if any, are recovered into it.
+   *
+   * @throws IOException if the configuration specifies a write-ahead log that can't be opened or
+   *     recovered
+   */
+  public static JimfsFileSystem newFileSystem(
+      JimfsFileSystemProvider provider, URI uri, Configuration config, Map<Name, Directory> roots)
+      throws IOException {
+    PathService pathService = new PathService(config);
+    Disk disk = config.diskConfig.newDisk(config);
+    if (config.writeAheadLogDirectory == null) {
+      return newFileSystem(provider, uri, config, pathService, disk, null, roots, 0);
+    }
 
-    pathService.setFileSystem(fileSystem);
-    return fileSystem;
+    checkArgument(roots.isEmpty(), "roots must be empty for a file system with a write-ahead log");
+    WriteAheadLog log =
+        WriteAheadLog.open(
+            config.writeAheadLogDirectory, config.checkpointThreshold, pathService, disk, roots);
+    try {
+      return newFileSystem(provider, uri, config, pathService, disk, log, roots, log.nextFileId());
+    } catch (IOException | RuntimeException | Error e) {
+      log.close();
+      throw e;
+    }
   }
 
   /**
-   * Initialize and configure a new file system with the given provider and URI, using the given
-   * configuration.
+   * Initialize and configure a new file system with the given provider and URI, forked from the
+   * given snapshot: the file system uses the snapshot's configuration and starts with copies of the
+   * files in the snapshot.
    */
   public static JimfsFileSystem newFileSystem(
-      JimfsFileSystemProvider provider, URI uri, Configuration config, Map<Name, Directory> roots) throws IOException {
+      JimfsFileSystemProvider provider, URI uri, FileSystemSnapshot snapshot) throws IOException {
+    Configuration config = snapshot.configuration();
     PathService pathService = new PathService(config);
-    FileSystemState state = new FileSystemState(removeFileSystemRunnable(uri));
+    Map<Name, Directory> roots = snapshot.copyRoots(pathService);
+    Disk disk = config.diskConfig.newDisk(config);
+    // forks aren't durable, even if the snapshot's file system was
+    return newFileSystem(
+        provider, uri, config, pathService, disk, null, roots, snapshot.nextFileId());
+  }
+
+  private static JimfsFileSystem newFileSystem(
+      JimfsFileSystemProvider provider,
+      URI uri,
+      Configuration config,
+      PathService pathService,
+      Disk disk,
+      @Nullable WriteAheadLog log,
+      Map<Name, Directory> roots,
+      int firstFileId)
+      throws IOException {
+    FileTimeSource timeSource = config.fileTimeSource.newInstance();
+    FileSystemState state =
+        new FileSystemState(timeSource, config.updateAccessTimes, removeFileSystemRunnable(uri));
+    if (timeSource instanceof Closeable) {
+      state.register((Closeable) timeSource);
+    }
+    if (log != null) {
+      state.register(log);
+    }
 
-    JimfsFileStore fileStore = createFileStore(config, pathService, state, roots);
+    JimfsFileStore fileStore =
+        createFileStore(config, pathService, state, disk, log, roots, firstFileId);
     FileSystemView defaultView = createDefaultView(config, fileStore, pathService);
-    WatchServiceConfiguration watchServiceConfig = config.watchServiceConfig;
 
     JimfsFileSystem fileSystem =
-        new JimfsFileSystem(provider, uri, fileStore, pathService, defaultView, watchServiceConfig);
+        new JimfsFileSystem(provider, uri, fileStore, pathService, defaultView, config);
 
     pathService.setFileSystem(fileSystem);
     return fileSystem;
@@ -103,12 +155,15 @@ final class JimfsFileSystems {
 
   /** Creates the file store for the file system. */
   private static JimfsFileStore createFileStore(
-      Configuration config, PathService pathService, FileSystemState state, Map<Name, Directory> roots) {
+      Configuration config,
+      PathService pathService,
+      FileSystemState state,
+      Disk disk,
+      @Nullable WriteAheadLog log,
+      Map<Name, Directory> roots,
+      int firstFileId) {
     AttributeService attributeService = new AttributeService(config);
-
-    // TODO(cgdecker): Make disk values configurable
-    HeapDisk disk = new HeapDisk(config);
-    FileFactory fileFactory = new FileFactory(disk);
+    FileFactory fileFactory = new FileFactory(disk, firstFileId, log, state.timeSource());
 
     // create roots
     for (String root : config.roots) {
@@ -118,14 +173,27 @@ final class JimfsFileSystems {
       }
 
       Name rootName = path.root();
+      if (roots.containsKey(rootName)) {
+        continue;
+      }
 
       Directory rootDir = fileFactory.createRootDirectory(rootName);
       attributeService.setInitialAttributes(rootDir);
       roots.put(rootName, rootDir);
     }
 
+    FileTree tree = new FileTree(roots, new FileTreeLock(config.lockStripeCount));
+    if (log != null) {
+      log.setTree(tree);
+    }
+    if (config.coldFileIdleMillis != 0) {
+      state.register(
+          new ColdFileCompressor(tree, config.coldFileIdleMillis, config.decompressedCacheSize));
+    }
+    PathLookupCache lookupCache =
+        config.pathLookupCacheSize == 0 ? null : new PathLookupCache(config.pathLookupCacheSize);
     return new JimfsFileStore(
-        new FileTree(roots), fileFactory, disk, attributeService, config.supportedFeatures, state);
+        tree, fileFactory, disk, attributeService, config.supportedFeatures, state, lookupCache);
   }
 
   /** Creates the default view of the file system using the given working directory. */
@@ -138,12 +206,25 @@ final class JimfsFileSystems {
       throw new IllegalArgumentException("Invalid working dir path: " + workingDirPath);
     }
 
-    for (Name name : workingDirPath.names()) {
-      Directory newDir = fileStore.directoryCreator().get();
-      fileStore.setInitialAttributes(newDir);
-      dir.link(name, newDir);
-
-      dir = newDir;
+    // a write-ahead log may already be compacting the tree, so lock it as for any other change
+    fileStore.writeLock().lock();
+    try {
+      for (Name name : workingDirPath.names()) {
+        DirectoryEntry entry = dir.get(name);
+        if (entry != null && entry.file().isDirectory()) {
+          // the directory already exists in roots the file system was created with
+          dir = (Directory) entry.file();
+          continue;
+        }
+
+        Directory newDir = fileStore.directoryCreator().get();
+        fileStore.setInitialAttributes(newDir);
+        dir.link(name, newDir);
+
+        dir = newDir;
+      }
+    } finally {
+      fileStore.writeLock().unlock();
     }
 
     return new FileSystemView(fileStore, dir, workingDirPath);
@@ -21,13 +21,24 @@ import static com.google.common.base.Preconditions.checkPositionIndexes;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.primitives.Ints;
+import com.google.common.primitives.UnsignedBytes;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
 
 /**
  * {@link InputStream} for reading from a file's {@link RegularFile}.
  *
+ * <p>Reading a single byte at a time is common enough (for example, by a {@link
+ * java.io.DataInputStream} that isn't buffered) that locking the file and updating its access time
+ * for each byte would dominate the cost of reading. Instead, when {@link #read()} reads a byte with
+ * the file's read lock, it keeps a window over the rest of the bytes in the same block, which
+ * following calls read without locking for as long as the file's content is {@linkplain
+ * RegularFile#isContentUnchangedSince unchanged}. The file's access time is updated when the window
+ * is taken rather than for each byte.
+ *
  * @author Colin Decker
  */
 final class JimfsInputStream extends InputStream {
@@ -42,6 +53,17 @@ final class JimfsInputStream extends InputStream {
   @GuardedBy("this")
   private boolean finished;
 
+  /**
+   * The bytes following {@link #pos} in its block, which may be read without locking while the
+   * file's content is unchanged since {@link #windowVersion}, or null.
+   */
+  @GuardedBy("this")
+  @Nullable
+  private ByteBuffer window;
+
+  @GuardedBy("this")
+  private int windowVersion;
+
   private final FileSystemState fileSystemState;
 
   public JimfsInputStream(RegularFile file, FileSystemState fileSystemState) {
@@ -57,14 +79,28 @@ final class JimfsInputStream extends InputStream {
       return -1;
     }
 
+    ByteBuffer window = this.window;
+    if (window != null && window.hasRemaining()) {
+      byte b = window.get(window.position());
+      // the version must be checked after reading: if the content is unchanged, so was the byte
+      if (file.isContentUnchangedSince(windowVersion)) {
+        window.position(window.position() + 1);
+        pos++;
+        return UnsignedBytes.toInt(b);
+      }
+    }
+
     file.readLock().lock();
     try {
-
-      int b = file.read(pos++); // it's ok for pos to go beyond size()
+      int b = file.read(pos); // it's ok for pos to go beyond size()
       if (b == -1) {
         finished = true;
+        this.window = null;
       } else {
-        file.updateAccessTime();
+        pos++;
+        this.window = pos < file.sizeWithoutLocking() ? file.readWindow(pos) : null;
+        windowVersion = file.contentVersion();
+        fileSystemState.updateAccessTime(file);
       }
       return b;
     } finally {
@@ -89,6 +125,7 @@ final class JimfsInputStream extends InputStream {
       return -1;
     }
 
+    window = null;
     file.readLock().lock();
     try {
       int read = file.read(pos, b, off, len);
@@ -98,7 +135,7 @@ final class JimfsInputStream extends InputStream {
         pos += read;
       }
 
-      file.updateAccessTime();
+      fileSystemState.updateAccessTime(file);
       return read;
     } finally {
       file.readLock().unlock();
@@ -120,6 +157,7 @@ final class JimfsInputStream extends InputStream {
       // available() must be an int, so the min must be also
       int skip = (int) Math.min(Math.max(file.size() - pos, 0), n);
       pos += skip;
+      window = null;
       return skip;
     }
   }
@@ -149,6 +187,7 @@ final class JimfsInputStream extends InputStream {
 
       // file is set to null here and only here
       file = null;
+      window = null;
     }
   }
 
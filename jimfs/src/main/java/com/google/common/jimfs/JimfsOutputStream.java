@@ -27,6 +27,11 @@ import javax.annotation.concurrent.GuardedBy;
 /**
  * {@link OutputStream} for writing to a {@link RegularFile}.
  *
+ * <p>To keep writing a single byte at a time cheap, {@link #write(int)} doesn't update the file's
+ * modified time for every byte: it updates it for the first byte it writes in each block, and the
+ * stream updates it again when it's {@linkplain #flush() flushed} or closed if bytes have been
+ * written since. Each byte is still written to the file, and visible to readers, immediately.
+ *
  * @author Colin Decker
  */
 final class JimfsOutputStream extends OutputStream {
@@ -38,6 +43,20 @@ final class JimfsOutputStream extends OutputStream {
   @GuardedBy("this")
   private long pos;
 
+  /**
+   * The range of positions in the block that {@link #write(int)} last updated the modified time
+   * for. Writing another single byte in the range doesn't update it again.
+   */
+  @GuardedBy("this")
+  private long windowStart;
+
+  @GuardedBy("this")
+  private long windowEnd;
+
+  /** Whether or not bytes have been written since the modified time was last updated. */
+  @GuardedBy("this")
+  private boolean modifiedTimeStale;
+
   private final boolean append;
   private final FileSystemState fileSystemState;
 
@@ -57,9 +76,17 @@ final class JimfsOutputStream extends OutputStream {
       if (append) {
         pos = file.sizeWithoutLocking();
       }
-      file.write(pos++, (byte) b);
-
-      file.updateModifiedTime();
+      long writePos = pos++;
+      file.write(writePos, (byte) b);
+
+      if (writePos >= windowStart && writePos < windowEnd) {
+        modifiedTimeStale = true;
+      } else {
+        fileSystemState.updateModifiedTime(file);
+        windowStart = file.blockStart(writePos);
+        windowEnd = file.blockEnd(writePos);
+        modifiedTimeStale = false;
+      }
     } finally {
       file.writeLock().unlock();
     }
@@ -86,12 +113,29 @@ final class JimfsOutputStream extends OutputStream {
       }
       pos += file.write(pos, b, off, len);
 
-      file.updateModifiedTime();
+      fileSystemState.updateModifiedTime(file);
+      modifiedTimeStale = false;
     } finally {
       file.writeLock().unlock();
     }
   }
 
+  @Override
+  public synchronized void flush() {
+    // like the default flush(), doesn't throw if the stream is closed
+    if (isOpen()) {
+      updateModifiedTimeIfStale();
+    }
+  }
+
+  @GuardedBy("this")
+  private void updateModifiedTimeIfStale() {
+    if (modifiedTimeStale) {
+      fileSystemState.updateModifiedTime(file);
+      modifiedTimeStale = false;
+    }
+  }
+
   @GuardedBy("this")
   private void checkNotClosed() throws IOException {
     if (file == null) {
@@ -102,6 +146,7 @@ final class JimfsOutputStream extends OutputStream {
   @Override
   public synchronized void close() throws IOException {
     if (isOpen()) {
+      updateModifiedTimeIfStale();
       fileSystemState.unregister(this);
       file.closed();
 
@@ -95,7 +95,11 @@ final class JimfsSecureDirectoryStream implements SecureDirectoryStream<Path> {
 
       try {
         if (fileNames == null) {
-          fileNames = view.snapshotWorkingDirectoryEntries().iterator();
+          String prefix =
+              filter instanceof PathMatchers.RegexPathMatcher
+                  ? ((PathMatchers.RegexPathMatcher) filter).literalPrefix()
+                  : "";
+          fileNames = view.workingDirectoryNames(prefix);
         }
 
         while (fileNames.hasNext()) {
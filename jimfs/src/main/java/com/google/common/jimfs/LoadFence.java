@@ -0,0 +1,86 @@
+/*
+ * Copyright 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.jimfs;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import javax.annotation.Nullable;
+
+/**
+ * Access to a load fence, which keeps the reads before it from being reordered with the reads and
+ * writes after it, as {@code StampedLock.validate} uses to check optimistic reads.
+ *
+ * <p>A volatile read only keeps <i>later</i> accesses from moving before it, so it can't be used
+ * to check that plain reads done before it saw consistent data. Java 7 has no API for a load fence,
+ * so this looks one up at runtime: {@code VarHandle.acquireFence()} from Java 9 on, or {@code
+ * sun.misc.Unsafe.loadFence()} on Java 8. Where neither exists, the fence is {@linkplain
+ * #isAvailable unavailable} and reads that need it must take a lock instead.
+ *
+ * @author Colin Decker
+ */
+final class LoadFence {
+
+  private LoadFence() {}
+
+  @Nullable private static final MethodHandle LOAD_FENCE = findLoadFence();
+
+  @Nullable
+  private static MethodHandle findLoadFence() {
+    MethodType type = MethodType.methodType(void.class);
+    try {
+      return MethodHandles.lookup()
+          .findStatic(Class.forName("java.lang.invoke.VarHandle"), "acquireFence", type);
+    } catch (Throwable e) {
+      // before Java 9
+    }
+
+    try {
+      Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+      Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+      theUnsafe.setAccessible(true);
+      return MethodHandles.lookup()
+          .findVirtual(unsafeClass, "loadFence", type)
+          .bindTo(theUnsafe.get(null));
+    } catch (Throwable e) {
+      // no Unsafe, or one without loadFence (Java 7)
+      return null;
+    }
+  }
+
+  /** Returns whether or not a load fence is available. */
+  static boolean isAvailable() {
+    return LOAD_FENCE != null;
+  }
+
+  /**
+   * Issues a load fence.
+   *
+   * @throws IllegalStateException if no load fence is {@linkplain #isAvailable() available}
+   */
+  static void fence() {
+    if (LOAD_FENCE == null) {
+      throw new IllegalStateException("no load fence available");
+    }
+    try {
+      LOAD_FENCE.invokeExact();
+    } catch (Throwable e) {
+      throw new AssertionError(e);
+    }
+  }
+}
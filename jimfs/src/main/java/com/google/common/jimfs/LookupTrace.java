@@ -0,0 +1,64 @@
+/*
+ * Copyright 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.jimfs;
+
+import java.util.Arrays;
+
+/**
+ * The directories a lookup read entries from, including those it passed through while following
+ * symbolic links, along with each directory's {@linkplain Directory#modCount() modification count}
+ * from before it read them. Used both to validate lookups done without locking and to find out
+ * whether {@linkplain PathLookupCache cached} lookup results are still valid.
+ *
+ * @author Colin Decker
+ */
+final class LookupTrace {
+
+  private Directory[] directories = new Directory[8];
+  private int[] modCounts = new int[8];
+  private int size;
+
+  /** Records that the given directory is about to be read. */
+  void add(Directory directory) {
+    if (size == directories.length) {
+      directories = Arrays.copyOf(directories, size * 2);
+      modCounts = Arrays.copyOf(modCounts, size * 2);
+    }
+    directories[size] = directory;
+    modCounts[size] = directory.modCount();
+    size++;
+  }
+
+  /** Returns the number of directories recorded. */
+  int size() {
+    return size;
+  }
+
+  /**
+   * Returns whether or not none of the recorded directories were being changed when they were read
+   * and none have changed since.
+   */
+  boolean isValid() {
+    for (int i = 0; i < size; i++) {
+      int modCount = modCounts[i];
+      if ((modCount & 1) != 0 || directories[i].modCount() != modCount) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
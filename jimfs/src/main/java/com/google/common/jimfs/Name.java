@@ -75,7 +75,8 @@ final class Name implements Serializable, Comparable<Name> {
      * representation.
      */
     public static Name create(String display, String canonical) {
-        return new Name(display, canonical);
+        // share one string between both forms when they're equal, as they usually are
+        return new Name(display, canonical.equals(display) ? display : canonical);
     }
 
     private final String display;
@@ -86,6 +87,11 @@ final class Name implements Serializable, Comparable<Name> {
         this.canonical = checkNotNull(canonical);
     }
 
+    /** Returns the canonical representation of this name. */
+    String canonical() {
+        return canonical;
+    }
+
     @Override
     public boolean equals(@Nullable Object obj) {
         if (obj instanceof Name) {
@@ -0,0 +1,194 @@
+/*
+ * Copyright 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.jimfs;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.google.common.collect.ImmutableList;
+import java.io.IOException;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.Nullable;
+
+/**
+ * Cache of the results of looking up absolute paths in a {@link FileTree}.
+ *
+ * <p>Each cached result records the directories the lookup read entries from, including those it
+ * passed through while following symbolic links, along with each directory's {@linkplain
+ * Directory#modCount() modification count} at the time. A cached result is only used while none of
+ * those directories has changed, so changes to directories that a path doesn't go through never
+ * invalidate its result. Results of lookups that fail because a directory along the path doesn't
+ * exist are cached as well.
+ *
+ * <p>The cache has a fixed number of slots. Each path maps to a single slot, and the result of a
+ * lookup replaces whatever result was in its slot. Slots are read and written without
+ * synchronization: each holds an immutable {@link CachedLookup}. Cached results keep the
+ * directories and files they refer to reachable until they're replaced.
+ *
+ * @author Colin Decker
+ */
+final class PathLookupCache {
+
+  private final CachedLookup[] slots;
+
+  private final AtomicLong hitCount = new AtomicLong();
+  private final AtomicLong missCount = new AtomicLong();
+
+  /** Creates a new cache with the given number of slots, rounded up to a power of 2. */
+  PathLookupCache(int size) {
+    checkArgument(size > 0, "size (%s) must be positive", size);
+    this.slots = new CachedLookup[Util.nextPowerOf2(size)];
+  }
+
+  /** Returns the number of slots in this cache. */
+  public int size() {
+    return slots.length;
+  }
+
+  /** Returns the number of lookups that used a cached result. */
+  public long hitCount() {
+    return hitCount.get();
+  }
+
+  /** Returns the number of lookups that had no valid cached result. */
+  public long missCount() {
+    return missCount.get();
+  }
+
+  /**
+   * Returns the ratio of lookups that used a cached result to all lookups, or 1.0 if there haven't
+   * been any lookups.
+   */
+  public double hitRate() {
+    long hits = hitCount.get();
+    long total = hits + missCount.get();
+    return total == 0 ? 1.0 : (double) hits / total;
+  }
+
+  /**
+   * Looks up the given absolute path in the given tree, using a cached result if there's a valid
+   * one and caching the result otherwise.
+   *
+   * @param locked whether to look the path up {@linkplain FileTree#lookUp with} or {@linkplain
+   *     FileTree#lookUpOptimistically without} locking if there's no valid cached result
+   * @param trace an empty trace to record the directories the lookup reads in if there's no valid
+   *     cached result; the cache keeps it along with the result. Nothing is recorded when a cached
+   *     result is used, since it was just found to be valid
+   */
+  public DirectoryEntry lookUp(
+      FileTree tree,
+      JimfsPath path,
+      Set<? super LinkOption> options,
+      boolean locked,
+      LookupTrace trace)
+      throws IOException {
+    checkArgument(trace.size() == 0, "trace must be empty");
+    boolean followLinks = !options.contains(LinkOption.NOFOLLOW_LINKS);
+    int hash = hash(path, followLinks);
+    int slot = hash & (slots.length - 1);
+
+    CachedLookup cached = slots[slot];
+    if (cached != null
+        && cached.hash == hash
+        && cached.followLinks == followLinks
+        && sameNames(cached.path, path)
+        && cached.isValid()) {
+      hitCount.incrementAndGet();
+      if (cached.result == null) {
+        throw new NoSuchFileException(path.toString());
+      }
+      return cached.result;
+    }
+
+    missCount.incrementAndGet();
+    DirectoryEntry result = tree.lookUp(path, options, locked, trace);
+    slots[slot] = new CachedLookup(path, hash, followLinks, result, trace);
+    if (result == null) {
+      throw new NoSuchFileException(path.toString());
+    }
+    return result;
+  }
+
+  private static int hash(JimfsPath path, boolean followLinks) {
+    int hash = followLinks ? 1 : 0;
+    hash = 31 * hash + path.root().hashCode();
+    ImmutableList<Name> names = path.names();
+    for (int i = 0; i < names.size(); i++) {
+      hash = 31 * hash + names.get(i).hashCode();
+    }
+    return Util.smearHash(hash);
+  }
+
+  /**
+   * Returns whether or not the given paths have the same root and names, in both display and
+   * canonical form. Comparing the display forms as well matters because the entry returned for a
+   * file that doesn't exist has the name it was looked up with.
+   */
+  private static boolean sameNames(JimfsPath a, JimfsPath b) {
+    if (a == b) {
+      return true;
+    }
+
+    ImmutableList<Name> aNames = a.names();
+    ImmutableList<Name> bNames = b.names();
+    if (aNames.size() != bNames.size() || !sameName(a.root(), b.root())) {
+      return false;
+    }
+
+    for (int i = 0; i < aNames.size(); i++) {
+      if (!sameName(aNames.get(i), bNames.get(i))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean sameName(Name a, Name b) {
+    return a == b || (a.equals(b) && a.toString().equals(b.toString()));
+  }
+
+  /** The result of a lookup, along with what's needed to find out whether it's still valid. */
+  private static final class CachedLookup {
+
+    final JimfsPath path;
+    final int hash;
+    final boolean followLinks;
+    @Nullable final DirectoryEntry result;
+
+    private final LookupTrace trace;
+
+    CachedLookup(
+        JimfsPath path,
+        int hash,
+        boolean followLinks,
+        @Nullable DirectoryEntry result,
+        LookupTrace trace) {
+      this.path = path;
+      this.hash = hash;
+      this.followLinks = followLinks;
+      this.result = result;
+      this.trace = trace;
+    }
+
+    /** Returns whether or not none of the directories the lookup read have changed since. */
+    boolean isValid() {
+      return trace.isValid();
+    }
+  }
+}
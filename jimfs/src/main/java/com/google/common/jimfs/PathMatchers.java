@@ -23,6 +23,7 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Ascii;
 import com.google.common.base.MoreObjects;
 import com.google.common.collect.ImmutableSet;
+import java.nio.file.DirectoryStream;
 import java.nio.file.FileSystem;
 import java.nio.file.Path;
 import java.nio.file.PathMatcher;
@@ -57,8 +58,14 @@ final class PathMatchers {
 
     switch (syntax) {
       case "glob":
-        pattern = GlobToRegex.toRegex(pattern, separators);
-        // fall through
+        // names with the glob's literal prefix can only be looked for when the names are matched
+        // exactly as they are
+        String prefix =
+            normalizations.isEmpty() ? GlobToRegex.literalPrefix(pattern, separators) : "";
+        return new RegexPathMatcher(
+            PathNormalization.compilePattern(
+                GlobToRegex.toRegex(pattern, separators), normalizations),
+            prefix);
       case "regex":
         return fromRegex(pattern, normalizations);
       default:
@@ -67,20 +74,28 @@ final class PathMatchers {
   }
 
   private static PathMatcher fromRegex(String regex, Iterable<PathNormalization> normalizations) {
-    return new RegexPathMatcher(PathNormalization.compilePattern(regex, normalizations));
+    return new RegexPathMatcher(PathNormalization.compilePattern(regex, normalizations), "");
   }
 
   /**
    * {@code PathMatcher} that matches the {@code toString()} form of a {@code Path} against a regex
    * {@code Pattern}.
+   *
+   * <p>The matcher is also a {@linkplain DirectoryStream.Filter directory stream filter} that
+   * accepts the entries whose file names it matches. A Jimfs directory stream given such a filter
+   * only visits the entries whose names start with the {@linkplain #literalPrefix() literal prefix}
+   * of the matcher's glob, which for large directories can skip most of the entries without
+   * checking them.
    */
   @VisibleForTesting
-  static final class RegexPathMatcher implements PathMatcher {
+  static final class RegexPathMatcher implements PathMatcher, DirectoryStream.Filter<Path> {
 
     private final Pattern pattern;
+    private final String literalPrefix;
 
-    private RegexPathMatcher(Pattern pattern) {
+    private RegexPathMatcher(Pattern pattern, String literalPrefix) {
       this.pattern = checkNotNull(pattern);
+      this.literalPrefix = checkNotNull(literalPrefix);
     }
 
     @Override
@@ -88,6 +103,20 @@ final class PathMatchers {
       return pattern.matcher(path.toString()).matches();
     }
 
+    /**
+     * Returns the prefix that every path this matcher matches starts with, or the empty string if
+     * there's no such prefix.
+     */
+    String literalPrefix() {
+      return literalPrefix;
+    }
+
+    @Override
+    public boolean accept(Path entry) {
+      Path fileName = entry.getFileName();
+      return fileName != null && matches(fileName);
+    }
+
     @Override
     public String toString() {
       return MoreObjects.toStringHelper(this).addValue(pattern).toString();
@@ -115,6 +115,17 @@ public enum PathNormalization implements Function<String, String> {
    * Applies the given normalizations to the given string in order, returning the normalized result.
    */
   public static String normalize(String string, Iterable<PathNormalization> normalizations) {
+    if (isAscii(string)) {
+      // Unicode normalization doesn't change ASCII strings and both case foldings just lower case
+      // them, so skip the Unicode normalizations and case folding entirely
+      for (PathNormalization normalization : normalizations) {
+        if (normalization == CASE_FOLD_UNICODE || normalization == CASE_FOLD_ASCII) {
+          return Ascii.toLowerCase(string);
+        }
+      }
+      return string;
+    }
+
     String result = string;
     for (PathNormalization normalization : normalizations) {
       result = normalization.apply(result);
@@ -122,6 +133,16 @@ public enum PathNormalization implements Function<String, String> {
     return result;
   }
 
+  /** Returns whether or not the given string contains only ASCII characters. */
+  private static boolean isAscii(String string) {
+    for (int i = 0; i < string.length(); i++) {
+      if (string.charAt(i) >= 0x80) {
+        return false;
+      }
+    }
+    return true;
+  }
+
   /** Compiles a regex pattern using flags based on the given normalizations. */
   public static Pattern compilePattern(String regex, Iterable<PathNormalization> normalizations) {
     int flags = 0;
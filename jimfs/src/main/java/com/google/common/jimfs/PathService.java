@@ -65,6 +65,20 @@ final class PathService implements Comparator<JimfsPath> {
   private final Ordering<Name> rootOrdering;
   private final Ordering<Iterable<Name>> namesOrdering;
 
+  /**
+   * The number of slots in the name cache. Each name string maps to a single slot, and a name that
+   * maps to a slot holding another name replaces it.
+   */
+  @VisibleForTesting static final int NAME_CACHE_SIZE = 1024;
+
+  /**
+   * Cache of the names most recently created from strings, so that parsing a name that was recently
+   * parsed doesn't need to normalize it again and returns the same {@code Name} instance. Read and
+   * written without synchronization: each slot holds an immutable {@link CachedName}, so a racing
+   * read sees either a complete cached name or a different one.
+   */
+  private final CachedName[] nameCache = new CachedName[NAME_CACHE_SIZE];
+
   private volatile FileSystem fileSystem;
   private volatile JimfsPath emptyPath;
 
@@ -130,9 +144,17 @@ final class PathService implements Comparator<JimfsPath> {
       case "..":
         return Name.PARENT;
       default:
+        int slot = Util.smearHash(name.hashCode()) & (NAME_CACHE_SIZE - 1);
+        CachedName cached = nameCache[slot];
+        if (cached != null && cached.string.equals(name)) {
+          return cached.name;
+        }
+
         String display = PathNormalization.normalize(name, displayNormalizations);
         String canonical = PathNormalization.normalize(name, canonicalNormalizations);
-        return Name.create(display, canonical);
+        Name result = Name.create(display, canonical);
+        nameCache[slot] = new CachedName(name, result);
+        return result;
     }
   }
 
@@ -261,4 +283,16 @@ final class PathService implements Comparator<JimfsPath> {
           return !input.toString().isEmpty();
         }
       };
+
+  /** A name in the name cache, along with the string it was created from. */
+  private static final class CachedName {
+
+    final String string;
+    final Name name;
+
+    CachedName(String string, Name name) {
+      this.string = string;
+      this.name = name;
+    }
+  }
 }
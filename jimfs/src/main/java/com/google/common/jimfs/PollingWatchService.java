@@ -167,29 +167,33 @@ final class PollingWatchService extends AbstractWatchService {
       new Runnable() {
         @Override
         public void run() {
-          synchronized (PollingWatchService.this) {
-            for (Map.Entry<Key, Snapshot> entry : snapshots.entrySet()) {
-              Key key = entry.getKey();
-              Snapshot previousSnapshot = entry.getValue();
-
-              JimfsPath path = (JimfsPath) key.watchable();
-              try {
-                Snapshot newSnapshot = takeSnapshot(path);
-                boolean posted = previousSnapshot.postChanges(newSnapshot, key);
-                entry.setValue(newSnapshot);
-                if (posted) {
-                  key.signal();
-                }
-              } catch (IOException e) {
-                // snapshot failed; assume file does not exist or isn't a directory
-                // and cancel the key
-                key.cancel();
-              }
-            }
-          }
+          pollWatchedDirectories();
         }
       };
 
+  /** Checks each watched directory for changes once, posting events for any changes found. */
+  @VisibleForTesting
+  synchronized void pollWatchedDirectories() {
+    for (Map.Entry<Key, Snapshot> entry : snapshots.entrySet()) {
+      Key key = entry.getKey();
+      Snapshot previousSnapshot = entry.getValue();
+
+      JimfsPath path = (JimfsPath) key.watchable();
+      try {
+        Snapshot newSnapshot = takeSnapshot(path);
+        boolean posted = previousSnapshot.postChanges(newSnapshot, key);
+        entry.setValue(newSnapshot);
+        if (posted) {
+          key.signal();
+        }
+      } catch (IOException e) {
+        // snapshot failed; assume file does not exist or isn't a directory
+        // and cancel the key
+        key.cancel();
+      }
+    }
+  }
+
   private Snapshot takeSnapshot(JimfsPath path) throws IOException {
     return new Snapshot(view.snapshotModifiedTimes(path));
   }
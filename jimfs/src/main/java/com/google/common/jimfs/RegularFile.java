@@ -18,47 +18,149 @@ package com.google.common.jimfs;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
 import static com.google.common.jimfs.Util.clear;
 import static com.google.common.jimfs.Util.nextPowerOf2;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.math.LongMath;
 import com.google.common.primitives.UnsignedBytes;
 import java.io.IOException;
+import java.math.RoundingMode;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import javax.annotation.Nullable;
 
 /**
- * A mutable, resizable store for bytes. Bytes are stored in fixed-sized byte arrays (blocks)
- * allocated by a {@link HeapDisk}.
+ * A mutable, resizable store for bytes. Bytes are stored in byte buffers (blocks) allocated by a
+ * {@link Disk}, which also decides the size of each block: either the disk's fixed block size or,
+ * for a disk that allocates extents, a size that grows with the block's index in the file.
+ *
+ * <p>Blocks may be shared with other threads reading the file concurrently, so the position and
+ * limit of a block are never modified; blocks are only accessed through absolute methods or through
+ * {@linkplain ByteBuffer#duplicate() duplicates}.
+ *
+ * <p>Blocks may also be shared with other files: {@linkplain #copyContentTo copying} a file shares
+ * its blocks with the copy rather than copying their bytes, and a shared block is only copied (by
+ * the {@link Disk}) when one of the files sharing it writes to it.
+ *
+ * <p>A file may also be created with its content still on the host file system, in which case the
+ * file has its full size but no blocks until the content is first read or written; the content is
+ * then loaded from its {@link ContentSource} into blocks, after which the file behaves like any
+ * other. Copies of a file whose content hasn't been loaded load it from the same source.
+ *
+ * <p>A file no larger than its disk's {@linkplain Disk#maxInlineSize() maximum inline size} keeps
+ * its content inline instead: in a single heap array of exactly the file's size, with no blocks at
+ * all. The content moves to blocks, for good, once the file grows past the maximum or is mapped.
+ *
+ * <p>Files may be sparse. Blocks that a write skips over entirely (and the blocks a file is
+ * {@linkplain #extend extended} by) are <i>holes</i>: null entries in the block list that read as
+ * zeros and take no space on the disk until they're first written to. {@link #seekData} and {@link
+ * #seekHole} find the data and holes in a file, like {@code lseek} with {@code SEEK_DATA} and
+ * {@code SEEK_HOLE}.
+ *
+ * <p>A file that hasn't been used for a while may be {@linkplain #compressIfUnused compressed} by a
+ * {@link ColdFileCompressor}, which frees its blocks. Reads of a compressed file get the blocks
+ * they read decompressed from the compressor's cache; the first write to the file decompresses all
+ * of its content back into blocks.
  *
  * @author Colin Decker
  */
 final class RegularFile extends File {
 
-  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+  /** The block list of a file that hasn't had any blocks yet. */
+  private static final ByteBuffer[] NO_BLOCKS = new ByteBuffer[0];
+
+  private final ContentLock lock = new ContentLock();
 
-  private final HeapDisk disk;
+  private final Disk disk;
 
   /** Block list for the file. */
-  private byte[][] blocks;
+  private ByteBuffer[] blocks;
   /** Block count for the the file, which also acts as the head of the block list. */
   private int blockCount;
 
   private long size;
 
-  /** Creates a new regular file with the given ID and using the given disk. */
-  public static RegularFile create(int id, HeapDisk disk) {
-    return new RegularFile(id, disk, new byte[32][], 0, 0);
+  /**
+   * Flags for the blocks of this file that may be shared with other files, indexed like {@link
+   * #blocks}. A flag may be set for a block that is no longer shared (when the other files have
+   * since released it), but is never unset for a block that is. Null if no block of this file has
+   * ever been shared.
+   */
+  @Nullable private boolean[] sharedBlocks;
+
+  /**
+   * Whether or not any block of this file may be a hole. Like the flags for shared blocks, never
+   * unset once set.
+   */
+  private boolean mayHaveHoles;
+
+  /**
+   * The content of this file if it's kept inline, in an array whose length is the size of the file,
+   * rather than in blocks. Null if the file has any blocks or is empty.
+   */
+  @Nullable private byte[] inline;
+
+  /**
+   * Regions of contiguous direct memory that blocks of this file have been relocated to so that
+   * they could be {@linkplain #map mapped}, keyed by the index of the first block in the region.
+   * Null if the file has never been mapped.
+   */
+  @Nullable private TreeMap<Integer, ByteBuffer> mappedRegions;
+
+  /**
+   * The source to load the content of this file from when it's first needed, or null if the file's
+   * content is in its blocks. Only cleared, by the thread that loads the content, once the blocks
+   * hold the content.
+   */
+  @Nullable private volatile ContentSource contentSource;
+
+  /**
+   * The content of this file's blocks, each compressed separately, if the file is compressed;
+   * indexed like {@link #blocks}, with null for holes. A compressed file has no blocks. Null if the
+   * file isn't compressed.
+   */
+  @Nullable private byte[][] compressedBlocks;
+
+  /** The total size of the compressed blocks. */
+  private long compressedSize;
+
+  /** The compressor that compressed this file, or null if the file isn't compressed. */
+  @Nullable private ColdFileCompressor compressor;
+
+  /**
+   * Whether or not the content of this file has been used since its {@link ColdFileCompressor}
+   * last checked. Set without locking by readers, but only read and cleared while holding the
+   * write lock.
+   */
+  private boolean used = true;
+
+  /**
+   * Creates a new regular file with the given ID and using the given disk, created at the current
+   * system time.
+   */
+  public static RegularFile create(int id, Disk disk) {
+    return create(id, disk, System.currentTimeMillis());
+  }
+
+  /** Creates a new regular file with the given ID and creation time and using the given disk. */
+  public static RegularFile create(int id, Disk disk, long creationTime) {
+    return new RegularFile(id, creationTime, disk, NO_BLOCKS, 0, 0);
   }
 
-  RegularFile(int id, HeapDisk disk, byte[][] blocks, int blockCount, long size) {
-    super(id);
+  RegularFile(
+      int id, long creationTime, Disk disk, ByteBuffer[] blocks, int blockCount, long size) {
+    super(id, creationTime);
     this.disk = checkNotNull(disk);
     this.blocks = checkNotNull(blocks);
     this.blockCount = blockCount;
@@ -80,11 +182,30 @@ final class RegularFile extends File {
     return lock.writeLock();
   }
 
+  /**
+   * Returns the version of this file's content, which changes whenever the content or size of the
+   * file may have changed. Should be called while holding the read lock. See {@link ContentLock}.
+   */
+  int contentVersion() {
+    return lock.version();
+  }
+
+  /**
+   * Returns whether or not the content and size of this file are unchanged since the given {@link
+   * #contentVersion() version}. May be called without locking.
+   */
+  boolean isContentUnchangedSince(int version) {
+    return lock.isUnchangedSince(version);
+  }
+
   // lower-level methods dealing with the blocks array
 
   private void expandIfNecessary(int minBlockCount) {
     if (minBlockCount > blocks.length) {
       this.blocks = Arrays.copyOf(blocks, nextPowerOf2(minBlockCount));
+      if (sharedBlocks != null) {
+        this.sharedBlocks = Arrays.copyOf(sharedBlocks, blocks.length);
+      }
     }
   }
 
@@ -101,6 +222,7 @@ final class RegularFile extends File {
 
     System.arraycopy(this.blocks, start, target.blocks, target.blockCount, count);
     target.blockCount = targetEnd;
+    target.mayHaveHoles |= mayHaveHoles;
   }
 
   /** Transfers the last {@code count} blocks from this file to the end of the given target file. */
@@ -112,23 +234,297 @@ final class RegularFile extends File {
   /** Truncates the blocks of this file to the given block count. */
   void truncateBlocks(int count) {
     clear(blocks, count, blockCount - count);
+    if (sharedBlocks != null) {
+      Arrays.fill(sharedBlocks, count, blockCount, false);
+    }
     blockCount = count;
   }
 
+  /**
+   * Adds all blocks of this file to the end of the given target file, marking them as shared in
+   * both files. The disk must count the references to the blocks.
+   */
+  void shareBlocksWith(RegularFile target) {
+    int targetStart = target.blockCount;
+    copyBlocksTo(target, blockCount);
+    markShared(0, blockCount);
+    target.markShared(targetStart, target.blockCount);
+  }
+
+  private void markShared(int from, int to) {
+    if (sharedBlocks == null) {
+      sharedBlocks = new boolean[blocks.length];
+    }
+    Arrays.fill(sharedBlocks, from, to, true);
+  }
+
+  /** Returns whether or not any block of this file may be shared with other files. */
+  boolean mayShareBlocks() {
+    return sharedBlocks != null;
+  }
+
+  /** Returns whether or not the block at the given index may be shared with other files. */
+  boolean isBlockShared(int index) {
+    return sharedBlocks != null && sharedBlocks[index];
+  }
+
+  /**
+   * Replaces the block at the given index with the given block, which is not shared with any other
+   * file.
+   */
+  void replaceSharedBlock(int index, ByteBuffer block) {
+    blocks[index] = block;
+    sharedBlocks[index] = false;
+  }
+
   /** Adds the given block to the end of this file. */
-  void addBlock(byte[] block) {
+  void addBlock(ByteBuffer block) {
     expandIfNecessary(blockCount + 1);
     blocks[blockCount++] = block;
   }
 
-  /** Gets the block at the given index in this file. */
+  /** Adds {@code count} holes to the end of this file. */
+  private void addHoles(int count) {
+    expandIfNecessary(blockCount + count);
+    blockCount += count;
+    mayHaveHoles = true;
+  }
+
+  /** Returns whether or not any block of this file may be a hole (a null block). */
+  boolean mayHaveHoles() {
+    return mayHaveHoles;
+  }
+
+  /** Fills the hole at the given index with the given zeroed block. */
+  void fillHole(int index, ByteBuffer block) {
+    blocks[index] = block;
+    if (sharedBlocks != null) {
+      sharedBlocks[index] = false;
+    }
+  }
+
+  /**
+   * Gets the block at the given index in this file, or null if the block is a hole or the block
+   * list has no room for a block at that index.
+   */
   @VisibleForTesting
-  byte[] getBlock(int index) {
-    return blocks[index];
+  @Nullable
+  ByteBuffer getBlock(int index) {
+    return index < blocks.length ? blocks[index] : null;
   }
 
   // end of lower-level methods dealing with the blocks array
 
+  /**
+   * Sets the content of this file, which must be empty, to the {@code size} bytes at the given
+   * source, which are loaded when first needed.
+   */
+  void setLazyContent(ContentSource source, long size) {
+    checkState(blockCount == 0 && this.size == 0, "file is not empty");
+    checkArgument(size >= 0);
+    if (size > 0) {
+      this.contentSource = checkNotNull(source);
+      this.size = size;
+    }
+  }
+
+  /** Returns whether or not the content of this file has yet to be loaded from its source. */
+  boolean isLazy() {
+    return contentSource != null;
+  }
+
+  /**
+   * Loads the content of this file from its source into blocks, if it hasn't been loaded yet, and
+   * marks the file used. May be called while holding just the read lock: concurrent readers wait
+   * for the first to finish loading.
+   *
+   * <p>Loading takes this file's monitor, so this must not be called while holding the monitor of
+   * the {@link WriteAheadLog}: the file holds its monitor while logging changes to its times.
+   *
+   * @throws IOException if the disk doesn't have enough space for the content or if reading it
+   *     from the source fails, in which case the content remains unloaded
+   */
+  void load() throws IOException {
+    used = true;
+    if (contentSource != null) {
+      loadContent();
+    }
+  }
+
+  private synchronized void loadContent() throws IOException {
+    ContentSource source = contentSource;
+    if (source == null) {
+      return; // loaded by another thread while this one was waiting
+    }
+    if (size == 0) {
+      contentSource = null; // truncated before it was ever loaded
+      return;
+    }
+
+    if (size <= disk.maxInlineSize()) {
+      byte[] content = new byte[(int) size];
+      try (FileChannel channel = source.open()) {
+        readFully(channel, ByteBuffer.wrap(content), source);
+      }
+      inline = content;
+      contentSource = null;
+      return;
+    }
+
+    int count = blockIndex(size - 1) + 1;
+    disk.allocate(this, count);
+    try (FileChannel channel = source.open()) {
+      long remaining = size;
+      for (int i = 0; i < count; i++) {
+        ByteBuffer buf = view(blocks[i], 0, length(blocks[i], 0, remaining));
+        readFully(channel, buf, source);
+        remaining -= buf.limit();
+      }
+    } catch (IOException | RuntimeException | Error e) {
+      disk.free(this, count);
+      throw e;
+    }
+
+    contentSource = null;
+  }
+
+  /** Reads from the given channel until the given buffer is full. */
+  private void readFully(FileChannel channel, ByteBuffer buf, ContentSource source)
+      throws IOException {
+    while (buf.hasRemaining()) {
+      if (channel.read(buf) == -1) {
+        throw new IOException(
+            "content of file at " + source + " ended before its expected size " + size);
+      }
+    }
+  }
+
+  /**
+   * Moves the content of this file to blocks if it's kept inline.
+   *
+   * @throws IOException if the disk is full
+   */
+  private void moveInlineContentToBlocks() throws IOException {
+    byte[] content = inline;
+    if (content != null) {
+      // the maximum inline size is no larger than a block
+      disk.allocate(this, 1);
+      put(blocks[0], 0, content, 0, content.length);
+      inline = null;
+    }
+  }
+
+  /**
+   * Compresses the content of this file with the given compressor and frees its blocks if the file
+   * hasn't been used since the last call, or else marks the file unused. Returns whether or not the
+   * file was compressed. A file that's locked, mapped, not yet loaded, kept inline, deleted or
+   * already compressed isn't compressed, nor is one whose content wouldn't take less space
+   * compressed.
+   */
+  synchronized boolean compressIfUnused(ColdFileCompressor compressor) {
+    // synchronized like deleted() and closed(), which may delete the contents without locking
+    if (deleted || !writeLock().tryLock()) {
+      return false; // deleted, or in use right now
+    }
+    try {
+      if (used) {
+        used = false;
+        return false;
+      }
+      if (blockCount == 0 || mappedRegions != null || compressedBlocks != null) {
+        return false;
+      }
+      return compress(compressor);
+    } finally {
+      writeLock().unlock();
+    }
+  }
+
+  private boolean compress(ColdFileCompressor compressor) {
+    byte[][] compressed = new byte[blockCount][];
+    long uncompressedSize = 0;
+    long totalSize = 0;
+    for (int i = 0; i < blockCount; i++) {
+      if (blocks[i] != null) {
+        compressed[i] = compressor.compress(blocks[i]);
+        uncompressedSize += blocks[i].capacity();
+        totalSize += compressed[i].length;
+      }
+    }
+
+    int compressedBlockCount = blocksFor(totalSize);
+    if (compressedBlockCount >= blocksFor(uncompressedSize)) {
+      return false; // no space to save
+    }
+    try {
+      disk.reserveSpace(compressedBlockCount);
+    } catch (IOException e) {
+      return false; // the blocks are all still shared with other files, and the disk is full
+    }
+
+    disk.free(this, blockCount);
+    this.compressedBlocks = compressed;
+    this.compressedSize = totalSize;
+    this.compressor = compressor;
+    return true;
+  }
+
+  /**
+   * Decompresses the content of this file back into blocks if it's compressed.
+   *
+   * @throws IOException if the disk doesn't have enough space for the blocks, in which case the
+   *     file stays compressed
+   */
+  private void decompress() throws IOException {
+    byte[][] compressed = compressedBlocks;
+    if (compressed == null) {
+      return;
+    }
+
+    try {
+      for (byte[] block : compressed) {
+        if (block == null) {
+          addHoles(1);
+        } else {
+          disk.allocate(this, 1);
+          ColdFileCompressor.decompress(block, blocks[blockCount - 1]);
+        }
+      }
+    } catch (IOException | RuntimeException | Error e) {
+      disk.free(this, blockCount);
+      throw e;
+    }
+
+    disk.releaseSpace(blocksFor(compressedSize));
+    compressedBlocks = null;
+    compressedSize = 0;
+    compressor = null;
+  }
+
+  /** Drops the compressed blocks of this file from index {@code count} on. */
+  private void truncateCompressedBlocks(int count) {
+    long size = compressedSize;
+    for (int i = count; i < compressedBlocks.length; i++) {
+      if (compressedBlocks[i] != null) {
+        size -= compressedBlocks[i].length;
+      }
+    }
+    disk.releaseSpace(blocksFor(compressedSize) - blocksFor(size));
+    compressedBlocks = Arrays.copyOf(compressedBlocks, count);
+    compressedSize = size;
+  }
+
+  /** Returns the number of disk blocks that the given number of bytes fills. */
+  private int blocksFor(long bytes) {
+    return (int) LongMath.divide(bytes, disk.blockSize(), RoundingMode.CEILING);
+  }
+
+  /** Returns whether or not this file's content is compressed. */
+  @VisibleForTesting
+  boolean isCompressed() {
+    return compressedBlocks != null;
+  }
+
   /**
    * Gets the current size of this file in bytes. Does not do locking, so should only be called when
    * holding a lock.
@@ -150,20 +546,55 @@ final class RegularFile extends File {
   }
 
   @Override
-  RegularFile copyWithoutContent(int id) {
-    byte[][] copyBlocks = new byte[Math.max(blockCount * 2, 32)][];
-    return new RegularFile(id, disk, copyBlocks, 0, size);
+  RegularFile copyWithoutContent(int id, long creationTime) {
+    ByteBuffer[] copyBlocks = blockCount == 0 ? NO_BLOCKS : new ByteBuffer[blockCount];
+    return new RegularFile(id, creationTime, disk, copyBlocks, 0, size);
   }
 
+  /**
+   * Copies the content of this file to the given file, which must have been created by {@link
+   * #copyWithoutContent}. The blocks of this file are shared with the copy rather than copied, so
+   * this takes no additional disk space until one of the files writes to them.
+   */
   @Override
   void copyContentTo(File file) throws IOException {
     RegularFile copy = (RegularFile) file;
-    disk.allocate(copy, blockCount);
+    ContentSource source = contentSource;
+    if (source != null) {
+      // the copy has the same size, so it can load the same content when it needs it
+      copy.contentSource = source;
+    } else if (inline != null) {
+      copy.inline = inline.clone();
+    } else if (compressedBlocks != null) {
+      // compressed blocks are never changed, so they can be shared
+      disk.reserveSpace(blocksFor(compressedSize));
+      copy.compressedBlocks = compressedBlocks.clone();
+      copy.compressedSize = compressedSize;
+      copy.compressor = compressor;
+      copy.mayHaveHoles = mayHaveHoles;
+    } else if (mappedRegions == null) {
+      disk.share(this, copy);
+    } else {
+      // blocks in mapped regions can be written through the mapped buffers, bypassing copy-on-write
+      disk.allocate(copy, blockCount);
+
+      for (int i = 0; i < blockCount; i++) {
+        if (blocks[i] == null) {
+          Util.zero(copy.blocks[i], 0, copy.blocks[i].capacity());
+        } else {
+          copy(blocks[i], copy.blocks[i]);
+        }
+      }
+    }
 
-    for (int i = 0; i < blockCount; i++) {
-      byte[] block = blocks[i];
-      byte[] copyBlock = copy.blocks[i];
-      System.arraycopy(block, 0, copyBlock, 0, block.length);
+    WriteAheadLog log = copy.log();
+    if (log != null) {
+      if (log == log()) {
+        log.contentCopied(this, copy);
+      } else if (copy.size > 0) {
+        // the log has no record of this file, so record the content itself
+        log.written(copy, 0, copy.size);
+      }
     }
   }
 
@@ -203,13 +634,33 @@ final class RegularFile extends File {
 
   /**
    * Deletes the contents of this file. Called when this file has been deleted and all open streams
-   * and channels to it have been closed.
+   * and channels to it have been closed, or when a {@link FileSystemSnapshot} holding this file is
+   * closed.
    */
-  private void deleteContents() {
-    disk.free(this);
+  void deleteContents() {
+    contentSource = null;
+    inline = null;
+    if (compressedBlocks != null) {
+      truncateCompressedBlocks(0);
+      compressedBlocks = null;
+      compressor = null;
+    }
+    freeBlocks(blockCount);
     size = 0;
   }
 
+  /** Frees the last {@code count} blocks of this file. */
+  private void freeBlocks(int count) {
+    if (mappedRegions == null) {
+      disk.free(this, count);
+    } else {
+      // the blocks may still be referenced by buffers mapped from this file, so they must not be
+      // reused for other files
+      disk.discard(this, count);
+      unmapBlocks(blockCount, Integer.MAX_VALUE);
+    }
+  }
+
   /**
    * Truncates this file to the given {@code size}. If the given size is less than the current size
    * of this file, the size of the file is reduced to the given size and any bytes beyond that size
@@ -225,46 +676,120 @@ final class RegularFile extends File {
     long lastPosition = size - 1;
     this.size = size;
 
+    if (inline != null) {
+      inline = size == 0 ? null : Arrays.copyOf(inline, (int) size);
+    }
+
     int newBlockCount = blockIndex(lastPosition) + 1;
-    int blocksToRemove = blockCount - newBlockCount;
-    if (blocksToRemove > 0) {
-      disk.free(this, blocksToRemove);
+    if (compressedBlocks != null) {
+      if (newBlockCount < compressedBlocks.length) {
+        truncateCompressedBlocks(newBlockCount);
+      }
+    } else if (blockCount > newBlockCount) {
+      freeBlocks(blockCount - newBlockCount);
     }
 
+    WriteAheadLog log = log();
+    if (log != null) {
+      log.sizeSet(this, size);
+    }
     return true;
   }
 
-  /** Prepares for a write of len bytes starting at position pos. */
-  private void prepareForWrite(long pos, long len) throws IOException {
-    long end = pos + len;
+  /**
+   * Extends this file to the given {@code size}, setting all bytes between the current size and the
+   * new size to 0. The blocks the file is extended by are holes. If the given size is less than or
+   * equal to the current size of this file, this method does nothing. Returns {@code true} if this
+   * file was modified by the call (its size changed) and {@code false} otherwise.
+   *
+   * @throws IOException if the file needs more blocks but the disk is full
+   */
+  public boolean extend(long size) throws IOException {
+    if (size <= this.size) {
+      return false;
+    }
 
-    // allocate any additional blocks needed
-    int lastBlockIndex = blockCount - 1;
-    int endBlockIndex = blockIndex(end - 1);
+    long previousSize = this.size;
+    try {
+      prepareForWrite(size, 0);
+    } finally {
+      logWrite(size, 0, previousSize);
+    }
+    return true;
+  }
 
-    if (endBlockIndex > lastBlockIndex) {
-      int additionalBlocksNeeded = endBlockIndex - lastBlockIndex;
-      disk.allocate(this, additionalBlocksNeeded);
+  /**
+   * Records a write of up to {@code len} bytes starting at position {@code pos}, along with any
+   * other change it made to the size of this file, in the write-ahead log if the file system is
+   * durable. Called whether or not the write succeeded, so that whatever it did change is recorded.
+   */
+  private void logWrite(long pos, long len, long previousSize) {
+    WriteAheadLog log = log();
+    if (log == null) {
+      return;
     }
 
-    // zero bytes between current size and pos
-    if (pos > size) {
-      long remaining = pos - size;
+    long written = Math.min(len, Math.max(0, size - pos));
+    if (written > 0) {
+      log.written(this, pos, written);
+    }
 
-      int blockIndex = blockIndex(size);
-      byte[] block = blocks[blockIndex];
-      int off = offsetInBlock(size);
+    // replaying the write changes the size like this; log the actual size if it's different
+    long replayedSize = written > 0 ? Math.max(previousSize, pos + written) : previousSize;
+    if (size != replayedSize) {
+      log.sizeSet(this, size);
+    }
+  }
 
-      remaining -= zero(block, off, length(off, remaining));
+  /**
+   * Prepares for a write of len bytes starting at position pos. Returns {@code true} if the content
+   * of this file stays inline, in which case the inline array is already large enough for the
+   * write and the size of the file is already its size after the write, or {@code false} if the
+   * write goes to blocks.
+   */
+  private boolean prepareForWrite(long pos, long len) throws IOException {
+    load();
+    decompress();
+    long end = pos + len;
 
-      while (remaining > 0) {
-        block = blocks[++blockIndex];
+    if (blockCount == 0 && end <= disk.maxInlineSize()) {
+      if (end > size) {
+        // the new part of the array is zeroed, including any bytes between the current size and pos
+        inline = inline == null ? new byte[(int) end] : Arrays.copyOf(inline, (int) end);
+        size = end;
+      }
+      return true;
+    }
+    moveInlineContentToBlocks();
 
-        remaining -= zero(block, 0, length(remaining));
+    // add any additional blocks needed: holes for the blocks the write doesn't touch, and allocated
+    // blocks from the one containing pos
+    int endBlockIndex = blockIndex(end - 1);
+    if (end > 0 && endBlockIndex >= blockCount) {
+      int firstWrittenIndex = len == 0 ? endBlockIndex + 1 : blockIndex(pos);
+      int holeEnd = Math.min(firstWrittenIndex, endBlockIndex + 1);
+      if (holeEnd > blockCount) {
+        addHoles(holeEnd - blockCount);
+      }
+      if (endBlockIndex >= blockCount) {
+        disk.allocate(this, endBlockIndex - blockCount + 1);
+      }
+    }
+
+    // zero bytes between current size and pos, other than those in holes
+    if (pos > size) {
+      int lastIndex = blockIndex(pos - 1);
+      for (int i = blockIndex(size); i <= lastIndex; i++) {
+        if (blocks[i] != null) {
+          long start = Math.max(size, disk.blockStart(i));
+          long blockEnd = Math.min(pos, disk.blockStart(i + 1));
+          zero(writableBlock(i), offsetInBlock(start), (int) (blockEnd - start));
+        }
       }
 
       size = pos;
     }
+    return false;
   }
 
   /**
@@ -275,17 +800,25 @@ final class RegularFile extends File {
    * @throws IOException if the file needs more blocks but the disk is full
    */
   public int write(long pos, byte b) throws IOException {
-    prepareForWrite(pos, 1);
+    long previousSize = size;
+    try {
+      if (prepareForWrite(pos, 1)) {
+        inline[(int) pos] = b;
+        return 1;
+      }
 
-    byte[] block = blocks[blockIndex(pos)];
-    int off = offsetInBlock(pos);
-    block[off] = b;
+      ByteBuffer block = writableBlock(blockIndex(pos));
+      int off = offsetInBlock(pos);
+      block.put(off, b);
 
-    if (pos >= size) {
-      size = pos + 1;
-    }
+      if (pos >= size) {
+        size = pos + 1;
+      }
 
-    return 1;
+      return 1;
+    } finally {
+      logWrite(pos, 1, previousSize);
+    }
   }
 
   /**
@@ -297,36 +830,46 @@ final class RegularFile extends File {
    * @throws IOException if the file needs more blocks but the disk is full
    */
   public int write(long pos, byte[] b, int off, int len) throws IOException {
-    prepareForWrite(pos, len);
-
-    if (len == 0) {
-      return 0;
-    }
-
-    int remaining = len;
+    long previousSize = size;
+    try {
+      if (prepareForWrite(pos, len)) {
+        if (len > 0) {
+          System.arraycopy(b, off, inline, (int) pos, len);
+        }
+        return len;
+      }
 
-    int blockIndex = blockIndex(pos);
-    byte[] block = blocks[blockIndex];
-    int offInBlock = offsetInBlock(pos);
+      if (len == 0) {
+        return 0;
+      }
 
-    int written = put(block, offInBlock, b, off, length(offInBlock, remaining));
-    remaining -= written;
-    off += written;
+      int remaining = len;
 
-    while (remaining > 0) {
-      block = blocks[++blockIndex];
+      int blockIndex = blockIndex(pos);
+      ByteBuffer block = writableBlock(blockIndex);
+      int offInBlock = offsetInBlock(pos);
 
-      written = put(block, 0, b, off, length(remaining));
+      int written = put(block, offInBlock, b, off, length(block, offInBlock, remaining));
       remaining -= written;
       off += written;
-    }
 
-    long endPos = pos + len;
-    if (endPos > size) {
-      size = endPos;
-    }
+      while (remaining > 0) {
+        block = writableBlock(++blockIndex);
 
-    return len;
+        written = put(block, 0, b, off, length(block, 0, remaining));
+        remaining -= written;
+        off += written;
+      }
+
+      long endPos = pos + len;
+      if (endPos > size) {
+        size = endPos;
+      }
+
+      return len;
+    } finally {
+      logWrite(pos, len, previousSize);
+    }
   }
 
   /**
@@ -338,32 +881,41 @@ final class RegularFile extends File {
    * @throws IOException if the file needs more blocks but the disk is full
    */
   public int write(long pos, ByteBuffer buf) throws IOException {
+    long previousSize = size;
     int len = buf.remaining();
+    try {
+      if (prepareForWrite(pos, len)) {
+        if (len > 0) {
+          buf.get(inline, (int) pos, len);
+        }
+        return len;
+      }
 
-    prepareForWrite(pos, len);
+      if (len == 0) {
+        return 0;
+      }
 
-    if (len == 0) {
-      return 0;
-    }
+      int blockIndex = blockIndex(pos);
+      ByteBuffer block = writableBlock(blockIndex);
+      int off = offsetInBlock(pos);
 
-    int blockIndex = blockIndex(pos);
-    byte[] block = blocks[blockIndex];
-    int off = offsetInBlock(pos);
+      put(block, off, buf);
 
-    put(block, off, buf);
+      while (buf.hasRemaining()) {
+        block = writableBlock(++blockIndex);
 
-    while (buf.hasRemaining()) {
-      block = blocks[++blockIndex];
+        put(block, 0, buf);
+      }
 
-      put(block, 0, buf);
-    }
+      long endPos = pos + len;
+      if (endPos > size) {
+        size = endPos;
+      }
 
-    long endPos = pos + len;
-    if (endPos > size) {
-      size = endPos;
+      return len;
+    } finally {
+      logWrite(pos, len, previousSize);
     }
-
-    return len;
   }
 
   /**
@@ -391,105 +943,181 @@ final class RegularFile extends File {
    *     throws an exception
    */
   public long transferFrom(ReadableByteChannel src, long pos, long count) throws IOException {
-    prepareForWrite(pos, 0); // don't assume the full count bytes will be written
-
-    if (count == 0) {
-      return 0;
+    load();
+    decompress();
+    if (blockCount == 0 && count <= disk.maxInlineSize() - pos) {
+      return transferInlineFrom(src, pos, (int) count);
     }
 
-    long remaining = count;
+    long previousSize = size;
+    try {
+      prepareForWrite(pos, 0); // don't assume the full count bytes will be written
+      moveInlineContentToBlocks();
 
-    int blockIndex = blockIndex(pos);
-    byte[] block = blockForWrite(blockIndex);
-    int off = offsetInBlock(pos);
+      if (count == 0) {
+        return 0;
+      }
 
-    ByteBuffer buf = ByteBuffer.wrap(block, off, length(off, remaining));
+      long remaining = count;
 
-    long currentPos = pos;
-    int read = 0;
-    while (buf.hasRemaining()) {
-      read = src.read(buf);
-      if (read == -1) {
-        break;
+      int blockIndex = blockIndex(pos);
+      ByteBuffer block = blockForWrite(blockIndex);
+      int off = offsetInBlock(pos);
+
+      ByteBuffer buf = view(block, off, length(block, off, remaining));
+
+      long currentPos = pos;
+      int read = 0;
+      while (buf.hasRemaining()) {
+        read = src.read(buf);
+        if (read == -1) {
+          break;
+        }
+
+        currentPos += read;
+        remaining -= read;
       }
 
-      currentPos += read;
-      remaining -= read;
-    }
+      // update size before trying to get next block in case the disk is out of space
+      if (currentPos > size) {
+        size = currentPos;
+      }
 
-    // update size before trying to get next block in case the disk is out of space
-    if (currentPos > size) {
-      size = currentPos;
-    }
+      if (read != -1) {
+        outer:
+        while (remaining > 0) {
+          block = blockForWrite(++blockIndex);
 
-    if (read != -1) {
-      outer:
-      while (remaining > 0) {
-        block = blockForWrite(++blockIndex);
+          buf = view(block, 0, length(block, 0, remaining));
+          while (buf.hasRemaining()) {
+            read = src.read(buf);
+            if (read == -1) {
+              break outer;
+            }
 
-        buf = ByteBuffer.wrap(block, 0, length(remaining));
-        while (buf.hasRemaining()) {
-          read = src.read(buf);
-          if (read == -1) {
-            break outer;
+            currentPos += read;
+            remaining -= read;
           }
 
-          currentPos += read;
-          remaining -= read;
+          if (currentPos > size) {
+            size = currentPos;
+          }
         }
+      }
 
-        if (currentPos > size) {
-          size = currentPos;
-        }
+      if (currentPos > size) {
+        size = currentPos;
       }
-    }
 
-    if (currentPos > size) {
-      size = currentPos;
+      return currentPos - pos;
+    } finally {
+      logWrite(pos, count, previousSize);
     }
+  }
 
-    return currentPos - pos;
+  /**
+   * Transfers up to {@code count} bytes from the given channel to this file starting at position
+   * {@code pos}, where the content of this file stays inline.
+   */
+  private long transferInlineFrom(ReadableByteChannel src, long pos, int count) throws IOException {
+    ByteBuffer buf = ByteBuffer.allocate(count);
+    while (buf.hasRemaining()) {
+      if (src.read(buf) == -1) {
+        break;
+      }
+    }
+    buf.flip();
+    return write(pos, buf);
   }
 
   /**
    * Reads the byte at position {@code pos} in this file as an unsigned integer in the range 0-255.
    * If {@code pos} is greater than or equal to the size of this file, returns -1 instead.
+   *
+   * @throws IOException if the content of this file has to be loaded and loading it fails
    */
-  public int read(long pos) {
+  public int read(long pos) throws IOException {
     if (pos >= size) {
       return -1;
     }
 
-    byte[] block = blocks[blockIndex(pos)];
+    load();
+    if (inline != null) {
+      return UnsignedBytes.toInt(inline[(int) pos]);
+    }
+    ByteBuffer block = readableBlock(blockIndex(pos));
+    if (block == null) {
+      return 0;
+    }
     int off = offsetInBlock(pos);
-    return UnsignedBytes.toInt(block[off]);
+    return UnsignedBytes.toInt(block.get(off));
+  }
+
+  /** Returns the position of the first byte in the block containing the given position. */
+  long blockStart(long pos) {
+    return pos - offsetInBlock(pos);
+  }
+
+  /** Returns the position just past the last byte in the block containing the given position. */
+  long blockEnd(long pos) {
+    return disk.blockStart(blockIndex(pos) + 1);
+  }
+
+  /**
+   * Returns a buffer over the bytes of this file from position {@code pos} to the end of the block
+   * containing it or the end of the file, whichever comes first, or over up to {@linkplain
+   * Util#zeros a few thousand} zeros if the block is a hole. {@code pos} must be less than the
+   * size of the file, and the file's content must have been loaded, as it is once any byte of the
+   * file has been read. Must be called while holding the read lock.
+   *
+   * <p>The buffer shares the block's content, so it may only be read without locking as long as the
+   * content is {@linkplain #isContentUnchangedSince unchanged} since the {@linkplain
+   * #contentVersion() version} at the time the buffer was returned.
+   */
+  ByteBuffer readWindow(long pos) {
+    if (inline != null) {
+      return ByteBuffer.wrap(inline, (int) pos, (int) (size - pos));
+    }
+    int index = blockIndex(pos);
+    ByteBuffer block = readableBlock(index);
+    int off = offsetInBlock(pos);
+    int len = length(block, index, off, size - pos);
+    return block == null ? Util.zeros(len) : view(block, off, len);
   }
 
   /**
    * Reads up to {@code len} bytes starting at position {@code pos} in this file to the given byte
    * array starting at offset {@code off}. Returns the number of bytes actually read or -1 if {@code
    * pos} is greater than or equal to the size of this file.
+   *
+   * @throws IOException if the content of this file has to be loaded and loading it fails
    */
-  public int read(long pos, byte[] b, int off, int len) {
+  public int read(long pos, byte[] b, int off, int len) throws IOException {
     // since max is len (an int), result is guaranteed to be an int
     int bytesToRead = (int) bytesToRead(pos, len);
 
     if (bytesToRead > 0) {
+      load();
+      if (inline != null) {
+        System.arraycopy(inline, (int) pos, b, off, bytesToRead);
+        return bytesToRead;
+      }
       int remaining = bytesToRead;
 
       int blockIndex = blockIndex(pos);
-      byte[] block = blocks[blockIndex];
+      ByteBuffer block = readableBlock(blockIndex);
       int offsetInBlock = offsetInBlock(pos);
 
-      int read = get(block, offsetInBlock, b, off, length(offsetInBlock, remaining));
+      int read =
+          get(block, offsetInBlock, b, off, length(block, blockIndex, offsetInBlock, remaining));
       remaining -= read;
       off += read;
 
       while (remaining > 0) {
         int index = ++blockIndex;
-        block = blocks[index];
+        block = readableBlock(index);
 
-        read = get(block, 0, b, off, length(remaining));
+        read = get(block, 0, b, off, length(block, index, 0, remaining));
         remaining -= read;
         off += read;
       }
@@ -502,24 +1130,31 @@ final class RegularFile extends File {
    * Reads up to {@code buf.remaining()} bytes starting at position {@code pos} in this file to the
    * given buffer. Returns the number of bytes read or -1 if {@code pos} is greater than or equal to
    * the size of this file.
+   *
+   * @throws IOException if the content of this file has to be loaded and loading it fails
    */
-  public int read(long pos, ByteBuffer buf) {
+  public int read(long pos, ByteBuffer buf) throws IOException {
     // since max is buf.remaining() (an int), result is guaranteed to be an int
     int bytesToRead = (int) bytesToRead(pos, buf.remaining());
 
     if (bytesToRead > 0) {
+      load();
+      if (inline != null) {
+        buf.put(inline, (int) pos, bytesToRead);
+        return bytesToRead;
+      }
       int remaining = bytesToRead;
 
       int blockIndex = blockIndex(pos);
-      byte[] block = blocks[blockIndex];
+      ByteBuffer block = readableBlock(blockIndex);
       int off = offsetInBlock(pos);
 
-      remaining -= get(block, off, buf, length(off, remaining));
+      remaining -= get(block, off, buf, length(block, blockIndex, off, remaining));
 
       while (remaining > 0) {
         int index = ++blockIndex;
-        block = blocks[index];
-        remaining -= get(block, 0, buf, length(remaining));
+        block = readableBlock(index);
+        remaining -= get(block, 0, buf, length(block, index, 0, remaining));
       }
     }
 
@@ -530,8 +1165,10 @@ final class RegularFile extends File {
    * Reads up to the total {@code remaining()} number of bytes in each of {@code bufs} starting at
    * position {@code pos} in this file to the given buffers, in order. Returns the number of bytes
    * read or -1 if {@code pos} is greater than or equal to the size of this file.
+   *
+   * @throws IOException if the content of this file has to be loaded and loading it fails
    */
-  public long read(long pos, Iterable<ByteBuffer> bufs) {
+  public long read(long pos, Iterable<ByteBuffer> bufs) throws IOException {
     if (pos >= size()) {
       return -1;
     }
@@ -560,57 +1197,293 @@ final class RegularFile extends File {
     long bytesToRead = bytesToRead(pos, count);
 
     if (bytesToRead > 0) {
+      load();
+      if (inline != null) {
+        ByteBuffer buf = ByteBuffer.wrap(inline, (int) pos, (int) bytesToRead);
+        while (buf.hasRemaining()) {
+          dest.write(buf);
+        }
+        return bytesToRead;
+      }
       long remaining = bytesToRead;
 
       int blockIndex = blockIndex(pos);
-      byte[] block = blocks[blockIndex];
+      ByteBuffer block = readableBlock(blockIndex);
       int off = offsetInBlock(pos);
 
-      ByteBuffer buf = ByteBuffer.wrap(block, off, length(off, remaining));
-      while (buf.hasRemaining()) {
-        remaining -= dest.write(buf);
-      }
-      buf.clear();
+      remaining -= transfer(block, off, length(block, blockIndex, off, remaining), dest);
 
       while (remaining > 0) {
         int index = ++blockIndex;
-        block = blocks[index];
+        block = readableBlock(index);
+        remaining -= transfer(block, 0, length(block, index, 0, remaining), dest);
+      }
+    }
 
-        buf = ByteBuffer.wrap(block, 0, length(remaining));
-        while (buf.hasRemaining()) {
-          remaining -= dest.write(buf);
+    return Math.max(bytesToRead, 0); // don't return -1 for this method
+  }
+
+  /** Returns the number of blocks of this file, including compressed blocks. */
+  private int storedBlockCount() {
+    return compressedBlocks != null ? compressedBlocks.length : blockCount;
+  }
+
+  /** Returns whether or not the block at the given index is a hole. */
+  private boolean isHole(int index) {
+    return compressedBlocks != null ? compressedBlocks[index] == null : blocks[index] == null;
+  }
+
+  /**
+   * Returns the position of the first byte at or after position {@code pos} in this file that's
+   * not in a hole, or -1 if there is none, including if {@code pos} is greater than or equal to the
+   * size of this file. Like {@code lseek} with {@code SEEK_DATA}. Should be called while holding
+   * the read lock.
+   */
+  long seekData(long pos) {
+    if (pos >= size) {
+      return -1;
+    }
+    if (!mayHaveHoles || contentSource != null || inline != null) {
+      return pos;
+    }
+
+    int index = blockIndex(pos);
+    int count = storedBlockCount();
+    while (index < count && isHole(index)) {
+      index++;
+    }
+    long data = index < count ? Math.max(pos, disk.blockStart(index)) : size;
+    return data < size ? data : -1;
+  }
+
+  /**
+   * Returns the position of the first byte at or after position {@code pos} in this file that's in
+   * a hole, or the size of this file if there is none, as the end of the file counts as a hole; or
+   * returns -1 if {@code pos} is greater than or equal to the size of this file. Like {@code lseek}
+   * with {@code SEEK_HOLE}. Should be called while holding the read lock.
+   */
+  long seekHole(long pos) {
+    if (pos >= size) {
+      return -1;
+    }
+    if (!mayHaveHoles || contentSource != null || inline != null) {
+      return size;
+    }
+
+    int index = blockIndex(pos);
+    int count = storedBlockCount();
+    while (index < count && !isHole(index)) {
+      index++;
+    }
+    return Math.min(Math.max(pos, disk.blockStart(index)), size);
+  }
+
+  /**
+   * Returns the ranges of this file that aren't in holes, as the start and end positions of each
+   * range in turn. A file without holes has a single range covering all of its content, if any.
+   */
+  long[] dataRanges() {
+    readLock().lock();
+    try {
+      long[] ranges = new long[2];
+      int length = 0;
+      for (long pos = seekData(0); pos != -1; pos = seekData(ranges[length - 1])) {
+        if (length == ranges.length) {
+          ranges = Arrays.copyOf(ranges, length * 2);
         }
-        buf.clear();
+        ranges[length++] = pos;
+        ranges[length++] = seekHole(pos);
       }
+      return Arrays.copyOf(ranges, length);
+    } finally {
+      readLock().unlock();
     }
+  }
 
-    return Math.max(bytesToRead, 0); // don't return -1 for this method
+  /**
+   * Returns a direct buffer that shares its content with the {@code len} bytes of this file
+   * starting at position {@code pos}: changes to the buffer are changes to the file and vice versa.
+   * The range must be within the current size of the file. Should only be called while holding the
+   * write lock.
+   *
+   * <p>The blocks covering the range are relocated to a single region of contiguous direct memory
+   * if they aren't already in one, which costs one copy of the blocks; mapping a range within a
+   * region that has already been mapped is free. If a later mapping relocates blocks of an earlier
+   * mapping (when it overlaps the earlier mapping but isn't contained in it), the earlier buffer no
+   * longer reflects changes made to those blocks of the file.
+   *
+   * <p>Once a file has been mapped, the blocks it frees are never reused for other files, so a
+   * mapped buffer stays valid (though detached from the file) after the file is truncated or
+   * deleted.
+   *
+   * @throws IOException if the region of direct memory needed would be larger than the largest
+   *     possible buffer
+   */
+  public ByteBuffer map(long pos, int len) throws IOException {
+    checkArgument(
+        pos + len <= size, "range [%s, %s) not within file of size %s", pos, pos + len, size);
+    if (len == 0) {
+      return ByteBuffer.allocateDirect(0);
+    }
+
+    load();
+    decompress();
+    moveInlineContentToBlocks();
+
+    int firstBlock = blockIndex(pos);
+    int lastBlock = blockIndex(pos + len - 1);
+
+    if (mappedRegions == null) {
+      mappedRegions = new TreeMap<>();
+    }
+
+    Map.Entry<Integer, ByteBuffer> entry = mappedRegions.floorEntry(firstBlock);
+    if (entry == null || regionEnd(entry.getKey(), entry.getValue()) <= lastBlock) {
+      entry = relocate(firstBlock, lastBlock);
+    }
+
+    long regionStart = disk.blockStart(entry.getKey());
+    return view(entry.getValue(), (int) (pos - regionStart), len).slice();
+  }
+
+  /**
+   * Relocates the blocks from {@code firstBlock} to {@code lastBlock} (inclusive) to a new region
+   * of contiguous direct memory and returns the new region's entry.
+   */
+  private Map.Entry<Integer, ByteBuffer> relocate(int firstBlock, int lastBlock)
+      throws IOException {
+    long regionSize = disk.blockStart(lastBlock + 1) - disk.blockStart(firstBlock);
+    if (regionSize > Integer.MAX_VALUE) {
+      throw new IOException("region to map is too large: " + regionSize + " bytes");
+    }
+
+    unmapBlocks(firstBlock, lastBlock + 1);
+
+    ByteBuffer region = ByteBuffer.allocateDirect((int) regionSize);
+    for (int i = firstBlock; i <= lastBlock; i++) {
+      // a block shared with another file gets a copy of its own first, as it's about to become
+      // writable through the mapped buffer
+      writableBlock(i);
+
+      ByteBuffer block = subRegion(region, firstBlock, i, i + 1);
+      copy(blocks[i], block);
+      // the old block is simply dropped rather than freed: if the file has been mapped before, it
+      // may still be referenced by an earlier mapping
+      blocks[i] = block;
+    }
+
+    mappedRegions.put(firstBlock, region);
+    return mappedRegions.floorEntry(firstBlock);
+  }
+
+  /**
+   * Removes the blocks from index {@code from} (inclusive) to {@code to} (exclusive) from the
+   * mapped regions of this file, trimming or splitting any region that contains them.
+   */
+  private void unmapBlocks(int from, int to) {
+    Integer start = mappedRegions.floorKey(from);
+    List<Map.Entry<Integer, ByteBuffer>> overlapping =
+        new ArrayList<>(
+            mappedRegions.subMap(start == null ? from : start, true, to, false).entrySet());
+
+    for (Map.Entry<Integer, ByteBuffer> entry : overlapping) {
+      int regionStart = entry.getKey();
+      ByteBuffer region = entry.getValue();
+      int regionEnd = regionEnd(regionStart, region);
+      if (regionEnd <= from) {
+        continue;
+      }
+
+      mappedRegions.remove(regionStart);
+      if (regionStart < from) {
+        mappedRegions.put(regionStart, subRegion(region, regionStart, regionStart, from));
+      }
+      if (regionEnd > to) {
+        mappedRegions.put(to, subRegion(region, regionStart, to, regionEnd));
+      }
+    }
+  }
+
+  /**
+   * Returns the index of the block just past the end of the given mapped region, which starts at
+   * block {@code regionStart}.
+   */
+  private int regionEnd(int regionStart, ByteBuffer region) {
+    return disk.blockIndex(disk.blockStart(regionStart) + region.capacity());
+  }
+
+  /**
+   * Returns the blocks from index {@code from} (inclusive) to {@code to} (exclusive) of the given
+   * region, which starts at block {@code regionStart}.
+   */
+  private ByteBuffer subRegion(ByteBuffer region, int regionStart, int from, int to) {
+    long start = disk.blockStart(regionStart);
+    long offset = disk.blockStart(from) - start;
+    return view(region, (int) offset, (int) (disk.blockStart(to) - start - offset)).slice();
   }
 
   /** Gets the block at the given index, expanding to create the block if necessary. */
-  private byte[] blockForWrite(int index) throws IOException {
+  private ByteBuffer blockForWrite(int index) throws IOException {
     if (index >= blockCount) {
       int additionalBlocksNeeded = index - blockCount + 1;
       disk.allocate(this, additionalBlocksNeeded);
     }
 
+    return writableBlock(index);
+  }
+
+  /**
+   * Gets the block at the given index for reading: the block itself, or its decompressed content if
+   * this file is compressed. Returns null if the block is a hole.
+   */
+  @Nullable
+  private ByteBuffer readableBlock(int index) {
+    byte[][] compressed = compressedBlocks;
+    if (compressed == null) {
+      return blocks[index];
+    }
+    return compressor.block(compressed[index], disk.blockSize(index));
+  }
+
+  /**
+   * Gets the existing block at the given index for writing. If the block is a hole, the disk first
+   * allocates a block to fill it; if it may be shared with other files, the disk first replaces it
+   * with a copy if it is.
+   *
+   * @throws IOException if the block needs to be allocated or copied but the disk is full
+   */
+  private ByteBuffer writableBlock(int index) throws IOException {
+    if (blocks[index] == null) {
+      disk.fillHole(this, index);
+    } else if (sharedBlocks != null && sharedBlocks[index]) {
+      disk.unshare(this, index);
+    }
     return blocks[index];
   }
 
   private int blockIndex(long position) {
-    return (int) (position / disk.blockSize());
+    return disk.blockIndex(position);
   }
 
   private int offsetInBlock(long position) {
-    return (int) (position % disk.blockSize());
+    return disk.offsetInBlock(position);
   }
 
-  private int length(long max) {
-    return (int) Math.min(disk.blockSize(), max);
+  /**
+   * Returns the number of bytes from offset {@code off} to the end of the given block, up to a
+   * maximum of {@code max}.
+   */
+  private static int length(ByteBuffer block, int off, long max) {
+    return (int) Math.min(block.capacity() - off, max);
   }
 
-  private int length(int off, long max) {
-    return (int) Math.min(disk.blockSize() - off, max);
+  /**
+   * Returns the number of bytes from offset {@code off} to the end of the given block, which is the
+   * block at the given index and may be a hole, up to a maximum of {@code max}.
+   */
+  private int length(@Nullable ByteBuffer block, int index, int off, long max) {
+    int capacity = block != null ? block.capacity() : disk.blockSize(index);
+    return (int) Math.min(capacity - off, max);
   }
 
   /**
@@ -625,37 +1498,107 @@ final class RegularFile extends File {
     return Math.min(available, max);
   }
 
+  /**
+   * Returns a view of the {@code len} bytes starting at the given offset in the given block. The
+   * view shares content with the block but has its own position and limit.
+   */
+  private static ByteBuffer view(ByteBuffer block, int offset, int len) {
+    ByteBuffer view = block.duplicate();
+    view.limit(offset + len);
+    view.position(offset);
+    return view;
+  }
+
+  /** Copies the full contents of the given block to the given target block. */
+  static void copy(ByteBuffer block, ByteBuffer target) {
+    if (block.hasArray() && target.hasArray()) {
+      System.arraycopy(
+          block.array(),
+          block.arrayOffset(),
+          target.array(),
+          target.arrayOffset(),
+          block.capacity());
+    } else {
+      target.duplicate().put(block.duplicate());
+    }
+  }
+
   /** Zeroes len bytes in the given block starting at the given offset. Returns len. */
-  private static int zero(byte[] block, int offset, int len) {
+  private static int zero(ByteBuffer block, int offset, int len) {
     Util.zero(block, offset, len);
     return len;
   }
 
   /** Puts the given slice of the given array at the given offset in the given block. */
-  private static int put(byte[] block, int offset, byte[] b, int off, int len) {
-    System.arraycopy(b, off, block, offset, len);
+  private static int put(ByteBuffer block, int offset, byte[] b, int off, int len) {
+    if (block.hasArray()) {
+      System.arraycopy(b, off, block.array(), block.arrayOffset() + offset, len);
+    } else {
+      view(block, offset, len).put(b, off, len);
+    }
     return len;
   }
 
   /** Puts the contents of the given byte buffer at the given offset in the given block. */
-  private static int put(byte[] block, int offset, ByteBuffer buf) {
-    int len = Math.min(block.length - offset, buf.remaining());
-    buf.get(block, offset, len);
+  private static int put(ByteBuffer block, int offset, ByteBuffer buf) {
+    int len = Math.min(block.capacity() - offset, buf.remaining());
+    if (block.hasArray()) {
+      buf.get(block.array(), block.arrayOffset() + offset, len);
+    } else {
+      ByteBuffer src = buf.duplicate();
+      src.limit(src.position() + len);
+      view(block, offset, len).put(src);
+      buf.position(buf.position() + len);
+    }
+    return len;
+  }
+
+  /**
+   * Reads len bytes starting at the given offset in the given block, which may be a hole, into the
+   * given slice of the given byte array.
+   */
+  private static int get(@Nullable ByteBuffer block, int offset, byte[] b, int off, int len) {
+    if (block == null) {
+      Util.zero(b, off, len);
+    } else if (block.hasArray()) {
+      System.arraycopy(block.array(), block.arrayOffset() + offset, b, off, len);
+    } else {
+      view(block, offset, len).get(b, off, len);
+    }
     return len;
   }
 
   /**
-   * Reads len bytes starting at the given offset in the given block into the given slice of the
-   * given byte array.
+   * Reads len bytes starting at the given offset in the given block, which may be a hole, into the
+   * given byte buffer.
    */
-  private static int get(byte[] block, int offset, byte[] b, int off, int len) {
-    System.arraycopy(block, offset, b, off, len);
+  private static int get(@Nullable ByteBuffer block, int offset, ByteBuffer buf, int len) {
+    if (block == null) {
+      Util.zero(buf, buf.position(), len);
+      buf.position(buf.position() + len);
+    } else if (block.hasArray()) {
+      buf.put(block.array(), block.arrayOffset() + offset, len);
+    } else {
+      buf.put(view(block, offset, len));
+    }
     return len;
   }
 
-  /** Reads len bytes starting at the given offset in the given block into the given byte buffer. */
-  private static int get(byte[] block, int offset, ByteBuffer buf, int len) {
-    buf.put(block, offset, len);
+  /**
+   * Writes len bytes starting at the given offset in the given block, which may be a hole, to the
+   * given channel.
+   */
+  private static int transfer(
+      @Nullable ByteBuffer block, int offset, int len, WritableByteChannel dest)
+      throws IOException {
+    int remaining = len;
+    while (remaining > 0) {
+      ByteBuffer buf = block == null ? Util.zeros(remaining) : view(block, offset, remaining);
+      remaining -= buf.remaining();
+      while (buf.hasRemaining()) {
+        dest.write(buf);
+      }
+    }
     return len;
   }
 }
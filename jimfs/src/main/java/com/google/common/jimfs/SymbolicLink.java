@@ -27,13 +27,20 @@ final class SymbolicLink extends File {
 
   private final JimfsPath target;
 
-  /** Creates a new symbolic link with the given ID and target. */
+  /**
+   * Creates a new symbolic link with the given ID and target, created at the current system time.
+   */
   public static SymbolicLink create(int id, JimfsPath target) {
-    return new SymbolicLink(id, target);
+    return create(id, target, System.currentTimeMillis());
   }
 
-  private SymbolicLink(int id, JimfsPath target) {
-    super(id);
+  /** Creates a new symbolic link with the given ID, target and creation time. */
+  public static SymbolicLink create(int id, JimfsPath target, long creationTime) {
+    return new SymbolicLink(id, target, creationTime);
+  }
+
+  private SymbolicLink(int id, JimfsPath target, long creationTime) {
+    super(id, creationTime);
     this.target = checkNotNull(target);
   }
 
@@ -43,7 +50,7 @@ final class SymbolicLink extends File {
   }
 
   @Override
-  File copyWithoutContent(int id) {
-    return SymbolicLink.create(id, target);
+  File copyWithoutContent(int id, long creationTime) {
+    return SymbolicLink.create(id, target, creationTime);
   }
 }
@@ -20,6 +20,7 @@ import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 import com.google.common.collect.ImmutableCollection;
+import java.nio.ByteBuffer;
 
 /**
  * Miscellaneous static utility methods.
@@ -74,7 +75,7 @@ final class Util {
 
   private static final int ARRAY_LEN = 8192;
   private static final byte[] ZERO_ARRAY = new byte[ARRAY_LEN];
-  private static final byte[][] NULL_ARRAY = new byte[ARRAY_LEN][];
+  private static final ByteBuffer[] NULL_ARRAY = new ByteBuffer[ARRAY_LEN];
 
   /** Zeroes all bytes between off (inclusive) and off + len (exclusive) in the given array. */
   static void zero(byte[] bytes, int off, int len) {
@@ -91,11 +92,35 @@ final class Util {
     System.arraycopy(ZERO_ARRAY, 0, bytes, off, remaining);
   }
 
+  /** Returns a new read-only buffer of {@code len} zeros or, if len is large, fewer. */
+  static ByteBuffer zeros(int len) {
+    return ByteBuffer.wrap(ZERO_ARRAY, 0, Math.min(len, ARRAY_LEN)).slice().asReadOnlyBuffer();
+  }
+
+  /**
+   * Zeroes all bytes between off (inclusive) and off + len (exclusive) in the given buffer. The
+   * position and limit of the buffer are not changed.
+   */
+  static void zero(ByteBuffer buffer, int off, int len) {
+    if (buffer.hasArray()) {
+      zero(buffer.array(), buffer.arrayOffset() + off, len);
+      return;
+    }
+
+    ByteBuffer view = buffer.duplicate();
+    view.limit(off + len);
+    view.position(off);
+    while (view.remaining() > ARRAY_LEN) {
+      view.put(ZERO_ARRAY);
+    }
+    view.put(ZERO_ARRAY, 0, view.remaining());
+  }
+
   /**
    * Clears (sets to null) all blocks between off (inclusive) and off + len (exclusive) in the given
    * array.
    */
-  static void clear(byte[][] blocks, int off, int len) {
+  static void clear(ByteBuffer[] blocks, int off, int len) {
     // this is significantly faster than looping or Arrays.fill (which loops), particularly when
     // the length of the slice to be cleared is <= to ARRAY_LEN (in that case, it's faster by a
     // factor of 2)
@@ -44,6 +44,19 @@ public abstract class WatchServiceConfiguration {
     return new PollingConfig(interval, timeUnit);
   }
 
+  /**
+   * Returns a configuration for a {@link WatchService} that is notified of changes to watched
+   * directories as they're made, rather than polling them. Such a watch service does no work while
+   * nothing changes and makes events available immediately.
+   *
+   * <p>Events are reported individually as changes are made, so some sequences of changes (for
+   * example, creating a file and then writing to it) produce more events than a polling watch
+   * service would. Repeated identical events that haven't been retrieved yet are coalesced.
+   */
+  public static WatchServiceConfiguration eventDriven() {
+    return EventDrivenConfig.INSTANCE;
+  }
+
   WatchServiceConfiguration() {}
 
   /** Creates a new {@link AbstractWatchService} implementation. */
@@ -73,4 +86,20 @@ public abstract class WatchServiceConfiguration {
       return "WatchServiceConfiguration.polling(" + interval + ", " + timeUnit + ")";
     }
   }
+
+  /** Implementation for {@link #eventDriven}. */
+  private static final class EventDrivenConfig extends WatchServiceConfiguration {
+
+    private static final EventDrivenConfig INSTANCE = new EventDrivenConfig();
+
+    @Override
+    AbstractWatchService newWatchService(FileSystemView view, PathService pathService) {
+      return new EventDrivenWatchService(view, pathService, view.state());
+    }
+
+    @Override
+    public String toString() {
+      return "WatchServiceConfiguration.eventDriven()";
+    }
+  }
 }
@@ -0,0 +1,1117 @@
+/*
+ * Copyright 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.jimfs;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.jimfs.ByteDecoder.getAttributeValue;
+import static com.google.common.jimfs.ByteDecoder.getName;
+import static com.google.common.jimfs.ByteDecoder.getString;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.CREATE_NEW;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import com.google.common.collect.Table;
+import com.google.common.jimfs.FileSystemSnapshot.TreeCopier;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOError;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.ClosedFileSystemException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import javax.annotation.Nullable;
+
+/**
+ * A write-ahead log, kept in a directory on the host file system, that makes a Jimfs file system
+ * durable.
+ *
+ * <p>Each change to the file system's files is appended to the log as a record while the change is
+ * made: the creation of files, linking and unlinking directory entries, writes to and size changes
+ * of regular files, and changes to file times and attributes. When a file system is created with a
+ * log directory that already contains a log, its files are rebuilt by replaying the log.
+ *
+ * <p>The log consists of numbered <i>segment</i> files and, once it has been compacted, a
+ * <i>checkpoint</i> file. Records are appended to the newest segment. When it grows beyond the
+ * checkpoint threshold, the log is compacted in the background. With the file system's tree locked
+ * for writing, a new segment is started and the tree is copied the same way a {@linkplain
+ * FileSystemSnapshot snapshot} copies it; the copy is then written out as the new checkpoint
+ * without holding any locks, and the sealed segments are deleted. A checkpoint records the number
+ * of the last segment it covers, so a crash at any point during compaction loses nothing. Each
+ * record is checksummed, and replaying a segment stops at the first incomplete or corrupt record,
+ * which is how a record torn by a crash is discarded.
+ *
+ * <p>Copying the tree doesn't copy file content: the copies share the blocks of the regular files
+ * until the checkpoint has been written. Compaction therefore only takes memory for the blocks the
+ * file system writes to while a checkpoint is being written, which are copied on write and count
+ * toward the disk's maximum size like any other blocks.
+ *
+ * <p>Changes to the content, size, times and attributes of a file may be made while the tree is
+ * being copied, so the segment after a checkpoint may record changes that the checkpoint already
+ * contains. Replaying those records again leaves the files as they were, since each records the
+ * resulting state rather than a relative change. Changes to the tree itself, including the copying
+ * of a file's content to a new copy, are never split between a checkpoint and the next segment.
+ *
+ * <p>Records are written to the host file system before the change they record completes, so
+ * changes survive the JVM crashing or being killed. Segments are only forced to the host's storage
+ * device when they're sealed and when the log is closed, so a crash of the host itself may lose the
+ * most recent changes. Changes to a file's last access time caused by reading it, and changes made
+ * through {@linkplain java.nio.MappedByteBuffer mapped buffers}, aren't recorded.
+ *
+ * <p>If a record can't be appended to the log, the log fails: the change that was being recorded
+ * and all further changes throw an {@link IOError}, since they can no longer be made durable.
+ *
+ * @author Colin Decker
+ */
+final class WriteAheadLog implements Closeable {
+
+  private static final Logger LOGGER = Logger.getLogger(WriteAheadLog.class.getName());
+
+  /** Thread factory for compaction threads, which are daemon threads like the polling threads. */
+  private static final ThreadFactory THREAD_FACTORY =
+      new ThreadFactoryBuilder()
+          .setNameFormat("com.google.common.jimfs.WriteAheadLog-compaction-%d")
+          .setDaemon(true)
+          .build();
+
+  /** The default size a segment may reach before a new one is started and the log compacted. */
+  static final long DEFAULT_CHECKPOINT_THRESHOLD = 64L * 1024 * 1024;
+
+  private static final int MAGIC = 0x4a4d4653; // "JMFS"
+  private static final int VERSION = 1;
+
+  /** The size of the magic number, version and segment number at the start of each segment. */
+  private static final int SEGMENT_HEADER_SIZE = 16;
+
+  private static final String LOCK_FILE_NAME = "lock";
+  private static final String CHECKPOINT_FILE_NAME = "checkpoint";
+  private static final String SEGMENT_FILE_PREFIX = "segment-";
+
+  /** The maximum number of bytes of file content in a single write record. */
+  private static final int MAX_WRITE_LENGTH = 1024 * 1024;
+
+  /** Records claiming to be longer than this are treated as corrupt. */
+  private static final int MAX_RECORD_LENGTH = 64 * 1024 * 1024;
+
+  // record types
+
+  private static final byte END = 0;
+  private static final byte NEW_ROOT = 1;
+  private static final byte NEW_DIRECTORY = 2;
+  private static final byte NEW_REGULAR_FILE = 3;
+  private static final byte NEW_SYMBOLIC_LINK = 4;
+  private static final byte LINK = 5;
+  private static final byte UNLINK = 6;
+  private static final byte WRITE_CONTENT = 7;
+  private static final byte SET_SIZE = 8;
+  private static final byte COPY_CONTENT = 9;
+  private static final byte SET_TIMES = 10;
+  private static final byte SET_ATTRIBUTE = 11;
+  private static final byte DELETE_ATTRIBUTE = 12;
+
+  private final Path directory;
+  private final long checkpointThreshold;
+  private final FileChannel lockChannel;
+  private final int nextFileId;
+
+  /** The tree of the file system using this log, which compaction copies. */
+  @Nullable private volatile FileTree tree;
+
+  private final ExecutorService compactionService =
+      Executors.newSingleThreadExecutor(THREAD_FACTORY);
+
+  // guarded by this
+  private RecordWriter writer;
+  private long segmentNumber;
+  private boolean failed;
+  private boolean closed;
+
+  /** The size the current segment must reach before compacting the log. */
+  private long compactionSize;
+
+  private boolean compactionScheduled;
+
+  private WriteAheadLog(
+      Path directory,
+      long checkpointThreshold,
+      FileChannel lockChannel,
+      int nextFileId,
+      long segmentNumber)
+      throws IOException {
+    this.directory = directory;
+    this.checkpointThreshold = checkpointThreshold;
+    this.compactionSize = checkpointThreshold;
+    this.lockChannel = lockChannel;
+    this.nextFileId = nextFileId;
+    this.segmentNumber = segmentNumber;
+    this.writer = newSegment(directory, segmentNumber);
+  }
+
+  /**
+   * Opens the write-ahead log in the given directory, creating the directory if needed. If the
+   * directory already contains a log, the files it records are rebuilt, storing regular file
+   * content on the given disk, and the root directories are put in the given map.
+   *
+   * @throws IOException if the directory is in use by another open log or if reading the log fails
+   */
+  static WriteAheadLog open(
+      Path directory,
+      long checkpointThreshold,
+      PathService pathService,
+      Disk disk,
+      Map<Name, Directory> roots)
+      throws IOException {
+    checkArgument(checkpointThreshold > 0, "checkpointThreshold must be positive");
+    Files.createDirectories(directory);
+
+    FileChannel lockChannel = FileChannel.open(directory.resolve(LOCK_FILE_NAME), CREATE, WRITE);
+    try {
+      lock(lockChannel, directory);
+
+      Replay replay = new Replay(pathService, disk);
+      long lastSegment = replay.replayCheckpoint(directory);
+      long checkpointSegment = lastSegment;
+      long segmentBytes = 0;
+      for (long number : segmentNumbers(directory)) {
+        Path segment = segmentFile(directory, number);
+        if (number <= checkpointSegment) {
+          // already in the checkpoint; left behind by a compaction that was interrupted
+          Files.delete(segment);
+        } else {
+          replay.replaySegment(segment);
+          segmentBytes += Files.size(segment);
+          lastSegment = number;
+        }
+      }
+      // files whose creation was the last thing logged before a crash were never linked
+      Iterable<File> files = replay.finish();
+      roots.putAll(replay.roots);
+
+      if (segmentBytes >= checkpointThreshold) {
+        // nothing else can see the files yet, so they can be written out directly
+        writeCheckpoint(directory, roots, replay.nextFileId, lastSegment);
+        deleteSegments(directory, lastSegment);
+      }
+
+      WriteAheadLog log =
+          new WriteAheadLog(
+              directory, checkpointThreshold, lockChannel, replay.nextFileId, lastSegment + 1);
+      for (File file : files) {
+        file.setLog(log);
+      }
+      return log;
+    } catch (IOException | RuntimeException | Error e) {
+      lockChannel.close();
+      throw e;
+    }
+  }
+
+  private static void lock(FileChannel lockChannel, Path directory) throws IOException {
+    FileLock lock;
+    try {
+      lock = lockChannel.tryLock();
+    } catch (OverlappingFileLockException e) {
+      lock = null; // locked by another log in this JVM
+    }
+    if (lock == null) {
+      throw new IOException(
+          "write-ahead log directory " + directory + " is in use by another file system");
+    }
+  }
+
+  /** Returns the ID to give the next file created in the file system. */
+  int nextFileId() {
+    return nextFileId;
+  }
+
+  /**
+   * Sets the tree of the file system using this log, once it has been created. The log isn't
+   * compacted until then.
+   */
+  void setTree(FileTree tree) {
+    this.tree = checkNotNull(tree);
+  }
+
+  /** Records the creation of the given root directory, along with its initial times. */
+  void rootCreated(Directory root, Name name) {
+    // read before locking this log, since logging a change to a file's times locks the file first
+    long creationTime = root.getCreationTime();
+    long lastModifiedTime = root.getLastModifiedTime();
+    long lastAccessTime = root.getLastAccessTime();
+    synchronized (this) {
+      try {
+        writer().newRoot(root, name);
+        writer.setTimes(root, creationTime, lastModifiedTime, lastAccessTime);
+        appended();
+      } catch (IOException e) {
+        throw failure(e);
+      }
+    }
+  }
+
+  /** Records the creation of the given non-root file, along with its initial times. */
+  void created(File file) {
+    long creationTime = file.getCreationTime();
+    long lastModifiedTime = file.getLastModifiedTime();
+    long lastAccessTime = file.getLastAccessTime();
+    synchronized (this) {
+      try {
+        writer().newFile(file);
+        writer.setTimes(file, creationTime, lastModifiedTime, lastAccessTime);
+        appended();
+      } catch (IOException e) {
+        throw failure(e);
+      }
+    }
+  }
+
+  /** Records the linking of the given name to the given file in the given directory. */
+  synchronized void linked(Directory directory, Name name, File file) {
+    try {
+      writer().link(directory, name, file);
+      appended();
+    } catch (IOException e) {
+      throw failure(e);
+    }
+  }
+
+  /** Records the unlinking of the given name in the given directory. */
+  synchronized void unlinked(Directory directory, Name name) {
+    try {
+      writer().unlink(directory, name);
+      appended();
+    } catch (IOException e) {
+      throw failure(e);
+    }
+  }
+
+  /**
+   * Records the current content of the given range of bytes in the given file. The file must be
+   * locked so that its content can't change.
+   */
+  void written(RegularFile file, long pos, long len) {
+    try {
+      // loading takes the file's monitor, which must not be taken while holding this log's, since
+      // the file holds its monitor while logging changes to its times; load before locking instead
+      file.load();
+    } catch (IOException e) {
+      synchronized (this) {
+        throw failure(e);
+      }
+    }
+
+    synchronized (this) {
+      try {
+        writer().write(file, pos, len);
+        appended();
+      } catch (IOException e) {
+        throw failure(e);
+      }
+    }
+  }
+
+  /** Records a change to the size of the given file. */
+  synchronized void sizeSet(RegularFile file, long size) {
+    try {
+      writer().setSize(file, size);
+      appended();
+    } catch (IOException e) {
+      throw failure(e);
+    }
+  }
+
+  /** Records the copying of the content of the given source file to the given copy. */
+  synchronized void contentCopied(RegularFile source, RegularFile copy) {
+    try {
+      writer().copyContent(source, copy);
+      appended();
+    } catch (IOException e) {
+      throw failure(e);
+    }
+  }
+
+  /** Records a change to the times of the given file. */
+  synchronized void timesSet(
+      File file, long creationTime, long lastModifiedTime, long lastAccessTime) {
+    try {
+      writer().setTimes(file, creationTime, lastModifiedTime, lastAccessTime);
+      appended();
+    } catch (IOException e) {
+      throw failure(e);
+    }
+  }
+
+  /**
+   * Records the setting of the given attribute of the given file.
+   *
+   * @throws IllegalArgumentException if the value is of a type that can't be recorded
+   */
+  synchronized void attributeSet(File file, String view, String attribute, Object value) {
+    try {
+      writer().setAttribute(file, view, attribute, value);
+      appended();
+    } catch (IOException e) {
+      throw failure(e);
+    }
+  }
+
+  /** Records the deletion of the given attribute of the given file. */
+  synchronized void attributeDeleted(File file, String view, String attribute) {
+    try {
+      writer().deleteAttribute(file, view, attribute);
+      appended();
+    } catch (IOException e) {
+      throw failure(e);
+    }
+  }
+
+  private RecordWriter writer() {
+    if (closed) {
+      throw new ClosedFileSystemException();
+    }
+    if (failed) {
+      throw new IOError(new IOException("write-ahead log failed; see earlier error"));
+    }
+    return writer;
+  }
+
+  private IOError failure(IOException e) {
+    failed = true;
+    return new IOError(e);
+  }
+
+  /**
+   * Called after appending a record. Schedules a compaction of the log if the current segment has
+   * reached the checkpoint threshold.
+   */
+  private void appended() {
+    if (writer.size() >= compactionSize && !compactionScheduled && tree != null) {
+      compactionScheduled = true;
+      compactionService.execute(
+          new Runnable() {
+            @Override
+            public void run() {
+              compact();
+            }
+          });
+    }
+  }
+
+  /**
+   * Compacts the log, again as long as the new segment reached the checkpoint threshold while the
+   * checkpoint was being written.
+   */
+  private void compact() {
+    boolean again = true;
+    try {
+      while (again) {
+        boolean compacted = false;
+        try {
+          compacted = compact(tree);
+        } catch (IOException | RuntimeException e) {
+          // the segments are kept, so nothing is lost; a later compaction will try again
+          LOGGER.log(Level.WARNING, "failed to compact write-ahead log in " + directory, e);
+        }
+
+        synchronized (this) {
+          // after a failure, wait for the segment to grow by the threshold again before retrying
+          compactionSize = compacted ? checkpointThreshold : writer.size() + checkpointThreshold;
+          again = writer.size() > SEGMENT_HEADER_SIZE && writer.size() >= compactionSize;
+          compactionScheduled = again;
+        }
+      }
+    } finally {
+      if (again) {
+        synchronized (this) {
+          compactionScheduled = false;
+        }
+      }
+    }
+  }
+
+  /**
+   * Starts a new segment and writes a checkpoint of the given tree covering all the segments
+   * before it, then deletes those segments. Returns false if the log failed first.
+   */
+  private boolean compact(FileTree tree) throws IOException {
+    TreeCopier copier = new TreeCopier(null);
+    Map<Name, Directory> roots = new LinkedHashMap<>();
+    long throughSegment;
+    Lock treeLock = tree.lock().writeLock();
+    treeLock.lock();
+    try {
+      awaitContentCopies(tree);
+      synchronized (this) {
+        if (failed) {
+          return false;
+        }
+        throughSegment = segmentNumber;
+        RecordWriter next = newSegment(directory, throughSegment + 1);
+        try {
+          writer.close();
+        } catch (IOException e) {
+          failed = true;
+          next.close();
+          throw e;
+        }
+        writer = next;
+        segmentNumber++;
+      }
+
+      for (Name name : tree.getRootDirectoryNames()) {
+        roots.put(name, copier.copyTree((Directory) tree.getRoot(name).file()));
+      }
+    } catch (IOException | RuntimeException | Error e) {
+      copier.deleteContents();
+      throw e;
+    } finally {
+      treeLock.unlock();
+    }
+
+    try {
+      writeCheckpoint(directory, roots, copier.nextFileId(), throughSegment);
+      deleteSegments(directory, throughSegment);
+    } finally {
+      copier.deleteContents();
+    }
+    return true;
+  }
+
+  /**
+   * Waits for any copying of content to regular files that are in the given tree to finish. Must
+   * be called while holding the tree's write lock.
+   *
+   * <p>A copy of a file is linked into the tree while holding the tree lock, but its content is
+   * copied (and that copying recorded) after the tree lock is released, while holding the copy's
+   * write lock. Taking the read lock of each file in the tree waits for that, so that the record of
+   * the copying can't fall after a new segment started at this point, where it could be replayed
+   * after later changes to the source file.
+   */
+  private static void awaitContentCopies(FileTree tree) {
+    Queue<Directory> directories = new ArrayDeque<>();
+    for (Name name : tree.getRootDirectoryNames()) {
+      directories.add((Directory) tree.getRoot(name).file());
+    }
+    while (!directories.isEmpty()) {
+      for (DirectoryEntry entry : directories.remove()) {
+        Name name = entry.name();
+        if (name.equals(Name.SELF) || name.equals(Name.PARENT)) {
+          continue;
+        }
+
+        File file = entry.file();
+        if (file.isDirectory()) {
+          directories.add((Directory) file);
+        } else if (file.isRegularFile()) {
+          Lock lock = ((RegularFile) file).readLock();
+          lock.lock();
+          lock.unlock();
+        }
+      }
+    }
+  }
+
+  /**
+   * Closes this log, waiting for any compaction scheduled or in progress to finish, then forcing
+   * the current segment to the host's storage device and releasing the log directory.
+   */
+  @Override
+  public void close() throws IOException {
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      closed = true;
+    }
+
+    try {
+      compactionService.shutdown();
+      boolean interrupted = false;
+      while (true) {
+        try {
+          if (compactionService.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS)) {
+            break;
+          }
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+
+      synchronized (this) {
+        writer.close();
+      }
+    } finally {
+      lockChannel.close();
+    }
+  }
+
+  // files
+
+  private static Path segmentFile(Path directory, long number) {
+    return directory.resolve(SEGMENT_FILE_PREFIX + number);
+  }
+
+  /** Returns the numbers of the segments in the given directory, in ascending order. */
+  private static List<Long> segmentNumbers(Path directory) throws IOException {
+    List<Long> numbers = new ArrayList<>();
+    try (DirectoryStream<Path> stream =
+        Files.newDirectoryStream(directory, SEGMENT_FILE_PREFIX + "*")) {
+      for (Path segment : stream) {
+        String suffix = segment.getFileName().toString().substring(SEGMENT_FILE_PREFIX.length());
+        try {
+          numbers.add(Long.parseLong(suffix));
+        } catch (NumberFormatException e) {
+          // not a segment
+        }
+      }
+    }
+    Collections.sort(numbers);
+    return numbers;
+  }
+
+  private static void deleteSegments(Path directory, long throughSegment) throws IOException {
+    for (long number : segmentNumbers(directory)) {
+      if (number <= throughSegment) {
+        Files.delete(segmentFile(directory, number));
+      }
+    }
+  }
+
+  private static RecordWriter newSegment(Path directory, long number) throws IOException {
+    FileChannel channel = FileChannel.open(segmentFile(directory, number), CREATE_NEW, WRITE);
+    ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER_SIZE);
+    header.putInt(MAGIC).putInt(VERSION).putLong(number).flip();
+    return new RecordWriter(channel, header);
+  }
+
+  /**
+   * Writes a checkpoint containing the files in the tree with the given roots and covering all
+   * segments up to and including the given segment. The files must not change while the checkpoint
+   * is written. The checkpoint is written to a temporary file that then atomically replaces the
+   * current checkpoint, if any.
+   */
+  private static void writeCheckpoint(
+      Path directory, Map<Name, Directory> roots, int nextFileId, long throughSegment)
+      throws IOException {
+    Path temp = directory.resolve(CHECKPOINT_FILE_NAME + ".tmp");
+    ByteBuffer header = ByteBuffer.allocate(20);
+    header.putInt(MAGIC).putInt(VERSION).putLong(throughSegment).putInt(nextFileId).flip();
+
+    RecordWriter writer =
+        new RecordWriter(FileChannel.open(temp, CREATE, TRUNCATE_EXISTING, WRITE), header);
+    try {
+      Set<File> written = Collections.newSetFromMap(new IdentityHashMap<File, Boolean>());
+      Queue<Directory> directories = new ArrayDeque<>();
+      for (Map.Entry<Name, Directory> entry : roots.entrySet()) {
+        Directory root = entry.getValue();
+        writer.newRoot(root, entry.getKey());
+        writeState(writer, root);
+        written.add(root);
+        directories.add(root);
+      }
+
+      while (!directories.isEmpty()) {
+        Directory dir = directories.remove();
+        for (DirectoryEntry entry : dir) {
+          Name name = entry.name();
+          if (name.equals(Name.SELF) || name.equals(Name.PARENT)) {
+            continue;
+          }
+
+          File file = entry.file();
+          if (written.add(file)) {
+            writer.newFile(file);
+            writeState(writer, file);
+            if (file.isDirectory()) {
+              directories.add((Directory) file);
+            }
+          }
+          writer.link(dir, name, file);
+        }
+      }
+
+      writer.end();
+    } finally {
+      writer.close();
+    }
+
+    Files.move(temp, directory.resolve(CHECKPOINT_FILE_NAME), ATOMIC_MOVE);
+  }
+
+  /**
+   * Writes the times, attributes and content of the given file. Only the data of a regular file is
+   * written, followed by its size if it ends in a hole, so the holes of a sparse file stay holes
+   * when the checkpoint is replayed.
+   */
+  private static void writeState(RecordWriter writer, File file) throws IOException {
+    writer.setTimes(
+        file, file.getCreationTime(), file.getLastModifiedTime(), file.getLastAccessTime());
+    for (Table.Cell<String, String, Object> cell : file.attributes().cellSet()) {
+      writer.setAttribute(file, cell.getRowKey(), cell.getColumnKey(), cell.getValue());
+    }
+    if (file.isRegularFile()) {
+      RegularFile regularFile = (RegularFile) file;
+      long[] ranges = regularFile.dataRanges();
+      for (int i = 0; i < ranges.length; i += 2) {
+        writer.write(regularFile, ranges[i], ranges[i + 1] - ranges[i]);
+      }
+      long size = regularFile.size();
+      if (size > (ranges.length == 0 ? 0 : ranges[ranges.length - 1])) {
+        writer.setSize(regularFile, size);
+      }
+    }
+  }
+
+  /** Appends records to a segment or checkpoint file. */
+  private static final class RecordWriter implements Closeable {
+
+    /** Records are framed by their length and a CRC32 checksum of their bytes. */
+    private static final int HEADER_LENGTH = 8;
+
+    private final FileChannel channel;
+    private final ByteEncoder buffer = new ByteEncoder();
+    private long size;
+
+    RecordWriter(FileChannel channel, ByteBuffer header) throws IOException {
+      this.channel = channel;
+      writeFully(header);
+    }
+
+    /** Returns the number of bytes written to the file. */
+    long size() {
+      return size;
+    }
+
+    void newRoot(Directory root, Name name) throws IOException {
+      begin(NEW_ROOT);
+      buffer.putInt(root.id());
+      buffer.putName(name);
+      append();
+    }
+
+    void newFile(File file) throws IOException {
+      if (file.isDirectory()) {
+        begin(NEW_DIRECTORY);
+        buffer.putInt(file.id());
+      } else if (file.isRegularFile()) {
+        begin(NEW_REGULAR_FILE);
+        buffer.putInt(file.id());
+      } else {
+        begin(NEW_SYMBOLIC_LINK);
+        buffer.putInt(file.id());
+        buffer.putString(((SymbolicLink) file).target().toString());
+      }
+      append();
+    }
+
+    void link(Directory directory, Name name, File file) throws IOException {
+      begin(LINK);
+      buffer.putInt(directory.id());
+      buffer.putName(name);
+      buffer.putInt(file.id());
+      append();
+    }
+
+    void unlink(Directory directory, Name name) throws IOException {
+      begin(UNLINK);
+      buffer.putInt(directory.id());
+      buffer.putName(name);
+      append();
+    }
+
+    void write(RegularFile file, long pos, long len) throws IOException {
+      while (len > 0) {
+        int chunk = (int) Math.min(len, MAX_WRITE_LENGTH);
+        begin(WRITE_CONTENT);
+        buffer.putInt(file.id());
+        buffer.putLong(pos);
+        file.read(pos, buffer.reserve(chunk));
+        append();
+
+        pos += chunk;
+        len -= chunk;
+      }
+    }
+
+    void setSize(RegularFile file, long size) throws IOException {
+      begin(SET_SIZE);
+      buffer.putInt(file.id());
+      buffer.putLong(size);
+      append();
+    }
+
+    void copyContent(RegularFile source, RegularFile copy) throws IOException {
+      begin(COPY_CONTENT);
+      buffer.putInt(source.id());
+      buffer.putInt(copy.id());
+      append();
+    }
+
+    void setTimes(File file, long creationTime, long lastModifiedTime, long lastAccessTime)
+        throws IOException {
+      begin(SET_TIMES);
+      buffer.putInt(file.id());
+      buffer.putLong(creationTime);
+      buffer.putLong(lastModifiedTime);
+      buffer.putLong(lastAccessTime);
+      append();
+    }
+
+    void setAttribute(File file, String view, String attribute, Object value)
+        throws IOException {
+      begin(SET_ATTRIBUTE);
+      buffer.putInt(file.id());
+      buffer.putString(view);
+      buffer.putString(attribute);
+      buffer.putAttributeValue(view, attribute, value);
+      append();
+    }
+
+    void deleteAttribute(File file, String view, String attribute) throws IOException {
+      begin(DELETE_ATTRIBUTE);
+      buffer.putInt(file.id());
+      buffer.putString(view);
+      buffer.putString(attribute);
+      append();
+    }
+
+    void end() throws IOException {
+      begin(END);
+      append();
+    }
+
+    private void begin(byte type) {
+      buffer.setLength(HEADER_LENGTH);
+      buffer.putByte(type);
+    }
+
+    /** Fills in the length and checksum of the record in the buffer, then writes it. */
+    private void append() throws IOException {
+      byte[] bytes = buffer.array();
+      int length = buffer.length() - HEADER_LENGTH;
+      CRC32 crc = new CRC32();
+      crc.update(bytes, HEADER_LENGTH, length);
+      ByteBuffer.wrap(bytes, 0, HEADER_LENGTH).putInt(length).putInt((int) crc.getValue());
+      writeFully(buffer.toByteBuffer());
+    }
+
+    private void writeFully(ByteBuffer buf) throws IOException {
+      while (buf.hasRemaining()) {
+        size += channel.write(buf);
+      }
+    }
+
+    /** Forces the file to the host's storage device and closes it. */
+    @Override
+    public void close() throws IOException {
+      try {
+        channel.force(true);
+      } finally {
+        channel.close();
+      }
+    }
+  }
+
+  /** Rebuilds a tree of files by applying the records in a checkpoint and segments. */
+  private static final class Replay {
+
+    private final PathService pathService;
+    private final Disk disk;
+
+    final Map<Name, Directory> roots = new LinkedHashMap<>();
+    private final Map<Integer, File> files = new HashMap<>();
+
+    int nextFileId;
+
+    Replay(PathService pathService, Disk disk) {
+      this.pathService = checkNotNull(pathService);
+      this.disk = checkNotNull(disk);
+    }
+
+    /**
+     * Applies the records in the checkpoint in the given directory, if there is one. Returns the
+     * number of the last segment the checkpoint covers, or -1 if there is no checkpoint.
+     */
+    long replayCheckpoint(Path directory) throws IOException {
+      Path checkpoint = directory.resolve(CHECKPOINT_FILE_NAME);
+      if (!Files.exists(checkpoint)) {
+        return -1;
+      }
+
+      try (DataInputStream in = open(checkpoint)) {
+        checkHeader(in, checkpoint);
+        long throughSegment = in.readLong();
+        nextFileId = in.readInt();
+
+        ByteBuffer record;
+        while ((record = readRecord(in)) != null) {
+          if (record.get(0) == END) {
+            return throughSegment;
+          }
+          apply(record);
+        }
+        throw new IOException("checkpoint " + checkpoint + " is incomplete or corrupt");
+      }
+    }
+
+    /**
+     * Applies the records in the given segment, stopping at the end of the segment or at the first
+     * incomplete or corrupt record.
+     */
+    void replaySegment(Path segment) throws IOException {
+      try (DataInputStream in = open(segment)) {
+        checkHeader(in, segment);
+        in.readLong(); // segment number
+
+        ByteBuffer record;
+        while ((record = readRecord(in)) != null) {
+          apply(record);
+        }
+      } catch (EOFException e) {
+        // the header itself was torn; the segment was created just before a crash
+      }
+    }
+
+    /**
+     * Finishes the replay, releasing the content of regular files that were deleted or never
+     * linked, and returns the files that can be reached from the root directories.
+     */
+    Iterable<File> finish() {
+      Set<File> reachable = Collections.newSetFromMap(new IdentityHashMap<File, Boolean>());
+      Queue<Directory> directories = new ArrayDeque<>(roots.values());
+      reachable.addAll(roots.values());
+      while (!directories.isEmpty()) {
+        for (DirectoryEntry entry : directories.remove()) {
+          File file = entry.file();
+          if (reachable.add(file) && file.isDirectory()) {
+            directories.add((Directory) file);
+          }
+        }
+      }
+
+      for (File file : files.values()) {
+        if (!reachable.contains(file) && file.isRegularFile()) {
+          ((RegularFile) file).deleteContents();
+        }
+      }
+      files.clear();
+      return reachable;
+    }
+
+    private static DataInputStream open(Path file) throws IOException {
+      InputStream in = Files.newInputStream(file);
+      return new DataInputStream(new BufferedInputStream(in, 64 * 1024));
+    }
+
+    private static void checkHeader(DataInputStream in, Path file) throws IOException {
+      if (in.readInt() != MAGIC) {
+        throw new IOException(file + " is not part of a write-ahead log");
+      }
+      int version = in.readInt();
+      if (version != VERSION) {
+        throw new IOException(file + " has unsupported write-ahead log version " + version);
+      }
+    }
+
+    /** Reads the next record, returning null at the end of the file or at a bad record. */
+    private static ByteBuffer readRecord(DataInputStream in) throws IOException {
+      try {
+        int length = in.readInt();
+        int checksum = in.readInt();
+        if (length <= 0 || length > MAX_RECORD_LENGTH) {
+          return null;
+        }
+
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, length);
+        return (int) crc.getValue() == checksum ? ByteBuffer.wrap(bytes) : null;
+      } catch (EOFException e) {
+        return null;
+      }
+    }
+
+    private void apply(ByteBuffer record) throws IOException {
+      byte type = record.get();
+      switch (type) {
+        case NEW_ROOT:
+          {
+            int id = record.getInt();
+            Name name = getName(record);
+            Directory root = Directory.createRoot(id, name);
+            roots.put(name, root);
+            add(root);
+            break;
+          }
+        case NEW_DIRECTORY:
+          add(Directory.create(record.getInt()));
+          break;
+        case NEW_REGULAR_FILE:
+          add(RegularFile.create(record.getInt(), disk));
+          break;
+        case NEW_SYMBOLIC_LINK:
+          {
+            int id = record.getInt();
+            add(SymbolicLink.create(id, pathService.parsePath(getString(record))));
+            break;
+          }
+        case LINK:
+          {
+            Directory dir = (Directory) files.get(record.getInt());
+            Name name = getName(record);
+            File file = files.get(record.getInt());
+            // files that weren't reachable when the checkpoint was written are absent
+            if (dir != null && file != null) {
+              dir.link(name, file);
+            }
+            break;
+          }
+        case UNLINK:
+          {
+            Directory dir = (Directory) files.get(record.getInt());
+            Name name = getName(record);
+            if (dir != null && dir.get(name) != null) {
+              dir.unlink(name);
+            }
+            break;
+          }
+        case WRITE_CONTENT:
+          {
+            RegularFile file = (RegularFile) files.get(record.getInt());
+            long pos = record.getLong();
+            if (file != null) {
+              file.write(pos, record);
+            }
+            break;
+          }
+        case SET_SIZE:
+          {
+            RegularFile file = (RegularFile) files.get(record.getInt());
+            long size = record.getLong();
+            if (file != null && !file.truncate(size)) {
+              file.extend(size);
+            }
+            break;
+          }
+        case COPY_CONTENT:
+          {
+            RegularFile source = (RegularFile) files.get(record.getInt());
+            RegularFile copy = (RegularFile) files.get(record.getInt());
+            if (source != null && copy != null) {
+              copyContent(source, copy);
+            }
+            break;
+          }
+        case SET_TIMES:
+          {
+            File file = files.get(record.getInt());
+            if (file != null) {
+              file.setCreationTime(record.getLong());
+              file.setLastModifiedTime(record.getLong());
+              file.setLastAccessTime(record.getLong());
+            }
+            break;
+          }
+        case SET_ATTRIBUTE:
+          {
+            File file = files.get(record.getInt());
+            String view = getString(record);
+            String attribute = getString(record);
+            Object value = getAttributeValue(record);
+            if (file != null) {
+              file.setAttribute(view, attribute, value);
+            }
+            break;
+          }
+        case DELETE_ATTRIBUTE:
+          {
+            File file = files.get(record.getInt());
+            String view = getString(record);
+            String attribute = getString(record);
+            if (file != null) {
+              file.deleteAttribute(view, attribute);
+            }
+            break;
+          }
+        default:
+          throw new IOException("unknown write-ahead log record type: " + type);
+      }
+    }
+
+    /**
+     * Copies the content of the given source file to the given copy, which was created as an empty
+     * file when the record of its creation was replayed. The content is written to the copy rather
+     * than shared with it, since sharing requires the copy to have been created as a copy. Only the
+     * source's data is written, so its holes are holes in the copy too.
+     */
+    private void copyContent(RegularFile source, RegularFile copy) throws IOException {
+      copy.truncate(0);
+      ByteBuffer buf = ByteBuffer.allocate(disk.blockSize());
+      long[] ranges = source.dataRanges();
+      for (int i = 0; i < ranges.length; i += 2) {
+        long pos = ranges[i];
+        while (pos < ranges[i + 1]) {
+          buf.clear();
+          buf.limit((int) Math.min(buf.capacity(), ranges[i + 1] - pos));
+          source.read(pos, buf);
+          buf.flip();
+          pos += copy.write(pos, buf);
+        }
+      }
+      copy.extend(source.size());
+    }
+
+    private void add(File file) {
+      files.put(file.id(), file);
+      nextFileId = Math.max(nextFileId, file.id() + 1);
+    }
+  }
+}
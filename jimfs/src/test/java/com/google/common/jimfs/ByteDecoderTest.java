@@ -0,0 +1,79 @@
+/*
+ * Copyright 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.jimfs;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InvalidClassException;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests for {@link ByteDecoder}, decoding values encoded by {@link ByteEncoder}.
+ *
+ * @author Colin Decker
+ */
+@RunWith(JUnit4.class)
+public class ByteDecoderTest {
+
+  @Test
+  public void testAttributeValue_serializableTypes() throws IOException {
+    for (Object value : Arrays.<Object>asList("foo", 'c', (byte) 1, (short) 2, 3, 4L, 5f, 6d)) {
+      ByteEncoder encoder = new ByteEncoder();
+      encoder.putAttributeValue("test", "foo", value);
+      ByteBuffer buf = ByteBuffer.wrap(encoder.array(), 0, encoder.length());
+      assertThat(ByteDecoder.getAttributeValue(buf)).isEqualTo(value);
+      assertThat(buf.hasRemaining()).isFalse();
+    }
+  }
+
+  @Test
+  public void testAttributeValue_otherSerializableTypeCantBeEncoded() throws IOException {
+    ByteEncoder encoder = new ByteEncoder();
+    try {
+      encoder.putAttributeValue("test", "foo", new HashMap<String, String>());
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  @Test
+  public void testAttributeValue_otherSerializedTypeIsNotDeserialized() throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+      out.writeObject(new HashMap<String, String>());
+    }
+    ByteEncoder encoder = new ByteEncoder();
+    encoder.putByte(ByteEncoder.SERIALIZED_VALUE);
+    encoder.putBytes(bytes.toByteArray());
+
+    try {
+      ByteDecoder.getAttributeValue(ByteBuffer.wrap(encoder.array(), 0, encoder.length()));
+      fail();
+    } catch (InvalidClassException expected) {
+      assertThat(expected).hasMessageThat().contains("java.util.HashMap");
+    }
+  }
+}
@@ -0,0 +1,354 @@
+/*
+ * Copyright 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.jimfs;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.fail;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableMap;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.FileStore;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests for {@link ColdFileCompressor}.
+ *
+ * @author Colin Decker
+ */
+@RunWith(JUnit4.class)
+public class ColdFileCompressorTest {
+
+  private static final int BLOCK_SIZE = 1024;
+  private static final long TOTAL_SPACE = 1000L * BLOCK_SIZE;
+
+  private final HeapDisk disk = new HeapDisk(BLOCK_SIZE, 1000, 0);
+  private final Directory root = Directory.createRoot(0, Name.simple("/"));
+  private int nextId = 1;
+
+  private ColdFileCompressor compressor;
+
+  @Before
+  public void setUp() {
+    FileTree tree = new FileTree(ImmutableMap.of(Name.simple("/"), root));
+    // sweeps are run by the tests; the scheduled ones never come
+    compressor = new ColdFileCompressor(tree, TimeUnit.HOURS.toMillis(1), 4 * BLOCK_SIZE);
+  }
+
+  @After
+  public void tearDown() {
+    compressor.close();
+  }
+
+  @Test
+  public void testSweep_compressesFilesUnusedSinceLastSweep() throws IOException {
+    byte[] content = compressible(10 * BLOCK_SIZE);
+    RegularFile file = createFile(root, "a", content);
+    assertThat(disk.getUnallocatedSpace()).isEqualTo(TOTAL_SPACE - 10 * BLOCK_SIZE);
+
+    assertThat(compressor.sweep()).isEqualTo(0);
+    assertThat(file.isCompressed()).isFalse();
+
+    assertThat(compressor.sweep()).isEqualTo(1);
+    assertThat(file.isCompressed()).isTrue();
+    assertThat(disk.getUnallocatedSpace()).isAtLeast(TOTAL_SPACE - 2 * BLOCK_SIZE);
+    assertThat(file.size()).isEqualTo(content.length);
+    assertContentEquals(content, file);
+
+    // already compressed
+    assertThat(compressor.sweep()).isEqualTo(0);
+    assertThat(compressor.sweep()).isEqualTo(0);
+  }
+
+  @Test
+  public void testSweep_findsFilesInSubdirectories() throws IOException {
+    Directory dir = Directory.create(nextId++);
+    root.link(Name.simple("dir"), dir);
+    RegularFile file = createFile(dir, "a", compressible(4 * BLOCK_SIZE));
+
+    compressor.sweep();
+    assertThat(compressor.sweep()).isEqualTo(1);
+    assertThat(file.isCompressed()).isTrue();
+  }
+
+  @Test
+  public void testSweep_skipsFilesUsedSinceLastSweep() throws IOException {
+    RegularFile file = createFile(root, "a", compressible(4 * BLOCK_SIZE));
+
+    compressor.sweep();
+    file.read(0, new byte[10], 0, 10);
+    assertThat(compressor.sweep()).isEqualTo(0);
+    assertThat(file.isCompressed()).isFalse();
+
+    assertThat(compressor.sweep()).isEqualTo(1);
+    assertThat(file.isCompressed()).isTrue();
+  }
+
+  @Test
+  public void testSweep_skipsIncompressibleFiles() throws IOException {
+    byte[] content = new byte[4 * BLOCK_SIZE];
+    new Random(0).nextBytes(content);
+    RegularFile file = createFile(root, "a", content);
+
+    compressor.sweep();
+    assertThat(compressor.sweep()).isEqualTo(0);
+    assertThat(file.isCompressed()).isFalse();
+    assertThat(disk.getUnallocatedSpace()).isEqualTo(TOTAL_SPACE - 4 * BLOCK_SIZE);
+  }
+
+  @Test
+  public void testSweep_skipsEmptyAndLockedFiles() throws IOException {
+    RegularFile empty = createFile(root, "empty", new byte[0]);
+    RegularFile locked = createFile(root, "locked", compressible(4 * BLOCK_SIZE));
+
+    compressor.sweep();
+    locked.readLock().lock();
+    try {
+      assertThat(compressor.sweep()).isEqualTo(0);
+    } finally {
+      locked.readLock().unlock();
+    }
+    assertThat(empty.isCompressed()).isFalse();
+    assertThat(locked.isCompressed()).isFalse();
+
+    assertThat(compressor.sweep()).isEqualTo(1);
+    assertThat(locked.isCompressed()).isTrue();
+  }
+
+  @Test
+  public void testRead_cachesDecompressedBlocks() throws IOException {
+    byte[] content = compressible(10 * BLOCK_SIZE);
+    RegularFile file = createCompressedFile("a", content);
+    assertThat(compressor.cachedBytes()).isEqualTo(0);
+
+    byte[] bytes = new byte[10];
+    file.read(0, bytes, 0, 10);
+    assertThat(compressor.cachedBytes()).isEqualTo(BLOCK_SIZE);
+    file.read(5, bytes, 0, 10);
+    assertThat(compressor.cachedBytes()).isEqualTo(BLOCK_SIZE);
+
+    // the cache holds at most 4 blocks
+    assertContentEquals(content, file);
+    assertThat(compressor.cachedBytes()).isEqualTo(4 * BLOCK_SIZE);
+    assertThat(file.isCompressed()).isTrue();
+
+    ByteBuffer buf = ByteBuffer.allocate(100);
+    file.read(BLOCK_SIZE * 3 + 1000, buf);
+    buf.flip();
+    assertThat(buf).isEqualTo(ByteBuffer.wrap(content, BLOCK_SIZE * 3 + 1000, 100));
+  }
+
+  @Test
+  public void testWrite_decompressesFile() throws IOException {
+    byte[] content = compressible(10 * BLOCK_SIZE);
+    RegularFile file = createCompressedFile("a", content);
+
+    file.write(5, new byte[] {1, 2, 3}, 0, 3);
+    content[5] = 1;
+    content[6] = 2;
+    content[7] = 3;
+    assertThat(file.isCompressed()).isFalse();
+    assertThat(disk.getUnallocatedSpace()).isEqualTo(TOTAL_SPACE - 10 * BLOCK_SIZE);
+    assertContentEquals(content, file);
+
+    // the file is in use again, so the next sweep only marks it unused
+    assertThat(compressor.sweep()).isEqualTo(0);
+    assertThat(compressor.sweep()).isEqualTo(1);
+    assertContentEquals(content, file);
+  }
+
+  @Test
+  public void testWrite_diskFull_fileStaysCompressed() throws IOException {
+    HeapDisk smallDisk = new HeapDisk(BLOCK_SIZE, 12, 0);
+    RegularFile file = RegularFile.create(nextId++, smallDisk);
+    byte[] content = compressible(10 * BLOCK_SIZE);
+    file.write(0, content, 0, content.length);
+    root.link(Name.simple("a"), file);
+    compressor.sweep();
+    compressor.sweep();
+    assertThat(file.isCompressed()).isTrue();
+
+    RegularFile other = RegularFile.create(nextId++, smallDisk);
+    other.write(0, new byte[6 * BLOCK_SIZE], 0, 6 * BLOCK_SIZE);
+
+    try {
+      file.write(0, new byte[] {1}, 0, 1);
+      fail();
+    } catch (IOException expected) {
+    }
+    assertThat(file.isCompressed()).isTrue();
+    assertContentEquals(content, file);
+  }
+
+  @Test
+  public void testTruncate_compressedFile() throws IOException {
+    byte[] content = compressible(10 * BLOCK_SIZE);
+    RegularFile file = createCompressedFile("a", content);
+
+    file.truncate(BLOCK_SIZE + 10);
+    assertThat(file.size()).isEqualTo(BLOCK_SIZE + 10);
+    assertThat(file.isCompressed()).isTrue();
+
+    byte[] expected = new byte[BLOCK_SIZE + 10];
+    System.arraycopy(content, 0, expected, 0, expected.length);
+    assertContentEquals(expected, file);
+
+    assertThat(disk.getUnallocatedSpace()).isEqualTo(TOTAL_SPACE - BLOCK_SIZE);
+
+    file.deleteContents();
+    assertThat(disk.getUnallocatedSpace()).isEqualTo(TOTAL_SPACE);
+  }
+
+  @Test
+  public void testDeleteContents_releasesSpace() throws IOException {
+    RegularFile file = createCompressedFile("a", compressible(10 * BLOCK_SIZE));
+    assertThat(disk.getUnallocatedSpace()).isLessThan(TOTAL_SPACE);
+
+    file.deleteContents();
+    assertThat(disk.getUnallocatedSpace()).isEqualTo(TOTAL_SPACE);
+  }
+
+  @Test
+  public void testCopy_compressedFile() throws IOException {
+    byte[] content = compressible(10 * BLOCK_SIZE);
+    RegularFile file = createCompressedFile("a", content);
+    long unallocated = disk.getUnallocatedSpace();
+
+    RegularFile copy = file.copyWithoutContent(nextId++, 0);
+    file.copyContentTo(copy);
+    assertThat(copy.isCompressed()).isTrue();
+    assertThat(TOTAL_SPACE - disk.getUnallocatedSpace())
+        .isEqualTo(2 * (TOTAL_SPACE - unallocated));
+    assertContentEquals(content, copy);
+
+    copy.write(0, new byte[] {1}, 0, 1);
+    assertThat(copy.isCompressed()).isFalse();
+    assertContentEquals(content, file);
+
+    file.deleteContents();
+    copy.deleteContents();
+    assertThat(disk.getUnallocatedSpace()).isEqualTo(TOTAL_SPACE);
+  }
+
+  @Test
+  public void testSparseFile_holesArePreserved() throws IOException {
+    RegularFile file = RegularFile.create(nextId++, disk);
+    byte[] data = compressible(4 * BLOCK_SIZE);
+    file.write(8 * BLOCK_SIZE, data, 0, data.length);
+    root.link(Name.simple("a"), file);
+    compressor.sweep();
+    assertThat(compressor.sweep()).isEqualTo(1);
+
+    assertThat(file.seekData(0)).isEqualTo(8 * BLOCK_SIZE);
+    assertThat(file.seekHole(8 * BLOCK_SIZE)).isEqualTo(12 * BLOCK_SIZE);
+
+    byte[] expected = new byte[12 * BLOCK_SIZE];
+    System.arraycopy(data, 0, expected, 8 * BLOCK_SIZE, data.length);
+    assertContentEquals(expected, file);
+
+    file.write(0, new byte[] {1}, 0, 1);
+    assertThat(file.isCompressed()).isFalse();
+    assertThat(file.seekHole(0)).isEqualTo(BLOCK_SIZE);
+    assertThat(disk.getUnallocatedSpace()).isEqualTo(TOTAL_SPACE - 5 * BLOCK_SIZE);
+  }
+
+  @Test
+  public void testClose() {
+    assertThat(compressor.isClosed()).isFalse();
+    compressor.close();
+    assertThat(compressor.isClosed()).isTrue();
+  }
+
+  @Test
+  public void testSweep_afterClose() throws IOException {
+    RegularFile file = createFile(root, "a", compressible(4 * BLOCK_SIZE));
+    compressor.sweep();
+    compressor.close();
+
+    // the deflater has been ended, so nothing can be compressed
+    assertThat(compressor.sweep()).isEqualTo(0);
+    assertThat(file.isCompressed()).isFalse();
+    compressor.close();
+  }
+
+  @Test
+  public void testFileSystem() throws Exception {
+    Configuration config =
+        Configuration.unix()
+            .toBuilder()
+            .setBlockSize(BLOCK_SIZE)
+            .setColdFileCompression(10, TimeUnit.MILLISECONDS)
+            .build();
+    try (FileSystem fs = Jimfs.newFileSystem(config)) {
+      FileStore store = fs.getFileStores().iterator().next();
+      long unallocated = store.getUnallocatedSpace();
+
+      Path path = fs.getPath("/foo");
+      byte[] content = compressible(100 * BLOCK_SIZE);
+      Files.write(path, content);
+      assertThat(store.getUnallocatedSpace()).isEqualTo(unallocated - 100 * BLOCK_SIZE);
+
+      long deadline = System.currentTimeMillis() + 10000;
+      while (store.getUnallocatedSpace() < unallocated - 50 * BLOCK_SIZE
+          && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+      assertThat(store.getUnallocatedSpace()).isAtLeast(unallocated - 50 * BLOCK_SIZE);
+      assertThat(Files.readAllBytes(path)).isEqualTo(content);
+    }
+  }
+
+  private RegularFile createFile(Directory dir, String name, byte[] content) throws IOException {
+    RegularFile file = RegularFile.create(nextId++, disk);
+    file.write(0, content, 0, content.length);
+    dir.link(Name.simple(name), file);
+    return file;
+  }
+
+  private RegularFile createCompressedFile(String name, byte[] content) throws IOException {
+    RegularFile file = createFile(root, name, content);
+    compressor.sweep();
+    assertThat(compressor.sweep()).isEqualTo(1);
+    return file;
+  }
+
+  private static byte[] compressible(int size) {
+    StringBuilder builder = new StringBuilder(size + 20);
+    for (int i = 0; builder.length() < size; i++) {
+      builder.append("line ").append(Strings.padStart(Integer.toString(i), 6, '0')).append('\n');
+    }
+    builder.setLength(size);
+    return builder.toString().getBytes(UTF_8);
+  }
+
+  private static void assertContentEquals(byte[] expected, RegularFile file) throws IOException {
+    byte[] actual = new byte[expected.length];
+    assertThat(file.read(0, actual, 0, actual.length)).isEqualTo(expected.length);
+    assertThat(actual).isEqualTo(expected);
+  }
+}
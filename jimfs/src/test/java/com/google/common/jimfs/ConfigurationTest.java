@@ -25,6 +25,8 @@ import static com.google.common.jimfs.WatchServiceConfiguration.polling;
 import static com.google.common.truth.Truth.assertThat;
 import static com.google.common.truth.Truth.assert_;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.junit.Assert.fail;
 
@@ -35,6 +37,7 @@ import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.FileSystem;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.nio.file.WatchService;
 import java.nio.file.attribute.PosixFilePermissions;
 import org.junit.Test;
@@ -258,6 +261,9 @@ public class ConfigurationTest {
     assertThat(config.attributeViews).containsExactly("basic", "posix");
     assertThat(config.attributeProviders).isEmpty();
     assertThat(config.defaultAttributeValues).isEmpty();
+    assertThat(config.diskConfig).isSameInstanceAs(DiskConfiguration.heap());
+    assertThat(config.lockStripeCount).isEqualTo(1);
+    assertThat((Object) config.writeAheadLogDirectory).isNull();
   }
 
   @Test
@@ -323,6 +329,145 @@ public class ConfigurationTest {
     }
   }
 
+  @Test
+  public void testSetLockStripeCount_notPositive() {
+    try {
+      Configuration.unix().toBuilder().setLockStripeCount(0);
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  @Test
+  public void testSetPathLookupCacheSize() {
+    Configuration config = Configuration.unix().toBuilder().setPathLookupCacheSize(100).build();
+    assertThat(config.toString()).contains("pathLookupCacheSize=100");
+    assertThat(config.toBuilder().build().pathLookupCacheSize).isEqualTo(100);
+    assertThat(Configuration.unix().pathLookupCacheSize).isEqualTo(0);
+  }
+
+  @Test
+  public void testSetPathLookupCacheSize_negative() {
+    try {
+      Configuration.unix().toBuilder().setPathLookupCacheSize(-1);
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  @Test
+  public void testSetFileTimeSource() {
+    FileTimeSource source = FileTimeSource.coarse(10, MILLISECONDS);
+    Configuration config = Configuration.unix().toBuilder().setFileTimeSource(source).build();
+    assertThat(config.toString())
+        .contains("fileTimeSource=FileTimeSource.coarse(10, MILLISECONDS)");
+    assertThat(config.toBuilder().build().fileTimeSource).isSameInstanceAs(source);
+    assertThat(Configuration.unix().fileTimeSource).isSameInstanceAs(FileTimeSource.system());
+    assertThat(Configuration.unix().toString()).doesNotContain("fileTimeSource");
+  }
+
+  @Test
+  public void testSetMaxExtentSize() {
+    Configuration config =
+        Configuration.unix().toBuilder().setBlockSize(4096).setMaxExtentSize(1 << 20).build();
+    assertThat(config.maxExtentSize).isEqualTo(1 << 20);
+    assertThat(config.toString()).contains("maxExtentSize=1048576");
+    assertThat(config.toBuilder().build().maxExtentSize).isEqualTo(1 << 20);
+    assertThat(Configuration.unix().maxExtentSize).isEqualTo(0);
+    assertThat(Configuration.unix().toString()).doesNotContain("maxExtentSize");
+  }
+
+  @Test
+  public void testSetMaxExtentSize_notBlockSizeTimesPowerOfTwo() {
+    Configuration.Builder builder = Configuration.unix().toBuilder().setBlockSize(4096);
+    for (int maxExtentSize : new int[] {4095, 4096 * 3, 6144}) {
+      builder.setMaxExtentSize(maxExtentSize);
+      try {
+        builder.build();
+        fail();
+      } catch (IllegalArgumentException expected) {
+      }
+    }
+  }
+
+  @Test
+  public void testSetMaxInlineSize() {
+    Configuration config = Configuration.unix().toBuilder().setMaxInlineSize(512).build();
+    assertThat(config.maxInlineSize).isEqualTo(512);
+    assertThat(config.toString()).contains("maxInlineSize=512");
+    assertThat(config.toBuilder().build().maxInlineSize).isEqualTo(512);
+    assertThat(Configuration.unix().maxInlineSize).isEqualTo(0);
+    assertThat(Configuration.unix().toString()).doesNotContain("maxInlineSize");
+
+    try {
+      Configuration.unix().toBuilder().setBlockSize(256).setMaxInlineSize(512).build();
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  @Test
+  public void testSetColdFileCompression() {
+    Configuration config =
+        Configuration.unix().toBuilder().setColdFileCompression(5, MINUTES, 1024).build();
+    assertThat(config.coldFileIdleMillis).isEqualTo(300000);
+    assertThat(config.decompressedCacheSize).isEqualTo(1024);
+    assertThat(config.toString()).contains("coldFileIdleMillis=300000");
+    assertThat(config.toString()).contains("decompressedCacheSize=1024");
+    assertThat(config.toBuilder().build().coldFileIdleMillis).isEqualTo(300000);
+
+    config = Configuration.unix().toBuilder().setColdFileCompression(1, NANOSECONDS).build();
+    assertThat(config.coldFileIdleMillis).isEqualTo(1);
+    assertThat(config.decompressedCacheSize).isEqualTo(ColdFileCompressor.DEFAULT_CACHE_SIZE);
+
+    assertThat(Configuration.unix().coldFileIdleMillis).isEqualTo(0);
+    assertThat(Configuration.unix().toString()).doesNotContain("coldFileIdleMillis");
+  }
+
+  @Test
+  public void testSetColdFileCompression_invalid() {
+    Configuration.Builder builder = Configuration.unix().toBuilder();
+    try {
+      builder.setColdFileCompression(0, SECONDS);
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+
+    try {
+      builder.setColdFileCompression(1, SECONDS, -1);
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  @Test
+  public void testSetUpdateAccessTimes() {
+    Configuration config = Configuration.unix().toBuilder().setUpdateAccessTimes(false).build();
+    assertThat(config.toString()).contains("updateAccessTimes=false");
+    assertThat(config.toBuilder().build().updateAccessTimes).isFalse();
+    assertThat(Configuration.unix().updateAccessTimes).isTrue();
+    assertThat(Configuration.unix().toString()).doesNotContain("updateAccessTimes");
+  }
+
+  @Test
+  public void testSetWriteAheadLog() {
+    Path directory = Paths.get("jimfs-log");
+    Configuration config = Configuration.unix().toBuilder().setWriteAheadLog(directory).build();
+    assertThat((Object) config.writeAheadLogDirectory).isEqualTo(directory);
+    assertThat(config.checkpointThreshold).isEqualTo(WriteAheadLog.DEFAULT_CHECKPOINT_THRESHOLD);
+    assertThat(config.toString()).contains("writeAheadLogDirectory=jimfs-log");
+
+    config = config.toBuilder().setWriteAheadLog(directory, 1024).build();
+    assertThat((Object) config.writeAheadLogDirectory).isEqualTo(directory);
+    assertThat(config.checkpointThreshold).isEqualTo(1024);
+
+    try {
+      Configuration.unix().toBuilder().setWriteAheadLog(directory, 0);
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
   @Test // how's that for a name?
   public void testCreateFileSystemFromConfigurationWithWorkingDirectoryNotUnderConfiguredRoot() {
     try {
@@ -363,4 +508,64 @@ public class ConfigurationTest {
     assertThat(pollingWatchService.interval).isEqualTo(10);
     assertThat(pollingWatchService.timeUnit).isEqualTo(MILLISECONDS);
   }
+
+  @Test
+  public void testFileSystemWithDefaultDisk() throws IOException {
+    JimfsFileSystem fs = (JimfsFileSystem) Jimfs.newFileSystem(Configuration.unix());
+
+    Path path = fs.getPath("/foo");
+    Files.write(path, new byte[] {1, 2, 3});
+
+    RegularFile file = regularFile(fs, path);
+    assertThat(file.getBlock(0).isDirect()).isFalse();
+  }
+
+  @Test
+  public void testFileSystemWithOffHeapDisk() throws IOException {
+    Configuration config =
+        Configuration.unix().toBuilder()
+            .setBlockSize(16)
+            .setDiskConfiguration(DiskConfiguration.offHeap())
+            .build();
+    JimfsFileSystem fs = (JimfsFileSystem) Jimfs.newFileSystem(config);
+
+    Path path = fs.getPath("/foo");
+    byte[] bytes = new byte[100];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = (byte) i;
+    }
+    Files.write(path, bytes);
+    assertThat(Files.readAllBytes(path)).isEqualTo(bytes);
+
+    RegularFile file = regularFile(fs, path);
+    assertThat(file.blockCount()).isEqualTo(7);
+    assertThat(file.getBlock(0).isDirect()).isTrue();
+  }
+
+  @Test
+  public void testFileSystemWithDefaultLocking() throws IOException {
+    JimfsFileSystem fs = (JimfsFileSystem) Jimfs.newFileSystem(Configuration.unix());
+    assertThat(fs.getFileStore().isLockStriped()).isFalse();
+    assertThat(fs.getFileStore().updateLock()).isSameInstanceAs(fs.getFileStore().writeLock());
+  }
+
+  @Test
+  public void testFileSystemWithStripedLocks() throws IOException {
+    Configuration config = Configuration.unix().toBuilder().setLockStripeCount(16).build();
+    assertThat(config.toString()).contains("lockStripeCount=16");
+    assertThat(config.toBuilder().build().lockStripeCount).isEqualTo(16);
+
+    JimfsFileSystem fs = (JimfsFileSystem) Jimfs.newFileSystem(config);
+    assertThat(fs.getFileStore().isLockStriped()).isTrue();
+    assertThat(fs.getFileStore().updateLock()).isSameInstanceAs(fs.getFileStore().readLock());
+
+    Files.createDirectory(fs.getPath("/foo"));
+    Files.write(fs.getPath("/foo/bar"), new byte[] {1, 2, 3});
+    assertThat(Files.readAllBytes(fs.getPath("/foo/bar"))).isEqualTo(new byte[] {1, 2, 3});
+  }
+
+  private static RegularFile regularFile(JimfsFileSystem fs, Path path) throws IOException {
+    return fs.getDefaultView()
+        .getOrCreateRegularFile((JimfsPath) path, Options.getOptionsForInputStream());
+  }
 }
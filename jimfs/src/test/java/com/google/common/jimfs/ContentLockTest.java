@@ -0,0 +1,118 @@
+/*
+ * Copyright 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.jimfs;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests for {@link ContentLock}.
+ *
+ * @author Colin Decker
+ */
+@RunWith(JUnit4.class)
+public class ContentLockTest {
+
+  private final ContentLock lock = new ContentLock();
+  private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void testReadLock_doesNotChangeVersion() {
+    int version = lock.version();
+    lock.readLock().lock();
+    lock.readLock().unlock();
+    assertThat(lock.version()).isEqualTo(version);
+    assertThat(lock.isUnchangedSince(version)).isTrue();
+  }
+
+  @Test
+  public void testWriteLock_changesVersionWhenReleased() {
+    int version = lock.version();
+    lock.writeLock().lock();
+    assertThat(lock.isUnchangedSince(version)).isFalse();
+    lock.writeLock().unlock();
+
+    assertThat(lock.version()).isNotEqualTo(version);
+    assertThat(lock.isUnchangedSince(version)).isFalse();
+    assertThat(lock.isUnchangedSince(lock.version())).isTrue();
+  }
+
+  @Test
+  public void testWriteLock_reentrant() {
+    int version = lock.version();
+    lock.writeLock().lock();
+    lock.writeLock().lock();
+    lock.writeLock().unlock();
+    assertThat(lock.version()).isEqualTo(version);
+    lock.writeLock().unlock();
+    assertThat(lock.version()).isEqualTo(version + 1);
+  }
+
+  @Test
+  public void testWriteLock_tryLockAndLockInterruptibly() throws Exception {
+    int version = lock.version();
+    assertThat(lock.writeLock().tryLock()).isTrue();
+    lock.writeLock().unlock();
+    lock.writeLock().lockInterruptibly();
+    lock.writeLock().unlock();
+    assertThat(lock.version()).isEqualTo(version + 2);
+  }
+
+  @Test
+  public void testWriteLock_heldByAnotherThread() throws Exception {
+    final int version = lock.version();
+    final CountDownLatch locked = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    Future<?> writer =
+        executor.submit(
+            new Runnable() {
+              @Override
+              public void run() {
+                lock.writeLock().lock();
+                try {
+                  locked.countDown();
+                  release.await();
+                } catch (InterruptedException e) {
+                  throw new AssertionError(e);
+                } finally {
+                  lock.writeLock().unlock();
+                }
+              }
+            });
+
+    locked.await();
+    assertThat(lock.version()).isEqualTo(version);
+    assertThat(lock.isUnchangedSince(version)).isFalse();
+
+    release.countDown();
+    writer.get();
+    assertThat(lock.isUnchangedSince(version)).isFalse();
+  }
+}
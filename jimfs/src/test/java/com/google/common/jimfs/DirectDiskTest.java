@@ -0,0 +1,141 @@
+/*
+ * Copyright 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.jimfs;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests for {@link DirectDisk}. Allocation and caching behavior shared with {@link HeapDisk} is
+ * tested in {@link HeapDiskTest}.
+ *
+ * @author Colin Decker
+ */
+@RunWith(JUnit4.class)
+public class DirectDiskTest {
+
+  private RegularFile blocks;
+
+  @Before
+  public void setUp() {
+    // the HeapDisk of this file is unused; it's passed to other disks to test operations
+    blocks = RegularFile.create(-1, new HeapDisk(2, 2, 2));
+  }
+
+  @Test
+  public void testInitialSettings() {
+    DirectDisk disk = new DirectDisk(8, 100, 100, 32);
+
+    assertThat(disk.blockSize()).isEqualTo(8);
+    assertThat(disk.getTotalSpace()).isEqualTo(800);
+    assertThat(disk.getUnallocatedSpace()).isEqualTo(800);
+    assertThat(disk.blocksPerSlab()).isEqualTo(4);
+    assertThat(disk.cachedBlockCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void testBlocksPerSlab() {
+    assertThat(new DirectDisk(8, 100, 0, 33).blocksPerSlab()).isEqualTo(4);
+    assertThat(new DirectDisk(8, 100, 0, 4).blocksPerSlab()).isEqualTo(1);
+    assertThat(new DirectDisk(8, 3, 0, 1024).blocksPerSlab()).isEqualTo(3);
+  }
+
+  @Test
+  public void testAllocate_blocksAreDirect() throws IOException {
+    DirectDisk disk = new DirectDisk(4, 10, 0, 8);
+
+    disk.allocate(blocks, 5);
+
+    assertThat(blocks.blockCount()).isEqualTo(5);
+    for (int i = 0; i < blocks.blockCount(); i++) {
+      ByteBuffer block = blocks.getBlock(i);
+      assertThat(block.isDirect()).isTrue();
+      assertThat(block.position()).isEqualTo(0);
+      assertThat(block.limit()).isEqualTo(4);
+      assertThat(block.capacity()).isEqualTo(4);
+    }
+    assertThat(disk.getUnallocatedSpace()).isEqualTo(20);
+  }
+
+  @Test
+  public void testAllocate_blocksFromSameSlabDoNotOverlap() throws IOException {
+    DirectDisk disk = new DirectDisk(4, 10, 0, 16);
+
+    disk.allocate(blocks, 6);
+    for (int i = 0; i < blocks.blockCount(); i++) {
+      ByteBuffer block = blocks.getBlock(i);
+      for (int j = 0; j < 4; j++) {
+        block.put(j, (byte) i);
+      }
+    }
+
+    for (int i = 0; i < blocks.blockCount(); i++) {
+      ByteBuffer block = blocks.getBlock(i);
+      for (int j = 0; j < 4; j++) {
+        assertThat(block.get(j)).isEqualTo((byte) i);
+      }
+    }
+  }
+
+  @Test
+  public void testAllocate_extents() throws IOException {
+    DirectDisk disk = new DirectDisk(4, 100, 0, 8, 16);
+
+    disk.allocate(blocks, 6);
+
+    // extents smaller than a slab are carved from slabs; the rest are allocated separately
+    int[] capacities = {4, 4, 8, 16, 32, 32};
+    for (int i = 0; i < capacities.length; i++) {
+      ByteBuffer block = blocks.getBlock(i);
+      assertThat(block.isDirect()).isTrue();
+      assertThat(block.position()).isEqualTo(0);
+      assertThat(block.limit()).isEqualTo(capacities[i]);
+      assertThat(block.capacity()).isEqualTo(capacities[i]);
+      for (int j = 0; j < capacities[i]; j++) {
+        block.put(j, (byte) i);
+      }
+    }
+
+    for (int i = 0; i < capacities.length; i++) {
+      ByteBuffer block = blocks.getBlock(i);
+      for (int j = 0; j < capacities[i]; j++) {
+        assertThat(block.get(j)).isEqualTo((byte) i);
+      }
+    }
+    assertThat(disk.getUnallocatedSpace()).isEqualTo(304);
+  }
+
+  @Test
+  public void testFree_blocksAreCachedForReuse() throws IOException {
+    DirectDisk disk = new DirectDisk(4, 10, 10, 16);
+    disk.allocate(blocks, 4);
+    ByteBuffer block = blocks.getBlock(3);
+
+    disk.free(blocks, 1);
+    assertThat(disk.cachedBlockCount()).isEqualTo(1);
+
+    disk.allocate(blocks, 1);
+    assertThat(blocks.getBlock(3)).isSameInstanceAs(block);
+    assertThat(disk.cachedBlockCount()).isEqualTo(0);
+  }
+}
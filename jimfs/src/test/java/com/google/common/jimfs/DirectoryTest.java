@@ -23,11 +23,14 @@ import static com.google.common.truth.Truth.assertThat;
 import static org.junit.Assert.fail;
 
 import com.google.common.base.Functions;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ImmutableSortedSet;
 import com.google.common.collect.Iterables;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
 import javax.annotation.Nullable;
 import org.junit.Before;
 import org.junit.Test;
@@ -88,6 +91,26 @@ public class DirectoryTest {
     assertThat(dir.get(Name.simple("bar"))).isEqualTo(entry(dir, "bar", bar));
   }
 
+  @Test
+  public void testModCount() {
+    int modCount = dir.modCount();
+    assertThat(modCount % 2).isEqualTo(0);
+
+    dir.link(Name.simple("bar"), Directory.create(2));
+    int afterLink = dir.modCount();
+    assertThat(afterLink).isNotEqualTo(modCount);
+    assertThat(afterLink % 2).isEqualTo(0);
+
+    dir.unlink(Name.simple("bar"));
+    assertThat(dir.modCount()).isNotEqualTo(afterLink);
+    assertThat(dir.modCount() % 2).isEqualTo(0);
+
+    // changes to other directories don't affect it
+    int beforeOtherChange = dir.modCount();
+    root.link(Name.simple("bar"), Directory.create(3));
+    assertThat(dir.modCount()).isEqualTo(beforeOtherChange);
+  }
+
   @Test
   public void testLink_existingNameFails() {
     try {
@@ -242,6 +265,89 @@ public class DirectoryTest {
     assertThat(strings).containsExactly("FOO", "bar").inOrder();
   }
 
+  @Test
+  public void testSortedIndex_builtWhenLargeDirectoryIsListed() {
+    for (int i = 0; i < Directory.SORTED_INDEX_THRESHOLD - 1; i++) {
+      dir.link(Name.simple("file" + i), regularFile(0));
+    }
+    dir.snapshot();
+    assertThat(dir.hasSortedIndex()).isFalse();
+
+    dir.link(Name.simple("another"), regularFile(0));
+    assertThat(dir.hasSortedIndex()).isFalse();
+    dir.snapshot();
+    assertThat(dir.hasSortedIndex()).isTrue();
+  }
+
+  @Test
+  public void testSortedIndex_keptUpToDate() {
+    for (int i = 0; i < Directory.SORTED_INDEX_THRESHOLD; i++) {
+      dir.link(caseInsensitive(String.format("file%03d", i)), regularFile(0));
+    }
+    dir.snapshot();
+
+    dir.link(caseInsensitive("a"), regularFile(0));
+    dir.link(caseInsensitive("ZZZ"), regularFile(0));
+    // the name given to unlink differs in display form from the name of the entry
+    dir.unlink(caseInsensitive("FILE000"));
+
+    ImmutableSet<Name> snapshot = dir.snapshot();
+    assertThat(snapshot).hasSize(Directory.SORTED_INDEX_THRESHOLD + 1);
+    assertThat(Iterables.transform(snapshot, Functions.toStringFunction()))
+        .containsAtLeast("ZZZ", "a", "file001", "file063")
+        .inOrder();
+    assertThat(snapshot).doesNotContain(caseInsensitive("file000"));
+  }
+
+  @Test
+  public void testSortedNames_withPrefix() {
+    for (int i = 0; i < 2 * Directory.SORTED_INDEX_THRESHOLD; i++) {
+      String name = (i % 2 == 0 ? "even" : "odd") + String.format("%03d", i);
+      dir.link(Name.simple(name), regularFile(0));
+    }
+    dir.link(Name.simple("od"), regularFile(0));
+
+    ImmutableList<Name> odd = ImmutableList.copyOf(dir.sortedNames("odd"));
+    assertThat(dir.hasSortedIndex()).isTrue();
+    assertThat(odd).hasSize(Directory.SORTED_INDEX_THRESHOLD);
+    assertThat(odd.get(0)).isEqualTo(Name.simple("odd001"));
+    assertThat(odd).isInOrder(Name.displayOrdering());
+
+    assertThat(ImmutableList.copyOf(dir.sortedNames("odd127")))
+        .containsExactly(Name.simple("odd127"));
+    assertThat(ImmutableList.copyOf(dir.sortedNames("x"))).isEmpty();
+    assertThat(ImmutableList.copyOf(dir.sortedNames("")))
+        .hasSize(2 * Directory.SORTED_INDEX_THRESHOLD + 1);
+  }
+
+  @Test
+  public void testSortedNames_withPrefix_smallDirectory() {
+    dir.link(Name.simple("foo"), regularFile(0));
+    dir.link(Name.simple("bar"), regularFile(0));
+    dir.link(Name.simple("food"), regularFile(0));
+
+    assertThat(ImmutableList.copyOf(dir.sortedNames("foo")))
+        .containsExactly(Name.simple("foo"), Name.simple("food"))
+        .inOrder();
+    assertThat(dir.hasSortedIndex()).isFalse();
+  }
+
+  @Test
+  public void testSortedNames_reflectsChangesWhileIterating() {
+    for (int i = 0; i < Directory.SORTED_INDEX_THRESHOLD; i++) {
+      dir.link(Name.simple(String.format("b%03d", i)), regularFile(0));
+    }
+
+    Iterator<Name> names = dir.sortedNames("");
+    assertThat(names.next()).isEqualTo(Name.simple("b000"));
+    dir.unlink(Name.simple("b010"));
+    dir.link(Name.simple("c"), regularFile(0));
+
+    ImmutableList<Name> rest = ImmutableList.copyOf(names);
+    assertThat(rest).doesNotContain(Name.simple("b010"));
+    assertThat(Iterables.getLast(rest)).isEqualTo(Name.simple("c"));
+  }
+
   // Tests for internal hash table implementation
 
   private static final Directory A = Directory.create(0);
@@ -361,8 +467,165 @@ public class DirectoryTest {
     }
   }
 
-  private static DirectoryEntry entry(String name) {
-    return new DirectoryEntry(A, Name.simple(name), A);
+  @Test
+  public void testResizeIsIncremental() {
+    // fill the table up to its resize threshold
+    int initialLength = dir.tableLength();
+    int i = 0;
+    while (dir.entryCount() < initialLength * 3 / 4) {
+      dir.put(entry(String.valueOf(i++)));
+    }
+    assertThat(dir.isResizing()).isFalse();
+
+    dir.put(entry(String.valueOf(i++)));
+    assertThat(dir.tableLength()).isEqualTo(initialLength * 2);
+
+    // entries are found while the resize is in progress, and each put moves it along
+    while (dir.isResizing()) {
+      for (int j = 0; j < i; j++) {
+        assertThat(dir.get(Name.simple(String.valueOf(j)))).isEqualTo(entry(String.valueOf(j)));
+      }
+      assertThat(dir.entryCount()).isEqualTo(i + 2);
+      assertThat(ImmutableSet.copyOf(dir)).hasSize(i + 2);
+      dir.put(entry(String.valueOf(i++)));
+    }
+    assertThat(i).isLessThan(initialLength * 3 / 2);
+  }
+
+  @Test
+  public void testRemoveKeepsOtherEntriesFindable() {
+    // fill the table up to its resize threshold so that many entries share probe sequences
+    int count = dir.tableLength() * 3 / 4 - 2;
+    for (int removed = 0; removed < count; removed++) {
+      for (int i = 0; i < count; i++) {
+        dir.put(entry(String.valueOf(i)));
+      }
+      assertThat(dir.isResizing()).isFalse();
+
+      dir.remove(Name.simple(String.valueOf(removed)));
+      for (int i = 0; i < count; i++) {
+        DirectoryEntry expected = i == removed ? null : entry(String.valueOf(i));
+        assertThat(dir.get(Name.simple(String.valueOf(i)))).isEqualTo(expected);
+      }
+
+      for (int i = 0; i < count; i++) {
+        if (i != removed) {
+          dir.remove(Name.simple(String.valueOf(i)));
+        }
+      }
+      assertThat(dir.isEmpty()).isTrue();
+    }
+  }
+
+  @Test
+  public void testRemoveWhileResizing() {
+    int i = 0;
+    while (!dir.isResizing()) {
+      dir.put(entry(String.valueOf(i++)));
+    }
+
+    // entries removed from either table don't hide the entries after them
+    Set<DirectoryEntry> remaining = new HashSet<>(ImmutableSet.copyOf(dir));
+    for (int j = 0; j < i; j += 2) {
+      dir.remove(Name.simple(String.valueOf(j)));
+      remaining.remove(entry(String.valueOf(j)));
+
+      assertThat(dir.get(Name.simple(String.valueOf(j)))).isNull();
+      for (DirectoryEntry expected : remaining) {
+        assertThat(dir.get(expected.name())).isEqualTo(expected);
+      }
+      assertThat(ImmutableSet.copyOf(dir)).isEqualTo(remaining);
+    }
+  }
+
+  @Test
+  public void testGet_racingWithResizesDoesNotThrow() throws Exception {
+    final AtomicBoolean done = new AtomicBoolean();
+    Thread writer =
+        new Thread() {
+          @Override
+          public void run() {
+            // grow and shrink the table repeatedly, so that lookups race with resizes both ways
+            for (int round = 0; round < 20; round++) {
+              for (int i = 0; i < 1000; i++) {
+                dir.put(entry(String.valueOf(i)));
+              }
+              for (int i = 0; i < 1000; i++) {
+                dir.remove(Name.simple(String.valueOf(i)));
+              }
+            }
+            done.set(true);
+          }
+        };
+    writer.start();
+
+    try {
+      while (!done.get()) {
+        for (int i = 0; i < 1000; i += 7) {
+          DirectoryEntry entry = dir.get(Name.simple(String.valueOf(i)));
+          if (entry != null) {
+            assertThat(entry.file()).isNotNull();
+          }
+        }
+      }
+    } finally {
+      writer.join();
+    }
+  }
+
+  @Test
+  public void testResizeIsIncremental_largeTable() {
+    for (int i = 0; i < 100000; i++) {
+      dir.put(entry(String.valueOf(i)));
+    }
+
+    // a resize never takes more puts than it takes to fill the new table to its threshold
+    int length = dir.tableLength();
+    int puts = 0;
+    while (dir.tableLength() == length) {
+      dir.put(entry("more" + puts++));
+    }
+    assertThat(dir.isResizing()).isTrue();
+    while (dir.isResizing()) {
+      dir.put(entry("more" + puts++));
+    }
+    assertThat(dir.tableLength() * 3 / 4).isGreaterThan(dir.entryCount());
+  }
+
+  @Test
+  public void testTableShrinksAfterRemoves() {
+    for (int i = 0; i < 10000; i++) {
+      dir.put(entry(String.valueOf(i)));
+    }
+    int largeLength = dir.tableLength();
+
+    for (int i = 0; i < 9990; i++) {
+      dir.remove(Name.simple(String.valueOf(i)));
+    }
+    while (dir.isResizing()) {
+      dir.put(entry("x"));
+      dir.remove(Name.simple("x"));
+    }
+
+    assertThat(dir.tableLength()).isLessThan(largeLength / 64);
+    assertThat(dir.entryCount()).isEqualTo(12);
+    for (int i = 9990; i < 10000; i++) {
+      assertThat(dir.get(Name.simple(String.valueOf(i)))).isEqualTo(entry(String.valueOf(i)));
+    }
+
+    for (int i = 9990; i < 10000; i++) {
+      dir.remove(Name.simple(String.valueOf(i)));
+    }
+    while (dir.isResizing()) {
+      dir.put(entry("x"));
+      dir.remove(Name.simple("x"));
+    }
+    assertThat(dir.tableLength()).isEqualTo(16);
+    assertThat(dir.isEmpty()).isTrue();
+  }
+
+  private DirectoryEntry entry(String name) {
+    return new DirectoryEntry(dir, Name.simple(name), A);
   }
 
   private static DirectoryEntry entry(Directory dir, String name, @Nullable File file) {
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.jimfs;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests for {@link DiskConfiguration}.
+ *
+ * @author Colin Decker
+ */
+@RunWith(JUnit4.class)
+public class DiskConfigurationTest {
+
+  private final Configuration config =
+      Configuration.unix().toBuilder().setBlockSize(16).setMaxSize(1024).build();
+
+  @Test
+  public void testDefaultConfig() {
+    assertThat(DiskConfiguration.DEFAULT).isSameInstanceAs(DiskConfiguration.heap());
+    assertThat(DiskConfiguration.DEFAULT.newDisk(config)).isInstanceOf(HeapDisk.class);
+  }
+
+  @Test
+  public void testHeapConfig() {
+    Disk disk = DiskConfiguration.heap().newDisk(config);
+    assertThat(disk).isInstanceOf(HeapDisk.class);
+    assertThat(disk.blockSize()).isEqualTo(16);
+    assertThat(disk.getTotalSpace()).isEqualTo(1024);
+  }
+
+  @Test
+  public void testOffHeapConfig() {
+    Disk disk = DiskConfiguration.offHeap().newDisk(config);
+    assertThat(disk).isInstanceOf(DirectDisk.class);
+    assertThat(disk.blockSize()).isEqualTo(16);
+    assertThat(disk.getTotalSpace()).isEqualTo(1024);
+    // the slab can never need to be larger than the disk
+    assertThat(((DirectDisk) disk).blocksPerSlab()).isEqualTo(64);
+  }
+
+  @Test
+  public void testOffHeapConfig_customSlabSize() {
+    Disk disk = DiskConfiguration.offHeap(100).newDisk(config);
+    assertThat(((DirectDisk) disk).blocksPerSlab()).isEqualTo(6);
+
+    disk = DiskConfiguration.offHeap(1).newDisk(config);
+    assertThat(((DirectDisk) disk).blocksPerSlab()).isEqualTo(1);
+  }
+
+  @Test
+  public void testOffHeapConfig_invalidSlabSize() {
+    try {
+      DiskConfiguration.offHeap(0);
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  @Test
+  public void testToString() {
+    assertThat(DiskConfiguration.heap().toString()).isEqualTo("DiskConfiguration.heap()");
+    assertThat(DiskConfiguration.offHeap(4096).toString())
+        .isEqualTo("DiskConfiguration.offHeap(4096)");
+  }
+}
@@ -0,0 +1,368 @@
+/*
+ * Copyright 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.jimfs;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.APPEND;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static org.junit.Assert.fail;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.jimfs.AbstractWatchService.Event;
+import com.google.common.jimfs.AbstractWatchService.Key;
+import com.google.common.util.concurrent.Runnables;
+import java.io.IOException;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.FileTime;
+import java.util.UUID;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests for {@link EventDrivenWatchService}.
+ *
+ * <p>Events are posted as changes are made, so unlike the tests for {@link PollingWatchService},
+ * these tests never need to wait for them.
+ *
+ * @author Colin Decker
+ */
+@RunWith(JUnit4.class)
+public class EventDrivenWatchServiceTest {
+
+  private static final ImmutableList<WatchEvent.Kind<Path>> ALL_KINDS =
+      ImmutableList.of(ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+
+  private JimfsFileSystem fs;
+  private EventDrivenWatchService watcher;
+
+  @Before
+  public void setUp() {
+    fs = (JimfsFileSystem) Jimfs.newFileSystem(Configuration.unix());
+    watcher =
+        new EventDrivenWatchService(
+            fs.getDefaultView(), fs.getPathService(), new FileSystemState(Runnables.doNothing()));
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    watcher.close();
+    fs.close();
+    watcher = null;
+    fs = null;
+  }
+
+  @Test
+  public void testNewWatcher() {
+    assertThat(watcher.isOpen()).isTrue();
+    assertThat(watcher.poll()).isNull();
+  }
+
+  @Test
+  public void testRegister() throws IOException {
+    Key key = watcher.register(createDirectory(), ImmutableList.of(ENTRY_CREATE));
+    assertThat(key.isValid()).isTrue();
+    assertThat(watcher.poll()).isNull();
+  }
+
+  @Test
+  public void testRegister_fileDoesNotExist() throws IOException {
+    try {
+      watcher.register(fs.getPath("/a/b/c"), ImmutableList.of(ENTRY_CREATE));
+      fail();
+    } catch (NoSuchFileException expected) {
+    }
+  }
+
+  @Test
+  public void testRegister_fileIsNotDirectory() throws IOException {
+    Path path = fs.getPath("/a.txt");
+    Files.createFile(path);
+    try {
+      watcher.register(path, ImmutableList.of(ENTRY_CREATE));
+      fail();
+    } catch (NotDirectoryException expected) {
+    }
+  }
+
+  @Test
+  public void testRegister_symbolicLinkToDirectory() throws IOException {
+    JimfsPath dir = createDirectory();
+    Path link = Files.createSymbolicLink(fs.getPath("/link"), dir);
+    watcher.register(link, ImmutableList.of(ENTRY_CREATE));
+
+    Files.createFile(dir.resolve("foo"));
+
+    assertWatcherHasEvents(new Event<>(ENTRY_CREATE, 1, fs.getPath("foo")));
+  }
+
+  @Test
+  public void testCreateAndDelete() throws IOException {
+    JimfsPath path = createDirectory();
+    watcher.register(path, ALL_KINDS);
+
+    Files.createFile(path.resolve("foo"));
+    Files.createDirectory(path.resolve("bar"));
+
+    assertWatcherHasEvents(
+        new Event<>(ENTRY_CREATE, 1, fs.getPath("foo")),
+        new Event<>(ENTRY_CREATE, 1, fs.getPath("bar")));
+
+    Files.delete(path.resolve("foo"));
+    Files.delete(path.resolve("bar"));
+
+    assertWatcherHasEvents(
+        new Event<>(ENTRY_DELETE, 1, fs.getPath("foo")),
+        new Event<>(ENTRY_DELETE, 1, fs.getPath("bar")));
+  }
+
+  @Test
+  public void testWatchForOneEventType() throws IOException {
+    JimfsPath path = createDirectory();
+    watcher.register(path, ImmutableList.of(ENTRY_DELETE));
+
+    Files.createFile(path.resolve("foo"));
+    Files.write(path.resolve("foo"), new byte[10]);
+
+    assertThat(watcher.poll()).isNull();
+
+    Files.delete(path.resolve("foo"));
+
+    assertWatcherHasEvents(new Event<>(ENTRY_DELETE, 1, fs.getPath("foo")));
+  }
+
+  @Test
+  public void testModify_writeToFile() throws IOException {
+    JimfsPath path = createDirectory();
+    Files.createFile(path.resolve("foo"));
+    watcher.register(path, ALL_KINDS);
+
+    Files.write(path.resolve("foo"), "hello".getBytes(UTF_8));
+
+    assertWatcherHasEvents(new Event<>(ENTRY_MODIFY, 1, fs.getPath("foo")));
+  }
+
+  @Test
+  public void testModify_setLastModifiedTime() throws IOException {
+    JimfsPath path = createDirectory();
+    Files.createFile(path.resolve("foo"));
+    watcher.register(path, ALL_KINDS);
+
+    Files.setLastModifiedTime(path.resolve("foo"), FileTime.fromMillis(0));
+
+    assertWatcherHasEvents(new Event<>(ENTRY_MODIFY, 1, fs.getPath("foo")));
+  }
+
+  @Test
+  public void testModify_changeToSubdirectory() throws IOException {
+    JimfsPath path = createDirectory();
+    Files.createDirectory(path.resolve("foo"));
+    watcher.register(path, ALL_KINDS);
+
+    Files.createFile(path.resolve("foo/bar"));
+
+    assertWatcherHasEvents(new Event<>(ENTRY_MODIFY, 1, fs.getPath("foo")));
+  }
+
+  @Test
+  public void testModify_repeatedEventsAreCoalescedUntilRetrieved() throws IOException {
+    JimfsPath path = createDirectory();
+    Path foo = Files.createFile(path.resolve("foo"));
+    watcher.register(path, ALL_KINDS);
+
+    for (int i = 0; i < 1000; i++) {
+      Files.write(foo, new byte[] {1}, APPEND);
+    }
+
+    assertWatcherHasEvents(new Event<>(ENTRY_MODIFY, 1, fs.getPath("foo")));
+
+    Files.write(foo, new byte[] {1}, APPEND);
+
+    assertWatcherHasEvents(new Event<>(ENTRY_MODIFY, 1, fs.getPath("foo")));
+  }
+
+  @Test
+  public void testCreateThenWrite() throws IOException {
+    JimfsPath path = createDirectory();
+    watcher.register(path, ALL_KINDS);
+
+    Files.write(path.resolve("foo"), "hello".getBytes(UTF_8));
+
+    assertWatcherHasEvents(
+        new Event<>(ENTRY_CREATE, 1, fs.getPath("foo")),
+        new Event<>(ENTRY_MODIFY, 1, fs.getPath("foo")));
+  }
+
+  @Test
+  public void testModify_hardLinks() throws IOException {
+    JimfsPath path = createDirectory();
+    Path foo = Files.createFile(path.resolve("foo"));
+    Files.createLink(path.resolve("bar"), foo);
+    JimfsPath other = createDirectory();
+    Files.createLink(other.resolve("baz"), foo);
+    watcher.register(path, ALL_KINDS);
+
+    Files.write(other.resolve("baz"), new byte[10]);
+
+    WatchKey key = watcher.poll();
+    assertThat(key.pollEvents())
+        .containsExactly(
+            new Event<>(ENTRY_MODIFY, 1, fs.getPath("foo")),
+            new Event<>(ENTRY_MODIFY, 1, fs.getPath("bar")));
+  }
+
+  @Test
+  public void testMoveBetweenDirectories() throws IOException {
+    JimfsPath source = createDirectory();
+    JimfsPath target = createDirectory();
+    Path foo = Files.createFile(source.resolve("foo"));
+    watcher.register(source, ALL_KINDS);
+    watcher.register(target, ALL_KINDS);
+
+    Path moved = Files.move(foo, target.resolve("bar"));
+
+    assertWatcherHasEvents(new Event<>(ENTRY_DELETE, 1, fs.getPath("foo")));
+    assertWatcherHasEvents(new Event<>(ENTRY_CREATE, 1, fs.getPath("bar")));
+
+    // the file is no longer watched through its old directory
+    Files.write(moved, new byte[10]);
+
+    assertWatcherHasEvents(new Event<>(ENTRY_MODIFY, 1, fs.getPath("bar")));
+    assertThat(watcher.poll()).isNull();
+  }
+
+  @Test
+  public void testMultipleKeysForDirectory() throws IOException {
+    JimfsPath path = createDirectory();
+    Key key1 = watcher.register(path, ImmutableList.of(ENTRY_CREATE));
+    Key key2 = watcher.register(path, ImmutableList.of(ENTRY_CREATE));
+
+    Files.createFile(path.resolve("foo"));
+
+    assertThat(key1.pollEvents()).containsExactly(new Event<>(ENTRY_CREATE, 1, fs.getPath("foo")));
+    assertThat(key2.pollEvents()).containsExactly(new Event<>(ENTRY_CREATE, 1, fs.getPath("foo")));
+
+    key1.cancel();
+    Files.createFile(path.resolve("bar"));
+
+    assertThat(key1.pollEvents()).isEmpty();
+    assertThat(key2.pollEvents()).containsExactly(new Event<>(ENTRY_CREATE, 1, fs.getPath("bar")));
+  }
+
+  @Test
+  public void testCancel() throws IOException {
+    JimfsPath path = createDirectory();
+    Path foo = Files.createFile(path.resolve("foo"));
+    Key key = watcher.register(path, ALL_KINDS);
+
+    key.cancel();
+    assertThat(key.isValid()).isFalse();
+
+    Files.write(foo, new byte[10]);
+    Files.createFile(path.resolve("bar"));
+    Files.delete(foo);
+
+    assertThat(key.pollEvents()).isEmpty();
+    assertThat(watcher.poll()).isNull();
+  }
+
+  @Test
+  public void testDeletingDirectoryCancelsKey() throws IOException {
+    JimfsPath path = createDirectory();
+    Key key = watcher.register(path, ALL_KINDS);
+
+    Files.delete(path);
+
+    assertThat(key.isValid()).isFalse();
+  }
+
+  @Test
+  public void testMovingDirectoryCancelsKey() throws IOException {
+    JimfsPath path = createDirectory();
+    Path foo = Files.createFile(path.resolve("foo"));
+    Key key = watcher.register(path, ALL_KINDS);
+
+    Path moved = Files.move(path, fs.getPath("/moved"));
+
+    assertThat(key.isValid()).isFalse();
+
+    Files.write(moved.resolve(foo.getFileName()), new byte[10]);
+
+    assertThat(key.pollEvents()).isEmpty();
+    assertThat(watcher.poll()).isNull();
+  }
+
+  @Test
+  public void testCloseCancelsAllKeys() throws IOException {
+    Key key1 = watcher.register(createDirectory(), ImmutableList.of(ENTRY_CREATE));
+    Key key2 = watcher.register(createDirectory(), ImmutableList.of(ENTRY_DELETE));
+
+    watcher.close();
+
+    assertThat(key1.isValid()).isFalse();
+    assertThat(key2.isValid()).isFalse();
+  }
+
+  @Test
+  public void testFileSystemWithEventDrivenWatchService() throws Exception {
+    Configuration config =
+        Configuration.unix()
+            .toBuilder()
+            .setWatchServiceConfiguration(WatchServiceConfiguration.eventDriven())
+            .setLockStripeCount(8)
+            .build();
+    try (FileSystem fs = Jimfs.newFileSystem(config)) {
+      Path dir = Files.createDirectory(fs.getPath("/dir"));
+      try (WatchService watchService = fs.newWatchService()) {
+        WatchKey key = dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE);
+
+        Files.createFile(dir.resolve("foo"));
+
+        assertThat(watchService.poll()).isSameInstanceAs(key);
+        assertThat(key.pollEvents())
+            .containsExactly(new Event<>(ENTRY_CREATE, 1, fs.getPath("foo")));
+        assertThat(key.reset()).isTrue();
+      }
+    }
+  }
+
+  private void assertWatcherHasEvents(WatchEvent<?>... events) {
+    WatchKey key = watcher.poll();
+    assertThat(key).isNotNull();
+    assertThat(key.pollEvents()).containsExactlyElementsIn(events).inOrder();
+    key.reset();
+  }
+
+  private JimfsPath createDirectory() throws IOException {
+    JimfsPath path = fs.getPath("/" + UUID.randomUUID().toString());
+    Files.createDirectory(path);
+    return path;
+  }
+}
@@ -0,0 +1,316 @@
+/*
+ * Copyright 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.jimfs;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.file.ClosedFileSystemException;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystemException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.ProviderMismatchException;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests for {@link FileSystemBatch}.
+ *
+ * @author Colin Decker
+ */
+@RunWith(JUnit4.class)
+public class FileSystemBatchTest {
+
+  private FileSystem fs;
+
+  @Before
+  public void setUp() throws IOException {
+    fs = Jimfs.newFileSystem(Configuration.unix());
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    fs.close();
+  }
+
+  @Test
+  public void testApply_emptyBatch() {
+    FileSystemBatch batch = Jimfs.newBatch(fs);
+    assertThat(batch.size()).isEqualTo(0);
+    assertThat(batch.apply()).isEmpty();
+  }
+
+  @Test
+  public void testApply_createsFilesAndDirectories() throws IOException {
+    List<FileSystemBatch.Result> results =
+        Jimfs.newBatch(fs)
+            .createDirectory(path("/dir"))
+            .createDirectory(path("/dir/sub"))
+            .createFile(path("/dir/a"))
+            .createFile(path("/dir/sub/b"))
+            .apply();
+
+    assertThat(results).hasSize(4);
+    for (FileSystemBatch.Result result : results) {
+      assertThat(result.isSuccess()).isTrue();
+      assertThat(result.exception()).isNull();
+    }
+    assertThat(results.get(2).path().toString()).isEqualTo("/dir/a");
+
+    assertThat(Files.isDirectory(path("/dir/sub"))).isTrue();
+    assertThat(Files.isRegularFile(path("/dir/a"))).isTrue();
+    assertThat(Files.size(path("/dir/sub/b"))).isEqualTo(0);
+  }
+
+  @Test
+  public void testApply_write() throws IOException {
+    Files.write(path("/existing"), bytes("a much longer original content"));
+
+    List<FileSystemBatch.Result> results =
+        Jimfs.newBatch(fs)
+            .write(path("/new"), bytes("hello"))
+            .write(path("/existing"), bytes("world"))
+            .write(path("/empty"), new byte[0])
+            .apply();
+
+    assertThat(results.get(0).isSuccess()).isTrue();
+    assertThat(results.get(1).isSuccess()).isTrue();
+    assertThat(results.get(2).isSuccess()).isTrue();
+    assertThat(Files.readAllBytes(path("/new"))).isEqualTo(bytes("hello"));
+    assertThat(Files.readAllBytes(path("/existing"))).isEqualTo(bytes("world"));
+    assertThat(Files.size(path("/empty"))).isEqualTo(0);
+  }
+
+  @Test
+  public void testApply_writeThroughSymbolicLink() throws IOException {
+    Files.createDirectory(path("/dir"));
+    Files.createSymbolicLink(path("/link"), path("dir/target"));
+
+    List<FileSystemBatch.Result> results =
+        Jimfs.newBatch(fs).write(path("/link"), bytes("hello")).apply();
+
+    assertThat(results.get(0).isSuccess()).isTrue();
+    assertThat(Files.isSymbolicLink(path("/link"))).isTrue();
+    assertThat(Files.readAllBytes(path("/dir/target"))).isEqualTo(bytes("hello"));
+  }
+
+  @Test
+  public void testApply_deleteAndMove() throws IOException {
+    Files.createDirectories(path("/a/b"));
+    Files.write(path("/a/file"), bytes("hello"));
+    Files.createFile(path("/a/other"));
+
+    List<FileSystemBatch.Result> results =
+        Jimfs.newBatch(fs)
+            .move(path("/a/file"), path("/a/b/moved"))
+            .delete(path("/a/other"))
+            .move(path("/a/b"), path("/c"))
+            .apply();
+
+    for (FileSystemBatch.Result result : results) {
+      assertThat(result.isSuccess()).isTrue();
+    }
+    assertThat(results.get(0).path().toString()).isEqualTo("/a/file");
+    assertThat(Files.exists(path("/a/file"))).isFalse();
+    assertThat(Files.exists(path("/a/other"))).isFalse();
+    assertThat(Files.exists(path("/a/b"))).isFalse();
+    assertThat(Files.readAllBytes(path("/c/moved"))).isEqualTo(bytes("hello"));
+  }
+
+  @Test
+  public void testApply_moveReplacingExisting() throws IOException {
+    Files.write(path("/source"), bytes("source"));
+    Files.write(path("/target"), bytes("target"));
+
+    List<FileSystemBatch.Result> results =
+        Jimfs.newBatch(fs)
+            .move(path("/source"), path("/target"))
+            .move(path("/source"), path("/target"), REPLACE_EXISTING)
+            .apply();
+
+    assertThat(results.get(0).exception()).isInstanceOf(FileAlreadyExistsException.class);
+    assertThat(results.get(1).isSuccess()).isTrue();
+    assertThat(Files.exists(path("/source"))).isFalse();
+    assertThat(Files.readAllBytes(path("/target"))).isEqualTo(bytes("source"));
+  }
+
+  @Test
+  public void testApply_failuresDontStopLaterOperations() throws IOException {
+    Files.createDirectory(path("/dir"));
+    Files.createFile(path("/dir/file"));
+
+    List<FileSystemBatch.Result> results =
+        Jimfs.newBatch(fs)
+            .createFile(path("/dir/file"))
+            .createFile(path("/missing/file"))
+            .delete(path("/dir/missing"))
+            .delete(path("/dir"))
+            .write(path("/dir"), bytes("hello"))
+            .createFile(path("/dir/file/child"))
+            .createFile(path("/dir/created"))
+            .apply();
+
+    assertThat(results.get(0).exception()).isInstanceOf(FileAlreadyExistsException.class);
+    assertThat(results.get(1).exception()).isInstanceOf(NoSuchFileException.class);
+    assertThat(results.get(2).exception()).isInstanceOf(NoSuchFileException.class);
+    assertThat(results.get(3).exception()).isInstanceOf(DirectoryNotEmptyException.class);
+    assertThat(results.get(4).exception()).isInstanceOf(FileSystemException.class);
+    assertThat(results.get(4).exception().getMessage()).contains("not a regular file");
+    assertThat(results.get(5).exception()).isInstanceOf(NoSuchFileException.class);
+    assertThat(results.get(6).isSuccess()).isTrue();
+    assertThat(results.get(6).toString()).doesNotContain("exception");
+    assertThat(results.get(0).toString()).contains("FileAlreadyExistsException");
+
+    assertThat(Files.exists(path("/dir/created"))).isTrue();
+  }
+
+  @Test
+  public void testApply_parentReplacedDuringBatch() throws IOException {
+    Files.createDirectories(path("/a/b"));
+    Files.createDirectory(path("/other"));
+
+    List<FileSystemBatch.Result> results =
+        Jimfs.newBatch(fs)
+            .createFile(path("/a/b/first"))
+            .move(path("/a/b"), path("/moved"))
+            .move(path("/other"), path("/a/b"))
+            .createFile(path("/a/b/second"))
+            .delete(path("/moved/first"))
+            .delete(path("/moved"))
+            .createFile(path("/moved/third"))
+            .apply();
+
+    for (int i = 0; i < 6; i++) {
+      assertThat(results.get(i).isSuccess()).isTrue();
+    }
+    assertThat(results.get(6).exception()).isInstanceOf(NoSuchFileException.class);
+    assertThat(Files.exists(path("/other/second"))).isFalse();
+    assertThat(Files.exists(path("/a/b/second"))).isTrue();
+    assertThat(Files.exists(path("/moved"))).isFalse();
+  }
+
+  @Test
+  public void testApply_relativePaths() throws IOException {
+    List<FileSystemBatch.Result> results =
+        Jimfs.newBatch(fs)
+            .createDirectory(path("dir"))
+            .write(path("dir/file"), bytes("hello"))
+            .createFile(path("top"))
+            .delete(path("."))
+            .apply();
+
+    assertThat(results.get(0).isSuccess()).isTrue();
+    assertThat(results.get(1).isSuccess()).isTrue();
+    assertThat(results.get(2).isSuccess()).isTrue();
+    assertThat(results.get(3).exception()).isInstanceOf(FileSystemException.class);
+    assertThat(Files.readAllBytes(path("/work/dir/file"))).isEqualTo(bytes("hello"));
+    assertThat(Files.exists(path("/work/top"))).isTrue();
+  }
+
+  @Test
+  public void testApply_canBeAppliedAgain() throws IOException {
+    FileSystemBatch batch = Jimfs.newBatch(fs).createFile(path("/file"));
+
+    assertThat(batch.apply().get(0).isSuccess()).isTrue();
+    assertThat(batch.apply().get(0).exception()).isInstanceOf(FileAlreadyExistsException.class);
+  }
+
+  @Test
+  public void testApply_notifiesWatchServices() throws Exception {
+    fs.close();
+    fs =
+        Jimfs.newFileSystem(
+            Configuration.unix()
+                .toBuilder()
+                .setWatchServiceConfiguration(WatchServiceConfiguration.eventDriven())
+                .build());
+    Files.createDirectory(path("/dir"));
+    try (WatchService watcher = fs.newWatchService()) {
+      path("/dir").register(watcher, ENTRY_CREATE);
+
+      Jimfs.newBatch(fs).createFile(path("/dir/a")).write(path("/dir/b"), bytes("b")).apply();
+
+      WatchKey key = watcher.poll(10, SECONDS);
+      assertThat(key).isNotNull();
+      assertThat(key.pollEvents()).hasSize(2);
+    }
+  }
+
+  @Test
+  public void testPathsFromOtherFileSystems() throws IOException {
+    FileSystemBatch batch = Jimfs.newBatch(fs);
+    try (FileSystem other = Jimfs.newFileSystem(Configuration.unix())) {
+      try {
+        batch.createFile(other.getPath("/file"));
+        fail();
+      } catch (ProviderMismatchException expected) {
+      }
+
+      try {
+        batch.move(path("/file"), other.getPath("/file"));
+        fail();
+      } catch (ProviderMismatchException expected) {
+      }
+    }
+    assertThat(batch.size()).isEqualTo(0);
+  }
+
+  @Test
+  public void testNewBatch_requiresJimfsFileSystem() {
+    try {
+      Jimfs.newBatch(FileSystems.getDefault());
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  @Test
+  public void testApply_closedFileSystem() throws IOException {
+    FileSystemBatch batch = Jimfs.newBatch(fs).createFile(path("/file"));
+    fs.close();
+
+    try {
+      batch.apply();
+      fail();
+    } catch (ClosedFileSystemException expected) {
+    }
+  }
+
+  private Path path(String path) {
+    return fs.getPath(path);
+  }
+
+  private static byte[] bytes(String string) {
+    return string.getBytes(UTF_8);
+  }
+}
@@ -0,0 +1,413 @@
+/*
+ * Copyright 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.common.jimfs;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.fail;
+
+import com.google.common.collect.ImmutableList;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Arrays;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests for {@link FileSystemImage}, through saving and loading {@link FileSystemSnapshot}s.
+ *
+ * @author Colin Decker
+ */
+@RunWith(JUnit4.class)
+public class FileSystemImageTest {
+
+  @Rule public final TemporaryFolder tmp = new TemporaryFolder();
+
+  private final Configuration config =
+      Configuration.unix()
+          .toBuilder()
+          .setBlockSize(4096)
+          .setAttributeViews("basic", "owner", "posix", "unix", "user")
+          .build();
+
+  private FileSystem fs;
+  private Path image;
+
+  @Before
+  public void setUp() throws IOException {
+    fs = Jimfs.newFileSystem(config);
+    Files.createDirectories(fs.getPath("/foo/bar"));
+    Files.write(fs.getPath("/foo/bar/file"), ImmutableList.of("hello"), UTF_8);
+    Files.write(fs.getPath("/foo/big"), bytes(100_000));
+    Files.createSymbolicLink(fs.getPath("/foo/link"), fs.getPath("bar/file"));
+    Files.createLink(fs.getPath("/foo/hardlink"), fs.getPath("/foo/bar/file"));
+    Files.createFile(fs.getPath("/work/empty"));
+    image = tmp.getRoot().toPath().resolve("image");
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    fs.close();
+  }
+
+  private FileSystemSnapshot saveAndLoad() throws IOException {
+    try (FileSystemSnapshot snapshot = Jimfs.snapshot(fs)) {
+      snapshot.save(image);
+    }
+    return Jimfs.loadSnapshot(image, config);
+  }
+
+  @Test
+  public void testLoad_hasSameFiles() throws IOException {
+    try (FileSystemSnapshot snapshot = saveAndLoad();
+        FileSystem fork = snapshot.fork()) {
+      assertThat(Files.readAllLines(fork.getPath("/foo/bar/file"), UTF_8)).containsExactly("hello");
+      assertThat(Files.readAllBytes(fork.getPath("/foo/big"))).isEqualTo(bytes(100_000));
+      assertThat(Files.isDirectory(fork.getPath("/foo/bar"))).isTrue();
+      assertThat(Files.size(fork.getPath("/work/empty"))).isEqualTo(0);
+      assertThat(Files.readSymbolicLink(fork.getPath("/foo/link")).toString())
+          .isEqualTo("bar/file");
+      assertThat(Files.readAllLines(fork.getPath("/foo/link"), UTF_8)).containsExactly("hello");
+      assertThat(Files.isSameFile(fork.getPath("/foo/hardlink"), fork.getPath("/foo/bar/file")))
+          .isTrue();
+      assertThat(Files.getAttribute(fork.getPath("/foo/bar/file"), "unix:nlink")).isEqualTo(2);
+      assertThat(Files.getAttribute(fork.getPath("/foo"), "unix:nlink"))
+          .isEqualTo(Files.getAttribute(fs.getPath("/foo"), "unix:nlink"));
+    }
+  }
+
+  @Test
+  public void testLoad_hasSameAttributes() throws IOException {
+    Path file = fs.getPath("/foo/bar/file");
+    Files.setLastModifiedTime(file, FileTime.fromMillis(1000));
+    Files.setAttribute(file, "creationTime", FileTime.fromMillis(500));
+    Files.setPosixFilePermissions(file, PosixFilePermissions.fromString("rwx------"));
+    Files.setAttribute(file, "owner:owner", fs.getUserPrincipalLookupService()
+        .lookupPrincipalByName("alice"));
+    Files.setAttribute(file, "user:tag", new byte[] {1, 2, 3});
+
+    try (FileSystemSnapshot snapshot = saveAndLoad();
+        FileSystem fork = snapshot.fork()) {
+      Path forkFile = fork.getPath("/foo/bar/file");
+      assertThat(Files.getLastModifiedTime(forkFile)).isEqualTo(FileTime.fromMillis(1000));
+      assertThat(Files.getAttribute(forkFile, "creationTime")).isEqualTo(FileTime.fromMillis(500));
+      assertThat(PosixFilePermissions.toString(Files.getPosixFilePermissions(forkFile)))
+          .isEqualTo("rwx------");
+      assertThat(Files.getOwner(forkFile).getName()).isEqualTo("alice");
+      assertThat((byte[]) Files.getAttribute(forkFile, "user:tag")).isEqualTo(new byte[] {1, 2, 3});
+      assertThat(Files.getAttribute(forkFile, "fileKey"))
+          .isEqualTo(Files.getAttribute(file, "fileKey"));
+    }
+  }
+
+  @Test
+  public void testLoad_forksAreIndependent() throws IOException {
+    try (FileSystemSnapshot snapshot = saveAndLoad()) {
+      FileSystem fork1 = snapshot.fork();
+      FileSystem fork2 = snapshot.fork();
+
+      Files.write(fork1.getPath("/foo/big"), new byte[] {1, 2, 3});
+      Files.createFile(fork1.getPath("/foo/new"));
+      assertThat(Files.readAllBytes(fork2.getPath("/foo/big"))).isEqualTo(bytes(100_000));
+      assertThat(Files.exists(fork2.getPath("/foo/new"))).isFalse();
+
+      // new files don't reuse the IDs of the files in the image
+      assertThat(Files.getAttribute(fork1.getPath("/foo/new"), "fileKey"))
+          .isNotEqualTo(Files.getAttribute(fork1.getPath("/foo/bar/file"), "fileKey"));
+      fork1.close();
+      fork2.close();
+    }
+  }
+
+  @Test
+  public void testLoad_emptyFileSystem() throws IOException {
+    fs.close();
+    fs = Jimfs.newFileSystem(config);
+    try (FileSystemSnapshot snapshot = saveAndLoad();
+        FileSystem fork = snapshot.fork()) {
+      assertThat(Files.isDirectory(fork.getPath("/work"))).isTrue();
+    }
+  }
+
+  @Test
+  public void testLoad_imageReplacesExistingFile() throws IOException {
+    Files.write(image, bytes(1_000_000));
+    try (FileSystemSnapshot snapshot = saveAndLoad();
+        FileSystem fork = snapshot.fork()) {
+      assertThat(Files.readAllBytes(fork.getPath("/foo/big"))).isEqualTo(bytes(100_000));
+    }
+    assertThat(Files.size(image)).isLessThan(1_000_000L);
+  }
+
+  @Test
+  public void testLoad_notAnImage() throws IOException {
+    Files.write(image, bytes(100));
+    try {
+      Jimfs.loadSnapshot(image, config);
+      fail();
+    } catch (IOException expected) {
+      assertThat(expected).hasMessageThat().contains("not a Jimfs file system image");
+    }
+  }
+
+  @Test
+  public void testLoad_truncatedImage() throws IOException {
+    saveAndLoad().close();
+    try (FileChannel channel = FileChannel.open(image, StandardOpenOption.WRITE)) {
+      channel.truncate(channel.size() - 10);
+    }
+
+    try {
+      Jimfs.loadSnapshot(image, config);
+      fail();
+    } catch (IOException expected) {
+      assertThat(expected).hasMessageThat().contains("truncated or corrupt");
+    }
+  }
+
+  @Test
+  public void testLoad_corruptMetadata() throws IOException {
+    saveAndLoad().close();
+    try (FileChannel channel =
+        FileChannel.open(image, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      // overwrite the start of the metadata section (the root count) with garbage
+      channel.write(ByteBuffer.wrap(new byte[] {0x7f, 0x7f, 0x7f, 0x7f}), 40);
+    }
+
+    try {
+      Jimfs.loadSnapshot(image, config);
+      fail();
+    } catch (IOException expected) {
+    }
+  }
+
+  @Test
+  public void testLoad_notEnoughSpace() throws IOException {
+    try (FileSystemSnapshot snapshot = Jimfs.snapshot(fs)) {
+      snapshot.save(image);
+    }
+
+    try {
+      Jimfs.loadSnapshot(image, config.toBuilder().setMaxSize(16 * 1024).build());
+      fail();
+    } catch (IOException expected) {
+      assertThat(expected).hasMessageThat().contains("out of disk space");
+    }
+  }
+
+  @Test
+  public void testLoadLazily_hasSameFiles() throws IOException {
+    try (FileSystemSnapshot snapshot = Jimfs.snapshot(fs)) {
+      snapshot.save(image);
+    }
+
+    try (FileSystemSnapshot snapshot = Jimfs.loadSnapshotLazily(image, config);
+        FileSystem fork = snapshot.fork()) {
+      assertThat(Files.size(fork.getPath("/foo/big"))).isEqualTo(100_000);
+      assertThat(Files.readAllLines(fork.getPath("/foo/bar/file"), UTF_8)).containsExactly("hello");
+      assertThat(Files.readAllBytes(fork.getPath("/foo/big"))).isEqualTo(bytes(100_000));
+      assertThat(Files.readAllLines(fork.getPath("/foo/hardlink"), UTF_8)).containsExactly("hello");
+      assertThat(Files.size(fork.getPath("/work/empty"))).isEqualTo(0);
+    }
+  }
+
+  @Test
+  public void testLoadLazily_contentTakesNoSpaceUntilUsed() throws IOException {
+    try (FileSystemSnapshot snapshot = Jimfs.snapshot(fs)) {
+      snapshot.save(image);
+    }
+
+    // too small for /foo/big, which is only a problem if it's used
+    Configuration small = config.toBuilder().setMaxSize(16 * 1024).build();
+    try (FileSystemSnapshot snapshot = Jimfs.loadSnapshotLazily(image, small);
+        FileSystem fork = snapshot.fork()) {
+      assertThat(Files.readAllLines(fork.getPath("/foo/bar/file"), UTF_8)).containsExactly("hello");
+      try {
+        Files.readAllBytes(fork.getPath("/foo/big"));
+        fail();
+      } catch (IOException expected) {
+        assertThat(expected).hasMessageThat().contains("out of disk space");
+      }
+    }
+  }
+
+  @Test
+  public void testLoadLazily_writeLoadsContentFirst() throws IOException {
+    try (FileSystemSnapshot snapshot = Jimfs.snapshot(fs)) {
+      snapshot.save(image);
+    }
+
+    try (FileSystemSnapshot snapshot = Jimfs.loadSnapshotLazily(image, config)) {
+      FileSystem fork1 = snapshot.fork();
+      FileSystem fork2 = snapshot.fork();
+
+      try (FileChannel channel =
+          FileChannel.open(fork1.getPath("/foo/big"), StandardOpenOption.WRITE)) {
+        channel.write(ByteBuffer.wrap(new byte[] {1, 2, 3}), 50_000);
+      }
+
+      byte[] expected = bytes(100_000);
+      expected[50_000] = 1;
+      expected[50_001] = 2;
+      expected[50_002] = 3;
+      assertThat(Files.readAllBytes(fork1.getPath("/foo/big"))).isEqualTo(expected);
+      assertThat(Files.readAllBytes(fork2.getPath("/foo/big"))).isEqualTo(bytes(100_000));
+      fork1.close();
+      fork2.close();
+    }
+  }
+
+  @Test
+  public void testLoadLazily_truncateBeforeUse() throws IOException {
+    try (FileSystemSnapshot snapshot = Jimfs.snapshot(fs)) {
+      snapshot.save(image);
+    }
+
+    try (FileSystemSnapshot snapshot = Jimfs.loadSnapshotLazily(image, config);
+        FileSystem fork = snapshot.fork()) {
+      Path big = fork.getPath("/foo/big");
+      try (FileChannel channel = FileChannel.open(big, StandardOpenOption.WRITE)) {
+        channel.truncate(10);
+      }
+      assertThat(Files.readAllBytes(big)).isEqualTo(Arrays.copyOf(bytes(100_000), 10));
+
+      try (FileChannel channel =
+          FileChannel.open(fork.getPath("/foo/bar/file"), StandardOpenOption.WRITE)) {
+        channel.truncate(0);
+        channel.write(ByteBuffer.wrap(new byte[] {1}), 3);
+      }
+      assertThat(Files.readAllBytes(fork.getPath("/foo/bar/file")))
+          .isEqualTo(new byte[] {0, 0, 0, 1});
+    }
+  }
+
+  @Test
+  public void testLoadLazily_imageDeletedBeforeUse() throws IOException {
+    try (FileSystemSnapshot snapshot = Jimfs.snapshot(fs)) {
+      snapshot.save(image);
+    }
+
+    try (FileSystemSnapshot snapshot = Jimfs.loadSnapshotLazily(image, config);
+        FileSystem fork = snapshot.fork()) {
+      Files.delete(image);
+      assertThat(Files.size(fork.getPath("/foo/big"))).isEqualTo(100_000);
+      try {
+        Files.readAllBytes(fork.getPath("/foo/big"));
+        fail();
+      } catch (IOException expected) {
+      }
+    }
+  }
+
+  @Test
+  public void testLoadLazily_notAnImage() throws IOException {
+    Files.write(image, bytes(100));
+    try {
+      Jimfs.loadSnapshotLazily(image, config);
+      fail();
+    } catch (IOException expected) {
+      assertThat(expected).hasMessageThat().contains("not a Jimfs file system image");
+    }
+  }
+
+  @Test
+  public void testLoad_sparseFile() throws IOException {
+    long offset = 10L * 1024 * 1024 * 1024;
+    Path sparse = fs.getPath("/sparse");
+    try (FileChannel channel =
+        FileChannel.open(sparse, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+      channel.write(ByteBuffer.wrap(bytes(10_000)), offset);
+      channel.write(ByteBuffer.wrap(bytes(100)), 8192);
+    }
+
+    try (FileSystemSnapshot snapshot = saveAndLoad();
+        FileSystem fork = snapshot.fork()) {
+      // only the data is stored, not the 10 GB of holes
+      assertThat(Files.size(image)).isLessThan(1024 * 1024L);
+
+      Path forkSparse = fork.getPath("/sparse");
+      assertThat(Files.size(forkSparse)).isEqualTo(offset + 10_000);
+      assertThat(Jimfs.seekData(forkSparse, 0)).isEqualTo(8192);
+      assertThat(Jimfs.seekHole(forkSparse, 8192)).isEqualTo(8192 + 4096);
+      assertThat(Jimfs.seekData(forkSparse, 8192 + 4096)).isEqualTo(offset);
+      assertThat(readAt(forkSparse, 8192, 100)).isEqualTo(bytes(100));
+      assertThat(readAt(forkSparse, 8192 + 100, 100)).isEqualTo(new byte[100]);
+      assertThat(readAt(forkSparse, offset, 10_000)).isEqualTo(bytes(10_000));
+      assertThat(Files.readAllBytes(fork.getPath("/foo/big"))).isEqualTo(bytes(100_000));
+    }
+  }
+
+  @Test
+  public void testLoadLazily_sparseFile() throws IOException {
+    long offset = 10L * 1024 * 1024 * 1024;
+    Path sparse = fs.getPath("/sparse");
+    try (FileChannel channel =
+        FileChannel.open(sparse, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+      channel.write(ByteBuffer.wrap(bytes(10_000)), offset);
+    }
+    try (FileSystemSnapshot snapshot = Jimfs.snapshot(fs)) {
+      snapshot.save(image);
+    }
+
+    try (FileSystemSnapshot snapshot = Jimfs.loadSnapshotLazily(image, config);
+        FileSystem fork = snapshot.fork()) {
+      Path forkSparse = fork.getPath("/sparse");
+      assertThat(Files.size(forkSparse)).isEqualTo(offset + 10_000);
+      assertThat(Jimfs.seekData(forkSparse, 0)).isEqualTo(offset);
+      assertThat(readAt(forkSparse, offset, 10_000)).isEqualTo(bytes(10_000));
+      assertThat(Files.readAllBytes(fork.getPath("/foo/big"))).isEqualTo(bytes(100_000));
+    }
+  }
+
+  @Test
+  public void testSave_closedSnapshot() throws IOException {
+    FileSystemSnapshot snapshot = Jimfs.snapshot(fs);
+    snapshot.close();
+    try {
+      snapshot.save(image);
+      fail();
+    } catch (IllegalStateException expected) {
+    }
+  }
+
+  private static byte[] readAt(Path file, long pos, int len) throws IOException {
+    ByteBuffer buf = ByteBuffer.allocate(len);
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      while (buf.hasRemaining() && channel.read(buf, pos + buf.position()) != -1) {}
+    }
+    return buf.array();
+  }
+
+  private static byte[] bytes(int size) {
+    byte[] bytes = new byte[size];
+    for (int i = 0; i < size; i++) {
+      bytes[i] = (byte) (i * 7);
+    }
+    return bytes;
+  }
+}
@@ -0,0 +1,369 @@
+/*
+ * Copyright 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.common.jimfs;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.fail;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.ClosedFileSystemException;
+import java.nio.file.FileStore;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermissions;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests for {@link FileSystemSnapshot}.
+ *
+ * @author Colin Decker
+ */
+@RunWith(JUnit4.class)
+public class FileSystemSnapshotTest {
+
+  @Rule public final TemporaryFolder tmp = new TemporaryFolder();
+
+  private FileSystem fs;
+
+  @Before
+  public void setUp() throws IOException {
+    fs =
+        Jimfs.newFileSystem(
+            Configuration.unix()
+                .toBuilder()
+                .setAttributeViews("basic", "owner", "posix", "unix")
+                .build());
+    Files.createDirectories(fs.getPath("/foo/bar"));
+    Files.write(fs.getPath("/foo/bar/file"), ImmutableList.of("hello"), UTF_8);
+    Files.createSymbolicLink(fs.getPath("/foo/link"), fs.getPath("bar/file"));
+    Files.createLink(fs.getPath("/foo/hardlink"), fs.getPath("/foo/bar/file"));
+    Files.createFile(fs.getPath("/work/empty"));
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    fs.close();
+  }
+
+  @Test
+  public void testFork_hasSameFiles() throws IOException {
+    try (FileSystemSnapshot snapshot = Jimfs.snapshot(fs)) {
+      FileSystem fork = snapshot.fork();
+
+      assertThat(fork).isNotSameInstanceAs(fs);
+      assertThat(Files.readAllLines(fork.getPath("/foo/bar/file"), UTF_8)).containsExactly("hello");
+      assertThat(Files.isDirectory(fork.getPath("/foo/bar"))).isTrue();
+      assertThat(Files.exists(fork.getPath("/work/empty"))).isTrue();
+      assertThat(Files.size(fork.getPath("/work/empty"))).isEqualTo(0);
+      assertThat(Files.readAllLines(fork.getPath("/foo/link"), UTF_8)).containsExactly("hello");
+      assertThat(Files.isSameFile(fork.getPath("/foo/hardlink"), fork.getPath("/foo/bar/file")))
+          .isTrue();
+      assertThat(Files.getAttribute(fork.getPath("/foo/bar/file"), "unix:nlink"))
+          .isEqualTo(Files.getAttribute(fs.getPath("/foo/bar/file"), "unix:nlink"));
+      fork.close();
+    }
+  }
+
+  @Test
+  public void testFork_symbolicLinkTargetsAreInFork() throws IOException {
+    try (FileSystemSnapshot snapshot = Jimfs.snapshot(fs)) {
+      FileSystem fork = snapshot.fork();
+
+      Path target = Files.readSymbolicLink(fork.getPath("/foo/link"));
+      assertThat(target.getFileSystem()).isSameInstanceAs(fork);
+      assertThat(target.toString()).isEqualTo("bar/file");
+      fork.close();
+    }
+  }
+
+  @Test
+  public void testFork_copiesAttributes() throws IOException {
+    Path file = fs.getPath("/foo/bar/file");
+    FileTime time = FileTime.fromMillis(1000);
+    Files.setLastModifiedTime(file, time);
+    Files.setPosixFilePermissions(file, PosixFilePermissions.fromString("rwx------"));
+
+    try (FileSystemSnapshot snapshot = Jimfs.snapshot(fs)) {
+      FileSystem fork = snapshot.fork();
+      Path forkFile = fork.getPath("/foo/bar/file");
+
+      assertThat(Files.getLastModifiedTime(forkFile)).isEqualTo(time);
+      assertThat(PosixFilePermissions.toString(Files.getPosixFilePermissions(forkFile)))
+          .isEqualTo("rwx------");
+      assertThat(Files.getAttribute(forkFile, "fileKey"))
+          .isEqualTo(Files.getAttribute(file, "fileKey"));
+      fork.close();
+    }
+  }
+
+  @Test
+  public void testFork_isIndependentOfOriginal() throws IOException {
+    try (FileSystemSnapshot snapshot = Jimfs.snapshot(fs)) {
+      FileSystem fork = snapshot.fork();
+
+      Files.write(fork.getPath("/foo/bar/file"), ImmutableList.of("fork"), UTF_8);
+      Files.delete(fork.getPath("/work/empty"));
+      Files.createFile(fork.getPath("/foo/new"));
+
+      assertThat(Files.readAllLines(fs.getPath("/foo/bar/file"), UTF_8)).containsExactly("hello");
+      assertThat(Files.readAllLines(fs.getPath("/foo/hardlink"), UTF_8)).containsExactly("hello");
+      assertThat(Files.exists(fs.getPath("/work/empty"))).isTrue();
+      assertThat(Files.exists(fs.getPath("/foo/new"))).isFalse();
+
+      // the hard link in the fork is still to the same file as in the fork
+      assertThat(Files.readAllLines(fork.getPath("/foo/hardlink"), UTF_8)).containsExactly("fork");
+
+      Files.write(fs.getPath("/foo/bar/file"), ImmutableList.of("original"), UTF_8);
+      assertThat(Files.readAllLines(fork.getPath("/foo/bar/file"), UTF_8))
+          .containsExactly("fork");
+      fork.close();
+    }
+  }
+
+  @Test
+  public void testFork_multipleForksAreIndependent() throws IOException {
+    try (FileSystemSnapshot snapshot = Jimfs.snapshot(fs)) {
+      FileSystem fork1 = snapshot.fork();
+      FileSystem fork2 = snapshot.fork();
+
+      Files.write(fork1.getPath("/foo/bar/file"), ImmutableList.of("fork1"), UTF_8);
+      Files.write(fork2.getPath("/foo/bar/file"), ImmutableList.of("fork2"), UTF_8);
+
+      assertThat(Files.readAllLines(fork1.getPath("/foo/bar/file"), UTF_8))
+          .containsExactly("fork1");
+      assertThat(Files.readAllLines(fork2.getPath("/foo/bar/file"), UTF_8))
+          .containsExactly("fork2");
+      assertThat(Files.readAllLines(snapshot.fork().getPath("/foo/bar/file"), UTF_8))
+          .containsExactly("hello");
+      fork1.close();
+      fork2.close();
+    }
+  }
+
+  @Test
+  public void testSnapshot_isPointInTime() throws IOException {
+    try (FileSystemSnapshot snapshot = Jimfs.snapshot(fs)) {
+      Files.write(fs.getPath("/foo/bar/file"), ImmutableList.of("changed"), UTF_8);
+      Files.move(fs.getPath("/foo/bar"), fs.getPath("/bar"));
+      Files.createFile(fs.getPath("/foo/new"));
+
+      FileSystem fork = snapshot.fork();
+      assertThat(Files.readAllLines(fork.getPath("/foo/bar/file"), UTF_8)).containsExactly("hello");
+      assertThat(Files.exists(fork.getPath("/bar"))).isFalse();
+      assertThat(Files.exists(fork.getPath("/foo/new"))).isFalse();
+      fork.close();
+    }
+  }
+
+  @Test
+  public void testFork_newFilesHaveUniqueKeys() throws IOException {
+    try (FileSystemSnapshot snapshot = Jimfs.snapshot(fs)) {
+      FileSystem fork = snapshot.fork();
+      Path newFile = Files.createFile(fork.getPath("/foo/new"));
+      Object newFileKey = Files.getAttribute(newFile, "fileKey");
+
+      for (String path : ImmutableList.of("/", "/foo", "/foo/bar", "/foo/bar/file", "/work")) {
+        assertThat(Files.getAttribute(fork.getPath(path), "fileKey")).isNotEqualTo(newFileKey);
+      }
+      fork.close();
+    }
+  }
+
+  @Test
+  public void testFork_withName() throws IOException {
+    try (FileSystemSnapshot snapshot = Jimfs.snapshot(fs)) {
+      FileSystem fork = snapshot.fork("fork");
+
+      URI uri = URI.create("jimfs://fork");
+      assertThat(((JimfsFileSystem) fork).getUri()).isEqualTo(uri);
+      assertThat(FileSystems.getFileSystem(uri)).isSameInstanceAs(fork);
+      fork.close();
+    }
+  }
+
+  @Test
+  public void testFork_windows() throws IOException {
+    FileSystem windows =
+        Jimfs.newFileSystem(Configuration.windows().toBuilder().setRoots("C:\\", "D:\\").build());
+    Files.write(windows.getPath("D:\\file"), ImmutableList.of("hello"), UTF_8);
+
+    try (FileSystemSnapshot snapshot = Jimfs.snapshot(windows)) {
+      FileSystem fork = snapshot.fork();
+
+      assertThat(fork.getRootDirectories()).hasSize(2);
+      assertThat(fork.getPath("").toAbsolutePath().toString()).isEqualTo("C:\\work");
+      assertThat(Files.readAllLines(fork.getPath("D:\\file"), UTF_8)).containsExactly("hello");
+      fork.close();
+    }
+    windows.close();
+  }
+
+  @Test
+  public void testClose() throws IOException {
+    FileSystemSnapshot snapshot = Jimfs.snapshot(fs);
+    FileSystem fork = snapshot.fork();
+    snapshot.close();
+    snapshot.close(); // does nothing
+
+    try {
+      snapshot.fork();
+      fail();
+    } catch (IllegalStateException expected) {
+    }
+
+    // forks are unaffected
+    assertThat(Files.readAllLines(fork.getPath("/foo/bar/file"), UTF_8)).containsExactly("hello");
+    fork.close();
+  }
+
+  @Test
+  public void testClose_releasesSharedBlocks() throws IOException {
+    FileStore store = Iterables.getOnlyElement(fs.getFileStores());
+    Files.write(fs.getPath("/big"), new byte[100000]);
+    long unallocatedSpace = store.getUnallocatedSpace();
+
+    FileSystemSnapshot snapshot = Jimfs.snapshot(fs);
+    assertThat(store.getUnallocatedSpace()).isEqualTo(unallocatedSpace);
+
+    Files.delete(fs.getPath("/big"));
+    assertThat(store.getUnallocatedSpace()).isEqualTo(unallocatedSpace);
+
+    snapshot.close();
+    assertThat(store.getUnallocatedSpace()).isGreaterThan(unallocatedSpace);
+  }
+
+  @Test
+  public void testSnapshotOfDirectory() throws IOException {
+    Path dir = tmp.getRoot().toPath();
+    Files.createDirectories(dir.resolve("foo/bar"));
+    Files.write(dir.resolve("foo/bar/file"), ImmutableList.of("hello"), UTF_8);
+    Files.write(dir.resolve("big"), new byte[100000]);
+    Files.createFile(dir.resolve("empty"));
+    Files.createSymbolicLink(dir.resolve("foo/link"), dir.getFileSystem().getPath("bar/file"));
+    Files.setLastModifiedTime(dir.resolve("foo/bar/file"), FileTime.fromMillis(1000));
+
+    Configuration config =
+        Configuration.unix()
+            .toBuilder()
+            .setAttributeViews("basic", "owner", "posix", "unix")
+            .build();
+    try (FileSystemSnapshot snapshot = Jimfs.snapshot(dir, config);
+        FileSystem fork = snapshot.fork()) {
+      Path file = fork.getPath("/work/foo/bar/file");
+      assertThat(Files.size(file)).isEqualTo(6);
+      assertThat(Files.getLastModifiedTime(file)).isEqualTo(FileTime.fromMillis(1000));
+      assertThat(Files.getPosixFilePermissions(file))
+          .isEqualTo(Files.getPosixFilePermissions(dir.resolve("foo/bar/file")));
+      assertThat(Files.readAllLines(file, UTF_8)).containsExactly("hello");
+      assertThat(Files.readAllLines(fork.getPath("foo/link"), UTF_8)).containsExactly("hello");
+      assertThat(Files.readAllBytes(fork.getPath("big"))).isEqualTo(new byte[100000]);
+      assertThat(Files.size(fork.getPath("empty"))).isEqualTo(0);
+      assertThat(Files.isDirectory(fork.getPath("/work/foo/bar"))).isTrue();
+    }
+  }
+
+  @Test
+  public void testSnapshotOfDirectory_contentIsReadWhenFirstUsed() throws IOException {
+    Path file = tmp.getRoot().toPath().resolve("file");
+    Files.write(file, new byte[] {1, 2, 3});
+
+    try (FileSystemSnapshot snapshot = Jimfs.snapshot(tmp.getRoot().toPath(), Configuration.unix());
+        FileSystem fork = snapshot.fork()) {
+      Files.write(file, new byte[] {4, 5, 6});
+      assertThat(Files.readAllBytes(fork.getPath("file"))).isEqualTo(new byte[] {4, 5, 6});
+
+      // from here on, the file's content is in the fork
+      Files.write(file, new byte[] {7, 8, 9});
+      assertThat(Files.readAllBytes(fork.getPath("file"))).isEqualTo(new byte[] {4, 5, 6});
+    }
+  }
+
+  @Test
+  public void testSnapshotOfDirectory_copiesOfUnreadFiles() throws IOException {
+    Files.write(tmp.getRoot().toPath().resolve("file"), new byte[] {1, 2, 3});
+
+    try (FileSystemSnapshot snapshot = Jimfs.snapshot(tmp.getRoot().toPath(), Configuration.unix());
+        FileSystem fork = snapshot.fork()) {
+      Files.copy(fork.getPath("file"), fork.getPath("copy"));
+      Files.write(fork.getPath("file"), new byte[] {4}, StandardOpenOption.APPEND);
+      assertThat(Files.readAllBytes(fork.getPath("copy"))).isEqualTo(new byte[] {1, 2, 3});
+      assertThat(Files.readAllBytes(fork.getPath("file"))).isEqualTo(new byte[] {1, 2, 3, 4});
+    }
+  }
+
+  @Test
+  public void testSnapshotOfDirectory_hostFileShrunkBeforeUse() throws IOException {
+    Path file = tmp.getRoot().toPath().resolve("file");
+    Files.write(file, new byte[] {1, 2, 3});
+
+    try (FileSystemSnapshot snapshot = Jimfs.snapshot(tmp.getRoot().toPath(), Configuration.unix());
+        FileSystem fork = snapshot.fork()) {
+      Files.write(file, new byte[] {1});
+      try {
+        Files.readAllBytes(fork.getPath("file"));
+        fail();
+      } catch (IOException expected) {
+        assertThat(expected).hasMessageThat().contains("ended before its expected size");
+      }
+    }
+  }
+
+  @Test
+  public void testSnapshotOfDirectory_equalNames() throws IOException {
+    Files.createFile(tmp.getRoot().toPath().resolve("a"));
+    Files.createFile(tmp.getRoot().toPath().resolve("A"));
+
+    try {
+      Jimfs.snapshot(tmp.getRoot().toPath(), Configuration.windows());
+      fail();
+    } catch (IOException expected) {
+      assertThat(expected).hasMessageThat().contains("equal to the name of another file");
+    }
+  }
+
+  @Test
+  public void testSnapshot_closedFileSystem() throws IOException {
+    fs.close();
+    try {
+      Jimfs.snapshot(fs);
+      fail();
+    } catch (ClosedFileSystemException expected) {
+    }
+  }
+
+  @Test
+  public void testSnapshot_notJimfs() throws IOException {
+    try {
+      Jimfs.snapshot(FileSystems.getDefault());
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+}
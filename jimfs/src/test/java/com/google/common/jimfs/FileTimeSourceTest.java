@@ -0,0 +1,195 @@
+/*
+ * Copyright 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.jimfs;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests for {@link FileTimeSource} and the file times of file systems using one.
+ *
+ * @author Colin Decker
+ */
+@RunWith(JUnit4.class)
+public class FileTimeSourceTest {
+
+  /** A source whose time only changes when it's advanced. */
+  private static final class FakeSource extends FileTimeSource {
+
+    private volatile long now = 1000;
+
+    void advance(long millis) {
+      now += millis;
+    }
+
+    @Override
+    public long now() {
+      return now;
+    }
+  }
+
+  @Test
+  public void testSystem() {
+    long before = System.currentTimeMillis();
+    long now = FileTimeSource.system().now();
+    assertThat(now).isAtLeast(before);
+    assertThat(now).isAtMost(System.currentTimeMillis());
+    assertThat(FileTimeSource.system().toString()).isEqualTo("FileTimeSource.system()");
+  }
+
+  @Test
+  public void testCoarse() {
+    FileTimeSource source = FileTimeSource.coarse(1, SECONDS);
+    long before = System.currentTimeMillis();
+    long now = source.now();
+    assertThat(now % 1000).isEqualTo(0);
+    assertThat(now).isAtLeast(before - 1000);
+    assertThat(now).isAtMost(System.currentTimeMillis());
+    assertThat(source.toString()).isEqualTo("FileTimeSource.coarse(1000, MILLISECONDS)");
+  }
+
+  @Test
+  public void testCoarse_granularityTooSmall() {
+    try {
+      FileTimeSource.coarse(999, TimeUnit.MICROSECONDS);
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  @Test
+  public void testCachedClock_refreshesUntilClosed() throws InterruptedException {
+    FileTimeSource.CachedClock clock = new FileTimeSource.CachedClock(10);
+    long first = clock.now();
+    assertThat(first % 10).isEqualTo(0);
+
+    long deadline = System.currentTimeMillis() + 10000;
+    while (clock.now() == first && System.currentTimeMillis() < deadline) {
+      Thread.sleep(5);
+    }
+    assertThat(clock.now()).isGreaterThan(first);
+
+    clock.close();
+    assertThat(clock.isClosed()).isTrue();
+  }
+
+  @Test
+  public void testFileSystemUsesSource() throws IOException {
+    FakeSource source = new FakeSource();
+    try (FileSystem fs = newFileSystem(source, true)) {
+      Path file = fs.getPath("/file");
+      Files.createFile(file);
+      assertTimes(file, 1000, 1000, 1000);
+
+      source.advance(500);
+      Files.write(file, "hello".getBytes(UTF_8));
+      assertTimes(file, 1000, 1500, 1000);
+      assertThat(Files.getLastModifiedTime(fs.getPath("/")).toMillis()).isEqualTo(1000);
+
+      source.advance(500);
+      readAll(file);
+      assertTimes(file, 1000, 1500, 2000);
+
+      source.advance(500);
+      Files.copy(file, fs.getPath("/copy"));
+      assertTimes(fs.getPath("/copy"), 2500, 2500, 2500);
+      assertThat(Files.getLastModifiedTime(fs.getPath("/")).toMillis()).isEqualTo(2500);
+    }
+  }
+
+  @Test
+  public void testFileSystemWithoutAccessTimeUpdates() throws IOException {
+    FakeSource source = new FakeSource();
+    try (FileSystem fs = newFileSystem(source, false)) {
+      Path file = fs.getPath("/file");
+      Files.write(file, "hello".getBytes(UTF_8));
+
+      source.advance(500);
+      readAll(file);
+      Files.readAllBytes(file);
+      assertTimes(file, 1000, 1000, 1000);
+
+      // access times may still be set explicitly
+      Files.setAttribute(file, "lastAccessTime", FileTime.fromMillis(5000));
+      readAll(file);
+      assertTimes(file, 1000, 1000, 5000);
+
+      source.advance(500);
+      Files.write(file, "world".getBytes(UTF_8));
+      assertTimes(file, 1000, 2000, 5000);
+    }
+  }
+
+  @Test
+  public void testFileSystemWithCoarseSource() throws IOException {
+    FileSystem fs =
+        Jimfs.newFileSystem(
+            Configuration.unix()
+                .toBuilder()
+                .setFileTimeSource(FileTimeSource.coarse(50, MILLISECONDS))
+                .build());
+    FileSystemState state = ((JimfsFileSystem) fs).getFileStore().state();
+    FileTimeSource.CachedClock clock = (FileTimeSource.CachedClock) state.timeSource();
+
+    Path file = fs.getPath("/file");
+    Files.write(file, "hello".getBytes(UTF_8));
+    long modified = Files.getLastModifiedTime(file).toMillis();
+    assertThat(modified % 50).isEqualTo(0);
+    assertThat(modified).isAtMost(clock.now());
+
+    fs.close();
+    assertThat(clock.isClosed()).isTrue();
+  }
+
+  private static FileSystem newFileSystem(FileTimeSource source, boolean updateAccessTimes) {
+    return Jimfs.newFileSystem(
+        Configuration.unix()
+            .toBuilder()
+            .setFileTimeSource(source)
+            .setUpdateAccessTimes(updateAccessTimes)
+            .build());
+  }
+
+  private static void readAll(Path file) throws IOException {
+    try (InputStream in = Files.newInputStream(file)) {
+      while (in.read() != -1) {}
+    }
+  }
+
+  private static void assertTimes(Path file, long created, long modified, long accessed)
+      throws IOException {
+    BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+    assertThat(attrs.creationTime().toMillis()).isEqualTo(created);
+    assertThat(attrs.lastModifiedTime().toMillis()).isEqualTo(modified);
+    assertThat(attrs.lastAccessTime().toMillis()).isEqualTo(accessed);
+  }
+}
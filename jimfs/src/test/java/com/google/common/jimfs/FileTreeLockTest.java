@@ -0,0 +1,325 @@
+/*
+ * Copyright 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.jimfs;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.fail;
+
+import com.google.common.collect.ImmutableList;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.Lock;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests for {@link FileTreeLock}.
+ *
+ * @author Colin Decker
+ */
+@RunWith(JUnit4.class)
+public class FileTreeLockTest {
+
+  private final ExecutorService executor = Executors.newCachedThreadPool();
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void testSingleLock() throws Exception {
+    FileTreeLock lock = new FileTreeLock();
+    assertThat(lock.isStriped()).isFalse();
+    assertThat(lock.stripeCount()).isEqualTo(1);
+    assertThat(lock.updateLock()).isSameInstanceAs(lock.writeLock());
+
+    Directory dir = Directory.create(0);
+    lock.directoryWriteLock(dir).lock();
+    try {
+      // directory locks do nothing; the tree lock guards everything
+      assertThat(tryLockOnOtherThread(lock.directoryWriteLock(dir))).isTrue();
+      assertThat(tryLockOnOtherThread(lock.writeLock())).isTrue();
+    } finally {
+      lock.directoryWriteLock(dir).unlock();
+    }
+  }
+
+  @Test
+  public void testStripedLock() throws Exception {
+    FileTreeLock lock = new FileTreeLock(10);
+    assertThat(lock.isStriped()).isTrue();
+    assertThat(lock.stripeCount()).isEqualTo(16);
+    assertThat(lock.updateLock()).isSameInstanceAs(lock.readLock());
+
+    Directory dir = Directory.create(0);
+    Directory otherDir = directoryInOtherStripe(lock, dir);
+
+    lock.updateLock().lock();
+    lock.directoryWriteLock(dir).lock();
+    try {
+      assertThat(tryLockOnOtherThread(lock.updateLock())).isTrue();
+      assertThat(tryLockOnOtherThread(lock.directoryWriteLock(otherDir))).isTrue();
+      assertThat(tryLockOnOtherThread(lock.directoryReadLock(otherDir))).isTrue();
+
+      assertThat(tryLockOnOtherThread(lock.directoryWriteLock(dir))).isFalse();
+      assertThat(tryLockOnOtherThread(lock.directoryReadLock(dir))).isFalse();
+      assertThat(tryLockOnOtherThread(lock.writeLock())).isFalse();
+    } finally {
+      lock.directoryWriteLock(dir).unlock();
+      lock.updateLock().unlock();
+    }
+
+    lock.directoryReadLock(dir).lock();
+    try {
+      assertThat(tryLockOnOtherThread(lock.directoryReadLock(dir))).isTrue();
+      assertThat(tryLockOnOtherThread(lock.directoryWriteLock(dir))).isFalse();
+    } finally {
+      lock.directoryReadLock(dir).unlock();
+    }
+  }
+
+  @Test
+  public void testInvalidStripeCount() {
+    try {
+      new FileTreeLock(0);
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  @Test
+  public void testStripedFileSystem_concurrentCreateCopyAndDelete() throws Exception {
+    final FileSystem fs =
+        Jimfs.newFileSystem(Configuration.unix().toBuilder().setLockStripeCount(8).build());
+    try {
+      final int threads = 8;
+      final int filesPerThread = 100;
+      for (int i = 0; i < threads / 2; i++) {
+        Files.createDirectory(fs.getPath("/dir" + i));
+      }
+
+      final CountDownLatch start = new CountDownLatch(1);
+      List<Future<?>> futures = new ArrayList<>();
+      for (int i = 0; i < threads; i++) {
+        final int thread = i;
+        futures.add(
+            executor.submit(
+                new Callable<Void>() {
+                  @Override
+                  public Void call() throws Exception {
+                    start.await();
+                    // two threads work in each directory
+                    Path dir = fs.getPath("/dir" + (thread / 2));
+                    for (int n = 0; n < filesPerThread; n++) {
+                      Path file = dir.resolve("file-" + thread + "-" + n);
+                      byte[] bytes = file.toString().getBytes(UTF_8);
+                      Files.write(file, bytes);
+                      Path copy = dir.resolve("copy-" + thread + "-" + n);
+                      Files.copy(file, copy);
+                      assertThat(Files.readAllBytes(copy)).isEqualTo(bytes);
+                      Files.delete(file);
+                    }
+                    return null;
+                  }
+                }));
+      }
+
+      start.countDown();
+      for (Future<?> future : futures) {
+        future.get();
+      }
+
+      for (int i = 0; i < threads / 2; i++) {
+        List<String> names = new ArrayList<>();
+        try (DirectoryStream<Path> stream =
+            Files.newDirectoryStream(fs.getPath("/dir" + i))) {
+          for (Path path : stream) {
+            names.add(path.getFileName().toString());
+          }
+        }
+        assertThat(names).hasSize(2 * filesPerThread);
+        for (String name : names) {
+          assertThat(name).startsWith("copy-");
+        }
+      }
+    } finally {
+      fs.close();
+    }
+  }
+
+  @Test
+  public void testStripedFileSystem_concurrentReadAndRecreate() throws Exception {
+    final FileSystem fs =
+        Jimfs.newFileSystem(Configuration.unix().toBuilder().setLockStripeCount(8).build());
+    try {
+      final Path file = fs.getPath("/file");
+      final byte[] content1 = {1, 2, 3};
+      final byte[] content2 = {4, 5, 6, 7};
+      final Path source1 = Files.write(fs.getPath("/source1"), content1);
+      final Path source2 = Files.write(fs.getPath("/source2"), content2);
+      Files.copy(source1, file);
+
+      final CountDownLatch start = new CountDownLatch(1);
+      Future<?> writer =
+          executor.submit(
+              new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                  start.await();
+                  for (int i = 0; i < 5000; i++) {
+                    Files.delete(file);
+                    // copies can't be observed until their content has been copied
+                    Files.copy(i % 2 == 0 ? source2 : source1, file);
+                  }
+                  return null;
+                }
+              });
+      Future<?> reader =
+          executor.submit(
+              new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                  start.await();
+                  for (int i = 0; i < 5000; i++) {
+                    try {
+                      // a file that was deleted after it was looked up must never be read with
+                      // its content already freed
+                      byte[] bytes = Files.readAllBytes(file);
+                      if (!Arrays.equals(bytes, content1)) {
+                        assertThat(bytes).isEqualTo(content2);
+                      }
+                    } catch (NoSuchFileException expected) {
+                    }
+                  }
+                  return null;
+                }
+              });
+
+      start.countDown();
+      writer.get();
+      reader.get();
+    } finally {
+      fs.close();
+    }
+  }
+
+  @Test
+  public void testOptimisticLookups_concurrentChanges() throws Exception {
+    testOptimisticLookups_concurrentChanges(Configuration.unix());
+    testOptimisticLookups_concurrentChanges(
+        Configuration.unix().toBuilder().setLockStripeCount(8).build());
+  }
+
+  private void testOptimisticLookups_concurrentChanges(Configuration config) throws Exception {
+    final FileSystem fs = Jimfs.newFileSystem(config);
+    try {
+      final Path a = Files.createDirectories(fs.getPath("/a/dir"));
+      final Path b = Files.createDirectory(fs.getPath("/b"));
+      final byte[] content = {1, 2, 3};
+      final Object fileKey =
+          Files.readAttributes(Files.write(a.resolve("file"), content), BasicFileAttributes.class)
+              .fileKey();
+      final Path stable = Files.write(fs.getPath("/b/stable"), content);
+
+      final CountDownLatch start = new CountDownLatch(1);
+      Future<?> writer =
+          executor.submit(
+              new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                  start.await();
+                  for (int i = 0; i < 2000; i++) {
+                    Path sibling = Files.createFile(fs.getPath("/b/sibling" + i));
+                    Files.move(a, b.resolve("dir"));
+                    Files.move(b.resolve("dir"), a);
+                    Files.delete(sibling);
+                  }
+                  return null;
+                }
+              });
+      Future<?> reader =
+          executor.submit(
+              new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                  start.await();
+                  for (int i = 0; i < 2000; i++) {
+                    assertThat(Files.exists(stable)).isTrue();
+                    assertThat(Files.readAllBytes(stable)).isEqualTo(content);
+                    for (Path path : ImmutableList.of(a, b.resolve("dir"))) {
+                      try {
+                        Path file = path.resolve("file");
+                        assertThat(Files.readAttributes(file, BasicFileAttributes.class).fileKey())
+                            .isEqualTo(fileKey);
+                        assertThat(Files.readAllBytes(file)).isEqualTo(content);
+                      } catch (NoSuchFileException expected) {
+                      }
+                    }
+                  }
+                  return null;
+                }
+              });
+
+      start.countDown();
+      writer.get();
+      reader.get();
+    } finally {
+      fs.close();
+    }
+  }
+
+  private boolean tryLockOnOtherThread(final Lock lock) throws Exception {
+    return executor
+        .submit(
+            new Callable<Boolean>() {
+              @Override
+              public Boolean call() {
+                if (lock.tryLock()) {
+                  lock.unlock();
+                  return true;
+                }
+                return false;
+              }
+            })
+        .get();
+  }
+
+  private static Directory directoryInOtherStripe(FileTreeLock lock, Directory dir) {
+    for (int id = 1; ; id++) {
+      Directory other = Directory.create(id);
+      if (lock.directoryWriteLock(other) != lock.directoryWriteLock(dir)) {
+        return other;
+      }
+    }
+  }
+}
@@ -414,6 +414,116 @@ public class FileTreeTest {
     assertExists(lookup("four/six/.."), "/", "work");
   }
 
+  @Test
+  public void testLookUpOptimistically() throws IOException {
+    assertExists(lookupOptimistically("/work/one/two/three"), "two", "three");
+    assertExists(lookupOptimistically("four/six/two/three"), "two", "three");
+    assertExists(lookupOptimistically("four/six/.."), "/", "work");
+    assertExists(lookupOptimistically("$a/b/../b"), "a", "b");
+    assertParentExists(lookupOptimistically("/work/one/foo"), "one");
+    assertExists(lookupOptimistically("four/five", NOFOLLOW_LINKS), "four", "five");
+
+    try {
+      lookupOptimistically("/work/one/foo/bar");
+      fail();
+    } catch (NoSuchFileException expected) {
+    }
+
+    try {
+      lookupOptimistically("four/loop");
+      fail();
+    } catch (IOException expected) {
+    }
+  }
+
+  @Test
+  public void testLookUpOptimistically_stampValidation() throws IOException {
+    FileTreeLock lock = fileTree.lock();
+    long stamp = lock.tryOptimisticRead();
+    LookupTrace trace = new LookupTrace();
+    assertExists(lookupOptimistically("/work/one/two", trace), "one", "two");
+    assertThat(lock.validate(stamp, trace)).isTrue();
+
+    lock.beginStructuralUpdate();
+    try {
+      // no stamp can be obtained while the structure of the tree is being changed
+      assertThat(lock.tryOptimisticRead()).isEqualTo(0);
+      assertThat(lock.validate(stamp, trace)).isFalse();
+    } finally {
+      lock.endStructuralUpdate();
+    }
+
+    assertThat(lock.validate(stamp, trace)).isFalse();
+    assertThat(lock.validate(lock.tryOptimisticRead(), trace)).isTrue();
+    assertThat(lock.validate(0, trace)).isFalse();
+  }
+
+  @Test
+  public void testLookUpOptimistically_changeToDirectoryOnPathFailsValidation()
+      throws IOException {
+    FileTreeLock lock = fileTree.lock();
+    long stamp = lock.tryOptimisticRead();
+    LookupTrace trace = new LookupTrace();
+    assertExists(lookupOptimistically("/work/one/two", trace), "one", "two");
+
+    createFile("one", "twelve");
+    assertThat(lock.validate(stamp, trace)).isFalse();
+  }
+
+  @Test
+  public void testLookUpOptimistically_changeToDirectoryFollowedThroughLinkFailsValidation()
+      throws IOException {
+    FileTreeLock lock = fileTree.lock();
+    long stamp = lock.tryOptimisticRead();
+    LookupTrace trace = new LookupTrace();
+    assertExists(lookupOptimistically("four/five/bar", trace), "foo", "bar");
+
+    createFile("foo", "baz");
+    assertThat(lock.validate(stamp, trace)).isFalse();
+  }
+
+  @Test
+  public void testLookUpOptimistically_changeOffPathDoesNotFailValidation() throws IOException {
+    FileTreeLock lock = fileTree.lock();
+    long stamp = lock.tryOptimisticRead();
+    LookupTrace trace = new LookupTrace();
+    assertExists(lookupOptimistically("/work/one/two", trace), "one", "two");
+
+    createFile("two", "twelve");
+    createFile("foo", "baz");
+    ((Directory) files.get("four")).unlink(Name.simple("loop"));
+    assertThat(lock.validate(stamp, trace)).isTrue();
+  }
+
+  @Test
+  public void testLookUpOptimistically_failedLookupFailsValidationOnceParentChanges()
+      throws IOException {
+    FileTreeLock lock = fileTree.lock();
+    long stamp = lock.tryOptimisticRead();
+    LookupTrace trace = new LookupTrace();
+    try {
+      lookupOptimistically("/work/one/twelve/thirteen", trace);
+      fail();
+    } catch (NoSuchFileException expected) {
+    }
+    assertThat(lock.validate(stamp, trace)).isTrue();
+
+    createDirectory("one", "twelve");
+    assertThat(lock.validate(stamp, trace)).isFalse();
+  }
+
+  private DirectoryEntry lookupOptimistically(String path, LinkOption... options)
+      throws IOException {
+    return lookupOptimistically(path, new LookupTrace(), options);
+  }
+
+  private DirectoryEntry lookupOptimistically(
+      String path, LookupTrace trace, LinkOption... options) throws IOException {
+    JimfsPath pathObj = pathService.parsePath(path);
+    return fileTree.lookUpOptimistically(
+        workingDirectory, pathObj, Options.getLinkOptions(options), trace);
+  }
+
   private DirectoryEntry lookup(String path, LinkOption... options) throws IOException {
     JimfsPath pathObj = pathService.parsePath(path);
     return fileTree.lookUp(workingDirectory, pathObj, Options.getLinkOptions(options));
@@ -0,0 +1,410 @@
+/*
+ * Copyright 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.jimfs;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.FileVisitResult.CONTINUE;
+import static java.nio.file.FileVisitResult.SKIP_SIBLINGS;
+import static java.nio.file.FileVisitResult.SKIP_SUBTREE;
+import static java.nio.file.FileVisitResult.TERMINATE;
+import static org.junit.Assert.fail;
+
+import com.google.common.collect.ImmutableList;
+import java.io.IOException;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests for {@link FileTreeWalk}, through {@link Jimfs#walkFileTree}.
+ *
+ * @author Colin Decker
+ */
+@RunWith(JUnit4.class)
+public class FileTreeWalkTest {
+
+  private FileSystem fs;
+  private ForkJoinPool pool;
+
+  @Before
+  public void setUp() throws IOException {
+    fs = Jimfs.newFileSystem(Configuration.unix());
+    pool = new ForkJoinPool(4);
+
+    Files.createDirectories(fs.getPath("/tree/a/b/c"));
+    Files.createDirectories(fs.getPath("/tree/d"));
+    Files.write(fs.getPath("/tree/file"), "hello".getBytes(UTF_8));
+    Files.createFile(fs.getPath("/tree/a/file"));
+    Files.createFile(fs.getPath("/tree/a/b/c/file"));
+    Files.createSymbolicLink(fs.getPath("/tree/link"), fs.getPath("a"));
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    pool.shutdown();
+    fs.close();
+  }
+
+  @Test
+  public void testWalk_visitsSameFilesAsFilesWalkFileTree() throws IOException {
+    RecordingVisitor expected = new RecordingVisitor();
+    Files.walkFileTree(fs.getPath("/tree"), expected);
+
+    RecordingVisitor sequential = new RecordingVisitor();
+    assertThat(Jimfs.walkFileTree(fs.getPath("/tree"), sequential).toString()).isEqualTo("/tree");
+
+    RecordingVisitor parallel = new RecordingVisitor();
+    Jimfs.walkFileTree(fs.getPath("/tree"), parallel, pool);
+
+    assertThat(sequential.events()).containsExactlyElementsIn(expected.events());
+    assertThat(parallel.events()).containsExactlyElementsIn(expected.events());
+    sequential.checkOrder();
+    parallel.checkOrder();
+  }
+
+  @Test
+  public void testWalk_largeTreeInParallel() throws IOException {
+    Set<String> expected = new HashSet<>();
+    for (int i = 0; i < 20; i++) {
+      for (int j = 0; j < 20; j++) {
+        Path dir = Files.createDirectories(fs.getPath("/big/" + i + "/" + j));
+        for (int k = 0; k < 10; k++) {
+          expected.add(Files.createFile(dir.resolve("file" + k)).toString());
+        }
+      }
+    }
+
+    final Set<String> visited = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    Jimfs.walkFileTree(
+        fs.getPath("/big"),
+        new SimpleFileVisitor<Path>() {
+          @Override
+          public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+            assertThat(visited.add(file.toString())).isTrue();
+            return CONTINUE;
+          }
+        },
+        pool);
+
+    assertThat(visited).isEqualTo(expected);
+  }
+
+  @Test
+  public void testWalk_withLockStriping() throws IOException {
+    fs.close();
+    fs = Jimfs.newFileSystem(Configuration.unix().toBuilder().setLockStripeCount(8).build());
+    Files.createDirectories(fs.getPath("/tree/a/b"));
+    Files.createFile(fs.getPath("/tree/a/b/file"));
+
+    RecordingVisitor visitor = new RecordingVisitor();
+    Jimfs.walkFileTree(fs.getPath("/tree"), visitor, pool);
+
+    assertThat(visitor.events())
+        .containsExactly(
+            "pre /tree", "pre /tree/a", "pre /tree/a/b", "file /tree/a/b/file", "post /tree/a/b",
+            "post /tree/a", "post /tree");
+    visitor.checkOrder();
+  }
+
+  @Test
+  public void testWalk_attributes() throws IOException {
+    final List<String> files = new ArrayList<>();
+    Jimfs.walkFileTree(
+        fs.getPath("/tree"),
+        new SimpleFileVisitor<Path>() {
+          @Override
+          public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs)
+              throws IOException {
+            assertThat(attrs.isDirectory()).isTrue();
+            assertThat(attrs.fileKey())
+                .isEqualTo(Files.readAttributes(dir, BasicFileAttributes.class).fileKey());
+            return CONTINUE;
+          }
+
+          @Override
+          public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+            if (file.toString().equals("/tree/file")) {
+              assertThat(attrs.isRegularFile()).isTrue();
+              assertThat(attrs.size()).isEqualTo(5);
+            } else if (file.toString().equals("/tree/link")) {
+              assertThat(attrs.isSymbolicLink()).isTrue();
+              assertThat(attrs.isDirectory()).isFalse();
+            }
+            files.add(file.toString());
+            return CONTINUE;
+          }
+        });
+
+    assertThat(files)
+        .containsExactly("/tree/file", "/tree/link", "/tree/a/file", "/tree/a/b/c/file");
+  }
+
+  @Test
+  public void testWalk_visitorChangingTreeFails() throws IOException {
+    try {
+      Jimfs.walkFileTree(fs.getPath("/tree"), new DeletingVisitor());
+      fail();
+    } catch (IllegalStateException expected) {
+    }
+
+    try {
+      Jimfs.walkFileTree(fs.getPath("/tree"), new DeletingVisitor(), pool);
+      fail();
+    } catch (IllegalStateException expected) {
+    }
+
+    // the failed walks released the read lock
+    Files.walkFileTree(fs.getPath("/tree"), new DeletingVisitor());
+    assertThat(Files.exists(fs.getPath("/tree"))).isFalse();
+  }
+
+  @Test
+  public void testWalk_startingAtFile() throws IOException {
+    RecordingVisitor visitor = new RecordingVisitor();
+    Jimfs.walkFileTree(fs.getPath("/tree/file"), visitor);
+    assertThat(visitor.events()).containsExactly("file /tree/file");
+  }
+
+  @Test
+  public void testWalk_relativeStart() throws IOException {
+    Files.createDirectories(fs.getPath("/work/dir"));
+    Files.createFile(fs.getPath("/work/dir/file"));
+
+    RecordingVisitor visitor = new RecordingVisitor();
+    Jimfs.walkFileTree(fs.getPath("dir"), visitor);
+    assertThat(visitor.events()).containsExactly("pre dir", "file dir/file", "post dir").inOrder();
+  }
+
+  @Test
+  public void testWalk_missingStart() throws IOException {
+    final List<IOException> failures = new ArrayList<>();
+    Jimfs.walkFileTree(
+        fs.getPath("/missing"),
+        new SimpleFileVisitor<Path>() {
+          @Override
+          public FileVisitResult visitFileFailed(Path file, IOException exc) {
+            failures.add(exc);
+            return CONTINUE;
+          }
+        });
+
+    assertThat(failures).hasSize(1);
+    assertThat(failures.get(0)).isInstanceOf(NoSuchFileException.class);
+  }
+
+  @Test
+  public void testWalk_skipSubtree() throws IOException {
+    RecordingVisitor visitor =
+        new RecordingVisitor() {
+          @Override
+          public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+            super.preVisitDirectory(dir, attrs);
+            return dir.toString().equals("/tree/a/b") ? SKIP_SUBTREE : CONTINUE;
+          }
+        };
+    Jimfs.walkFileTree(fs.getPath("/tree"), visitor);
+
+    assertThat(visitor.events()).contains("pre /tree/a/b");
+    assertThat(visitor.events()).containsNoneOf("pre /tree/a/b/c", "post /tree/a/b");
+    assertThat(visitor.events()).contains("post /tree/a");
+  }
+
+  @Test
+  public void testWalk_skipSiblings() throws IOException {
+    Files.createDirectory(fs.getPath("/single"));
+    for (int i = 0; i < 10; i++) {
+      Files.createFile(fs.getPath("/single/file" + i));
+    }
+
+    final List<Path> visited = new ArrayList<>();
+    final List<Path> postVisited = new ArrayList<>();
+    Jimfs.walkFileTree(
+        fs.getPath("/single"),
+        new SimpleFileVisitor<Path>() {
+          @Override
+          public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+            visited.add(file);
+            return visited.size() == 3 ? SKIP_SIBLINGS : CONTINUE;
+          }
+
+          @Override
+          public FileVisitResult postVisitDirectory(Path dir, IOException exc) {
+            postVisited.add(dir);
+            return CONTINUE;
+          }
+        });
+
+    assertThat(visited).hasSize(3);
+    assertThat(postVisited).hasSize(1);
+  }
+
+  @Test
+  public void testWalk_terminate() throws IOException {
+    final List<Path> visited = new ArrayList<>();
+    Jimfs.walkFileTree(
+        fs.getPath("/tree"),
+        new SimpleFileVisitor<Path>() {
+          @Override
+          public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+            visited.add(dir);
+            return dir.toString().equals("/tree") ? CONTINUE : TERMINATE;
+          }
+
+          @Override
+          public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+            visited.add(file);
+            return CONTINUE;
+          }
+
+          @Override
+          public FileVisitResult postVisitDirectory(Path dir, IOException exc) {
+            fail("post-visited " + dir + " after terminating");
+            return CONTINUE;
+          }
+        });
+
+    // the walk stops at the first subdirectory of /tree
+    assertThat(visited.get(visited.size() - 1).getParent().toString()).isEqualTo("/tree");
+    assertThat(Files.isDirectory(visited.get(visited.size() - 1))).isTrue();
+  }
+
+  @Test
+  public void testWalk_visitorException() throws IOException {
+    final IOException exception = new IOException("visitor failed");
+    SimpleFileVisitor<Path> visitor =
+        new SimpleFileVisitor<Path>() {
+          @Override
+          public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+              throws IOException {
+            if (file.toString().equals("/tree/a/b/c/file")) {
+              throw exception;
+            }
+            return CONTINUE;
+          }
+        };
+
+    try {
+      Jimfs.walkFileTree(fs.getPath("/tree"), visitor);
+      fail();
+    } catch (IOException expected) {
+      assertThat(expected).isSameInstanceAs(exception);
+    }
+
+    try {
+      Jimfs.walkFileTree(fs.getPath("/tree"), visitor, pool);
+      fail();
+    } catch (IOException expected) {
+      assertThat(expected).isSameInstanceAs(exception);
+    }
+
+    // the read lock was released, so the file system can still be changed
+    Files.delete(fs.getPath("/tree/a/b/c/file"));
+  }
+
+  @Test
+  public void testWalk_requiresJimfsPath() throws IOException {
+    try {
+      Jimfs.walkFileTree(FileSystems.getDefault().getPath("."), new SimpleFileVisitor<Path>() {});
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  /**
+   * Visitor that records each callback as an event string, in a thread-safe list so it can be used
+   * for parallel walks.
+   */
+  private static class RecordingVisitor extends SimpleFileVisitor<Path> {
+
+    private final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+
+    @Override
+    public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+      events.add("pre " + dir);
+      return CONTINUE;
+    }
+
+    @Override
+    public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+      events.add("file " + file);
+      return CONTINUE;
+    }
+
+    @Override
+    public FileVisitResult postVisitDirectory(Path dir, IOException exc) {
+      events.add("post " + dir);
+      return CONTINUE;
+    }
+
+    ImmutableList<String> events() {
+      synchronized (events) {
+        return ImmutableList.copyOf(events);
+      }
+    }
+
+    /** Checks that each directory is pre-visited before and post-visited after its entries. */
+    void checkOrder() {
+      ImmutableList<String> events = events();
+      for (int i = 0; i < events.size(); i++) {
+        String path = events.get(i).substring(events.get(i).indexOf(' ') + 1);
+        String parent = path.substring(0, Math.max(path.lastIndexOf('/'), 1));
+        if (path.equals("/tree") || path.equals(parent)) {
+          continue;
+        }
+        int pre = events.indexOf("pre " + parent);
+        int post = events.indexOf("post " + parent);
+        if (pre >= 0 || post >= 0) {
+          assertThat(pre).isLessThan(i);
+          assertThat(post).isGreaterThan(i);
+        }
+      }
+    }
+  }
+
+  /** Visitor that deletes each file and directory it visits. */
+  private static final class DeletingVisitor extends SimpleFileVisitor<Path> {
+    @Override
+    public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+      Files.delete(file);
+      return CONTINUE;
+    }
+
+    @Override
+    public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+      Files.delete(dir);
+      return CONTINUE;
+    }
+  }
+}
@@ -19,9 +19,18 @@ package com.google.common.jimfs;
 import static com.google.common.truth.Truth.assertThat;
 import static org.junit.Assert.fail;
 
+import com.google.common.collect.Sets;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -50,7 +59,7 @@ public class HeapDiskTest {
     assertThat(disk.blockSize()).isEqualTo(8192);
     assertThat(disk.getTotalSpace()).isEqualTo(819200);
     assertThat(disk.getUnallocatedSpace()).isEqualTo(819200);
-    assertThat(disk.blockCache.blockCount()).isEqualTo(0);
+    assertThat(disk.cachedBlockCount()).isEqualTo(0);
   }
 
   @Test
@@ -67,7 +76,7 @@ public class HeapDiskTest {
     assertThat(disk.blockSize()).isEqualTo(4);
     assertThat(disk.getTotalSpace()).isEqualTo(96);
     assertThat(disk.getUnallocatedSpace()).isEqualTo(96);
-    assertThat(disk.blockCache.blockCount()).isEqualTo(0);
+    assertThat(disk.cachedBlockCount()).isEqualTo(0);
   }
 
   @Test
@@ -77,17 +86,111 @@ public class HeapDiskTest {
     disk.allocate(blocks, 1);
 
     assertThat(blocks.blockCount()).isEqualTo(1);
-    assertThat(blocks.getBlock(0).length).isEqualTo(4);
+    assertThat(blocks.getBlock(0).capacity()).isEqualTo(4);
     assertThat(disk.getUnallocatedSpace()).isEqualTo(36);
 
     disk.allocate(blocks, 5);
 
     assertThat(blocks.blockCount()).isEqualTo(6);
     for (int i = 0; i < blocks.blockCount(); i++) {
-      assertThat(blocks.getBlock(i).length).isEqualTo(4);
+      assertThat(blocks.getBlock(i).capacity()).isEqualTo(4);
     }
     assertThat(disk.getUnallocatedSpace()).isEqualTo(16);
-    assertThat(disk.blockCache.blockCount()).isEqualTo(0);
+    assertThat(disk.cachedBlockCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void testAllocate_extents() throws IOException {
+    HeapDisk disk = new HeapDisk(4, 100, 0, 4);
+
+    disk.allocate(blocks, 2);
+    disk.allocate(blocks, 4);
+
+    assertThat(blocks.blockCount()).isEqualTo(6);
+    int[] capacities = {4, 4, 8, 16, 16, 16};
+    for (int i = 0; i < capacities.length; i++) {
+      assertThat(blocks.getBlock(i).capacity()).isEqualTo(capacities[i]);
+    }
+    assertThat(disk.getUnallocatedSpace()).isEqualTo(336);
+  }
+
+  @Test
+  public void testLayout_fixedBlocks() {
+    HeapDisk disk = new HeapDisk(3, 100, 0);
+
+    assertThat(disk.blockIndex(-1)).isEqualTo(0);
+    assertThat(disk.blockIndex(2)).isEqualTo(0);
+    assertThat(disk.blockIndex(3)).isEqualTo(1);
+    assertThat(disk.blockIndex(10)).isEqualTo(3);
+    assertThat(disk.offsetInBlock(10)).isEqualTo(1);
+    assertThat(disk.blockStart(3)).isEqualTo(9);
+  }
+
+  @Test
+  public void testLayout_extents() {
+    HeapDisk disk = new HeapDisk(4, 100, 0, 4);
+
+    // extents of 4, 4, 8, 16, 16, ... bytes
+    long[] starts = {0, 4, 8, 16, 32, 48, 64};
+    for (int i = 0; i < starts.length; i++) {
+      assertThat(disk.blockStart(i)).isEqualTo(starts[i]);
+      assertThat(disk.blockIndex(starts[i])).isEqualTo(i);
+      assertThat(disk.offsetInBlock(starts[i])).isEqualTo(0);
+      if (i > 0) {
+        assertThat(disk.blockIndex(starts[i] - 1)).isEqualTo(i - 1);
+        assertThat(disk.offsetInBlock(starts[i] - 1)).isEqualTo(starts[i] - starts[i - 1] - 1);
+      }
+    }
+    assertThat(disk.blockIndex(-1)).isEqualTo(0);
+  }
+
+  @Test
+  public void testFree_extents() throws IOException {
+    HeapDisk disk = new HeapDisk(4, 100, 100, 4);
+    disk.allocate(blocks, 5);
+    assertThat(disk.getUnallocatedSpace()).isEqualTo(352);
+
+    disk.free(blocks, 3);
+
+    // only single blocks are cached
+    assertThat(blocks.blockCount()).isEqualTo(2);
+    assertThat(disk.getUnallocatedSpace()).isEqualTo(392);
+    assertThat(disk.cachedBlockCount()).isEqualTo(0);
+
+    disk.free(blocks);
+
+    assertThat(disk.getUnallocatedSpace()).isEqualTo(400);
+    assertThat(disk.cachedBlockCount()).isEqualTo(2);
+  }
+
+  @Test
+  public void testFullDisk_extents() throws IOException {
+    HeapDisk disk = new HeapDisk(4, 10, 0, 4);
+    disk.allocate(blocks, 4);
+    assertThat(disk.getUnallocatedSpace()).isEqualTo(8);
+
+    try {
+      disk.allocate(blocks, 1);
+      fail();
+    } catch (IOException expected) {
+    }
+
+    assertThat(blocks.blockCount()).isEqualTo(4);
+    assertThat(disk.getUnallocatedSpace()).isEqualTo(8);
+  }
+
+  @Test
+  public void testFullDisk_extents_doesNotAllocatePartially() throws IOException {
+    HeapDisk disk = new HeapDisk(4, 5, 0, 4);
+
+    try {
+      disk.allocate(blocks, 4);
+      fail();
+    } catch (IOException expected) {
+    }
+
+    assertThat(blocks.blockCount()).isEqualTo(0);
+    assertThat(disk.getUnallocatedSpace()).isEqualTo(20);
   }
 
   @Test
@@ -98,13 +201,13 @@ public class HeapDiskTest {
     disk.free(blocks, 2);
     assertThat(blocks.blockCount()).isEqualTo(4);
     assertThat(disk.getUnallocatedSpace()).isEqualTo(24);
-    assertThat(disk.blockCache.blockCount()).isEqualTo(0);
+    assertThat(disk.cachedBlockCount()).isEqualTo(0);
 
     disk.free(blocks);
 
     assertThat(blocks.blockCount()).isEqualTo(0);
     assertThat(disk.getUnallocatedSpace()).isEqualTo(40);
-    assertThat(disk.blockCache.blockCount()).isEqualTo(0);
+    assertThat(disk.cachedBlockCount()).isEqualTo(0);
   }
 
   @Test
@@ -116,13 +219,13 @@ public class HeapDiskTest {
 
     assertThat(blocks.blockCount()).isEqualTo(4);
     assertThat(disk.getUnallocatedSpace()).isEqualTo(24);
-    assertThat(disk.blockCache.blockCount()).isEqualTo(2);
+    assertThat(disk.cachedBlockCount()).isEqualTo(2);
 
     disk.free(blocks);
 
     assertThat(blocks.blockCount()).isEqualTo(0);
     assertThat(disk.getUnallocatedSpace()).isEqualTo(40);
-    assertThat(disk.blockCache.blockCount()).isEqualTo(6);
+    assertThat(disk.cachedBlockCount()).isEqualTo(6);
   }
 
   @Test
@@ -134,13 +237,13 @@ public class HeapDiskTest {
 
     assertThat(blocks.blockCount()).isEqualTo(4);
     assertThat(disk.getUnallocatedSpace()).isEqualTo(24);
-    assertThat(disk.blockCache.blockCount()).isEqualTo(2);
+    assertThat(disk.cachedBlockCount()).isEqualTo(2);
 
     disk.free(blocks);
 
     assertThat(blocks.blockCount()).isEqualTo(0);
     assertThat(disk.getUnallocatedSpace()).isEqualTo(40);
-    assertThat(disk.blockCache.blockCount()).isEqualTo(4);
+    assertThat(disk.cachedBlockCount()).isEqualTo(4);
   }
 
   @Test
@@ -153,21 +256,21 @@ public class HeapDiskTest {
     disk.free(blocks);
 
     assertThat(blocks.blockCount()).isEqualTo(0);
-    assertThat(disk.blockCache.blockCount()).isEqualTo(10);
+    assertThat(disk.cachedBlockCount()).isEqualTo(10);
 
-    List<byte[]> cachedBlocks = new ArrayList<>();
+    List<ByteBuffer> cachedBlocks = new ArrayList<>();
     for (int i = 0; i < 10; i++) {
-      cachedBlocks.add(disk.blockCache.getBlock(i));
+      cachedBlocks.add(disk.cachedBlocks().get(i));
     }
 
     disk.allocate(blocks, 6);
 
     assertThat(blocks.blockCount()).isEqualTo(6);
-    assertThat(disk.blockCache.blockCount()).isEqualTo(4);
+    assertThat(disk.cachedBlockCount()).isEqualTo(4);
 
     // the 6 arrays in blocks are the last 6 arrays that were cached
     for (int i = 0; i < 6; i++) {
-      assertThat(blocks.getBlock(i)).isEqualTo(cachedBlocks.get(i + 4));
+      assertThat(blocks.getBlock(i)).isSameInstanceAs(cachedBlocks.get(i + 4));
     }
   }
 
@@ -181,21 +284,277 @@ public class HeapDiskTest {
     disk.free(blocks);
 
     assertThat(blocks.blockCount()).isEqualTo(0);
-    assertThat(disk.blockCache.blockCount()).isEqualTo(4);
+    assertThat(disk.cachedBlockCount()).isEqualTo(4);
 
-    List<byte[]> cachedBlocks = new ArrayList<>();
+    List<ByteBuffer> cachedBlocks = new ArrayList<>();
     for (int i = 0; i < 4; i++) {
-      cachedBlocks.add(disk.blockCache.getBlock(i));
+      cachedBlocks.add(disk.cachedBlocks().get(i));
     }
 
     disk.allocate(blocks, 6);
 
     assertThat(blocks.blockCount()).isEqualTo(6);
-    assertThat(disk.blockCache.blockCount()).isEqualTo(0);
+    assertThat(disk.cachedBlockCount()).isEqualTo(0);
+
+    // the first 4 arrays in blocks are the 4 arrays that were cached
+    for (int i = 0; i < 4; i++) {
+      assertThat(blocks.getBlock(i)).isSameInstanceAs(cachedBlocks.get(i));
+    }
+  }
+
+  @Test
+  public void testShare() throws IOException {
+    HeapDisk disk = new HeapDisk(4, 10, 10);
+    RegularFile file = RegularFile.create(-2, disk);
+    disk.allocate(file, 3);
+
+    disk.share(file, blocks);
+
+    assertThat(blocks.blockCount()).isEqualTo(3);
+    for (int i = 0; i < 3; i++) {
+      assertThat(blocks.getBlock(i)).isSameInstanceAs(file.getBlock(i));
+      assertThat(blocks.isBlockShared(i)).isTrue();
+      assertThat(file.isBlockShared(i)).isTrue();
+    }
+    assertThat(disk.getUnallocatedSpace()).isEqualTo(28);
+  }
+
+  @Test
+  public void testUnshare() throws IOException {
+    HeapDisk disk = new HeapDisk(4, 10, 10);
+    RegularFile file = RegularFile.create(-2, disk);
+    disk.allocate(file, 3);
+    file.getBlock(1).put(0, (byte) 1);
+    disk.share(file, blocks);
+
+    disk.unshare(blocks, 1);
+
+    ByteBuffer copy = blocks.getBlock(1);
+    assertThat(copy).isNotSameInstanceAs(file.getBlock(1));
+    assertThat(copy.get(0)).isEqualTo(1);
+    assertThat(blocks.isBlockShared(1)).isFalse();
+    assertThat(disk.getUnallocatedSpace()).isEqualTo(24);
+
+    // the block is now only referenced by the original file, so it doesn't need to be copied
+    ByteBuffer original = file.getBlock(1);
+    disk.unshare(file, 1);
+
+    assertThat(file.getBlock(1)).isSameInstanceAs(original);
+    assertThat(file.isBlockShared(1)).isFalse();
+    assertThat(disk.getUnallocatedSpace()).isEqualTo(24);
+  }
+
+  @Test
+  public void testUnshare_extent() throws IOException {
+    HeapDisk disk = new HeapDisk(4, 20, 20, 4);
+    RegularFile file = RegularFile.create(-2, disk);
+    disk.allocate(file, 4);
+    file.getBlock(3).put(15, (byte) 1);
+    disk.share(file, blocks);
+
+    disk.unshare(blocks, 3);
+
+    ByteBuffer copy = blocks.getBlock(3);
+    assertThat(copy).isNotSameInstanceAs(file.getBlock(3));
+    assertThat(copy.capacity()).isEqualTo(16);
+    assertThat(copy.get(15)).isEqualTo(1);
+    assertThat(disk.getUnallocatedSpace()).isEqualTo(32);
+
+    disk.free(blocks);
+    disk.free(file);
+
+    assertThat(disk.getUnallocatedSpace()).isEqualTo(80);
+    assertThat(disk.cachedBlockCount()).isEqualTo(2);
+  }
+
+  @Test
+  public void testFillHole() throws IOException {
+    HeapDisk disk = new HeapDisk(4, 10, 10);
+    RegularFile file = RegularFile.create(-2, disk);
+    file.write(1000, (byte) 1);
+
+    assertThat(file.blockCount()).isEqualTo(251);
+    assertThat(file.getBlock(0)).isNull();
+    assertThat(file.getBlock(250).get(0)).isEqualTo(1);
+    assertThat(disk.getUnallocatedSpace()).isEqualTo(36);
+
+    disk.fillHole(file, 3);
+
+    assertThat(file.getBlock(3).capacity()).isEqualTo(4);
+    assertThat(disk.getUnallocatedSpace()).isEqualTo(32);
+
+    disk.free(file);
+
+    assertThat(disk.getUnallocatedSpace()).isEqualTo(40);
+    assertThat(disk.cachedBlockCount()).isEqualTo(2);
+  }
+
+  @Test
+  public void testFillHole_usesZeroedCachedBlock() throws IOException {
+    HeapDisk disk = new HeapDisk(4, 10, 10);
+    RegularFile file = RegularFile.create(-2, disk);
+    disk.allocate(file, 1);
+    ByteBuffer block = file.getBlock(0);
+    block.put(0, (byte) 1);
+    disk.free(file);
+
+    file.extend(8);
+    disk.fillHole(file, 1);
+
+    assertThat(file.getBlock(1)).isSameInstanceAs(block);
+    assertThat(block.get(0)).isEqualTo(0);
+    assertThat(disk.cachedBlockCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void testFillHole_extent() throws IOException {
+    HeapDisk disk = new HeapDisk(4, 20, 20, 4);
+    RegularFile file = RegularFile.create(-2, disk);
+    file.extend(32);
+
+    assertThat(file.blockCount()).isEqualTo(4);
+    assertThat(disk.getUnallocatedSpace()).isEqualTo(80);
+
+    disk.fillHole(file, 3);
+
+    assertThat(file.getBlock(3).capacity()).isEqualTo(16);
+    assertThat(disk.getUnallocatedSpace()).isEqualTo(64);
+  }
+
+  @Test
+  public void testFillHole_fullDisk() throws IOException {
+    HeapDisk disk = new HeapDisk(4, 1, 1);
+    RegularFile file = RegularFile.create(-2, disk);
+    file.write(100, (byte) 1);
+
+    try {
+      disk.fillHole(file, 0);
+      fail();
+    } catch (IOException expected) {
+    }
+
+    assertThat(file.getBlock(0)).isNull();
+  }
+
+  @Test
+  public void testShare_holes() throws IOException {
+    HeapDisk disk = new HeapDisk(4, 10, 10);
+    RegularFile file = RegularFile.create(-2, disk);
+    file.write(8, (byte) 1);
+    disk.share(file, blocks);
+
+    assertThat(blocks.getBlock(0)).isNull();
+    assertThat(blocks.getBlock(2)).isSameInstanceAs(file.getBlock(2));
+
+    disk.free(blocks);
+    disk.free(file);
+
+    assertThat(disk.getUnallocatedSpace()).isEqualTo(40);
+  }
+
+  @Test
+  public void testUnshare_usesCachedBlock() throws IOException {
+    HeapDisk disk = new HeapDisk(4, 10, 10);
+    RegularFile file = RegularFile.create(-2, disk);
+    disk.allocate(file, 2);
+    disk.free(file, 1);
+    ByteBuffer cached = disk.cachedBlocks().get(0);
+    disk.share(file, blocks);
+
+    disk.unshare(blocks, 0);
 
-    // the last 4 arrays in blocks are the 4 arrays that were cached
-    for (int i = 2; i < 6; i++) {
-      assertThat(blocks.getBlock(i)).isEqualTo(cachedBlocks.get(i - 2));
+    assertThat(blocks.getBlock(0)).isSameInstanceAs(cached);
+    assertThat(disk.cachedBlockCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void testUnshare_fullDisk() throws IOException {
+    HeapDisk disk = new HeapDisk(4, 2, 0);
+    RegularFile file = RegularFile.create(-2, disk);
+    disk.allocate(file, 2);
+    disk.share(file, blocks);
+
+    try {
+      disk.unshare(blocks, 0);
+      fail();
+    } catch (IOException expected) {
+    }
+
+    assertThat(blocks.getBlock(0)).isSameInstanceAs(file.getBlock(0));
+  }
+
+  @Test
+  public void testFree_sharedBlocks() throws IOException {
+    HeapDisk disk = new HeapDisk(4, 10, 10);
+    RegularFile file = RegularFile.create(-2, disk);
+    disk.allocate(file, 3);
+    disk.share(file, blocks);
+
+    disk.free(blocks);
+
+    // the blocks are still used by the original file
+    assertThat(blocks.blockCount()).isEqualTo(0);
+    assertThat(disk.getUnallocatedSpace()).isEqualTo(28);
+    assertThat(disk.cachedBlockCount()).isEqualTo(0);
+
+    disk.free(file);
+
+    assertThat(disk.getUnallocatedSpace()).isEqualTo(40);
+    assertThat(disk.cachedBlockCount()).isEqualTo(3);
+  }
+
+  @Test
+  public void testConcurrentAllocateAndFree() throws Exception {
+    final HeapDisk disk = new HeapDisk(4, 1000, 300);
+    final int threads = 8;
+    final CyclicBarrier barrier = new CyclicBarrier(threads);
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<RegularFile>> futures = new ArrayList<>();
+      for (int t = 0; t < threads; t++) {
+        final int seed = t;
+        futures.add(
+            executor.submit(
+                new Callable<RegularFile>() {
+                  @Override
+                  public RegularFile call() throws Exception {
+                    RegularFile file = RegularFile.create(seed, disk);
+                    Random random = new Random(seed);
+                    barrier.await();
+                    for (int i = 0; i < 10000; i++) {
+                      if (file.blockCount() < 100 && random.nextBoolean()) {
+                        disk.allocate(file, random.nextInt(20) + 1);
+                      } else if (file.blockCount() > 0) {
+                        disk.free(file, random.nextInt(file.blockCount()) + 1);
+                      }
+                    }
+                    return file;
+                  }
+                }));
+      }
+
+      Set<ByteBuffer> allocated = Sets.newIdentityHashSet();
+      int allocatedCount = 0;
+      for (Future<RegularFile> future : futures) {
+        RegularFile file = future.get();
+        for (int i = 0; i < file.blockCount(); i++) {
+          allocated.add(file.getBlock(i));
+        }
+        allocatedCount += file.blockCount();
+      }
+      // no block was handed out to two files
+      assertThat(allocated).hasSize(allocatedCount);
+      assertThat(disk.getUnallocatedSpace()).isEqualTo((1000 - allocatedCount) * 4);
+
+      Set<ByteBuffer> cached = Sets.newIdentityHashSet();
+      cached.addAll(disk.cachedBlocks());
+      assertThat(cached).hasSize(disk.cachedBlockCount());
+      assertThat(disk.cachedBlockCount()).isAtMost(300);
+      for (ByteBuffer block : cached) {
+        assertThat(allocated.contains(block)).isFalse();
+      }
+    } finally {
+      executor.shutdown();
     }
   }
 
@@ -39,10 +39,13 @@ import com.google.common.util.concurrent.SettableFuture;
 import com.google.common.util.concurrent.Uninterruptibles;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.ReadOnlyBufferException;
 import java.nio.channels.AsynchronousCloseException;
 import java.nio.channels.ClosedByInterruptException;
 import java.nio.channels.ClosedChannelException;
 import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
 import java.nio.channels.FileLock;
 import java.nio.channels.FileLockInterruptionException;
 import java.nio.channels.NonReadableChannelException;
@@ -224,6 +227,121 @@ public class JimfsFileChannelTest {
     assertEquals(2, channel.position());
   }
 
+  @Test
+  public void testMap_readOnly() throws IOException {
+    RegularFile file = regularFile(0);
+    file.write(0, bytes("1234567890"), 0, 10);
+    FileChannel channel = channel(file, READ);
+
+    MappedByteBuffer buffer = channel.map(MapMode.READ_ONLY, 2, 5);
+    assertTrue(buffer.isDirect());
+    assertTrue(buffer.isReadOnly());
+    assertEquals(0, buffer.position());
+    assertEquals(5, buffer.capacity());
+    assertEquals(5, buffer.remaining());
+    assertEquals(buffer("34567"), buffer);
+
+    try {
+      buffer.put(0, (byte) 1);
+      fail();
+    } catch (ReadOnlyBufferException expected) {
+    }
+
+    // changes to the file are visible through the mapping
+    file.write(3, (byte) 9);
+    assertEquals(9, buffer.get(1));
+  }
+
+  @Test
+  public void testMap_readWrite() throws IOException {
+    RegularFile file = regularFile(0);
+    file.write(0, bytes("1234567890"), 0, 10);
+    FileChannel channel = channel(file, READ, WRITE);
+
+    MappedByteBuffer buffer = channel.map(MapMode.READ_WRITE, 0, 10);
+    assertFalse(buffer.isReadOnly());
+    assertEquals(buffer("1234567890"), buffer);
+
+    buffer.put(0, (byte) 0);
+    buffer.put(9, (byte) 0);
+
+    ByteBuffer read = ByteBuffer.allocate(10);
+    assertEquals(10, channel.read(read, 0));
+    assertEquals(buffer("0234567890"), (ByteBuffer) read.flip());
+
+    channel.write(buffer("99"), 4);
+    assertEquals(buffer("0234997890"), buffer);
+
+    // mapping a region that was already mapped shares the same memory
+    MappedByteBuffer buffer2 = channel.map(MapMode.READ_WRITE, 4, 2);
+    buffer2.put(0, (byte) 5);
+    assertEquals(5, buffer.get(4));
+  }
+
+  @Test
+  public void testMap_readWrite_extendsFile() throws IOException {
+    RegularFile file = regularFile(0);
+    file.write(0, bytes("123"), 0, 3);
+    FileChannel channel = channel(file, READ, WRITE);
+
+    MappedByteBuffer buffer = channel.map(MapMode.READ_WRITE, 1, 9999);
+    assertEquals(10000, channel.size());
+    assertEquals(2, buffer.get(0));
+    assertEquals(3, buffer.get(1));
+    assertEquals(0, buffer.get(9998));
+
+    buffer.put(9998, (byte) 7);
+    assertEquals(7, file.read(9999));
+  }
+
+  @Test
+  public void testMap_readOnly_beyondEndOfFile_readOnlyChannel() throws IOException {
+    FileChannel channel = channel(regularFile(10), READ);
+
+    try {
+      channel.map(MapMode.READ_ONLY, 5, 10);
+      fail();
+    } catch (IOException expected) {
+    }
+    assertEquals(10, channel.size());
+  }
+
+  @Test
+  public void testMap_private() throws IOException {
+    RegularFile file = regularFile(0);
+    file.write(0, bytes("1234567890"), 0, 10);
+    FileChannel channel = channel(file, READ, WRITE);
+
+    MappedByteBuffer buffer = channel.map(MapMode.PRIVATE, 0, 10);
+    assertFalse(buffer.isReadOnly());
+    assertEquals(buffer("1234567890"), buffer);
+
+    // changes to a private mapping aren't propagated to the file
+    buffer.put(0, (byte) 0);
+    assertEquals(1, file.read(0));
+  }
+
+  @Test
+  public void testMap_directDisk() throws IOException {
+    RegularFile file = RegularFile.create(0, new DirectDisk(4, 1000, 1000, 16));
+    file.write(0, bytes("1234567890"), 0, 10);
+    FileChannel channel = channel(file, READ, WRITE);
+
+    MappedByteBuffer buffer = channel.map(MapMode.READ_WRITE, 3, 6);
+    assertEquals(buffer("456789"), buffer);
+
+    buffer.put(0, (byte) 0);
+    assertEquals(0, file.read(3));
+  }
+
+  @Test
+  public void testMap_emptyRegion() throws IOException {
+    FileChannel channel = channel(regularFile(10), READ);
+
+    MappedByteBuffer buffer = channel.map(MapMode.READ_ONLY, 10, 0);
+    assertEquals(0, buffer.capacity());
+  }
+
   @Test
   public void testFileTimeUpdates() throws IOException {
     RegularFile file = regularFile(10);
@@ -418,6 +536,12 @@ public class JimfsFileChannelTest {
     } catch (ClosedChannelException expected) {
     }
 
+    try {
+      channel.map(MapMode.READ_WRITE, 0, 10);
+      fail();
+    } catch (ClosedChannelException expected) {
+    }
+
     executor.shutdown();
   }
 
@@ -466,6 +590,18 @@ public class JimfsFileChannelTest {
       fail();
     } catch (NonWritableChannelException expected) {
     }
+
+    try {
+      channel.map(MapMode.READ_WRITE, 0, 10);
+      fail();
+    } catch (NonWritableChannelException expected) {
+    }
+
+    try {
+      channel.map(MapMode.PRIVATE, 0, 10);
+      fail();
+    } catch (NonWritableChannelException expected) {
+    }
   }
 
   @Test
@@ -507,6 +643,18 @@ public class JimfsFileChannelTest {
       fail();
     } catch (NonReadableChannelException expected) {
     }
+
+    try {
+      channel.map(MapMode.READ_ONLY, 0, 10);
+      fail();
+    } catch (NonReadableChannelException expected) {
+    }
+
+    try {
+      channel.map(MapMode.READ_WRITE, 0, 10);
+      fail();
+    } catch (NonReadableChannelException expected) {
+    }
   }
 
   @Test
@@ -642,6 +790,29 @@ public class JimfsFileChannelTest {
     }
   }
 
+  @Test
+  public void testMapNegative() throws IOException {
+    FileChannel channel = channel(regularFile(0), READ, WRITE);
+
+    try {
+      channel.map(MapMode.READ_WRITE, -1, 10);
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+
+    try {
+      channel.map(MapMode.READ_WRITE, 0, -1);
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+
+    try {
+      channel.map(MapMode.READ_WRITE, 0, Integer.MAX_VALUE + 1L);
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
   @Test
   public void testNullPointerExceptions() throws IOException {
     FileChannel channel = channel(regularFile(100), READ, WRITE);
@@ -1018,8 +1189,15 @@ public class JimfsFileChannelTest {
           }
         });
 
+    assertClosedByInterrupt(
+        new FileChannelMethod() {
+          @Override
+          public void call(FileChannel channel) throws IOException {
+            channel.map(MapMode.READ_WRITE, 0, 10);
+          }
+        });
+
     // tryLock() does not handle interruption
-    // map() always throws UOE; it doesn't make sense for it to try to handle interruption
   }
 
   private interface FileChannelMethod {
@@ -220,6 +220,59 @@ public class JimfsInputStreamTest {
     in.close(); // does nothing
   }
 
+  @Test
+  public void testRead_singleBytes_acrossBlocks() throws IOException {
+    byte[] bytes = new byte[20000];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = (byte) (i * 31);
+    }
+    RegularFile file = regularFile(0);
+    file.write(0, bytes, 0, bytes.length);
+    JimfsInputStream in = new JimfsInputStream(file, new FileSystemState(Runnables.doNothing()));
+
+    for (int i = 0; i < bytes.length; i++) {
+      assertThat(in.read()).isEqualTo(bytes[i] & 0xff);
+      if (i == 100) {
+        assertThat(in.skip(10000)).isEqualTo(10000);
+        i += 10000;
+      }
+    }
+    assertEmpty(in);
+  }
+
+  @Test
+  @SuppressWarnings("GuardedByChecker")
+  public void testRead_singleByte_seesLaterWrites() throws IOException {
+    JimfsInputStream in = newInputStream(1, 2, 3, 4, 5, 6, 7, 8);
+    assertThat(in.read()).isEqualTo(1);
+
+    RegularFile file = in.file;
+    file.writeLock().lock();
+    try {
+      file.write(1, (byte) 42);
+    } finally {
+      file.writeLock().unlock();
+    }
+    assertThat(in.read()).isEqualTo(42);
+    assertThat(in.read()).isEqualTo(3);
+  }
+
+  @Test
+  @SuppressWarnings("GuardedByChecker")
+  public void testRead_singleByte_afterTruncation() throws IOException {
+    JimfsInputStream in = newInputStream(1, 2, 3, 4, 5, 6, 7, 8);
+    assertThat(in.read()).isEqualTo(1);
+
+    RegularFile file = in.file;
+    file.writeLock().lock();
+    try {
+      file.truncate(1);
+    } finally {
+      file.writeLock().unlock();
+    }
+    assertEmpty(in);
+  }
+
   private static JimfsInputStream newInputStream(int... bytes) throws IOException {
     byte[] b = new byte[bytes.length];
     for (int i = 0; i < bytes.length; i++) {
@@ -18,6 +18,7 @@ package com.google.common.jimfs;
 
 import static com.google.common.jimfs.TestUtils.bytes;
 import static com.google.common.jimfs.TestUtils.regularFile;
+import static com.google.common.truth.Truth.assertThat;
 import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.fail;
@@ -182,6 +183,45 @@ public class JimfsOutputStreamTest {
     }
   }
 
+  @Test
+  @SuppressWarnings("GuardedByChecker")
+  public void testWrite_singleBytes_modifiedTimeUpdatedOncePerBlockAndOnFlush() throws IOException {
+    JimfsOutputStream out = newOutputStream(false);
+    RegularFile file = out.file;
+    out.write(1);
+    assertThat(file.getLastModifiedTime()).isNotEqualTo(0L);
+
+    file.setLastModifiedTime(0);
+    out.write(2);
+    out.write(3);
+    assertThat(file.getLastModifiedTime()).isEqualTo(0L);
+    assertStoreContains(out, 1, 2, 3);
+
+    out.flush();
+    assertThat(file.getLastModifiedTime()).isNotEqualTo(0L);
+
+    file.setLastModifiedTime(0);
+    out.flush();
+    assertThat(file.getLastModifiedTime()).isEqualTo(0L);
+
+    out.write(4);
+    out.close();
+    assertThat(file.getLastModifiedTime()).isNotEqualTo(0L);
+  }
+
+  @Test
+  @SuppressWarnings("GuardedByChecker")
+  public void testWrite_singleByte_inNewBlockUpdatesModifiedTime() throws IOException {
+    JimfsOutputStream out = newOutputStream(false);
+    RegularFile file = out.file;
+    out.write(new byte[8095]);
+    out.write(1);
+
+    file.setLastModifiedTime(0);
+    out.write(2);
+    assertThat(file.getLastModifiedTime()).isNotEqualTo(0L);
+  }
+
   private static JimfsOutputStream newOutputStream(boolean append) {
     RegularFile file = regularFile(0);
     return new JimfsOutputStream(file, append, new FileSystemState(Runnables.doNothing()));
@@ -197,7 +237,8 @@ public class JimfsOutputStreamTest {
   }
 
   @SuppressWarnings("GuardedByChecker")
-  private static void assertStoreContains(JimfsOutputStream out, int... bytes) {
+  private static void assertStoreContains(JimfsOutputStream out, int... bytes)
+      throws IOException {
     byte[] actualBytes = new byte[bytes.length];
     out.file.read(0, actualBytes, 0, actualBytes.length);
     assertArrayEquals(bytes(bytes), actualBytes);
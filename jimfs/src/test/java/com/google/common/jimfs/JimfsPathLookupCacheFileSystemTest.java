@@ -0,0 +1,44 @@
+/*
+ * Copyright 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.jimfs;
+
+import java.nio.file.FileSystem;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Runs the {@link JimfsUnixLikeFileSystemTest} tests against a file system that caches path
+ * lookups, with few enough slots that cached results are often replaced.
+ *
+ * @author Colin Decker
+ */
+@RunWith(JUnit4.class)
+public class JimfsPathLookupCacheFileSystemTest extends JimfsUnixLikeFileSystemTest {
+
+  private static final Configuration CACHING_CONFIGURATION =
+      Configuration.unix().toBuilder()
+          .setAttributeViews("basic", "owner", "posix", "unix")
+          .setMaxSize(1024 * 1024 * 1024) // 1 GB
+          .setMaxCacheSize(256 * 1024 * 1024) // 256 MB
+          .setPathLookupCacheSize(16)
+          .build();
+
+  @Override
+  protected FileSystem createFileSystem() {
+    return Jimfs.newFileSystem("unix", CACHING_CONFIGURATION);
+  }
+}
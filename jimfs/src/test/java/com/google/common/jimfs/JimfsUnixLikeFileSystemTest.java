@@ -87,8 +87,11 @@ import java.nio.file.attribute.FileTime;
 import java.nio.file.attribute.PosixFilePermission;
 import java.nio.file.attribute.PosixFilePermissions;
 import java.nio.file.attribute.UserPrincipal;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
 import java.util.regex.PatternSyntaxException;
 import org.junit.Test;
@@ -1564,6 +1567,78 @@ public class JimfsUnixLikeFileSystemTest extends AbstractJimfsIntegrationTest {
     }
   }
 
+  @Test
+  public void testCopy_fileToPath_sharesContentUntilWritten() throws IOException {
+    FileStore fileStore = Iterables.getOnlyElement(fs.getFileStores());
+    byte[] bytes = preFilledBytes(100000);
+    Files.write(path("/foo"), bytes);
+    long unallocatedSpace = fileStore.getUnallocatedSpace();
+
+    Files.copy(path("/foo"), path("/bar"));
+    assertThat(fileStore.getUnallocatedSpace()).isEqualTo(unallocatedSpace);
+
+    try (FileChannel channel = FileChannel.open(path("/bar"), WRITE)) {
+      channel.write(ByteBuffer.wrap(new byte[] {-1}), 50000);
+    }
+    assertThat(fileStore.getUnallocatedSpace()).isLessThan(unallocatedSpace);
+    assertThatPath("/foo").containsBytes(bytes);
+    bytes[50000] = -1;
+    assertThatPath("/bar").containsBytes(bytes);
+
+    Files.delete(path("/foo"));
+    Files.delete(path("/bar"));
+    assertThat(fileStore.getUnallocatedSpace()).isEqualTo(fileStore.getTotalSpace());
+  }
+
+  @Test
+  public void testSparseFile() throws IOException {
+    FileStore fileStore = Iterables.getOnlyElement(fs.getFileStores());
+    long position = 10L * 1024 * 1024 * 1024; // 10 GB, far more than the file system's max size
+    try (FileChannel channel = FileChannel.open(path("/foo"), CREATE_NEW, READ, WRITE)) {
+      channel.write(ByteBuffer.wrap(new byte[] {-1}), position);
+      assertThat(channel.size()).isEqualTo(position + 1);
+      assertThat(fileStore.getTotalSpace() - fileStore.getUnallocatedSpace()).isEqualTo(8192);
+
+      ByteBuffer buf = ByteBuffer.allocate(2);
+      channel.read(buf, position - 1);
+      assertThat(buf.array()).isEqualTo(new byte[] {0, -1});
+    }
+
+    assertThat(Jimfs.seekData(path("/foo"), 0)).isEqualTo(position);
+    assertThat(Jimfs.seekData(path("/foo"), position)).isEqualTo(position);
+    assertThat(Jimfs.seekData(path("/foo"), position + 1)).isEqualTo(-1);
+    assertThat(Jimfs.seekHole(path("/foo"), 0)).isEqualTo(0);
+    assertThat(Jimfs.seekHole(path("/foo"), position)).isEqualTo(position + 1);
+    assertThat(Jimfs.seekHole(path("/foo"), position + 1)).isEqualTo(-1);
+
+    Files.delete(path("/foo"));
+    assertThat(fileStore.getUnallocatedSpace()).isEqualTo(fileStore.getTotalSpace());
+  }
+
+  @Test
+  public void testSeekData_notARegularFile() throws IOException {
+    Files.createDirectory(path("/foo"));
+
+    try {
+      Jimfs.seekData(path("/foo"), 0);
+      fail();
+    } catch (FileSystemException expected) {
+      assertThat(expected.getMessage()).contains("not a regular file");
+    }
+
+    try {
+      Jimfs.seekHole(path("/bar"), 0);
+      fail();
+    } catch (NoSuchFileException expected) {
+    }
+
+    try {
+      Jimfs.seekHole(path("/foo"), -1);
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
   @Test
   public void testCopy_withCopyAttributes() throws IOException {
     Path foo = path("/foo");
@@ -1971,6 +2046,36 @@ public class JimfsUnixLikeFileSystemTest extends AbstractJimfsIntegrationTest {
     assertThatPath("/foo/bar/link1/foo/bar/link1/foo").isSameFileAs("/foo");
   }
 
+  @Test
+  public void testDirectoryStream_largeDirectory() throws IOException {
+    Files.createDirectory(path("/foo"));
+    List<Path> expected = new ArrayList<>();
+    for (int i = 0; i < 1000; i++) {
+      Path file = path(String.format("/foo/%s%04d", i % 3 == 0 ? "a" : "b", i));
+      Files.createFile(file);
+      if (i % 3 == 0 && i % 2 == 0) {
+        expected.add(file);
+      }
+    }
+    Collections.sort(expected);
+
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(path("/foo"))) {
+      assertThat(Iterables.size(stream)).isEqualTo(1000);
+    }
+
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(path("/foo"), "a*[02468]")) {
+      assertThat(ImmutableList.copyOf(stream)).isEqualTo(expected);
+    }
+
+    // a glob path matcher from the file system visits only the names with the glob's prefix
+    @SuppressWarnings("unchecked")
+    DirectoryStream.Filter<Path> filter =
+        (DirectoryStream.Filter<Path>) fs.getPathMatcher("glob:a*[02468]");
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(path("/foo"), filter)) {
+      assertThat(ImmutableList.copyOf(stream)).isEqualTo(expected);
+    }
+  }
+
   @Test
   public void testSecureDirectoryStream() throws IOException {
     Files.createDirectories(path("/foo/bar"));
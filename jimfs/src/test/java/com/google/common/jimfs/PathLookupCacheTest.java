@@ -0,0 +1,209 @@
+/*
+ * Copyright 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.jimfs;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.LinkOption.NOFOLLOW_LINKS;
+import static org.junit.Assert.fail;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import java.io.IOException;
+import java.nio.file.FileStore;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests for {@link PathLookupCache}.
+ *
+ * @author Colin Decker
+ */
+@RunWith(JUnit4.class)
+public class PathLookupCacheTest {
+
+  private FileSystem fs;
+  private FileStore store;
+
+  @Before
+  public void setUp() throws IOException {
+    fs = Jimfs.newFileSystem(Configuration.unix().toBuilder().setPathLookupCacheSize(1000).build());
+    store = Iterables.getOnlyElement(fs.getFileStores());
+    Files.createDirectories(fs.getPath("/a/b/c/d"));
+    Files.write(fs.getPath("/a/b/c/d/file"), ImmutableList.of("hello"), UTF_8);
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    fs.close();
+  }
+
+  @Test
+  public void testSize() throws IOException {
+    assertThat(store.getAttribute("lookupCache:size")).isEqualTo(1024);
+  }
+
+  @Test
+  public void testRepeatedLookupsHit() throws IOException {
+    Path file = fs.getPath("/a/b/c/d/file");
+    assertThat(Files.exists(file)).isTrue();
+    long hits = hitCount();
+    long misses = missCount();
+
+    for (int i = 0; i < 10; i++) {
+      assertThat(Files.readAllLines(file, UTF_8)).containsExactly("hello");
+    }
+    assertThat(hitCount()).isAtLeast(hits + 10);
+    assertThat(missCount()).isEqualTo(misses);
+    assertThat(store.getAttribute("lookupCache:hitRate"))
+        .isEqualTo((double) hitCount() / (hitCount() + missCount()));
+  }
+
+  @Test
+  public void testChangeAlongPathInvalidates() throws IOException {
+    Path file = fs.getPath("/a/b/c/d/file");
+    assertThat(Files.exists(file)).isTrue();
+    assertThat(Files.exists(file)).isTrue();
+
+    Files.move(fs.getPath("/a/b"), fs.getPath("/a/x"));
+    assertThat(Files.exists(file)).isFalse();
+    assertThat(Files.exists(fs.getPath("/a/x/c/d/file"))).isTrue();
+
+    Files.move(fs.getPath("/a/x"), fs.getPath("/a/b"));
+    assertThat(Files.exists(file)).isTrue();
+
+    Files.delete(file);
+    assertThat(Files.exists(file)).isFalse();
+  }
+
+  @Test
+  public void testChangeOffPathDoesNotInvalidate() throws IOException {
+    Files.createDirectory(fs.getPath("/other"));
+    Path file = fs.getPath("/a/b/c/d/file");
+    assertThat(Files.exists(file)).isTrue();
+
+    Files.createDirectory(fs.getPath("/other/foo"));
+    Files.createFile(fs.getPath("/other/foo/bar"));
+    long misses = missCount();
+    assertThat(Files.exists(file)).isTrue();
+    assertThat(missCount()).isEqualTo(misses);
+  }
+
+  @Test
+  public void testMissingParentIsCached() throws IOException {
+    Path missing = fs.getPath("/a/b/missing/file");
+    assertThat(Files.exists(missing)).isFalse();
+    long hits = hitCount();
+    assertThat(Files.exists(missing)).isFalse();
+    assertThat(hitCount()).isEqualTo(hits + 1);
+
+    Files.createDirectory(fs.getPath("/a/b/missing"));
+    Files.createFile(missing);
+    assertThat(Files.exists(missing)).isTrue();
+  }
+
+  @Test
+  public void testSymbolicLinks() throws IOException {
+    Files.createDirectory(fs.getPath("/other"));
+    Files.write(fs.getPath("/other/file"), ImmutableList.of("other"), UTF_8);
+    Path link = fs.getPath("/link");
+    Files.createSymbolicLink(link, fs.getPath("a/b/c/d"));
+
+    Path throughLink = fs.getPath("/link/file");
+    assertThat(Files.readAllLines(throughLink, UTF_8)).containsExactly("hello");
+    assertThat(Files.readAllLines(throughLink, UTF_8)).containsExactly("hello");
+    assertThat(Files.isSymbolicLink(link)).isTrue();
+    assertThat(Files.isDirectory(link)).isTrue();
+
+    // a change in a directory the link goes through
+    Files.delete(fs.getPath("/a/b/c/d/file"));
+    assertThat(Files.exists(throughLink)).isFalse();
+    Files.write(fs.getPath("/a/b/c/d/file"), ImmutableList.of("again"), UTF_8);
+    assertThat(Files.readAllLines(throughLink, UTF_8)).containsExactly("again");
+
+    // replacing the link
+    Files.delete(link);
+    Files.createSymbolicLink(link, fs.getPath("/other"));
+    assertThat(Files.readAllLines(throughLink, UTF_8)).containsExactly("other");
+    assertThat(Files.isDirectory(link, NOFOLLOW_LINKS)).isFalse();
+  }
+
+  @Test
+  public void testParentDirectoryOfMovedDirectory() throws IOException {
+    Path parentOfD = fs.getPath("/a/b/c/d/..");
+    assertThat(parentOfD.toRealPath().toString()).isEqualTo("/a/b/c");
+    assertThat(parentOfD.toRealPath().toString()).isEqualTo("/a/b/c");
+
+    Files.createDirectory(fs.getPath("/x"));
+    Files.move(fs.getPath("/a/b/c"), fs.getPath("/x/c"));
+    assertThat(Files.exists(parentOfD)).isFalse();
+    assertThat(fs.getPath("/x/c/d/..").toRealPath().toString()).isEqualTo("/x/c");
+  }
+
+  @Test
+  public void testCaseInsensitive() throws IOException {
+    FileSystem caseInsensitive =
+        Jimfs.newFileSystem(Configuration.osX().toBuilder().setPathLookupCacheSize(16).build());
+    Path lower = caseInsensitive.getPath("/foo");
+    Path upper = caseInsensitive.getPath("/FOO");
+    assertThat(Files.exists(lower)).isFalse();
+    assertThat(Files.exists(upper)).isFalse();
+
+    // the file is created with the name it was looked up with
+    Files.createFile(upper);
+    assertThat(Files.exists(lower)).isTrue();
+    assertThat(lower.toRealPath().toString()).isEqualTo("/FOO");
+    caseInsensitive.close();
+  }
+
+  @Test
+  public void testUnrecognizedAttributes() throws IOException {
+    try {
+      store.getAttribute("lookupCache:foo");
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+
+    try {
+      store.getAttribute("foo:size");
+      fail();
+    } catch (UnsupportedOperationException expected) {
+    }
+
+    FileSystem withoutCache = Jimfs.newFileSystem(Configuration.unix());
+    try {
+      Iterables.getOnlyElement(withoutCache.getFileStores()).getAttribute("lookupCache:size");
+      fail();
+    } catch (UnsupportedOperationException expected) {
+    }
+    withoutCache.close();
+  }
+
+  private long hitCount() throws IOException {
+    return (Long) store.getAttribute("lookupCache:hitCount");
+  }
+
+  private long missCount() throws IOException {
+    return (Long) store.getAttribute("lookupCache:missCount");
+  }
+}
@@ -303,6 +303,26 @@ public class PathNormalizationTest {
     assertNormalizedPatternMatches("AM\u00c9LIE", "AME\u0301LIE");
   }
 
+  @Test
+  public void testAsciiFastPath_matchesApplyingEachNormalization() {
+    StringBuilder builder = new StringBuilder();
+    for (char c = 0; c < 0x80; c++) {
+      builder.append(c);
+    }
+    String allAscii = builder.toString();
+
+    for (PathNormalization first : PathNormalization.values()) {
+      for (PathNormalization second : PathNormalization.values()) {
+        ImmutableSet<PathNormalization> set = ImmutableSet.of(first, second);
+        String expected = allAscii;
+        for (PathNormalization normalization : set) {
+          expected = normalization.apply(expected);
+        }
+        assertEquals(expected, PathNormalization.normalize(allAscii, set));
+      }
+    }
+  }
+
   /** Asserts that the given strings normalize to the same string using the current normalizer. */
   private void assertNormalizedEqual(String first, String second) {
     assertEquals(
@@ -179,6 +179,39 @@ public class PathServiceTest {
         .isInstanceOf(PathMatchers.RegexPathMatcher.class);
   }
 
+  @Test
+  public void testName_cached() {
+    PathService caseInsensitive =
+        new PathService(
+            PathType.unix(),
+            NO_NORMALIZATIONS,
+            ImmutableSet.of(PathNormalization.CASE_FOLD_UNICODE),
+            false);
+
+    Name name = caseInsensitive.name("Foo");
+    assertThat(name.toString()).isEqualTo("Foo");
+    assertThat(name.canonical()).isEqualTo("foo");
+    assertThat(caseInsensitive.name("Foo")).isSameInstanceAs(name);
+    assertThat(caseInsensitive.name(new String("Foo"))).isSameInstanceAs(name);
+
+    Name other = caseInsensitive.name("FOO");
+    assertThat(other).isNotSameInstanceAs(name);
+    assertThat(other).isEqualTo(name);
+    assertThat(other.toString()).isEqualTo("FOO");
+  }
+
+  @Test
+  public void testName_cacheSlotsAreReplaced() {
+    // more names than the cache has slots, so that some names replace others
+    for (int round = 0; round < 2; round++) {
+      for (int i = 0; i < PathService.NAME_CACHE_SIZE * 4; i++) {
+        Name name = service.name("name" + i);
+        assertThat(name.toString()).isEqualTo("name" + i);
+        assertThat(name.canonical()).isEqualTo("name" + i);
+      }
+    }
+  }
+
   public static PathService fakeUnixPathService() {
     return fakePathService(PathType.unix(), false);
   }
@@ -17,11 +17,15 @@
 package com.google.common.jimfs;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 import com.google.common.collect.ImmutableSet;
+import java.io.IOException;
 import java.nio.file.FileSystem;
 import java.nio.file.FileSystems;
 import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
 import java.util.regex.Pattern;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -90,6 +94,36 @@ public class RegexGlobMatcherTest extends AbstractGlobMatcherTest {
     assertGlobRegexIs("\\\\", "[\\\\/]", "\\/");
   }
 
+  @Test
+  public void testLiteralPrefix() {
+    assertEquals("foo", GlobToRegex.literalPrefix("foo", "/"));
+    assertEquals("foo", GlobToRegex.literalPrefix("foo*.txt", "/"));
+    assertEquals("foo.", GlobToRegex.literalPrefix("foo.?", "/"));
+    assertEquals("a", GlobToRegex.literalPrefix("a[bc]", "/"));
+    assertEquals("a", GlobToRegex.literalPrefix("a{b,c}", "/"));
+    assertEquals("a", GlobToRegex.literalPrefix("a\\*", "/"));
+    assertEquals("foo", GlobToRegex.literalPrefix("foo/bar", "/"));
+    assertEquals("", GlobToRegex.literalPrefix("*.txt", "/"));
+    assertEquals("", GlobToRegex.literalPrefix("", "/"));
+  }
+
+  @Test
+  public void testMatcherAsDirectoryStreamFilter() throws IOException {
+    PathMatchers.RegexPathMatcher matcher =
+        (PathMatchers.RegexPathMatcher) matcher("foo*.txt");
+    assertEquals("foo", matcher.literalPrefix());
+    assertTrue(matcher.accept(Paths.get("/dir/foo1.txt")));
+    assertFalse(matcher.accept(Paths.get("/dir/bar.txt")));
+    assertFalse(matcher.accept(Paths.get("/")));
+
+    // case insensitive matching can't use the literal prefix
+    PathMatchers.RegexPathMatcher caseInsensitive =
+        (PathMatchers.RegexPathMatcher)
+            PathMatchers.getPathMatcher(
+                "glob:foo*", "/", ImmutableSet.of(PathNormalization.CASE_FOLD_ASCII));
+    assertEquals("", caseInsensitive.literalPrefix());
+  }
+
   private static void assertGlobRegexIs(String glob, String regex) {
     assertGlobRegexIs(glob, regex, "/");
   }
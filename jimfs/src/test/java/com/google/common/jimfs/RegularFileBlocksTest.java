@@ -19,6 +19,10 @@ package com.google.common.jimfs;
 import static com.google.common.truth.Truth.assertThat;
 
 import com.google.common.primitives.Bytes;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -53,25 +57,25 @@ public class RegularFileBlocksTest {
 
   @Test
   public void testAddAndGet() {
-    file.addBlock(new byte[] {1});
+    file.addBlock(ByteBuffer.wrap(new byte[] {1}));
 
     assertThat(file.blockCount()).isEqualTo(1);
-    assertThat(Bytes.asList(file.getBlock(0))).isEqualTo(Bytes.asList(new byte[] {1}));
+    assertThat(Bytes.asList(file.getBlock(0).array())).isEqualTo(Bytes.asList(new byte[] {1}));
     assertThat(file.getBlock(1)).isNull();
 
-    file.addBlock(new byte[] {1, 2});
+    file.addBlock(ByteBuffer.wrap(new byte[] {1, 2}));
 
     assertThat(file.blockCount()).isEqualTo(2);
-    assertThat(Bytes.asList(file.getBlock(1))).isEqualTo(Bytes.asList(new byte[] {1, 2}));
+    assertThat(Bytes.asList(file.getBlock(1).array())).isEqualTo(Bytes.asList(new byte[] {1, 2}));
     assertThat(file.getBlock(2)).isNull();
   }
 
   @Test
   public void testTruncate() {
-    file.addBlock(new byte[0]);
-    file.addBlock(new byte[0]);
-    file.addBlock(new byte[0]);
-    file.addBlock(new byte[0]);
+    file.addBlock(ByteBuffer.wrap(new byte[0]));
+    file.addBlock(ByteBuffer.wrap(new byte[0]));
+    file.addBlock(ByteBuffer.wrap(new byte[0]));
+    file.addBlock(ByteBuffer.wrap(new byte[0]));
 
     assertThat(file.blockCount()).isEqualTo(4);
 
@@ -89,8 +93,8 @@ public class RegularFileBlocksTest {
 
   @Test
   public void testCopyTo() {
-    file.addBlock(new byte[] {1});
-    file.addBlock(new byte[] {1, 2});
+    file.addBlock(ByteBuffer.wrap(new byte[] {1}));
+    file.addBlock(ByteBuffer.wrap(new byte[] {1, 2}));
     RegularFile other = createFile();
 
     assertThat(other.blockCount()).isEqualTo(0);
@@ -116,9 +120,9 @@ public class RegularFileBlocksTest {
 
   @Test
   public void testTransferTo() {
-    file.addBlock(new byte[] {1});
-    file.addBlock(new byte[] {1, 2});
-    file.addBlock(new byte[] {1, 2, 3});
+    file.addBlock(ByteBuffer.wrap(new byte[] {1}));
+    file.addBlock(ByteBuffer.wrap(new byte[] {1, 2}));
+    file.addBlock(ByteBuffer.wrap(new byte[] {1, 2, 3}));
     RegularFile other = createFile();
 
     assertThat(file.blockCount()).isEqualTo(3);
@@ -130,16 +134,86 @@ public class RegularFileBlocksTest {
     assertThat(other.blockCount()).isEqualTo(3);
 
     assertThat(file.getBlock(0)).isNull();
-    assertThat(Bytes.asList(other.getBlock(0))).isEqualTo(Bytes.asList(new byte[] {1}));
-    assertThat(Bytes.asList(other.getBlock(1))).isEqualTo(Bytes.asList(new byte[] {1, 2}));
-    assertThat(Bytes.asList(other.getBlock(2))).isEqualTo(Bytes.asList(new byte[] {1, 2, 3}));
+    assertThat(Bytes.asList(other.getBlock(0).array())).isEqualTo(Bytes.asList(new byte[] {1}));
+    assertThat(Bytes.asList(other.getBlock(1).array())).isEqualTo(Bytes.asList(new byte[] {1, 2}));
+    assertThat(Bytes.asList(other.getBlock(2).array()))
+        .isEqualTo(Bytes.asList(new byte[] {1, 2, 3}));
 
     other.transferBlocksTo(file, 1);
 
     assertThat(file.blockCount()).isEqualTo(1);
     assertThat(other.blockCount()).isEqualTo(2);
     assertThat(other.getBlock(2)).isNull();
-    assertThat(Bytes.asList(file.getBlock(0))).isEqualTo(Bytes.asList(new byte[] {1, 2, 3}));
+    assertThat(Bytes.asList(file.getBlock(0).array()))
+        .isEqualTo(Bytes.asList(new byte[] {1, 2, 3}));
     assertThat(file.getBlock(1)).isNull();
   }
+
+  @Test
+  public void testInlineContent_movesToBlocksWhenLargerThanMaxInlineSize() throws IOException {
+    HeapDisk disk = new HeapDisk(8, 100, 100, 1, 8);
+    RegularFile file = RegularFile.create(-2, disk);
+
+    file.write(0, new byte[] {1, 2, 3}, 0, 3);
+    file.write(5, (byte) 6);
+
+    assertThat(file.blockCount()).isEqualTo(0);
+    assertThat(file.size()).isEqualTo(6);
+    assertThat(disk.getUnallocatedSpace()).isEqualTo(800);
+
+    file.write(6, new byte[] {7, 8, 9}, 0, 3);
+
+    assertThat(file.blockCount()).isEqualTo(2);
+    assertThat(disk.getUnallocatedSpace()).isEqualTo(784);
+    byte[] content = new byte[9];
+    assertThat(file.read(0, content, 0, 9)).isEqualTo(9);
+    assertThat(Bytes.asList(content))
+        .isEqualTo(Bytes.asList(new byte[] {1, 2, 3, 0, 0, 6, 7, 8, 9}));
+
+    // the content stays in blocks once it's been moved there
+    file.truncate(2);
+    assertThat(file.blockCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void testInlineContent_truncate() throws IOException {
+    RegularFile file = RegularFile.create(-2, new HeapDisk(8, 100, 100, 1, 8));
+    file.write(0, new byte[] {1, 2, 3, 4}, 0, 4);
+
+    file.truncate(2);
+    file.write(3, (byte) 5);
+
+    byte[] content = new byte[4];
+    assertThat(file.read(0, content, 0, 4)).isEqualTo(4);
+    assertThat(Bytes.asList(content)).isEqualTo(Bytes.asList(new byte[] {1, 2, 0, 5}));
+    assertThat(file.blockCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void testInlineContent_map() throws IOException {
+    RegularFile file = RegularFile.create(-2, new HeapDisk(8, 100, 100, 1, 8));
+    file.write(0, new byte[] {1, 2, 3, 4}, 0, 4);
+
+    ByteBuffer mapped = file.map(1, 2);
+    mapped.put(0, (byte) 9);
+
+    assertThat(file.blockCount()).isEqualTo(1);
+    assertThat(file.read(1)).isEqualTo(9);
+  }
+
+  @Test
+  public void testInlineContent_loadedInline() throws IOException {
+    Path hostFile = Files.createTempFile("jimfs", ".bin");
+    try {
+      Files.write(hostFile, new byte[] {1, 2, 3});
+      RegularFile file = RegularFile.create(-2, new HeapDisk(8, 100, 100, 1, 8));
+      file.setLazyContent(new ContentSource(hostFile, 0), 3);
+
+      assertThat(file.read(2)).isEqualTo(3);
+      assertThat(file.isLazy()).isFalse();
+      assertThat(file.blockCount()).isEqualTo(0);
+    } finally {
+      Files.delete(hostFile);
+    }
+  }
 }
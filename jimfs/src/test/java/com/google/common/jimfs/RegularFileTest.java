@@ -40,47 +40,55 @@ import junit.framework.TestCase;
 import junit.framework.TestSuite;
 
 /**
- * Tests for {@link RegularFile} and by extension for {@link HeapDisk}. These tests test files
- * created by a heap disk in a number of different states.
+ * Tests for {@link RegularFile} and by extension for {@link HeapDisk} and {@link DirectDisk}. These
+ * tests test files created by heap and direct disks in a number of different states.
  *
  * @author Colin Decker
  */
 public class RegularFileTest {
 
   /**
-   * Returns a test suite for testing file methods with a variety of {@code HeapDisk}
-   * configurations.
+   * Returns a test suite for testing file methods with a variety of {@code Disk} configurations.
    */
   public static TestSuite suite() {
     TestSuite suite = new TestSuite();
 
-    for (ReuseStrategy reuseStrategy : EnumSet.allOf(ReuseStrategy.class)) {
-      TestSuite suiteForReuseStrategy = new TestSuite(reuseStrategy.toString());
-      Set<List<Integer>> sizeOptions =
-          Sets.cartesianProduct(ImmutableList.of(BLOCK_SIZES, CACHE_SIZES));
-      for (List<Integer> options : sizeOptions) {
-        int blockSize = options.get(0);
-        int cacheSize = options.get(1);
-        if (cacheSize > 0 && cacheSize < blockSize) {
-          // skip cases where the cache size is not -1 (all) or 0 (none) but it is < blockSize,
-          // because this is equivalent to a cache size of 0
-          continue;
-        }
-
-        TestConfiguration state = new TestConfiguration(blockSize, cacheSize, reuseStrategy);
-        TestSuite suiteForTest = new TestSuite(state.toString());
-        for (Method method : TEST_METHODS) {
-          RegularFileTestRunner tester = new RegularFileTestRunner(method.getName(), state);
-          suiteForTest.addTest(tester);
-        }
-        suiteForReuseStrategy.addTest(suiteForTest);
+    for (DiskType diskType : EnumSet.allOf(DiskType.class)) {
+      TestSuite suiteForDiskType = new TestSuite(diskType.toString());
+      for (ReuseStrategy reuseStrategy : EnumSet.allOf(ReuseStrategy.class)) {
+        suiteForDiskType.addTest(suite(diskType, reuseStrategy));
       }
-      suite.addTest(suiteForReuseStrategy);
+      suite.addTest(suiteForDiskType);
     }
 
     return suite;
   }
 
+  private static TestSuite suite(DiskType diskType, ReuseStrategy reuseStrategy) {
+    TestSuite suiteForReuseStrategy = new TestSuite(reuseStrategy.toString());
+    Set<List<Integer>> sizeOptions =
+        Sets.cartesianProduct(ImmutableList.of(BLOCK_SIZES, CACHE_SIZES));
+    for (List<Integer> options : sizeOptions) {
+      int blockSize = options.get(0);
+      int cacheSize = options.get(1);
+      if (cacheSize > 0 && cacheSize < blockSize) {
+        // skip cases where the cache size is not -1 (all) or 0 (none) but it is < blockSize,
+        // because this is equivalent to a cache size of 0
+        continue;
+      }
+
+      TestConfiguration state =
+          new TestConfiguration(diskType, blockSize, cacheSize, reuseStrategy);
+      TestSuite suiteForTest = new TestSuite(state.toString());
+      for (Method method : TEST_METHODS) {
+        RegularFileTestRunner tester = new RegularFileTestRunner(method.getName(), state);
+        suiteForTest.addTest(tester);
+      }
+      suiteForReuseStrategy.addTest(suiteForTest);
+    }
+    return suiteForReuseStrategy;
+  }
+
   public static final ImmutableSet<Integer> BLOCK_SIZES = ImmutableSet.of(2, 8, 128, 8192);
   public static final ImmutableSet<Integer> CACHE_SIZES = ImmutableSet.of(0, 4, 16, 128, -1);
 
@@ -97,9 +105,23 @@ public class RegularFileTest {
               })
           .toList();
 
+  /** The types of disk files are tested with. */
+  public enum DiskType {
+    /** A {@link HeapDisk}. */
+    HEAP,
+    /** A {@link DirectDisk}, with small slabs so that files span several slabs. */
+    DIRECT,
+    /** A {@link HeapDisk} that allocates extents of up to 4 blocks. */
+    HEAP_EXTENTS,
+    /** A {@link DirectDisk} that allocates extents of up to 4 blocks, the size of its slabs. */
+    DIRECT_EXTENTS,
+    /** A {@link HeapDisk} whose files keep their content inline until it's larger than a block. */
+    HEAP_INLINE
+  }
+
   /**
    * Different strategies for handling reuse of disks and/or files between tests, intended to ensure
-   * that {@link HeapDisk} operates properly in a variety of usage states including newly created,
+   * that {@link Disk} operates properly in a variety of usage states including newly created,
    * having created files that have not been deleted yet, having created files that have been
    * deleted, and having created files some of which have been deleted and some of which have not.
    */
@@ -117,13 +139,16 @@ public class RegularFileTest {
   /** Configuration for a set of test cases. */
   public static final class TestConfiguration {
 
+    private final DiskType diskType;
     private final int blockSize;
     private final int cacheSize;
     private final ReuseStrategy reuseStrategy;
 
-    private HeapDisk disk;
+    private Disk disk;
 
-    public TestConfiguration(int blockSize, int cacheSize, ReuseStrategy reuseStrategy) {
+    public TestConfiguration(
+        DiskType diskType, int blockSize, int cacheSize, ReuseStrategy reuseStrategy) {
+      this.diskType = diskType;
       this.blockSize = blockSize;
       this.cacheSize = cacheSize;
       this.reuseStrategy = reuseStrategy;
@@ -133,9 +158,23 @@ public class RegularFileTest {
       }
     }
 
-    private HeapDisk createDisk() {
+    private Disk createDisk() {
       int maxCachedBlockCount = cacheSize == -1 ? Integer.MAX_VALUE : (cacheSize / blockSize);
-      return new HeapDisk(blockSize, Integer.MAX_VALUE, maxCachedBlockCount);
+      switch (diskType) {
+        case HEAP:
+          return new HeapDisk(blockSize, Integer.MAX_VALUE, maxCachedBlockCount);
+        case DIRECT:
+          return new DirectDisk(blockSize, Integer.MAX_VALUE, maxCachedBlockCount, blockSize * 4);
+        case HEAP_EXTENTS:
+          return new HeapDisk(blockSize, Integer.MAX_VALUE, maxCachedBlockCount, 4);
+        case DIRECT_EXTENTS:
+          return new DirectDisk(
+              blockSize, Integer.MAX_VALUE, maxCachedBlockCount, 4, blockSize * 4);
+        case HEAP_INLINE:
+          return new HeapDisk(blockSize, Integer.MAX_VALUE, maxCachedBlockCount, 1, blockSize);
+        default:
+          throw new AssertionError();
+      }
     }
 
     public RegularFile createRegularFile() {
@@ -164,7 +203,7 @@ public class RegularFileTest {
 
     @Override
     public String toString() {
-      return reuseStrategy + " [" + blockSize + ", " + cacheSize + "]";
+      return diskType + " " + reuseStrategy + " [" + blockSize + ", " + cacheSize + "]";
     }
   }
 
@@ -204,25 +243,25 @@ public class RegularFileTest {
       assertContentEquals("", file);
     }
 
-    public void testEmpty_read_singleByte() {
+    public void testEmpty_read_singleByte() throws IOException {
       assertEquals(-1, file.read(0));
       assertEquals(-1, file.read(1));
     }
 
-    public void testEmpty_read_byteArray() {
+    public void testEmpty_read_byteArray() throws IOException {
       byte[] array = new byte[10];
       assertEquals(-1, file.read(0, array, 0, array.length));
       assertArrayEquals(bytes("0000000000"), array);
     }
 
-    public void testEmpty_read_singleBuffer() {
+    public void testEmpty_read_singleBuffer() throws IOException {
       ByteBuffer buffer = ByteBuffer.allocate(10);
       int read = file.read(0, buffer);
       assertEquals(-1, read);
       assertEquals(0, buffer.position());
     }
 
-    public void testEmpty_read_multipleBuffers() {
+    public void testEmpty_read_multipleBuffers() throws IOException {
       ByteBuffer buf1 = ByteBuffer.allocate(5);
       ByteBuffer buf2 = ByteBuffer.allocate(5);
       long read = file.read(0, ImmutableList.of(buf1, buf2));
@@ -386,7 +425,7 @@ public class RegularFileTest {
     }
 
     public void testEmpty_copy() throws IOException {
-      RegularFile copy = file.copyWithoutContent(1);
+      RegularFile copy = file.copyWithoutContent(1, 0);
       assertContentEquals("", copy);
     }
 
@@ -809,20 +848,113 @@ public class RegularFileTest {
 
     public void testNonEmpty_copy() throws IOException {
       fillContent("123456");
-      RegularFile copy = file.copyWithoutContent(1);
+      RegularFile copy = file.copyWithoutContent(1, 0);
       file.copyContentTo(copy);
       assertContentEquals("123456", copy);
     }
 
     public void testNonEmpty_copy_multipleTimes() throws IOException {
       fillContent("123456");
-      RegularFile copy = file.copyWithoutContent(1);
+      RegularFile copy = file.copyWithoutContent(1, 0);
       file.copyContentTo(copy);
-      RegularFile copy2 = copy.copyWithoutContent(2);
+      RegularFile copy2 = copy.copyWithoutContent(2, 0);
       copy.copyContentTo(copy2);
       assertContentEquals("123456", copy);
     }
 
+    public void testNonEmpty_copy_sharesBlocks() throws IOException {
+      fillContent("123456");
+      RegularFile copy = file.copyWithoutContent(1, 0);
+      file.copyContentTo(copy);
+      assertEquals(file.blockCount(), copy.blockCount());
+      for (int i = 0; i < file.blockCount(); i++) {
+        assertSame(file.getBlock(i), copy.getBlock(i));
+      }
+    }
+
+    public void testNonEmpty_copy_thenWriteToCopy() throws IOException {
+      fillContent("123456");
+      RegularFile copy = file.copyWithoutContent(1, 0);
+      file.copyContentTo(copy);
+      copy.write(1, bytes("00"), 0, 2);
+      copy.write(5, (byte) 0);
+      assertContentEquals("123456", file);
+      assertContentEquals("100450", copy);
+      if (file.blockCount() > 0) {
+        assertNotSame(file.getBlock(0), copy.getBlock(0));
+      }
+    }
+
+    public void testNonEmpty_copy_thenWriteToSource() throws IOException {
+      fillContent("123456");
+      RegularFile copy = file.copyWithoutContent(1, 0);
+      file.copyContentTo(copy);
+      file.write(0, buffer("000000111"));
+      assertContentEquals("000000111", file);
+      assertContentEquals("123456", copy);
+
+      copy.write(0, buffer("22"));
+      assertContentEquals("000000111", file);
+      assertContentEquals("223456", copy);
+    }
+
+    public void testNonEmpty_copy_multipleTimes_thenWriteToEach() throws IOException {
+      fillContent("123456");
+      RegularFile copy = file.copyWithoutContent(1, 0);
+      file.copyContentTo(copy);
+      RegularFile copy2 = copy.copyWithoutContent(2, 0);
+      copy.copyContentTo(copy2);
+
+      copy.write(0, (byte) 0);
+      assertContentEquals("123456", file);
+      assertContentEquals("023456", copy);
+      assertContentEquals("123456", copy2);
+
+      copy2.write(1, (byte) 0);
+      file.write(2, (byte) 0);
+      assertContentEquals("120456", file);
+      assertContentEquals("023456", copy);
+      assertContentEquals("103456", copy2);
+    }
+
+    public void testNonEmpty_copy_thenTruncateAndExtendSource() throws IOException {
+      fillContent("123456");
+      RegularFile copy = file.copyWithoutContent(1, 0);
+      file.copyContentTo(copy);
+      file.truncate(2);
+      file.write(4, (byte) 1);
+      assertContentEquals("12001", file);
+      assertContentEquals("123456", copy);
+    }
+
+    public void testNonEmpty_copy_thenTransferFromToCopy() throws IOException {
+      fillContent("123456");
+      RegularFile copy = file.copyWithoutContent(1, 0);
+      file.copyContentTo(copy);
+      copy.transferFrom(new ByteBufferChannel(buffer("000")), 2, 3);
+      assertContentEquals("123456", file);
+      assertContentEquals("120006", copy);
+    }
+
+    public void testNonEmpty_copy_thenDeleteSourceAndWriteToCopy() throws IOException {
+      fillContent("123456");
+      RegularFile copy = file.copyWithoutContent(1, 0);
+      file.copyContentTo(copy);
+      file.deleted();
+      copy.write(0, buffer("000"));
+      assertContentEquals("000456", copy);
+    }
+
+    public void testNonEmpty_copy_thenMapCopy() throws IOException {
+      fillContent("1234567890");
+      RegularFile copy = file.copyWithoutContent(1, 0);
+      file.copyContentTo(copy);
+      ByteBuffer mapped = copy.map(0, 10);
+      mapped.put(0, (byte) 0);
+      assertContentEquals("1234567890", file);
+      assertContentEquals("0234567890", copy);
+    }
+
     public void testNonEmpty_truncate_toZero() throws IOException {
       fillContent("123456");
       file.truncate(0);
@@ -841,6 +973,160 @@ public class RegularFileTest {
       assertContentEquals("123456", file);
     }
 
+    public void testNonEmpty_map() throws IOException {
+      fillContent("1234567890");
+      ByteBuffer mapped = file.map(1, 8);
+      assertTrue(mapped.isDirect());
+      assertEquals(8, mapped.remaining());
+      assertEquals(buffer("23456789"), mapped);
+
+      mapped.put(0, (byte) 0);
+      file.write(8, (byte) 0);
+      assertContentEquals("1034567800", file);
+      assertEquals(buffer("03456780"), mapped);
+    }
+
+    public void testNonEmpty_map_regionWithinMappedRegion() throws IOException {
+      fillContent("1234567890");
+      ByteBuffer mapped = file.map(0, 10);
+      ByteBuffer mapped2 = file.map(3, 4);
+
+      mapped2.put(0, (byte) 0);
+      assertEquals(0, mapped.get(3));
+      assertContentEquals("1230567890", file);
+    }
+
+    public void testNonEmpty_map_overlappingRegion() throws IOException {
+      fillContent("1234567890");
+      file.map(0, 4);
+      ByteBuffer mapped = file.map(2, 8);
+
+      mapped.put(0, (byte) 0);
+      mapped.put(7, (byte) 1);
+      assertContentEquals("1204567891", file);
+    }
+
+    public void testNonEmpty_map_thenTruncateAndWrite() throws IOException {
+      fillContent("1234567890");
+      file.map(0, 10);
+      file.truncate(3);
+      assertContentEquals("123", file);
+
+      file.write(3, bytes("4567890"), 0, 7);
+      assertContentEquals("1234567890", file);
+
+      ByteBuffer mapped = file.map(0, 10);
+      assertEquals(buffer("1234567890"), mapped);
+    }
+
+    public void testNonEmpty_copy_afterMap() throws IOException {
+      fillContent("123456");
+      file.map(1, 4);
+      RegularFile copy = file.copyWithoutContent(1, 0);
+      file.copyContentTo(copy);
+      assertContentEquals("123456", copy);
+    }
+
+    public void testEmpty_map_noBytes() throws IOException {
+      ByteBuffer mapped = file.map(0, 0);
+      assertEquals(0, mapped.capacity());
+    }
+
+    public void testEmpty_extend() throws IOException {
+      assertTrue(file.extend(5));
+      assertContentEquals("00000", file);
+      assertFalse(file.extend(5));
+      assertFalse(file.extend(2));
+      assertContentEquals("00000", file);
+    }
+
+    public void testEmpty_write_farPastEnd_leavesHoles() throws IOException {
+      file.write(10000, bytes("12"), 0, 2);
+      assertContentEquals(concat(new byte[10000], bytes("12")), file);
+
+      long dataStart = file.blockStart(10000);
+      assertEquals(dataStart, file.seekData(0));
+      assertEquals(10000, file.seekData(10000));
+      assertEquals(-1, file.seekData(10002));
+      assertEquals(0, file.seekHole(0));
+      assertEquals(10002, file.seekHole(dataStart));
+      assertEquals(-1, file.seekHole(10002));
+    }
+
+    public void testEmpty_write_farPastEnd_thenFillHole() throws IOException {
+      file.write(10000, bytes("12"), 0, 2);
+      file.write(3, bytes("345"), 0, 3);
+
+      byte[] expected = concat(new byte[10000], bytes("12"));
+      System.arraycopy(bytes("345"), 0, expected, 3, 3);
+      assertContentEquals(expected, file);
+      assertEquals(file.blockStart(3), file.seekData(0));
+    }
+
+    public void testEmpty_extend_isAllHole() throws IOException {
+      file.extend(10000);
+      assertEquals(-1, file.seekData(0));
+      assertEquals(0, file.seekHole(0));
+      assertEquals(99, file.seekHole(99));
+    }
+
+    public void testNonEmpty_noHoles() throws IOException {
+      fillContent("123456");
+      assertEquals(2, file.seekData(2));
+      assertEquals(6, file.seekHole(2));
+      assertEquals(-1, file.seekData(6));
+      assertEquals(-1, file.seekHole(6));
+    }
+
+    public void testNonEmpty_truncateAndExtend_zeroesBytesPastSize() throws IOException {
+      fillContent("123456");
+      file.truncate(2);
+      file.extend(6);
+      assertContentEquals("120000", file);
+    }
+
+    public void testNonEmpty_extend_thenWrite() throws IOException {
+      fillContent("222");
+      file.extend(10000);
+      file.write(9999, (byte) '1');
+
+      byte[] expected = new byte[10000];
+      System.arraycopy(bytes("222"), 0, expected, 0, 3);
+      expected[9999] = '1';
+      assertContentEquals(expected, file);
+    }
+
+    public void testEmpty_write_farPastEnd_transferTo() throws IOException {
+      file.write(10000, bytes("12"), 0, 2);
+      ByteBufferChannel channel = new ByteBufferChannel(10010);
+      assertEquals(10002, file.transferTo(0, 10010, channel));
+      assertArrayEquals(
+          concat(new byte[10000], bytes("12"), new byte[8]), channel.buffer().array());
+    }
+
+    public void testEmpty_write_farPastEnd_copy_thenWriteToCopy() throws IOException {
+      file.write(10000, bytes("12"), 0, 2);
+      RegularFile copy = file.copyWithoutContent(1, 0);
+      file.copyContentTo(copy);
+      copy.write(5, (byte) '3');
+
+      byte[] expected = concat(new byte[10000], bytes("12"));
+      assertContentEquals(expected, file);
+      expected[5] = '3';
+      assertContentEquals(expected, copy);
+      assertEquals(file.blockStart(10000), file.seekData(0));
+      assertEquals(copy.blockStart(5), copy.seekData(0));
+    }
+
+    public void testEmpty_write_farPastEnd_map() throws IOException {
+      file.write(10000, bytes("12"), 0, 2);
+      ByteBuffer mapped = file.map(9998, 4);
+      assertEquals(0, mapped.get(0));
+      assertEquals(1, mapped.get(2));
+      mapped.put(0, (byte) '3');
+      assertEquals('3', file.read(9998));
+    }
+
     public void testDeletedStoreRemainsUsableWhileOpen() throws IOException {
       byte[] bytes = bytes("1234567890");
       file.write(0, bytes, 0, bytes.length);
@@ -885,7 +1171,11 @@ public class RegularFileTest {
     protected static void assertContentEquals(byte[] expected, RegularFile actual) {
       assertEquals(expected.length, actual.sizeWithoutLocking());
       byte[] actualBytes = new byte[(int) actual.sizeWithoutLocking()];
-      actual.read(0, ByteBuffer.wrap(actualBytes));
+      try {
+        actual.read(0, ByteBuffer.wrap(actualBytes));
+      } catch (IOException e) {
+        throw new AssertionError(e);
+      }
       assertArrayEquals(expected, actualBytes);
     }
   }
@@ -62,6 +62,15 @@ public class WatchServiceConfigurationTest {
     assertThat(pollingWatchService.timeUnit).isEqualTo(MILLISECONDS);
   }
 
+  @Test
+  public void testEventDrivenConfig() {
+    WatchServiceConfiguration eventDriven = WatchServiceConfiguration.eventDriven();
+    WatchService watchService =
+        eventDriven.newWatchService(fs.getDefaultView(), fs.getPathService());
+    assertThat(watchService).isInstanceOf(EventDrivenWatchService.class);
+    assertThat(eventDriven.toString()).isEqualTo("WatchServiceConfiguration.eventDriven()");
+  }
+
   @Test
   public void testDefaultConfig() {
     WatchService watchService =
@@ -0,0 +1,602 @@
+/*
+ * Copyright 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.common.jimfs;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.APPEND;
+import static java.nio.file.StandardOpenOption.CREATE_NEW;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static org.junit.Assert.fail;
+
+import com.google.common.collect.ImmutableList;
+import java.io.IOError;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.ClosedFileSystemException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileStore;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserDefinedFileAttributeView;
+import java.nio.file.attribute.UserPrincipal;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests for {@link WriteAheadLog}, through file systems configured to use one.
+ *
+ * @author Colin Decker
+ */
+@RunWith(JUnit4.class)
+public class WriteAheadLogTest {
+
+  @Rule public final TemporaryFolder tmp = new TemporaryFolder();
+
+  private final List<FileSystem> fileSystems = new ArrayList<>();
+
+  @After
+  public void tearDown() throws IOException {
+    for (FileSystem fs : fileSystems) {
+      fs.close();
+    }
+  }
+
+  private FileSystem open(long checkpointThreshold) {
+    FileSystem fs =
+        Jimfs.newFileSystem(
+            Configuration.unix()
+                .toBuilder()
+                .setAttributeViews("basic", "owner", "posix", "unix", "user")
+                .setWriteAheadLog(tmp.getRoot().toPath().resolve("log"), checkpointThreshold)
+                .build());
+    fileSystems.add(fs);
+    return fs;
+  }
+
+  private FileSystem open() {
+    return open(WriteAheadLog.DEFAULT_CHECKPOINT_THRESHOLD);
+  }
+
+  private FileSystem reopen(FileSystem fs) throws IOException {
+    fs.close();
+    return open();
+  }
+
+  @Test
+  public void testNewFileSystem_emptyLog() throws IOException {
+    FileSystem fs = open();
+    assertThat(Files.isDirectory(fs.getPath("/work"))).isTrue();
+
+    fs = reopen(fs);
+    assertThat(Files.isDirectory(fs.getPath("/work"))).isTrue();
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(fs.getPath("/"))) {
+      assertThat(stream).containsExactly(fs.getPath("/work"));
+    }
+  }
+
+  @Test
+  public void testRecovery_directoriesAndFiles() throws IOException {
+    FileSystem fs = open();
+    Files.createDirectories(fs.getPath("/foo/bar/baz"));
+    Files.write(fs.getPath("/foo/bar/file"), ImmutableList.of("hello", "world"), UTF_8);
+    Files.write(fs.getPath("/foo/empty"), new byte[0]);
+
+    fs = reopen(fs);
+    assertThat(Files.isDirectory(fs.getPath("/foo/bar/baz"))).isTrue();
+    assertThat(Files.readAllLines(fs.getPath("/foo/bar/file"), UTF_8))
+        .containsExactly("hello", "world")
+        .inOrder();
+    assertThat(Files.size(fs.getPath("/foo/empty"))).isEqualTo(0);
+  }
+
+  @Test
+  public void testRecovery_overwritesTruncatesAndAppends() throws IOException {
+    FileSystem fs = open();
+    Path file = fs.getPath("/file");
+    Files.write(file, bytes(0, 100_000));
+    try (FileChannel channel = FileChannel.open(file, READ, WRITE)) {
+      channel.write(ByteBuffer.wrap(new byte[] {-1, -2, -3}), 10);
+      channel.truncate(50_000);
+      channel.write(ByteBuffer.wrap(new byte[] {42}), 60_000); // leaves a gap of zeros
+    }
+    Files.write(file, new byte[] {7, 8}, APPEND);
+    byte[] expected = Files.readAllBytes(file);
+    assertThat(expected).hasLength(60_003);
+
+    fs = reopen(fs);
+    assertThat(Files.readAllBytes(fs.getPath("/file"))).isEqualTo(expected);
+  }
+
+  @Test
+  public void testRecovery_deletesMovesAndReplacements() throws IOException {
+    FileSystem fs = open();
+    Files.createDirectories(fs.getPath("/a/b"));
+    Files.write(fs.getPath("/a/b/one"), bytes(1, 10));
+    Files.write(fs.getPath("/a/two"), bytes(2, 10));
+    Files.write(fs.getPath("/a/three"), bytes(3, 10));
+    Files.move(fs.getPath("/a/b"), fs.getPath("/c"));
+    Files.delete(fs.getPath("/a/two"));
+    Files.move(fs.getPath("/a/three"), fs.getPath("/c/one"), REPLACE_EXISTING);
+
+    fs = reopen(fs);
+    assertThat(Files.exists(fs.getPath("/a/b"))).isFalse();
+    assertThat(Files.exists(fs.getPath("/a/two"))).isFalse();
+    assertThat(Files.exists(fs.getPath("/a/three"))).isFalse();
+    assertThat(Files.readAllBytes(fs.getPath("/c/one"))).isEqualTo(bytes(3, 10));
+  }
+
+  @Test
+  public void testRecovery_hardLinksAndSymbolicLinks() throws IOException {
+    FileSystem fs = open();
+    Files.write(fs.getPath("/file"), bytes(1, 10));
+    Files.createLink(fs.getPath("/link"), fs.getPath("/file"));
+    Files.createDirectory(fs.getPath("/dir"));
+    Files.createSymbolicLink(fs.getPath("/dir/symlink"), fs.getPath("../file"));
+
+    fs = reopen(fs);
+    assertThat(Files.isSameFile(fs.getPath("/file"), fs.getPath("/link"))).isTrue();
+    assertThat(Files.getAttribute(fs.getPath("/file"), "unix:nlink")).isEqualTo(2);
+    assertThat(Files.readSymbolicLink(fs.getPath("/dir/symlink")).toString()).isEqualTo("../file");
+    assertThat(Files.readAllBytes(fs.getPath("/dir/symlink"))).isEqualTo(bytes(1, 10));
+
+    // the files are still linked after recovery
+    Files.write(fs.getPath("/link"), bytes(2, 5));
+    assertThat(Files.readAllBytes(fs.getPath("/file"))).isEqualTo(bytes(2, 5));
+  }
+
+  @Test
+  public void testRecovery_copies() throws IOException {
+    FileSystem fs = open();
+    Files.write(fs.getPath("/file"), bytes(1, 20_000));
+    Files.copy(fs.getPath("/file"), fs.getPath("/copy"));
+    Files.write(fs.getPath("/file"), bytes(2, 10));
+
+    fs = reopen(fs);
+    assertThat(Files.readAllBytes(fs.getPath("/file"))).isEqualTo(bytes(2, 10));
+    assertThat(Files.readAllBytes(fs.getPath("/copy"))).isEqualTo(bytes(1, 20_000));
+  }
+
+  @Test
+  public void testRecovery_attributesAndTimes() throws IOException {
+    FileSystem fs = open();
+    Path file = fs.getPath("/file");
+    Files.write(file, bytes(1, 10));
+    Files.setPosixFilePermissions(file, PosixFilePermissions.fromString("rwxr-x---"));
+    Files.setAttribute(file, "owner:owner", userPrincipal(fs, "alice"));
+    Files.setAttribute(file, "user:tag", new byte[] {1, 2, 3});
+    Files.setAttribute(file, "user:gone", new byte[] {4});
+    Files.getFileAttributeView(file, UserDefinedFileAttributeView.class).delete("gone");
+    Files.setLastModifiedTime(file, FileTime.fromMillis(1000));
+    Files.setAttribute(file, "basic:creationTime", FileTime.fromMillis(500));
+
+    fs = reopen(fs);
+    file = fs.getPath("/file");
+    assertThat(PosixFilePermissions.toString(Files.getPosixFilePermissions(file)))
+        .isEqualTo("rwxr-x---");
+    assertThat(Files.getOwner(file).getName()).isEqualTo("alice");
+    assertThat((byte[]) Files.getAttribute(file, "user:tag")).isEqualTo(new byte[] {1, 2, 3});
+    assertThat(Files.readAttributes(file, "user:*")).doesNotContainKey("gone");
+    assertThat(Files.getLastModifiedTime(file)).isEqualTo(FileTime.fromMillis(1000));
+    assertThat(Files.getAttribute(file, "basic:creationTime")).isEqualTo(FileTime.fromMillis(500));
+  }
+
+  @Test
+  public void testRecovery_keepsCreationTimes() throws IOException, InterruptedException {
+    FileSystem fs = open();
+    Files.createDirectory(fs.getPath("/dir"));
+    Object created = Files.getAttribute(fs.getPath("/dir"), "creationTime");
+    Thread.sleep(5);
+
+    fs = reopen(fs);
+    assertThat(Files.getAttribute(fs.getPath("/dir"), "creationTime")).isEqualTo(created);
+  }
+
+  @Test
+  public void testRecovery_newFilesGetNewIds() throws IOException {
+    FileSystem fs = open();
+    Files.write(fs.getPath("/a"), bytes(1, 10));
+
+    fs = reopen(fs);
+    Files.write(fs.getPath("/b"), bytes(2, 10));
+    assertThat(Files.getAttribute(fs.getPath("/b"), "unix:ino"))
+        .isNotEqualTo(Files.getAttribute(fs.getPath("/a"), "unix:ino"));
+
+    fs = reopen(fs);
+    assertThat(Files.readAllBytes(fs.getPath("/a"))).isEqualTo(bytes(1, 10));
+    assertThat(Files.readAllBytes(fs.getPath("/b"))).isEqualTo(bytes(2, 10));
+  }
+
+  @Test
+  public void testRecovery_withoutClose() throws IOException {
+    FileSystem fs = open();
+    Files.write(fs.getPath("/file"), bytes(1, 10));
+
+    // simulate the process ending without closing the file system by recovering from a copy
+    Path log = tmp.getRoot().toPath().resolve("log");
+    Path copy = tmp.getRoot().toPath().resolve("copy");
+    copyLog(log, copy);
+
+    FileSystem recovered = openAt(copy);
+    assertThat(Files.readAllBytes(recovered.getPath("/file"))).isEqualTo(bytes(1, 10));
+  }
+
+  @Test
+  public void testRecovery_tornRecordIsDiscarded() throws IOException {
+    FileSystem fs = open();
+    Files.write(fs.getPath("/file"), bytes(1, 10));
+    Files.createFile(fs.getPath("/torn"));
+    Path segment = lastSegment(tmp.getRoot().toPath().resolve("log"));
+    long sizeBeforeWrite = Files.size(segment);
+    Files.write(fs.getPath("/torn"), bytes(2, 1000));
+    fs.close();
+
+    // cut the record of the write short, as if the process crashed while appending it
+    try (FileChannel channel = FileChannel.open(segment, WRITE)) {
+      channel.truncate(sizeBeforeWrite + 500);
+    }
+
+    fs = open();
+    assertThat(Files.readAllBytes(fs.getPath("/file"))).isEqualTo(bytes(1, 10));
+    assertThat(Files.size(fs.getPath("/torn"))).isEqualTo(0);
+
+    Files.write(fs.getPath("/after"), bytes(3, 10));
+    fs = reopen(fs);
+    assertThat(Files.readAllBytes(fs.getPath("/after"))).isEqualTo(bytes(3, 10));
+  }
+
+  @Test
+  public void testRecovery_corruptRecordIsDiscarded() throws IOException {
+    FileSystem fs = open();
+    Files.write(fs.getPath("/file"), bytes(1, 10));
+    fs.close();
+
+    Path segment = lastSegment(tmp.getRoot().toPath().resolve("log"));
+    try (FileChannel channel = FileChannel.open(segment, READ, WRITE)) {
+      ByteBuffer last = ByteBuffer.allocate(1);
+      channel.read(last, channel.size() - 1);
+      last.put(0, (byte) (last.get(0) ^ 0xff)).rewind();
+      channel.write(last, channel.size() - 1);
+    }
+
+    fs = open();
+    assertThat(Files.exists(fs.getPath("/file"))).isTrue();
+  }
+
+  @Test
+  public void testCompaction() throws IOException {
+    FileSystem fs = open(16 * 1024);
+    for (int i = 0; i < 50; i++) {
+      Files.write(fs.getPath("/file" + (i % 10)), bytes(i, 4096));
+    }
+    Files.delete(fs.getPath("/file0"));
+    fs.close(); // waits for compaction to finish
+
+    Path log = tmp.getRoot().toPath().resolve("log");
+    assertThat(Files.exists(log.resolve("checkpoint"))).isTrue();
+    // the log doesn't keep all 50 writes of 4 KB
+    long logSize = 0;
+    for (Path file : listFiles(log)) {
+      logSize += Files.size(file);
+    }
+    assertThat(logSize).isLessThan(50 * 4096L);
+
+    fs = open(16 * 1024);
+    assertThat(Files.exists(fs.getPath("/file0"))).isFalse();
+    for (int i = 1; i < 10; i++) {
+      assertThat(Files.readAllBytes(fs.getPath("/file" + i))).isEqualTo(bytes(40 + i, 4096));
+    }
+  }
+
+  @Test(timeout = 60000)
+  public void testCopyLazilyLoadedFile_whileTimesChange() throws Exception {
+    Path image = tmp.getRoot().toPath().resolve("image");
+    try (FileSystem source = Jimfs.newFileSystem(Configuration.unix())) {
+      Files.write(source.getPath("/big"), bytes(7, 10_000));
+      try (FileSystemSnapshot snapshot = Jimfs.snapshot(source)) {
+        snapshot.save(image);
+      }
+    }
+
+    FileSystem fs = open();
+    final Path copy = fs.getPath("/copy");
+    final AtomicBoolean done = new AtomicBoolean();
+    // logging the copy's content must not wait on the copy while its times are being logged
+    List<Thread> touchers = new ArrayList<>();
+    for (int i = 0; i < 4; i++) {
+      Thread toucher =
+          new Thread() {
+            @Override
+            public void run() {
+              for (long time = 0; !done.get(); time++) {
+                try {
+                  Files.setLastModifiedTime(copy, FileTime.fromMillis(time));
+                } catch (IOException expected) {
+                  // not copied yet
+                }
+              }
+            }
+          };
+      toucher.start();
+      touchers.add(toucher);
+    }
+    try (FileSystemSnapshot snapshot = Jimfs.loadSnapshotLazily(image, Configuration.unix());
+        FileSystem fork = snapshot.fork()) {
+      for (int i = 0; i < 500; i++) {
+        Files.copy(fork.getPath("/big"), copy, REPLACE_EXISTING);
+      }
+    } finally {
+      done.set(true);
+      for (Thread toucher : touchers) {
+        toucher.join();
+      }
+    }
+
+    fs = reopen(fs);
+    assertThat(Files.readAllBytes(fs.getPath("/copy"))).isEqualTo(bytes(7, 10_000));
+  }
+
+  @Test
+  public void testCompaction_sparseFile() throws IOException {
+    long offset = 10L * 1024 * 1024 * 1024;
+    FileSystem fs = open(16 * 1024);
+    try (FileChannel channel = FileChannel.open(fs.getPath("/sparse"), CREATE_NEW, WRITE)) {
+      channel.write(ByteBuffer.wrap(bytes(1, 100)), offset);
+    }
+    for (int i = 0; i < 10; i++) {
+      Files.write(fs.getPath("/file"), bytes(i, 4096));
+    }
+    Files.copy(fs.getPath("/sparse"), fs.getPath("/copy"));
+    fs.close(); // waits for compaction to finish
+
+    Path log = tmp.getRoot().toPath().resolve("log");
+    assertThat(Files.exists(log.resolve("checkpoint"))).isTrue();
+    long logSize = 0;
+    for (Path file : listFiles(log)) {
+      logSize += Files.size(file);
+    }
+    assertThat(logSize).isLessThan(1024 * 1024L);
+
+    fs = open(16 * 1024);
+    FileStore store = fs.getFileStores().iterator().next();
+    assertThat(store.getTotalSpace() - store.getUnallocatedSpace()).isLessThan(1024 * 1024L);
+    for (String name : ImmutableList.of("/sparse", "/copy")) {
+      Path file = fs.getPath(name);
+      assertThat(Files.size(file)).isEqualTo(offset + 100);
+      assertThat(Jimfs.seekData(file, 0)).isEqualTo(offset - offset % 8192);
+      ByteBuffer buf = ByteBuffer.allocate(100);
+      try (FileChannel channel = FileChannel.open(file, READ)) {
+        channel.read(buf, offset);
+      }
+      assertThat(buf.array()).isEqualTo(bytes(1, 100));
+    }
+  }
+
+  @Test
+  public void testCompaction_hardLinks() throws IOException {
+    FileSystem fs = open(1024);
+    Files.write(fs.getPath("/file"), bytes(1, 10));
+    Files.createDirectory(fs.getPath("/dir"));
+    Files.createLink(fs.getPath("/dir/link"), fs.getPath("/file"));
+    Files.write(fs.getPath("/big"), bytes(2, 4096));
+    fs.close();
+    assertThat(Files.exists(tmp.getRoot().toPath().resolve("log/checkpoint"))).isTrue();
+
+    fs = open(1024);
+    assertThat(Files.isSameFile(fs.getPath("/file"), fs.getPath("/dir/link"))).isTrue();
+    assertThat(Files.readAllBytes(fs.getPath("/dir/link"))).isEqualTo(bytes(1, 10));
+    assertThat(Files.readAllBytes(fs.getPath("/big"))).isEqualTo(bytes(2, 4096));
+  }
+
+  @Test
+  public void testCompaction_concurrentChanges() throws Exception {
+    final FileSystem fs = open(8 * 1024);
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<?>> futures = new ArrayList<>();
+      for (int t = 0; t < 4; t++) {
+        final String prefix = "/" + t;
+        futures.add(
+            executor.submit(
+                new Callable<Void>() {
+                  @Override
+                  public Void call() throws IOException {
+                    Path file = fs.getPath(prefix + "-file");
+                    for (int i = 0; i < 200; i++) {
+                      Files.write(file, bytes(i, 1000 + i));
+                      Files.copy(file, fs.getPath(prefix + "-copy"), REPLACE_EXISTING);
+                      Path temp = fs.getPath(prefix + "-temp" + i);
+                      Files.write(temp, bytes(i, 10));
+                      Files.delete(temp);
+                    }
+                    return null;
+                  }
+                }));
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } finally {
+      executor.shutdown();
+    }
+
+    FileSystem reopened = reopen(fs);
+    assertThat(Files.exists(tmp.getRoot().toPath().resolve("log/checkpoint"))).isTrue();
+    for (int t = 0; t < 4; t++) {
+      assertThat(Files.readAllBytes(reopened.getPath("/" + t + "-file")))
+          .isEqualTo(bytes(199, 1199));
+      assertThat(Files.readAllBytes(reopened.getPath("/" + t + "-copy")))
+          .isEqualTo(bytes(199, 1199));
+      assertThat(Files.exists(reopened.getPath("/" + t + "-temp199"))).isFalse();
+    }
+  }
+
+  @Test
+  public void testCompaction_everyRecord() throws IOException {
+    // each record ends a segment, so every file is created in a different segment than it's linked
+    FileSystem fs = open(1);
+    Files.createDirectory(fs.getPath("/dir"));
+    Files.write(fs.getPath("/dir/file"), bytes(1, 10));
+    Files.createSymbolicLink(fs.getPath("/link"), fs.getPath("dir/file"));
+    fs.close();
+
+    fs = open(1);
+    assertThat(Files.readAllBytes(fs.getPath("/link"))).isEqualTo(bytes(1, 10));
+  }
+
+  @Test
+  public void testOpen_directoryInUse() throws IOException {
+    open();
+    try {
+      open();
+      fail();
+    } catch (IOError expected) {
+      assertThat(expected.getCause()).hasMessageThat().contains("in use");
+    }
+  }
+
+  @Test
+  public void testClosedFileSystem() throws IOException {
+    FileSystem fs = open();
+    Path file = fs.getPath("/file");
+    fs.close();
+    try {
+      Files.write(file, bytes(1, 10));
+      fail();
+    } catch (ClosedFileSystemException expected) {
+    }
+
+    fs = open();
+    try {
+      Files.readAllBytes(fs.getPath("/file"));
+      fail();
+    } catch (NoSuchFileException expected) {
+    }
+  }
+
+  @Test
+  public void testFork_isNotDurable() throws IOException {
+    FileSystem fs = open();
+    Files.write(fs.getPath("/file"), bytes(1, 10));
+
+    FileSystem fork = Jimfs.snapshot(fs).fork();
+    fileSystems.add(fork);
+    Files.write(fork.getPath("/forked"), bytes(2, 10));
+
+    fs = reopen(fs);
+    assertThat(Files.exists(fs.getPath("/forked"))).isFalse();
+    assertThat(Files.readAllBytes(fs.getPath("/file"))).isEqualTo(bytes(1, 10));
+  }
+
+  @Test
+  public void testNonLoggableAttributeValue() throws IOException {
+    Disk disk = new HeapDisk(8192, 1000, 0);
+    WriteAheadLog log =
+        WriteAheadLog.open(
+            tmp.getRoot().toPath().resolve("direct"),
+            WriteAheadLog.DEFAULT_CHECKPOINT_THRESHOLD,
+            PathServiceTest.fakeUnixPathService(),
+            disk,
+            new HashMap<Name, Directory>());
+    try {
+      FileFactory factory = new FileFactory(disk, log.nextFileId(), log);
+      RegularFile file = factory.createRegularFile();
+      try {
+        file.setAttribute("test", "foo", new Object());
+        fail();
+      } catch (IllegalArgumentException expected) {
+      }
+      assertThat(file.getAttribute("test", "foo")).isNull();
+    } finally {
+      log.close();
+    }
+  }
+
+  private FileSystem openAt(Path logDirectory) {
+    FileSystem fs =
+        Jimfs.newFileSystem(
+            Configuration.unix().toBuilder().setWriteAheadLog(logDirectory).build());
+    fileSystems.add(fs);
+    return fs;
+  }
+
+  private static List<Path> listFiles(Path dir) throws IOException {
+    List<Path> files = new ArrayList<>();
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+      for (Path file : stream) {
+        files.add(file);
+      }
+    }
+    return files;
+  }
+
+  private static Path lastSegment(Path log) throws IOException {
+    Path last = null;
+    long lastNumber = -1;
+    for (Path file : listFiles(log)) {
+      String name = file.getFileName().toString();
+      if (name.startsWith("segment-")) {
+        long number = Long.parseLong(name.substring("segment-".length()));
+        if (number > lastNumber && Files.size(file) > 16) {
+          last = file;
+          lastNumber = number;
+        }
+      }
+    }
+    return last;
+  }
+
+  private static void copyLog(Path from, Path to) throws IOException {
+    Files.createDirectory(to);
+    for (Path file : listFiles(from)) {
+      if (!file.getFileName().toString().equals("lock")) {
+        Files.copy(file, to.resolve(file.getFileName()));
+      }
+    }
+  }
+
+  private static UserPrincipal userPrincipal(FileSystem fs, String name)
+      throws IOException {
+    return fs.getUserPrincipalLookupService().lookupPrincipalByName(name);
+  }
+
+  private static byte[] bytes(int seed, int size) {
+    byte[] bytes = new byte[size];
+    for (int i = 0; i < size; i++) {
+      bytes[i] = (byte) (seed * 31 + i);
+    }
+    return bytes;
+  }
+}